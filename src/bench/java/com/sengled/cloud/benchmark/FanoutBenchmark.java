@@ -0,0 +1,280 @@
+package com.sengled.cloud.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.ByteBufAllocators;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.RtspSessionDispatcher;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
+
+/**
+ * 一路推流转发给 N 个观众的性能
+ *
+ * <p>
+ * 推流端和观众都是 {@link EmbeddedChannel}, 会话按 {@code RtspServerInboundHandler} 的方式建立
+ * (ANNOUNCE/SETUP/RECORD, DESCRIBE/SETUP/PLAY), 然后直接调用
+ * {@link RtspSessionDispatcher#dispatch(RtpPkt)}, 走完
+ * {@code ServerEngine.Dispatcher -> RtspSessionListener -> InterLeavedRTPSession.sendRtpPkt} 整条路径。
+ * 观众的 channel 最前面是一个 {@link Sink}, 统计并释放写出来的数据, 马上完成 promise,
+ * 相当于网络无限快, 测出来的是服务器自身的开销。
+ * </p>
+ *
+ * <ul>
+ * <li>video: 一个 40 个 FU-A 分片的 IDR 帧, 后面跟 22 个 4 分片的 P 帧, 每个包 1400 字节</li>
+ * <li>audio: 每个包一帧 aac, 256 字节</li>
+ * </ul>
+ *
+ * <p>
+ * 结果是每秒转发的推流包数; 辅助计数器 deliveries 是每秒发给观众的包数,
+ * 1 / deliveries 就是每个观众的开销; writtenBytes 除以包数是每个推流包写出去的字节数,
+ * 目前每个观众的数据都是单独拷贝出来的, 所以它也就是拷贝的字节数。
+ * 每个包分配的内存用 -prof gc 看 gc.alloc.rate.norm。
+ * </p>
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar FanoutBenchmark -prof gc
+ * </pre>
+ *
+ * @author 陈修恒
+ * @date 2016年6月12日
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+    /** 每次调用转发的 rtp 包个数 **/
+    static final int PACKETS = 128;
+
+    static final int VIDEO_PACKET_SIZE = 1400;
+    static final int AUDIO_PACKET_SIZE = 256;
+    static final int KEY_FRAME_PACKETS = 40;
+    static final int P_FRAME_PACKETS = 4;
+
+    private static final String TRANSPORT = "RTP/AVP/TCP;unicast;interleaved=0-1";
+
+    @Param({"1", "10", "100", "1000"})
+    int listeners;
+
+    @Param({"video", "audio"})
+    String workload;
+
+    private byte[] stream;
+    private int[] lengths;
+
+    private ServerEngine engine;
+    private RtspSession publisher;
+    private final List<EmbeddedChannel> channels = new ArrayList<EmbeddedChannel>();
+    private final Sink sink = new Sink();
+
+    /**
+     * 每秒发给观众的包数和字节数
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Counters {
+        public long deliveries;
+        public long writtenBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            deliveries = 0;
+            writtenBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // 每个会话建立时都会打 INFO 日志, 1000 个观众会淹没结果
+        org.apache.log4j.Logger.getLogger("com.sengled.cloud").setLevel(org.apache.log4j.Level.WARN);
+
+        boolean video = "video".equals(workload);
+        buildStream(video);
+
+        String sdp = RtspStreams.sdp(video, !video, 0);
+        engine = new ServerEngine().withMetricRegistry("benchmark", new MetricRegistry());
+
+        // ANNOUNCE, SETUP, RECORD
+        publisher = new RtspSession(engine, newContext(), RtspStreams.URL)
+                .withSdp(sdp)
+                .withMode(SessionMode.PUBLISH);
+        publisher.setupStream(RtspStreams.URL + "/streamid=0", TRANSPORT);
+        publisher.record();
+
+        // DESCRIBE, SETUP, PLAY
+        for (int i = 0; i < listeners; i++) {
+            RtspSession listener = new RtspSession(engine, newContext(), RtspStreams.URL)
+                    .withMode(SessionMode.PLAY);
+            listener.setupStream(RtspStreams.URL + "/streamid=0", TRANSPORT);
+            listener.play();
+        }
+
+        if (engine.numSessions() != 1) {
+            throw new IllegalStateException("publisher NOT registered");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        publisher.destroy("benchmark finished");
+        for (EmbeddedChannel channel : channels) {
+            channel.finish();
+        }
+        channels.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void dispatch(Counters counters) {
+        // 跟解码器一样, 收到的数据在一个池化的 ByteBuf 里, 每个 rtp 包是它的 slice
+        ByteBuf ingest = ByteBufAllocators.ALLOCATOR.directBuffer(stream.length);
+        ingest.writeBytes(stream);
+
+        RtspSessionDispatcher dispatcher = publisher.dispatcher();
+        int offset = 0;
+        for (int i = 0; i < PACKETS; i++) {
+            RtpPkt rtpPkt = new RtpPkt(0, ingest.slice(offset, lengths[i]).retain());
+            rtpPkt.ingestNanos(System.nanoTime());
+            offset += lengths[i];
+
+            dispatcher.dispatch(rtpPkt);
+        }
+        ingest.release();
+
+        counters.deliveries += sink.writes;
+        counters.writtenBytes += sink.bytes;
+        sink.writes = 0;
+        sink.bytes = 0;
+    }
+
+    private void buildStream(boolean video) {
+        ByteBuf buf = RtspStreams.buffer();
+        ByteBuf packet = RtspStreams.buffer();
+        lengths = new int[PACKETS];
+
+        long timestamp = 0;
+        for (int i = 0; i < PACKETS; i++) {
+            byte[] header;
+            boolean marker;
+            int length;
+            if (video) {
+                length = VIDEO_PACKET_SIZE;
+                if (i < KEY_FRAME_PACKETS) {
+                    // FU-A, IDR
+                    header = fuA(5, i == 0, i == KEY_FRAME_PACKETS - 1);
+                    marker = i == KEY_FRAME_PACKETS - 1;
+                } else {
+                    // FU-A, non-IDR slice
+                    int index = (i - KEY_FRAME_PACKETS) % P_FRAME_PACKETS;
+                    if (index == 0) {
+                        timestamp += 3000;
+                    }
+                    header = fuA(1, index == 0, index == P_FRAME_PACKETS - 1);
+                    marker = index == P_FRAME_PACKETS - 1;
+                }
+            } else {
+                length = AUDIO_PACKET_SIZE;
+                header = new byte[] {0x00, 0x10, 0x1F, (byte) 0xE0}; // AU-headers
+                marker = true;
+                timestamp += 1024;
+            }
+
+            // interleaved 头由解码器去掉
+            packet.clear();
+            RtspStreams.writeRtp(packet, 0, video ? 96 : 97, marker, i, timestamp, 0x1234, header, length);
+            packet.skipBytes(4);
+            lengths[i] = packet.readableBytes();
+            buf.writeBytes(packet);
+        }
+
+        stream = RtspStreams.toArray(buf);
+        buf.release();
+        packet.release();
+    }
+
+    private static byte[] fuA(int nalType, boolean start, boolean end) {
+        int fuHeader = (start ? 0x80 : 0) | (end ? 0x40 : 0) | nalType;
+        return new byte[] {(byte) (0x60 | 28), (byte) fuHeader};
+    }
+
+    /**
+     * @return 新 channel 里, 会话所在的 handler 的 context
+     */
+    private ChannelHandlerContext newContext() {
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(sink, handler);
+        channel.config().setAllocator(ByteBufAllocators.ALLOCATOR);
+        channels.add(channel);
+        return channel.pipeline().context(handler);
+    }
+
+    /**
+     * 统计并丢弃写出来的数据, 写操作马上成功
+     */
+    @Sharable
+    static final class Sink extends ChannelOutboundHandlerAdapter {
+        long writes;
+        long bytes;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf) {
+                bytes += ((ByteBuf) msg).readableBytes();
+            }
+            writes++;
+            ReferenceCountUtil.release(msg);
+            promise.setSuccess();
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            // 数据已经丢弃了
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(FanoutBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,157 @@
+package com.sengled.cloud.benchmark;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.ByteBufAllocators;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.capture.CaptureFile;
+import com.sengled.cloud.mediaserver.rtsp.capture.ReplayPublisher;
+
+/**
+ * 用真实摄像头的抓包代替 {@link FanoutBenchmark} 里合成的数据
+ *
+ * <p>
+ * 抓包可以是 rtpdump 或者 pcap (比如 /capture/ 接口导出的文件), 通过 {@link ReplayPublisher}
+ * 尽快地发给 N 个观众, 每次调用把整个文件发一遍。
+ * 辅助计数器 packets 是每秒转发的推流包数, deliveries 是每秒发给观众的包数。
+ * </p>
+ *
+ * <pre>
+ * java -Dreplay.file=camera.pcap -Dreplay.sdp=camera.sdp -jar target/benchmarks.jar ReplayBenchmark -prof gc
+ * </pre>
+ *
+ * replay.sdp 默认是 replay.file 加上 .sdp 后缀
+ *
+ * @author 陈修恒
+ * @date 2016年6月14日
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+    private static final String TRANSPORT = "RTP/AVP/TCP;unicast;interleaved=%d-%d";
+
+    @Param({"1", "10", "100"})
+    int listeners;
+
+    private CaptureFile file;
+    private ServerEngine engine;
+    private ReplayPublisher publisher;
+    private final List<EmbeddedChannel> channels = new ArrayList<EmbeddedChannel>();
+    private final FanoutBenchmark.Sink sink = new FanoutBenchmark.Sink();
+
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Counters {
+        public long packets;
+        public long deliveries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+            deliveries = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        org.apache.log4j.Logger.getLogger("com.sengled.cloud").setLevel(org.apache.log4j.Level.WARN);
+
+        String path = System.getProperty("replay.file");
+        if (null == path) {
+            throw new IllegalArgumentException("-Dreplay.file is required");
+        }
+        String sdp = read(System.getProperty("replay.sdp", path + ".sdp"));
+
+        file = CaptureFile.open(new File(path));
+        engine = new ServerEngine().withMetricRegistry("benchmark", new MetricRegistry());
+        publisher = new ReplayPublisher(engine, newContext(), RtspStreams.URL, sdp, file);
+        RtspSession session = publisher.start();
+
+        for (int i = 0; i < listeners; i++) {
+            RtspSession listener = new RtspSession(engine, newContext(), RtspStreams.URL)
+                    .withMode(SessionMode.PLAY);
+            for (int j = 0; j < session.numStreams(); j++) {
+                listener.setupStream(session.getStreamUri(j), String.format(TRANSPORT, 2 * j, 2 * j + 1));
+            }
+            listener.play();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        publisher.stop("benchmark finished");
+        for (EmbeddedChannel channel : channels) {
+            channel.finish();
+        }
+        channels.clear();
+        file.close();
+    }
+
+    @Benchmark
+    public void replay(Counters counters) {
+        publisher.rewind();
+        counters.packets += publisher.dispatchAll();
+
+        counters.deliveries += sink.writes;
+        sink.writes = 0;
+        sink.bytes = 0;
+    }
+
+    private ChannelHandlerContext newContext() {
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(sink, handler);
+        channel.config().setAllocator(ByteBufAllocators.ALLOCATOR);
+        channels.add(channel);
+        return channel.pipeline().context(handler);
+    }
+
+    private static String read(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(path).toPath()), Charset.forName("UTF-8"));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ReplayBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,203 @@
+package com.sengled.cloud.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sengled.cloud.mediaserver.ByteBufAllocators;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspObjectDecoder;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspRequestDecoder;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspResponseDecoder;
+
+/**
+ * {@link RtspRequestDecoder} 和 {@link RtspResponseDecoder} 的解码性能
+ *
+ * <ul>
+ * <li>interleavedRtp: 只有 interleaved rtp, 不同的包大小</li>
+ * <li>controlMixedWithRtp: rtp 中间夹着 rtcp SR 和 GET_PARAMETER 心跳</li>
+ * <li>announceRequest / describeResponse: 带大 sdp 的请求和响应</li>
+ * </ul>
+ *
+ * <p>
+ * readSize 模拟 socket 每次读到的字节数, 0 表示整批数据一次读到;
+ * 每次读到的数据都从 {@link ByteBufAllocators#ALLOCATOR} 分配, 跟线上一样。
+ * 每次调用解码 {@link #PACKETS} 个 rtp 包, 结果是每个包的吞吐量。
+ * </p>
+ *
+ * <pre>
+ * mvn -Pbenchmark package
+ * java -jar target/benchmarks.jar RtspDecoderBenchmark -prof gc
+ * </pre>
+ *
+ * -prof gc 输出每个操作分配的字节数 (gc.alloc.rate.norm) 和 gc 次数
+ *
+ * @author 陈修恒
+ * @date 2016年6月11日
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtspDecoderBenchmark {
+    /** 每次调用解码的 rtp 包个数 **/
+    static final int PACKETS = 256;
+    /** 每隔多少个 rtp 包夹一个 rtcp 和心跳 **/
+    static final int CONTROL_INTERVAL = 64;
+
+    @State(Scope.Thread)
+    public static class RtpStream {
+        @Param({"160", "512", "1400"})
+        int packetSize;
+
+        @Param({"0", "1448", "97"})
+        int readSize;
+
+        byte[] rtp;
+        byte[] mixed;
+        EmbeddedChannel channel;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            ByteBuf rtp = RtspStreams.buffer();
+            ByteBuf mixed = RtspStreams.buffer();
+            for (int i = 0; i < PACKETS; i++) {
+                boolean marker = i % 8 == 7;
+                RtspStreams.writeRtp(rtp, 0, 96, marker, i, 3000 * (i / 8), 0x1234, packetSize);
+                RtspStreams.writeRtp(mixed, 0, 96, marker, i, 3000 * (i / 8), 0x1234, packetSize);
+
+                if (i % CONTROL_INTERVAL == CONTROL_INTERVAL - 1) {
+                    RtspStreams.writeRtcpSr(mixed, 1, 0x1234, 3000 * (i / 8), i, i * packetSize);
+                    RtspStreams.writeRequest(mixed, "GET_PARAMETER", i, "1185d20035702ca", null);
+                }
+            }
+            this.rtp = RtspStreams.toArray(rtp);
+            this.mixed = RtspStreams.toArray(mixed);
+            rtp.release();
+            mixed.release();
+
+            channel = newChannel(new RtspRequestDecoder());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            channel.finish();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SdpStream {
+        @Param({"600", "4000", "8000"})
+        int sdpSize;
+
+        @Param({"0", "1448", "97"})
+        int readSize;
+
+        byte[] announce;
+        byte[] describe;
+        EmbeddedChannel server;
+        EmbeddedChannel client;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            String sdp = RtspStreams.sdp(sdpSize);
+
+            ByteBuf announce = RtspStreams.buffer();
+            RtspStreams.writeRequest(announce, "ANNOUNCE", 2, null, sdp);
+            this.announce = RtspStreams.toArray(announce);
+            announce.release();
+
+            ByteBuf describe = RtspStreams.buffer();
+            RtspStreams.writeResponse(describe, 2, null, sdp);
+            this.describe = RtspStreams.toArray(describe);
+            describe.release();
+
+            server = newChannel(new RtspRequestDecoder(4096, 8192, 16 * 1024, true));
+            client = newChannel(new RtspResponseDecoder(4096, 8192, 16 * 1024, true));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.finish();
+            client.finish();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void interleavedRtp(RtpStream stream, Blackhole bh) {
+        decode(stream.channel, stream.rtp, stream.readSize, bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void controlMixedWithRtp(RtpStream stream, Blackhole bh) {
+        decode(stream.channel, stream.mixed, stream.readSize, bh);
+    }
+
+    @Benchmark
+    public void announceRequest(SdpStream stream, Blackhole bh) {
+        decode(stream.server, stream.announce, stream.readSize, bh);
+    }
+
+    @Benchmark
+    public void describeResponse(SdpStream stream, Blackhole bh) {
+        decode(stream.client, stream.describe, stream.readSize, bh);
+    }
+
+    static EmbeddedChannel newChannel(RtspObjectDecoder decoder) {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        channel.config().setAllocator(ByteBufAllocators.ALLOCATOR);
+        return channel;
+    }
+
+    /**
+     * 按 readSize 把 stream 切成多次读, 解出来的消息交给 Blackhole 以后释放
+     */
+    static void decode(EmbeddedChannel channel, byte[] stream, int readSize, Blackhole bh) {
+        int step = readSize > 0 ? readSize : stream.length;
+        for (int offset = 0; offset < stream.length; offset += step) {
+            int length = Math.min(step, stream.length - offset);
+            ByteBuf read = channel.alloc().directBuffer(length);
+            read.writeBytes(stream, offset, length);
+            channel.writeInbound(read);
+
+            Object msg;
+            while (null != (msg = channel.readInbound())) {
+                bh.consume(msg);
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RtspDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
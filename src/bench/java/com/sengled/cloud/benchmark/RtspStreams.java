@@ -0,0 +1,193 @@
+package com.sengled.cloud.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+/**
+ * 构造基准测试用的字节流: interleaved rtp/rtcp, rtsp 请求和带 sdp 的响应
+ *
+ * @author 陈修恒
+ * @date 2016年6月11日
+ */
+public final class RtspStreams {
+    public static final int RTP_HEADER_LENGTH = 12;
+
+    public static final String URL = "rtsp://127.0.0.1:554/live/benchmark";
+
+    private RtspStreams() {
+    }
+
+    /**
+     * 写一个 interleaved rtp 包, 包括 4 字节的 '$' 头
+     *
+     * @param length rtp 包的长度, 包括 12 字节的 rtp 头
+     */
+    public static void writeRtp(ByteBuf out,
+                                int channel,
+                                int payloadType,
+                                boolean marker,
+                                int seq,
+                                long timestamp,
+                                int ssrc,
+                                int length) {
+        writeRtp(out, channel, payloadType, marker, seq, timestamp, ssrc, null, length);
+    }
+
+    /**
+     * 写一个 interleaved rtp 包, 负载以 payloadHeader 开头, 剩下的填充固定的字节
+     */
+    public static void writeRtp(ByteBuf out,
+                                int channel,
+                                int payloadType,
+                                boolean marker,
+                                int seq,
+                                long timestamp,
+                                int ssrc,
+                                byte[] payloadHeader,
+                                int length) {
+        length = Math.max(RTP_HEADER_LENGTH, length);
+
+        out.writeByte('$');
+        out.writeByte(channel);
+        out.writeShort(length);
+
+        out.writeByte(0x80);
+        out.writeByte((marker ? 0x80 : 0x00) | (payloadType & 0x7F));
+        out.writeShort(seq);
+        out.writeInt((int) timestamp);
+        out.writeInt(ssrc);
+
+        int payloadLength = length - RTP_HEADER_LENGTH;
+        int headerLength = null != payloadHeader ? Math.min(payloadHeader.length, payloadLength) : 0;
+        if (headerLength > 0) {
+            out.writeBytes(payloadHeader, 0, headerLength);
+        }
+        for (int i = headerLength; i < payloadLength; i++) {
+            out.writeByte(i);
+        }
+    }
+
+    /**
+     * 写一个 interleaved 的 rtcp SR
+     */
+    public static void writeRtcpSr(ByteBuf out, int channel, int ssrc, long timestamp, int packets, int octets) {
+        out.writeByte('$');
+        out.writeByte(channel);
+        out.writeShort(28);
+
+        out.writeByte(0x80);
+        out.writeByte(200);
+        out.writeShort(6); // 32 bit words - 1
+        out.writeInt(ssrc);
+        out.writeLong(0x83AA7E80L << 32); // ntp
+        out.writeInt((int) timestamp);
+        out.writeInt(packets);
+        out.writeInt(octets);
+    }
+
+    /**
+     * 写一个 rtsp 请求
+     *
+     * @param body 请求体, 比如 ANNOUNCE 的 sdp, 可以为 null
+     */
+    public static void writeRequest(ByteBuf out, String method, int cseq, String session, String body) {
+        StringBuilder buf = new StringBuilder(256);
+        buf.append(method).append(' ').append(URL).append(" RTSP/1.0\r\n");
+        buf.append("CSeq: ").append(cseq).append("\r\n");
+        buf.append("User-Agent: Lavf57.25.100\r\n");
+        if (null != session) {
+            buf.append("Session: ").append(session).append("\r\n");
+        }
+        appendBody(buf, body);
+        out.writeBytes(buf.toString().getBytes(CharsetUtil.UTF_8));
+    }
+
+    /**
+     * 写一个 rtsp 响应
+     */
+    public static void writeResponse(ByteBuf out, int cseq, String session, String body) {
+        StringBuilder buf = new StringBuilder(256);
+        buf.append("RTSP/1.0 200 OK\r\n");
+        buf.append("CSeq: ").append(cseq).append("\r\n");
+        buf.append("Server: rtsp-server\r\n");
+        buf.append("Content-Base: ").append(URL).append("/\r\n");
+        if (null != session) {
+            buf.append("Session: ").append(session).append(";timeout=60\r\n");
+        }
+        appendBody(buf, body);
+        out.writeBytes(buf.toString().getBytes(CharsetUtil.UTF_8));
+    }
+
+    /**
+     * 一个 h264 + aac 的 sdp, 用 a=x- 属性补齐到指定的长度
+     */
+    public static String sdp(int length) {
+        return sdp(true, true, length);
+    }
+
+    /**
+     * @param video 是否包含 h264 视频, streamid=0
+     * @param audio 是否包含 aac 音频, 有视频时为 streamid=1, 否则为 streamid=0
+     */
+    public static String sdp(boolean video, boolean audio, int length) {
+        StringBuilder buf = new StringBuilder(Math.max(length, 512));
+        buf.append("v=0\r\n");
+        buf.append("o=- 0 0 IN IP4 127.0.0.1\r\n");
+        buf.append("s=benchmark\r\n");
+        buf.append("c=IN IP4 0.0.0.0\r\n");
+        buf.append("t=0 0\r\n");
+        buf.append("a=tool:libavformat 57.25.100\r\n");
+        int streamId = 0;
+        if (video) {
+            buf.append("m=video 0 RTP/AVP 96\r\n");
+            buf.append("a=rtpmap:96 H264/90000\r\n");
+            buf.append("a=fmtp:96 packetization-mode=1; sprop-parameter-sets=Z2QAKKzZQHgCJ+WEAAADAAQAAAMA8Dxgxlg=,aOvjyyLA; profile-level-id=640028\r\n");
+            buf.append("a=control:streamid=").append(streamId++).append("\r\n");
+        }
+        if (audio) {
+            buf.append("m=audio 0 RTP/AVP 97\r\n");
+            buf.append("b=AS:128\r\n");
+            buf.append("a=rtpmap:97 MPEG4-GENERIC/44100/2\r\n");
+            buf.append("a=fmtp:97 profile-level-id=1;mode=AAC-hbr;sizelength=13;indexlength=3;indexdeltalength=3; config=121056E500\r\n");
+            buf.append("a=control:streamid=").append(streamId++).append("\r\n");
+        }
+
+        int line = 0;
+        while (buf.length() < length) {
+            int remains = length - buf.length();
+            String prefix = "a=x-pad" + (line++) + ":";
+            int padding = Math.max(0, Math.min(72, remains - prefix.length() - 2));
+            buf.append(prefix);
+            for (int i = 0; i < padding; i++) {
+                buf.append((char) ('a' + i % 26));
+            }
+            buf.append("\r\n");
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @return 可读部分的拷贝
+     */
+    public static byte[] toArray(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+
+    public static ByteBuf buffer() {
+        return Unpooled.buffer(64 * 1024);
+    }
+
+    private static void appendBody(StringBuilder buf, String body) {
+        if (null != body) {
+            buf.append("Content-Type: application/sdp\r\n");
+            buf.append("Content-Length: ").append(body.getBytes(CharsetUtil.UTF_8).length).append("\r\n");
+            buf.append("\r\n");
+            buf.append(body);
+        } else {
+            buf.append("\r\n");
+        }
+    }
+}
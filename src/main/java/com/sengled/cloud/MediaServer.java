@@ -7,6 +7,7 @@ import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -24,11 +25,18 @@ import org.slf4j.LoggerFactory;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Slf4jReporter;
 import com.sengled.cloud.http.HttpServer;
+import com.sengled.cloud.mediaserver.AdmissionControl;
+import com.sengled.cloud.mediaserver.ByteBufAllocators;
 import com.sengled.cloud.mediaserver.RtspClients;
 import com.sengled.cloud.mediaserver.RtspServerBootstrap;
+import com.sengled.cloud.mediaserver.edge.EdgeRelays;
+import com.sengled.cloud.mediaserver.edge.OriginLocator;
+import com.sengled.cloud.mediaserver.edge.StaticOriginLocator;
+import com.sengled.cloud.mediaserver.quota.TenantQuotas;
 import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
 import com.sengled.cloud.mediaserver.xml.MediaServerConfigs;
 import com.sengled.cloud.mediaserver.xml.StreamSourceDef;
+import com.sengled.cloud.monitor.EventLoopWatchdog;
 import com.sengled.cloud.monitor.OSMonitor;
 import com.sengled.cloud.spring.reports.SpringStarter;
 import com.sengled.cloud.spring.reports.local.RtspSessionLogger;
@@ -42,6 +50,8 @@ public class MediaServer {
     private static final String PORT_TALKBACK_SERVER = "talkback-server";
     private static final String PORT_RTSP_SERVER = "rtsp-server";
     private static final String PORT_HTTP_SERVER = "http-server";
+    private static final String EDGE_LOCATOR_REDIS = "redis";
+    private static final String EDGE_LOCATOR_STATIC = "static";
 
     private static final Logger logger = LoggerFactory.getLogger(MediaServer.class);
     
@@ -65,9 +75,17 @@ public class MediaServer {
 
         // http-server，用于输出性能统计数据
         final MetricRegistry metrics = new MetricRegistry();
+        ByteBufAllocators.withMetricRegistry(metrics);
         Integer httpPort = configs.getPorts().get(PORT_HTTP_SERVER);
+        HttpServer httpServer = null;
         if (null != httpPort) {
-            new HttpServer(httpPort).withMetricRegistry(metrics).start();
+            httpServer = new HttpServer(httpPort).withMetricRegistry(metrics);
+        }
+
+        // 检测 EventLoop 是否卡住
+        EventLoopWatchdog watchdog = new EventLoopWatchdog().withMetricRegistry(metrics);
+        if (null != httpServer) {
+            httpServer.withEventLoopWatchdog(watchdog);
         }
 
         // 默认启动的线程数
@@ -83,7 +101,7 @@ public class MediaServer {
         Integer rtspServerPort = configs.getPorts().get(PORT_RTSP_SERVER);
         if (null != rtspServerPort) {
             rtspServerEngine.withMetricRegistry("rtsp-server", metrics);
-            bootstraps.add(new RtspServerBootstrap("rtsp-server", rtspServerEngine, rtspServerPort));
+            bootstraps.add(new RtspServerBootstrap("rtsp-server", rtspServerEngine, rtspServerPort).withMetricRegistry(metrics));
 
             for (StreamSourceDef def : configs.getStreamSources()) {
                 try {
@@ -100,14 +118,39 @@ public class MediaServer {
         Integer talkbackServerPort = configs.getPorts().get(PORT_TALKBACK_SERVER);
         if (null != talkbackServerPort) {
             talkbackEngine.withMetricRegistry("talkback-server", metrics);
-            bootstraps.add(new RtspServerBootstrap("talkback-server", talkbackEngine, talkbackServerPort));
+            bootstraps.add(new RtspServerBootstrap("talkback-server", talkbackEngine, talkbackServerPort).withMetricRegistry(metrics));
+        }
+        
+        if (null != httpServer) {
+            if (null != rtspServerPort) {
+                httpServer.withServerEngine("rtsp-server", rtspServerEngine);
+            }
+            if (null != talkbackServerPort) {
+                httpServer.withServerEngine("talkback-server", talkbackEngine);
+            }
+            httpServer.start();
+        }
+
+        // 边缘节点找源站的方式
+        OriginLocator originLocator = null;
+        if (EDGE_LOCATOR_STATIC.equalsIgnoreCase(configs.getEdgeLocator())) {
+            originLocator = new StaticOriginLocator(configs.getOrigins());
         }
 
         // 启动 spring 容器
+        OSMonitor osMonitor;
         if (!"local".equalsIgnoreCase(configs.getMode())) {
             SpringStarter starter = new SpringStarter(configFile);
             starter.start();
             
+            if (EDGE_LOCATOR_REDIS.equalsIgnoreCase(configs.getEdgeLocator())) {
+                originLocator = starter.getOriginLocator();
+            }
+            
+            if (null != rtspServerPort && configs.isRedirect()) {
+                starter.setStreamRedirector(rtspServerEngine);
+            }
+            
             if (null != rtspServerPort) {
                 starter.setMediaResource(rtspServerPort, rtspServerEngine);
             }
@@ -118,8 +161,12 @@ public class MediaServer {
             
             
             starter.withMetricRegistry(metrics);
+            osMonitor = starter.getOSMonitor();
         } else {        
             logger.warn("use local mode, don't start spring");
+            if (configs.isRedirect()) {
+                logger.warn("redirect NOT available in local mode");
+            }
             RtspSessionLogger sessionLogger = new RtspSessionLogger();
             if (null != rtspServerPort) {
                 sessionLogger.register(rtspServerPort, rtspServerEngine);
@@ -129,7 +176,30 @@ public class MediaServer {
                 sessionLogger.register(talkbackServerPort, talkbackEngine);
             }
             
-            new OSMonitor().withMetricRegistry(metrics).start();
+            osMonitor = new OSMonitor().withMetricRegistry(metrics);
+            osMonitor.start();
+        }
+
+        // 过载保护, 只管观众
+        if (null != rtspServerPort) {
+            rtspServerEngine.withAdmissionControl(new AdmissionControl(rtspServerEngine)
+                    .withEventLoopWatchdog(watchdog)
+                    .withOSMonitor(osMonitor)
+                    .withMetricRegistry("rtsp-server", metrics)
+                    .start());
+
+            // 租户配额, 配置文件修改以后重新加载
+            rtspServerEngine.withTenantQuotas(new TenantQuotas()
+                    .withMetricRegistry("rtsp-server", metrics)
+                    .update(configs.getQuotas())
+                    .watch(configFile));
+        }
+
+        if (null != rtspServerPort && null != originLocator) {
+            logger.warn("edge mode, origin located by {}", configs.getEdgeLocator());
+            rtspServerEngine.withEdgeRelays(new EdgeRelays(rtspServerEngine, originLocator).withMetricRegistry("rtsp-server", metrics));
+        } else if (null != configs.getEdgeLocator()) {
+            logger.warn("edge locator '{}' NOT available", configs.getEdgeLocator());
         }
 
         // 日志输出
@@ -149,15 +219,24 @@ public class MediaServer {
             System.exit(-1);
             return;
         } else if(Epoll.isAvailable()) {
-            bossGroup = new EpollEventLoopGroup(bootstraps.size());
-            workerGroup = new EpollEventLoopGroup(maxWorkerThreads);
+            bossGroup = new EpollEventLoopGroup(bootstraps.size(), new DefaultThreadFactory("rtsp-boss"));
+            workerGroup = new EpollEventLoopGroup(maxWorkerThreads, new DefaultThreadFactory("rtsp-worker"));
             channelClass = EpollServerSocketChannel.class;
         } else {
-            bossGroup = new NioEventLoopGroup(bootstraps.size());
-            workerGroup = new NioEventLoopGroup(maxWorkerThreads);
+            bossGroup = new NioEventLoopGroup(bootstraps.size(), new DefaultThreadFactory("rtsp-boss"));
+            workerGroup = new NioEventLoopGroup(maxWorkerThreads, new DefaultThreadFactory("rtsp-worker"));
             channelClass = NioServerSocketChannel.class;
         }
 
+        // 静态拉流和边缘节点回源都用 rtsp-client 的 EventLoop
+        boolean edgeMode = null != rtspServerPort && null != originLocator;
+        if (!configs.getStreamSources().isEmpty() || edgeMode) {
+            watchdog.watch("rtsp-client", RtspClients.eventLoopGroup());
+        }
+        watchdog.watch("rtsp-boss", bossGroup)
+                .watch("rtsp-worker", workerGroup)
+                .start();
+
         logger.warn("!!! ServerChannel used '{}'", channelClass);
         for (RtspServerBootstrap rtspServerBootstrap : bootstraps) {
             rtspServerBootstrap.group(bossGroup, workerGroup)
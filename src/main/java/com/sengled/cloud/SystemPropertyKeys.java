@@ -13,4 +13,127 @@ public interface SystemPropertyKeys {
     
     /** 需要等待视频开始播放了， 才开始播放音频 **/
     public static final String PLAY_AUDIO_UNTIL_VIDEO_START = "playAudioUntilVideoStart";
+    
+    /** 向推流端请求关键帧的方式: pli, fir, both, none **/
+    public static final String KEY_FRAME_REQUEST = "keyFrameRequest";
+    
+    /** 关键帧请求的聚合窗口(毫秒), 窗口内的多个请求只发一次 **/
+    public static final String KEY_FRAME_REQUEST_WINDOW = "keyFrameRequestWindow";
+    
+    /** 同一路流两次关键帧请求的最小间隔(毫秒) **/
+    public static final String KEY_FRAME_REQUEST_INTERVAL = "keyFrameRequestInterval";
+    
+    /** 每个 ServerEngine 最多统计多少路流, 超过的流不再统计 **/
+    public static final String MAX_STREAM_METRICS = "maxStreamMetrics";
+    
+    /** 每多少个 rtp 包统计一次转发延时, 取 2 的幂, 0 表示不统计 **/
+    public static final String LATENCY_SAMPLE_RATE = "latencySampleRate";
+    
+    /** Prometheus 接口每个 engine 最多输出多少路流的数据, 超过的只输出码率最高的 **/
+    public static final String PROMETHEUS_MAX_STREAMS = "prometheusMaxStreams";
+    
+    /** EventLoop 心跳超过多少毫秒没有执行算作卡顿, 会抓一次线程栈 **/
+    public static final String EVENT_LOOP_STALL_THRESHOLD = "eventLoopStallThreshold";
+    
+    /** 池化 allocator 的 direct arena 个数 **/
+    public static final String ALLOCATOR_DIRECT_ARENAS = "allocatorDirectArenas";
+    
+    /** 池化 allocator 的 heap arena 个数 **/
+    public static final String ALLOCATOR_HEAP_ARENAS = "allocatorHeapArenas";
+    
+    /** 池化 allocator 的 page 大小, chunk 大小为 pageSize << maxOrder **/
+    public static final String ALLOCATOR_PAGE_SIZE = "allocatorPageSize";
+    
+    /** 池化 allocator 的 maxOrder **/
+    public static final String ALLOCATOR_MAX_ORDER = "allocatorMaxOrder";
+    
+    /** 每个线程缓存多少个 tiny(小于 512 字节) 的 ByteBuf **/
+    public static final String ALLOCATOR_TINY_CACHE_SIZE = "allocatorTinyCacheSize";
+    
+    /** 每个线程缓存多少个 small(小于 pageSize) 的 ByteBuf **/
+    public static final String ALLOCATOR_SMALL_CACHE_SIZE = "allocatorSmallCacheSize";
+    
+    /** 每个线程缓存多少个 normal 的 ByteBuf **/
+    public static final String ALLOCATOR_NORMAL_CACHE_SIZE = "allocatorNormalCacheSize";
+    
+    /** 每个抓包最多保留多少字节 **/
+    public static final String CAPTURE_MAX_BYTES = "captureMaxBytes";
+    
+    /** 每个 ServerEngine 最多同时保留多少个抓包 **/
+    public static final String MAX_CAPTURES = "maxCaptures";
+    
+    /** 设备上下线攒多少毫秒以后批量写到 redis **/
+    public static final String REDIS_FLUSH_INTERVAL = "redisFlushInterval";
+    
+    /** 每多少轮对账做一次全量的 SMEMBERS 对比, 其他轮次只比较 SCARD **/
+    public static final String REDIS_FULL_SYNC_ROUNDS = "redisFullSyncRounds";
+    
+    /** 边缘节点从源站拉的流, 没有观众多少毫秒以后断开 **/
+    public static final String EDGE_IDLE_GRACE = "edgeIdleGrace";
+    
+    /** 边缘节点的 DESCRIBE 最多等多少毫秒源站的流 **/
+    public static final String EDGE_OPEN_TIMEOUT = "edgeOpenTimeout";
+    
+    /** 多少毫秒从 redis 刷新一次集群里其他服务器上的设备, 用于 DESCRIBE 重定向 **/
+    public static final String CLUSTER_REFRESH_INTERVAL = "clusterRefreshInterval";
+    
+    /** 出口带宽超过多少 Mbps 不再接受新的观众, 0 表示不检查 **/
+    public static final String ADMISSION_MAX_OUTBOUND = "admissionMaxOutbound";
+    
+    /** EventLoop 调度延时超过多少毫秒不再接受新的观众, 0 表示不检查 **/
+    public static final String ADMISSION_MAX_LAG = "admissionMaxLag";
+    
+    /** 池化 direct 内存超过多少 MB 不再接受新的观众, 0 表示不检查 **/
+    public static final String ADMISSION_MAX_DIRECT_MEMORY = "admissionMaxDirectMemory";
+    
+    /** CPU 使用率超过百分之多少不再接受新的观众, 0 表示不检查 **/
+    public static final String ADMISSION_MAX_CPU = "admissionMaxCpu";
+    
+    /** 过载以后, 所有指标降到上限的百分之多少以下才恢复 **/
+    public static final String ADMISSION_RECOVER_PERCENT = "admissionRecoverPercent";
+    
+    /** 过载时把新的观众重定向到集群里负载最低的服务器(需要对方开启边缘节点), 否则返回 453/503 **/
+    public static final String ADMISSION_REDIRECT = "admissionRedirect";
+    
+    /** 服务端 socket 的 accept 队列长度, 实际值还受 net.core.somaxconn 限制 **/
+    public static final String ACCEPT_BACKLOG = "acceptBacklog";
+    
+    /** 每个 RTSP 服务每秒最多接受多少个新连接, 0 表示不限制 **/
+    public static final String ACCEPT_RATE = "acceptRate";
+    
+    /** 每个 RTSP 服务允许突发多少个新连接, 默认等于 acceptRate **/
+    public static final String ACCEPT_BURST = "acceptBurst";
+    
+    /** 每个网段每秒最多接受多少个新连接, 0 表示不限制 **/
+    public static final String ACCEPT_RATE_PER_SUBNET = "acceptRatePerSubnet";
+    
+    /** 按网段限制建连速率时 IPv4 网段的前缀长度, 32 表示按 IP 限制 **/
+    public static final String ACCEPT_SUBNET_PREFIX = "acceptSubnetPrefix";
+    
+    /** 建连速率超限时, 新连接最多推迟多少毫秒, 超过就直接关闭 **/
+    public static final String ACCEPT_MAX_DEFER = "acceptMaxDefer";
+    
+    /** 按码率调整 socket 缓冲区时的下限, 字节 **/
+    public static final String SOCKET_BUFFER_MIN = "socketBufferMin";
+    
+    /** 按码率调整 socket 缓冲区时的上限, 字节 **/
+    public static final String SOCKET_BUFFER_MAX = "socketBufferMax";
+    
+    /** 连接建立以后、还不知道码率时的 socket 缓冲区, 字节 **/
+    public static final String SOCKET_BUFFER_INITIAL = "socketBufferInitial";
+    
+    /** socket 缓冲区放得下多少毫秒的流 **/
+    public static final String SOCKET_BUFFER_MILLIS = "socketBufferMillis";
+    
+    /** 观众限速的突发窗口, 毫秒, 超出的包排队发送; 0 表示观众不限速 **/
+    public static final String PACING_WINDOW = "pacingWindow";
+    
+    /** 观众限速的速率是推流码率的百分之多少 **/
+    public static final String PACING_HEADROOM = "pacingHeadroom";
+    
+    /** 每个 ServerEngine 发给观众的总速率, Mbps, 0 表示不限制 **/
+    public static final String PACING_MAX_OUTBOUND = "pacingMaxOutbound";
+    
+    /** 多少毫秒检查一次配置文件, 修改以后重新加载租户配额 **/
+    public static final String QUOTA_RELOAD_INTERVAL = "quotaReloadInterval";
 }
@@ -0,0 +1,28 @@
+package com.sengled.cloud.http;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * 处理一类 http 请求
+ *
+ * <p>
+ * 在 http-server 的 EventLoop 里调用, 不能阻塞
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月6日
+ */
+public interface HttpController {
+
+    /**
+     * @param ctx 用于回复请求
+     * @param request 请求
+     * @param uri 解析好的 uri
+     * @return false 如果不处理这个请求, 交给下一个 controller
+     */
+    boolean handle(ChannelHandlerContext ctx,
+                   FullHttpRequest request,
+                   QueryStringDecoder uri) throws Exception;
+}
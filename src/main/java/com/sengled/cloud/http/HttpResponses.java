@@ -0,0 +1,94 @@
+package com.sengled.cloud.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * 回复 http 请求的工具方法
+ *
+ * @author 陈修恒
+ * @date 2016年6月6日
+ */
+public final class HttpResponses {
+    public static final String APPLICATION_JSON = "application/json; charset=UTF-8";
+    public static final String TEXT_PLAIN = "text/plain; charset=UTF-8";
+
+    private HttpResponses() {
+    }
+
+    /**
+     * 回复 json, content 由调用者从 ctx.alloc() 申请, 发送后由 netty 释放
+     */
+    public static ChannelFuture sendJson(ChannelHandlerContext ctx,
+                                         HttpRequest request,
+                                         ByteBuf content) {
+        return send(ctx, request, HttpResponseStatus.OK, APPLICATION_JSON, content);
+    }
+
+    public static ChannelFuture sendError(ChannelHandlerContext ctx,
+                                          HttpRequest request,
+                                          HttpResponseStatus status,
+                                          String message) {
+        String text = null != message ? message : status.toString();
+        return send(ctx, request, status, TEXT_PLAIN, Unpooled.copiedBuffer(text, CharsetUtil.UTF_8));
+    }
+
+    public static ChannelFuture send(ChannelHandlerContext ctx,
+                                     HttpRequest request,
+                                     HttpResponseStatus status,
+                                     String contentType,
+                                     ByteBuf content) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "must-revalidate,no-cache,no-store");
+        HttpHeaders.setContentLength(response, content.readableBytes());
+
+        return send(ctx, request, response);
+    }
+
+    /**
+     * 发送完整的回复, 处理 keep-alive
+     */
+    public static ChannelFuture send(ChannelHandlerContext ctx,
+                                     HttpRequest request,
+                                     FullHttpResponse response) {
+        boolean keepAlive = setKeepAlive(request, response);
+
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        return future;
+    }
+
+    /**
+     * @return 发送完以后是否保持连接
+     */
+    public static boolean setKeepAlive(HttpRequest request, HttpResponse response) {
+        boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        HttpHeaders.setKeepAlive(response, keepAlive);
+        return keepAlive;
+    }
+
+    /**
+     * @return 第一个名字是 name 的参数, 没有则返回 null
+     */
+    public static String getParameter(QueryStringDecoder uri, String name) {
+        List<String> values = uri.parameters().get(name);
+        return null != values && !values.isEmpty() ? values.get(0) : null;
+    }
+}
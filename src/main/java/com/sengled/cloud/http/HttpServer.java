@@ -1,83 +1,175 @@
 package com.sengled.cloud.http;
 
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FilenameUtils;
-import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
-import org.eclipse.jetty.server.handler.HandlerList;
-import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webjars.WebJarExtractor;
 
 import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.http.metric.AllocatorHandler;
+import com.sengled.cloud.http.metric.CaptureHandler;
+import com.sengled.cloud.http.metric.EventLoopHandler;
 import com.sengled.cloud.http.metric.MetricsGraphicsHandler;
 import com.sengled.cloud.http.metric.MetricsGraphicsReporter;
+import com.sengled.cloud.http.metric.PrometheusHandler;
+import com.sengled.cloud.http.metric.StreamMetricsHandler;
+import com.sengled.cloud.mediaserver.ByteBufAllocators;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.monitor.EventLoopWatchdog;
 
 /**
  * Http 服务器，
- * 
+ *
  * 用于输出   Metrics 的统计数据
+ *
+ * <p>
+ * 跑在一个单独的 EventLoop 上, 不占用媒体数据的线程;
+ * 静态文件零拷贝发送, json 直接写到池化的 ByteBuf 里
+ * </p>
  * @author 陈修恒
  * @date 2016年5月12日
  */
 public class HttpServer {
     private static final Logger logger = LoggerFactory.getLogger(HttpServer.class);
-    
+
+    /** 请求体最大长度 */
+    private static final int MAX_CONTENT_LENGTH = 64 * 1024;
+
     final private int port;
-    HandlerList handlers = new HandlerList();
+    final private HttpServerHandler handlers = new HttpServerHandler();
+    final private StaticFileHandler staticFileHandler;
+    final private PrometheusHandler prometheusHandler = new PrometheusHandler("/metrics");
+    final private AllocatorHandler allocatorHandler = new AllocatorHandler("/allocator");
+    final private CaptureHandler captureHandler = new CaptureHandler("/capture/");
     final private String base;
-    
+    private StreamMetricsHandler streamMetricsHandler;
+
+    private EventLoopGroup group;
+    private Channel channel;
+
     public HttpServer(int port) throws IOException {
         this.port = port;
         this.base = FilenameUtils.normalize(new File("./htdocs").getAbsolutePath());
-        
-        
+
+
         // static resource(s)
         logger.warn("use '{}' as resource base", base);
-        ResourceHandler resourceHandler = new ResourceHandler();
-        resourceHandler.setDirectoriesListed(true);
-        resourceHandler.setResourceBase(base);
-        
-        
+        staticFileHandler = new StaticFileHandler(base);
+        handlers.addController(prometheusHandler);
+        handlers.addController(allocatorHandler);
+        handlers.addController(captureHandler);
+
+
         // 导出 jar 包
         WebJarExtractor extractor = new WebJarExtractor();
         File jsDir = new File(base, "asset");
         jsDir.mkdirs();
         extractor.extractAllWebJarsTo(jsDir);
-        
-        handlers.addHandler(resourceHandler);
     }
-    
+
     public HttpServer withMetricRegistry(MetricRegistry registry) {
         MetricsGraphicsHandler handler = new MetricsGraphicsHandler("/metrics/");
-        
+
         MetricsGraphicsReporter.forRegistry(registry)
                                 .convertRatesTo(TimeUnit.SECONDS)
                                 .convertDurationsTo(TimeUnit.SECONDS)
                                 .build(handler)
                                 .start(10, TimeUnit.SECONDS);
-        
-        handlers.addHandler(handler);
-        
+
+        handlers.addController(handler);
+        prometheusHandler.setMetricRegistry(registry);
+
         return this;
     }
-    
+
+    /**
+     * 输出 engine 上每一路流的统计数据
+     *
+     * @param name engine 的名字, 如 rtsp-server
+     */
+    public HttpServer withServerEngine(String name, ServerEngine engine) {
+        if (null == streamMetricsHandler) {
+            streamMetricsHandler = new StreamMetricsHandler("/streams/");
+            handlers.addController(streamMetricsHandler);
+        }
+
+        streamMetricsHandler.addServerEngine(name, engine);
+        prometheusHandler.addServerEngine(name, engine);
+        allocatorHandler.addServerEngine(name, engine);
+        captureHandler.addServerEngine(name, engine);
+        return this;
+    }
+
+    /**
+     * 输出 EventLoop 的调度延时和卡顿
+     */
+    public HttpServer withEventLoopWatchdog(EventLoopWatchdog watchdog) {
+        handlers.addController(new EventLoopHandler("/eventloops", watchdog));
+        return this;
+    }
+
     public void start() throws Exception {
-        // http server socket
-        SocketConnector connector = new SocketConnector();
-        connector.setPort(port);
-
-        
-        // Set the connector
-        Server server = new Server();
-        server.addConnector(connector);
-        server.setHandler(handlers);
-        server.start();
+        // 静态文件放在最后
+        handlers.addController(staticFileHandler);
+
+        // 一个线程就够了
+        Class<? extends ServerChannel> channelClass;
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory("http-server", true);
+        if (Epoll.isAvailable()) {
+            group = new EpollEventLoopGroup(1, threadFactory);
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            group = new NioEventLoopGroup(1, threadFactory);
+            channelClass = NioServerSocketChannel.class;
+        }
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(group)
+         .channel(channelClass)
+         .childOption(ChannelOption.ALLOCATOR, ByteBufAllocators.ALLOCATOR)
+         .childOption(ChannelOption.TCP_NODELAY, true)
+         .childHandler(new ChannelInitializer<SocketChannel>() {
+             @Override
+             protected void initChannel(SocketChannel ch) throws Exception {
+                 ch.pipeline().addLast(new IdleStateHandler(0, 0, 60));
+                 ch.pipeline().addLast(new HttpServerCodec());
+                 ch.pipeline().addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                 ch.pipeline().addLast(handlers);
+             }
+         });
+
+        channel = b.bind(port).sync().channel();
+        logger.info("http listen: {}", channel.localAddress());
     }
 
+    public void shutdown() {
+        if (null != channel) {
+            channel.close().awaitUninterruptibly();
+        }
 
+        if (null != group) {
+            group.shutdownGracefully();
+        }
+    }
 }
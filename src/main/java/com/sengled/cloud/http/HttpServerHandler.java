@@ -0,0 +1,76 @@
+package com.sengled.cloud.http;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 把 http 请求依次交给各个 {@link HttpController}, 都不处理则返回 404
+ *
+ * @author 陈修恒
+ * @date 2016年6月6日
+ */
+@Sharable
+public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private static final Logger logger = LoggerFactory.getLogger(HttpServerHandler.class);
+
+    final private List<HttpController> controllers = new CopyOnWriteArrayList<HttpController>();
+
+    public void addController(HttpController controller) {
+        controllers.add(controller);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx,
+                                FullHttpRequest request) throws Exception {
+        if (!request.getDecoderResult().isSuccess()) {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.BAD_REQUEST, null);
+            return;
+        }
+
+        if (HttpHeaders.is100ContinueExpected(request)) {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.EXPECTATION_FAILED, null);
+            return;
+        }
+
+        QueryStringDecoder uri = new QueryStringDecoder(request.getUri());
+        for (HttpController controller : controllers) {
+            if (controller.handle(ctx, request, uri)) {
+                logger.debug("{} {} handled by {}", request.getMethod(), request.getUri(), controller);
+                return;
+            }
+        }
+
+        HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, null);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx,
+                                   Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            // 空闲的连接直接关掉
+            ctx.close();
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx,
+                                Throwable cause) throws Exception {
+        logger.warn("http request failed, {}", cause.getMessage());
+        logger.debug("{}", cause.getMessage(), cause);
+        ctx.close();
+    }
+}
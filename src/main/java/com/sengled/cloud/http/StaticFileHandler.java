@@ -0,0 +1,160 @@
+package com.sengled.cloud.http;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * 静态文件, 用 {@link DefaultFileRegion} 零拷贝发送
+ *
+ * @author 陈修恒
+ * @date 2016年6月6日
+ */
+public class StaticFileHandler implements HttpController {
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final String INDEX = "index.html";
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=UTF-8");
+        CONTENT_TYPES.put("json", "application/json; charset=UTF-8");
+        CONTENT_TYPES.put("map", "application/json; charset=UTF-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "application/font-woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("ttf", "application/x-font-ttf");
+        CONTENT_TYPES.put("eot", "application/vnd.ms-fontobject");
+    }
+
+    final private String base;
+
+    /**
+     * @param base 静态文件的根目录
+     */
+    public StaticFileHandler(String base) {
+        this.base = FilenameUtils.normalizeNoEndSeparator(new File(base).getAbsolutePath());
+    }
+
+    @Override
+    public boolean handle(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          QueryStringDecoder uri) throws Exception {
+        HttpMethod method = request.getMethod();
+        if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+            return false;
+        }
+
+        File file = getFile(uri.path());
+        if (null == file) {
+            return false;
+        }
+
+        // 浏览器已经缓存了
+        long lastModified = file.lastModified() / 1000 * 1000;
+        String ifModifiedSince = request.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
+        if (StringUtils.isNotEmpty(ifModifiedSince)) {
+            try {
+                Date since = newDateFormat().parse(ifModifiedSince);
+                if (since.getTime() >= lastModified) {
+                    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+                    HttpHeaders.setContentLength(response, 0);
+                    HttpResponses.send(ctx, request, response);
+                    return true;
+                }
+            } catch (ParseException ex) {
+                // 格式不对就当没有这个头
+            }
+        }
+
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException ex) {
+            return false;
+        }
+
+        long length = raf.length();
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpHeaders.setContentLength(response, length);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, getContentType(file));
+        response.headers().set(HttpHeaders.Names.LAST_MODIFIED, newDateFormat().format(new Date(lastModified)));
+        boolean keepAlive = HttpResponses.setKeepAlive(request, response);
+
+        ctx.write(response);
+        if (HttpMethod.GET.equals(method)) {
+            // DefaultFileRegion 发送完以后会关闭文件
+            ctx.write(new DefaultFileRegion(raf.getChannel(), 0, length));
+        } else {
+            raf.close();
+        }
+
+        ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        return true;
+    }
+
+    /**
+     * @return base 目录下的文件, 目录返回其中的 index.html; 找不到或者不在 base 下则返回 null
+     */
+    private File getFile(String path) {
+        String normalized = FilenameUtils.normalizeNoEndSeparator(base + File.separator + path);
+        if (null == normalized
+                || !(normalized.equals(base) || normalized.startsWith(base + File.separator))) {
+            return null;
+        }
+
+        File file = new File(normalized);
+        if (file.isDirectory()) {
+            file = new File(file, INDEX);
+        }
+
+        return file.isFile() && !file.isHidden() ? file : null;
+    }
+
+    private static String getContentType(File file) {
+        String type = CONTENT_TYPES.get(FilenameUtils.getExtension(file.getName()).toLowerCase());
+        return null != type ? type : "application/octet-stream";
+    }
+
+    private static SimpleDateFormat newDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
@@ -0,0 +1,156 @@
+package com.sengled.cloud.http.metric;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetector.Level;
+
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.alibaba.fastjson.JSONWriter;
+import com.sengled.cloud.http.HttpController;
+import com.sengled.cloud.http.HttpResponses;
+import com.sengled.cloud.mediaserver.ByteBufAllocators;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+
+/**
+ * 输出 {@link ByteBufAllocators#ALLOCATOR} 每个 arena 的统计, 以及每个 engine 占用的 ByteBuf
+ *
+ * <ul>
+ * <li>GET {uri} : 统计数据</li>
+ * <li>POST {uri}?leakDetection=paranoid : 修改内存泄漏检测级别</li>
+ * </ul>
+ *
+ * @author 陈修恒
+ * @date 2016年6月9日
+ */
+public class AllocatorHandler implements HttpController {
+    final private String uri;
+    // 只在启动前添加
+    final private Map<String, ServerEngine> engines = new LinkedHashMap<String, ServerEngine>();
+
+    public AllocatorHandler(String uri) {
+        this.uri = uri;
+    }
+
+    public void addServerEngine(String name, ServerEngine engine) {
+        engines.put(name, engine);
+    }
+
+    @Override
+    public boolean handle(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          QueryStringDecoder uri) throws Exception {
+        if (!this.uri.equals(uri.path())) {
+            return false;
+        }
+
+        String leakDetection = HttpResponses.getParameter(uri, "leakDetection");
+        if (null != leakDetection) {
+            if (!HttpMethod.POST.equals(request.getMethod())) {
+                HttpResponses.sendError(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, "use POST to change leak detection level");
+                return true;
+            }
+
+            try {
+                ByteBufAllocators.setLeakDetectionLevel(Level.valueOf(StringUtils.upperCase(leakDetection)));
+            } catch (IllegalArgumentException ex) {
+                HttpResponses.sendError(ctx, request, HttpResponseStatus.BAD_REQUEST, "illegal level '" + leakDetection + "'");
+                return true;
+            }
+        }
+
+        PooledByteBufAllocator allocator = ByteBufAllocators.ALLOCATOR;
+        ByteBuf content = ctx.alloc().buffer();
+        JSONWriter writer = new JSONWriter(new OutputStreamWriter(new ByteBufOutputStream(content), "UTF-8"));
+        writer.startObject();
+        writeEntry(writer, "leakDetection", ResourceLeakDetector.getLevel().name());
+        writeEntry(writer, "threadLocalCaches", allocator.numThreadLocalCaches());
+        writeEntry(writer, "tinyCacheSize", allocator.tinyCacheSize());
+        writeEntry(writer, "smallCacheSize", allocator.smallCacheSize());
+        writeEntry(writer, "normalCacheSize", allocator.normalCacheSize());
+        writer.writeKey("direct");
+        writeArenas(writer, allocator.directArenas());
+        writer.writeKey("heap");
+        writeArenas(writer, allocator.heapArenas());
+
+        writer.writeKey("engines");
+        writer.startObject();
+        for (Entry<String, ServerEngine> entry : engines.entrySet()) {
+            ServerEngine engine = entry.getValue();
+            writer.writeKey(entry.getKey());
+            writer.startObject();
+            writeEntry(writer, "channels", engine.numChannels());
+            writeEntry(writer, "inboundCumulationBytes", engine.getInboundCumulationBytes());
+            writeEntry(writer, "outboundQueuedBytes", engine.getOutboundQueuedBytes());
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.close();
+
+        HttpResponses.sendJson(ctx, request, content);
+        return true;
+    }
+
+    private void writeArenas(JSONWriter writer, List<PoolArenaMetric> arenas) {
+        writer.startObject();
+        writeEntry(writer, "chunkBytes", ByteBufAllocators.getChunkBytes(arenas));
+        writeEntry(writer, "usedBytes", ByteBufAllocators.getUsedBytes(arenas));
+        writeEntry(writer, "activeAllocations", ByteBufAllocators.getActiveAllocations(arenas));
+
+        writer.writeKey("arenas");
+        writer.startArray();
+        for (PoolArenaMetric arena : arenas) {
+            writer.startObject();
+            writeEntry(writer, "allocations", arena.numAllocations());
+            writeEntry(writer, "deallocations", arena.numDeallocations());
+            writeEntry(writer, "activeTiny", arena.numActiveTinyAllocations());
+            writeEntry(writer, "activeSmall", arena.numActiveSmallAllocations());
+            writeEntry(writer, "activeNormal", arena.numActiveNormalAllocations());
+            writeEntry(writer, "activeHuge", arena.numActiveHugeAllocations());
+
+            writer.writeKey("chunkLists");
+            writer.startArray();
+            for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                int chunks = 0;
+                long freeBytes = 0;
+                for (PoolChunkMetric chunk : chunkList) {
+                    chunks ++;
+                    freeBytes += chunk.freeBytes();
+                }
+
+                writer.startObject();
+                writeEntry(writer, "minUsage", Math.max(0, chunkList.minUsage()));
+                writeEntry(writer, "maxUsage", Math.min(100, chunkList.maxUsage()));
+                writeEntry(writer, "chunks", chunks);
+                writeEntry(writer, "freeBytes", freeBytes);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    private void writeEntry(JSONWriter writer, String key, Object value) {
+        writer.writeKey(key);
+        writer.writeValue(value);
+    }
+}
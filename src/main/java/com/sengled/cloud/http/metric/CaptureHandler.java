@@ -0,0 +1,176 @@
+package com.sengled.cloud.http.metric;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+import com.alibaba.fastjson.JSONWriter;
+import com.sengled.cloud.http.HttpController;
+import com.sengled.cloud.http.HttpResponses;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.capture.PacketCapture;
+
+/**
+ * 按流抓包
+ *
+ * <ul>
+ * <li>POST {uri}start?engine=rtsp-server&name=xxx[&listener=1.2.3.4:5678][&seconds=30] : 开始抓包</li>
+ * <li>POST {uri}stop?engine=rtsp-server&name=xxx[&listener=...] : 停止抓包, 保留抓到的包</li>
+ * <li>POST {uri}clear?engine=rtsp-server&name=xxx[&listener=...] : 停止抓包, 释放抓到的包</li>
+ * <li>GET {uri}dump?engine=rtsp-server&name=xxx[&listener=...]&format=pcap|rtpdump : 下载</li>
+ * <li>GET {uri}list?engine=rtsp-server : 所有的抓包</li>
+ * </ul>
+ *
+ * @author 陈修恒
+ * @date 2016年6月10日
+ */
+public class CaptureHandler implements HttpController {
+    private static final int DEFAULT_SECONDS = 30;
+    private static final int MAX_SECONDS = 600;
+
+    final private String uri;
+    // 只在启动前添加
+    final private Map<String, ServerEngine> engines = new LinkedHashMap<String, ServerEngine>();
+
+    public CaptureHandler(String uri) {
+        this.uri = uri;
+    }
+
+    public void addServerEngine(String name, ServerEngine engine) {
+        engines.put(name, engine);
+    }
+
+    @Override
+    public boolean handle(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          QueryStringDecoder uri) throws Exception {
+        if (!StringUtils.startsWith(uri.path(), this.uri)) {
+            return false;
+        }
+
+        String type = uri.path().substring(this.uri.length());
+        String engineName = HttpResponses.getParameter(uri, "engine");
+        ServerEngine engine = null != engineName ? engines.get(engineName) : null;
+        if (null == engine && engines.size() == 1) {
+            engine = engines.values().iterator().next();
+        }
+
+        if (null == engine) {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, "engine '" + engineName + "' NOT Found");
+            return true;
+        }
+
+        if ("list".equals(type)) {
+            ByteBuf content = ctx.alloc().buffer();
+            JSONWriter writer = new JSONWriter(new OutputStreamWriter(new ByteBufOutputStream(content), "UTF-8"));
+            writer.startArray();
+            for (PacketCapture capture : engine.captures()) {
+                writeCapture(writer, capture);
+            }
+            writer.endArray();
+            writer.close();
+
+            HttpResponses.sendJson(ctx, request, content);
+            return true;
+        }
+
+        String name = HttpResponses.getParameter(uri, "name");
+        String listener = StringUtils.trimToNull(HttpResponses.getParameter(uri, "listener"));
+        if (StringUtils.isEmpty(name)) {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.BAD_REQUEST, "name is EMPTY");
+            return true;
+        }
+
+        boolean isPost = HttpMethod.POST.equals(request.getMethod());
+        PacketCapture capture;
+        if ("start".equals(type) && isPost) {
+            int seconds = Math.min(MAX_SECONDS, NumberUtils.toInt(HttpResponses.getParameter(uri, "seconds"), DEFAULT_SECONDS));
+            try {
+                capture = engine.startCapture(name, listener, Math.max(1, seconds));
+            } catch (IllegalStateException ex) {
+                HttpResponses.sendError(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE, ex.getMessage());
+                return true;
+            }
+        } else if ("stop".equals(type) && isPost) {
+            capture = engine.stopCapture(name, listener);
+        } else if ("clear".equals(type) && isPost) {
+            capture = engine.clearCapture(name, listener);
+        } else if ("dump".equals(type)) {
+            capture = engine.getCapture(name, listener);
+            if (null != capture) {
+                sendDump(ctx, request, capture, HttpResponses.getParameter(uri, "format"));
+                return true;
+            }
+        } else {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, null);
+            return true;
+        }
+
+        if (null == capture) {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, "capture '" + PacketCapture.key(name, listener) + "' NOT Found");
+            return true;
+        }
+
+        ByteBuf content = ctx.alloc().buffer();
+        JSONWriter writer = new JSONWriter(new OutputStreamWriter(new ByteBufOutputStream(content), "UTF-8"));
+        writeCapture(writer, capture);
+        writer.close();
+
+        HttpResponses.sendJson(ctx, request, content);
+        return true;
+    }
+
+    private void sendDump(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          PacketCapture capture,
+                          String format) {
+        boolean rtpdump = "rtpdump".equalsIgnoreCase(format);
+        ByteBuf content = ctx.alloc().buffer(64 * 1024 + (int) Math.min(Integer.MAX_VALUE / 2, capture.getBytes() * 11 / 10));
+        if (rtpdump) {
+            capture.writeRtpdump(content);
+        } else {
+            capture.writePcap(content);
+        }
+
+        String fileName = StringUtils.replaceChars(PacketCapture.key(capture.getName(), capture.getListener()), "/:@", "__-");
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, rtpdump ? "application/octet-stream" : "application/vnd.tcpdump.pcap");
+        response.headers().set("Content-Disposition", "attachment; filename=\"" + fileName + (rtpdump ? ".rtpdump" : ".pcap") + "\"");
+        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "must-revalidate,no-cache,no-store");
+        HttpHeaders.setContentLength(response, content.readableBytes());
+        HttpResponses.send(ctx, request, response);
+    }
+
+    private void writeCapture(JSONWriter writer, PacketCapture capture) {
+        writer.startObject();
+        writeEntry(writer, "name", capture.getName());
+        writeEntry(writer, "listener", capture.getListener());
+        writeEntry(writer, "started", capture.getStartMillis());
+        writeEntry(writer, "stopped", capture.isStopped());
+        writeEntry(writer, "packets", capture.size());
+        writeEntry(writer, "bytes", capture.getBytes());
+        writeEntry(writer, "captured", capture.getNumPackets());
+        writeEntry(writer, "evicted", capture.getNumEvicted());
+        writer.endObject();
+    }
+
+    private void writeEntry(JSONWriter writer, String key, Object value) {
+        writer.writeKey(key);
+        writer.writeValue(value);
+    }
+}
@@ -0,0 +1,104 @@
+package com.sengled.cloud.http.metric;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.io.OutputStreamWriter;
+
+import com.alibaba.fastjson.JSONWriter;
+import com.sengled.cloud.http.HttpController;
+import com.sengled.cloud.http.HttpResponses;
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencySnapshot;
+import com.sengled.cloud.monitor.EventLoopWatchdog;
+import com.sengled.cloud.monitor.EventLoopWatchdog.StallEvent;
+import com.sengled.cloud.monitor.EventLoopWatchdog.WatchedLoop;
+
+/**
+ * 输出每个 EventLoop 的调度延时、排队任务数, 以及最近的卡顿和当时的线程栈
+ *
+ * @author 陈修恒
+ * @date 2016年6月8日
+ */
+public class EventLoopHandler implements HttpController {
+    final private String uri;
+    final private EventLoopWatchdog watchdog;
+
+    public EventLoopHandler(String uri, EventLoopWatchdog watchdog) {
+        this.uri = uri;
+        this.watchdog = watchdog;
+    }
+
+    @Override
+    public boolean handle(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          QueryStringDecoder uri) throws Exception {
+        if (!this.uri.equals(uri.path())) {
+            return false;
+        }
+
+        ByteBuf content = ctx.alloc().buffer();
+        JSONWriter writer = new JSONWriter(new OutputStreamWriter(new ByteBufOutputStream(content), "UTF-8"));
+        writer.startObject();
+        writeEntry(writer, "stallThreshold", watchdog.getStallThresholdMillis());
+        writeEntry(writer, "stalls", watchdog.getNumStalls());
+
+        writer.writeKey("loops");
+        writer.startArray();
+        for (WatchedLoop loop : watchdog.getLoops()) {
+            writer.startObject();
+            writeEntry(writer, "name", loop.getName());
+            writeEntry(writer, "thread", loop.getThreadName());
+            writeEntry(writer, "pendingTasks", loop.getPendingTasks());
+            writeEntry(writer, "waitingMillis", loop.getWaitingMillis());
+            writer.writeKey("lag");
+            writeLatency(writer, loop.getLag());
+            writer.endObject();
+        }
+        writer.endArray();
+
+        writer.writeKey("recentStalls");
+        writer.startArray();
+        for (StallEvent stall : watchdog.getStalls()) {
+            writer.startObject();
+            writeEntry(writer, "time", stall.getTime());
+            writeEntry(writer, "loop", stall.getLoopName());
+            writeEntry(writer, "thread", stall.getThreadName());
+            writeEntry(writer, "lagMillis", stall.getLagMillis());
+            writeEntry(writer, "durationMillis", stall.getDurationMillis());
+            writeEntry(writer, "pendingTasks", stall.getPendingTasks());
+            writer.writeKey("stackTrace");
+            writer.startArray();
+            for (StackTraceElement element : stall.getStackTrace()) {
+                writer.writeValue(element.toString());
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+
+        HttpResponses.sendJson(ctx, request, content);
+        return true;
+    }
+
+    /**
+     * 延时, 单位微秒
+     */
+    private void writeLatency(JSONWriter writer, LatencySnapshot latency) {
+        writer.startObject();
+        writeEntry(writer, "count", latency.getCount());
+        writeEntry(writer, "p50", latency.getP50());
+        writeEntry(writer, "p99", latency.getP99());
+        writeEntry(writer, "max", latency.getMax());
+        writer.endObject();
+    }
+
+    private void writeEntry(JSONWriter writer, String key, Object value) {
+        writer.writeKey(key);
+        writer.writeValue(value);
+    }
+}
@@ -1,30 +1,32 @@
 package com.sengled.cloud.http.metric;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
 
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
-import org.eclipse.jetty.server.Request;
-import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.apache.commons.lang.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MetricsGraphicsHandler extends AbstractHandler implements MetricsGraphics {
-    private static final String CONTENT_TYPE = "application/json";
+import com.sengled.cloud.http.HttpController;
+import com.sengled.cloud.http.HttpResponses;
+import com.sengled.cloud.http.metric.TimeSeries.Resolution;
+
+public class MetricsGraphicsHandler implements HttpController, MetricsGraphics {
     private static final Logger logger = LoggerFactory.getLogger(MetricsGraphicsHandler.class);
 
     private String uri;
-    private String allowedOrigin;
     
-    private Map<String, List<Table>> tablesList = new HashMap<String, List<Table>>();
+    // type -> name -> table
+    private ConcurrentMap<String, ConcurrentMap<String, Table>> tablesList = new ConcurrentHashMap<String, ConcurrentMap<String, Table>>();
     
     public MetricsGraphicsHandler(String uri) {
         this.uri = uri;
@@ -33,18 +35,12 @@ public class MetricsGraphicsHandler extends AbstractHandler implements MetricsGr
     private Table getTable(String name,
                           String type) {
 
-        List<Table> tables = tablesList.get(type);
-        if (null == tables) {
+        ConcurrentMap<String, Table> tables = tablesList.get(type);
+        if (null == tables || null == name) {
             return null;
         }
         
-        for (Table table : tables) {
-            if (StringUtils.equals(name, table.getName())) {
-                return table;
-            }
-        }
-        
-        return null;
+        return tables.get(name);
     }
     
     @Override
@@ -52,68 +48,66 @@ public class MetricsGraphicsHandler extends AbstractHandler implements MetricsGr
                           String type,
                           String colTemplates) {
         
-        List<Table> tables = tablesList.get(type);
+        ConcurrentMap<String, Table> tables = tablesList.get(type);
         if (null == tables) {
-            tables = new ArrayList<Table>();
-            tablesList.put(type, tables);
+            tablesList.putIfAbsent(type, new ConcurrentHashMap<String, Table>());
+            tables = tablesList.get(type);
         }
         
-        for (Table table : tables) {
-            if (StringUtils.equals(name, table.getName())) {
-                return table;
+        Table table = tables.get(name);
+        if (null == table && null != colTemplates) {
+            Table newTable = new Table(name, colTemplates);
+            table = tables.putIfAbsent(name, newTable);
+            if (null == table) {
+                table = newTable;
             }
         }
-
-        Table table = null;
-        if (null != colTemplates) {
-            table = new Table(name, colTemplates);
-            tables.add(table);
-        }
         return table;
     }
     
     @Override
-    public void handle(String target,
-                       Request baseRequest,
-                       HttpServletRequest req,
-                       HttpServletResponse resp) throws IOException, ServletException {
-        if (baseRequest.isHandled()) {
-            return;
-        } else if (!StringUtils.startsWith(baseRequest.getUri().getPath(), uri)) {
-            return;
+    public boolean handle(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          QueryStringDecoder uri) throws IOException {
+        if (!StringUtils.startsWith(uri.path(), this.uri)) {
+            return false;
         }
-        baseRequest.setHandled(true);
         
-        resp.setContentType(CONTENT_TYPE);
-        if (allowedOrigin != null) {
-            resp.setHeader("Access-Control-Allow-Origin", allowedOrigin);
+        String type = uri.path().substring(this.uri.length());
+        String name = HttpResponses.getParameter(uri, "name");
+        String colName = HttpResponses.getParameter(uri, "column");
+        if (null == colName) {
+            colName = "count";
         }
-        resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
         
+        // 时间范围, 默认最近 30 分钟
+        long now = System.currentTimeMillis();
+        long to = NumberUtils.toLong(HttpResponses.getParameter(uri, "to"), now);
+        long from = NumberUtils.toLong(HttpResponses.getParameter(uri, "from"), to - 30 * 60 * 1000);
+        Resolution resolution = Resolution.parse(HttpResponses.getParameter(uri, "resolution"));
         
-        final OutputStream output = resp.getOutputStream();
-        try {
-            String type = req.getRequestURI().substring(uri.length());
-            String name = req.getParameter("name");
-            String colName = req.getParameter("column");
-            if (null == colName) {
-                colName = "count";
+        logger.debug("{}, name={}, colName={}", type, name, colName);
+        Table table = getTable(name, StringUtils.upperCase(type));
+        if (null != table) {
+            // 直接写到池化的 buffer 里
+            ByteBuf content = ctx.alloc().buffer();
+            boolean found = false;
+            try {
+                found = table.ouput(new ByteBufOutputStream(content), colName, from, to, resolution);
+            } finally {
+                if (!found) {
+                    content.release();
+                }
             }
             
-            logger.info("{}, name={}, colName={}", type, name, colName);
-            Table table = getTable(name, StringUtils.upperCase(type));
-            if (null != table) {
-                resp.setStatus(HttpServletResponse.SC_OK);
-                if(table.ouput(output, colName)) {
-                    return;
-                }
+            if (found) {
+                HttpResponses.sendJson(ctx, request, content);
+                return true;
             }
-
-            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-        } finally {
-            output.close();
         }
-        
+
+        HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, null);
+        return true;
     }
 
 }
@@ -0,0 +1,512 @@
+package com.sengled.cloud.http.metric;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.http.HttpController;
+import com.sengled.cloud.http.HttpResponses;
+import com.sengled.cloud.mediaserver.AdmissionControl;
+import com.sengled.cloud.mediaserver.ConnectionRateLimiter;
+import com.sengled.cloud.mediaserver.edge.EdgeRelays;
+import com.sengled.cloud.mediaserver.quota.TenantQuotas;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetrics;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetricsRegistry;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetricsRegistry.Order;
+import com.sengled.cloud.monitor.EventLoopWatchdog;
+import com.sengled.cloud.monitor.OSMonitor;
+
+/**
+ * 以 Prometheus 文本格式输出统计数据
+ *
+ * <ul>
+ * <li>MetricRegistry 里的数据, 名字里的 engine、租户、线程组等标识转成标签, 见 {@link #LABELED}</li>
+ * <li>每一路流的数据, 带 engine, stream 标签, 每个 engine 最多输出 {@link #MAX_STREAMS} 路流 (码率最高的)</li>
+ * </ul>
+ *
+ * 直接写到池化的 ByteBuf 里, 每路流的数据不经过中间的集合
+ *
+ * @author 陈修恒
+ * @date 2016年6月7日
+ */
+public class PrometheusHandler implements HttpController {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+    private static final String PREFIX = "mediaserver_";
+    private static final String BASE_PACKAGE = "com.sengled.cloud.";
+    private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.99, 0.999};
+
+    /** 名字里带标识的数据, 如 ServerEngine.{engine}.{name}, 标识转成标签, 以免每个标识一个数据项 */
+    private static final Labeled[] LABELED = {
+        new Labeled(ServerEngine.class.getName(), PREFIX + "engine_", false, "engine"),
+        new Labeled(TenantQuotas.class.getName(), null, true, "engine", "tenant"),
+        new Labeled(EdgeRelays.class.getName(), null, false, "engine"),
+        new Labeled(AdmissionControl.class.getName(), null, false, "engine"),
+        new Labeled(ConnectionRateLimiter.class.getName(), null, false, "engine"),
+        new Labeled(EventLoopWatchdog.class.getName(), null, false, "group"),
+        new Labeled(OSMonitor.class.getName() + ".thread", null, true, "group"),
+    };
+
+    /** 每个 engine 最多输出多少路流 */
+    public static final int MAX_STREAMS = Integer.getInteger(SystemPropertyKeys.PROMETHEUS_MAX_STREAMS, 1000);
+
+    /** 每一路流输出的数据 */
+    private enum StreamFamily {
+        BITRATE("stream_bitrate_bps", "gauge", "ingest bitrate") {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getBitrate();
+            }
+        },
+        PACKET_RATE("stream_packets_per_second", "gauge", "ingest rtp packets per second") {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getPacketRate();
+            }
+        },
+        FRAME_RATE("stream_frames_per_second", "gauge", "ingest video frames per second") {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getFrameRate();
+            }
+        },
+        KEY_FRAME_INTERVAL("stream_keyframe_interval_seconds", "gauge", "interval between the last two keyframes") {
+            @Override
+            double valueOf(StreamMetrics m) {
+                long interval = m.getKeyFrameInterval();
+                return interval < 0 ? Double.NaN : interval / 1000.0;
+            }
+        },
+        VIEWERS("stream_viewers", "gauge", "number of listeners") {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getViewers();
+            }
+        },
+        INBOUND_BYTES("stream_inbound_bytes_total", "counter", "ingest rtp bytes") {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getInboundBytes();
+            }
+        },
+        LATENCY_P99("stream_latency_p99_seconds", "gauge", "99th percentile of ingest to flush latency") {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getLatency().getSnapshot().getP99() / 1e6;
+            }
+        };
+
+        final String name;
+        final String type;
+        final String help;
+
+        private StreamFamily(String name, String type, String help) {
+            this.name = PREFIX + name;
+            this.type = type;
+            this.help = help;
+        }
+
+        abstract double valueOf(StreamMetrics m);
+    }
+
+    final private String uri;
+    private volatile MetricRegistry registry;
+    // 只在启动前添加
+    final private Map<String, ServerEngine> engines = new LinkedHashMap<String, ServerEngine>();
+
+    public PrometheusHandler(String uri) {
+        this.uri = uri;
+    }
+
+    public void setMetricRegistry(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void addServerEngine(String name, ServerEngine engine) {
+        engines.put(name, engine);
+    }
+
+    @Override
+    public boolean handle(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          QueryStringDecoder uri) throws Exception {
+        if (!this.uri.equals(uri.path())) {
+            return false;
+        }
+
+        ByteBuf out = ctx.alloc().buffer(4096);
+        try {
+            write(out);
+        } catch (RuntimeException ex) {
+            out.release();
+            throw ex;
+        }
+
+        HttpResponses.send(ctx, request, HttpResponseStatus.OK, CONTENT_TYPE, out);
+        return true;
+    }
+
+    void write(ByteBuf out) {
+        if (null != registry) {
+            writeRegistry(out, registry);
+        }
+        writeStreams(out);
+    }
+
+    /**
+     * MetricRegistry 里的数据.
+     *
+     * 同名的数据必须连续输出, 所以先按名字排个序; 这里的数据很少, 排序的开销可以忽略
+     */
+    private void writeRegistry(ByteBuf out, MetricRegistry registry) {
+        List<Series> series = new ArrayList<Series>();
+        for (Entry<String, Metric> entry : registry.getMetrics().entrySet()) {
+            Metric metric = entry.getValue();
+            if (metric instanceof Meter) {
+                series.add(new Series(entry.getKey(), metric, "_total", 0));
+                series.add(new Series(entry.getKey(), metric, "_m1_rate", 0));
+            } else if (metric instanceof Timer) {
+                series.add(new Series(entry.getKey(), metric, "_seconds", 0));
+            } else if (metric instanceof Gauge) {
+                // 不是数字的 gauge 整个不输出
+                double value = gaugeValue((Gauge<?>) metric);
+                if (!Double.isNaN(value)) {
+                    series.add(new Series(entry.getKey(), metric, "", value));
+                }
+            } else {
+                series.add(new Series(entry.getKey(), metric, "", 0));
+            }
+        }
+        Collections.sort(series);
+
+        String lastFamily = null;
+        for (Series s : series) {
+            if (!s.family.equals(lastFamily)) {
+                writeType(out, s.family, s.type(), s.help);
+                lastFamily = s.family;
+            }
+            s.write(out);
+        }
+    }
+
+    /**
+     * 每一路流的数据, 按数据项分组输出
+     */
+    private void writeStreams(ByteBuf out) {
+        List<String> names = new ArrayList<String>(engines.keySet());
+        List<String[]> labels = new ArrayList<String[]>(names.size());
+        List<Collection<StreamMetrics>> streams = new ArrayList<Collection<StreamMetrics>>(names.size());
+        int numStreams = 0;
+        for (String name : names) {
+            StreamMetricsRegistry registry = engines.get(name).streamMetrics();
+            labels.add(new String[] {"engine", name});
+            streams.add(registry.size() <= MAX_STREAMS ? registry.values() : registry.top(Order.BITRATE, MAX_STREAMS));
+            numStreams += streams.get(streams.size() - 1).size();
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+
+        // 因为超过上限没有输出的流
+        writeType(out, PREFIX + "streams_omitted", "gauge", "tracked streams left out of this scrape by the cardinality cap");
+        for (int i = 0; i < names.size(); i++) {
+            StreamMetricsRegistry registry = engines.get(names.get(i)).streamMetrics();
+            writeSample(out, PREFIX + "streams_omitted", labels.get(i), null, null, Math.max(0, registry.size() - MAX_STREAMS));
+        }
+        writeType(out, PREFIX + "streams_rejected_total", "counter", "streams never tracked because the registry was full");
+        for (int i = 0; i < names.size(); i++) {
+            StreamMetricsRegistry registry = engines.get(names.get(i)).streamMetrics();
+            writeSample(out, PREFIX + "streams_rejected_total", labels.get(i), null, null, registry.getRejected());
+        }
+
+        // 没有流的时候不输出空的数据项
+        if (0 == numStreams) {
+            return;
+        }
+
+        for (StreamFamily family : StreamFamily.values()) {
+            writeType(out, family.name, family.type, family.help);
+            for (int i = 0; i < names.size(); i++) {
+                for (StreamMetrics metrics : streams.get(i)) {
+                    writeSample(out, family.name, labels.get(i), "stream", metrics.getName(), family.valueOf(metrics));
+                }
+            }
+        }
+    }
+
+    private static void writeType(ByteBuf out, String family, String type, String help) {
+        ByteBufUtil.writeAscii(out, "# HELP ");
+        ByteBufUtil.writeAscii(out, family);
+        out.writeByte(' ');
+        ByteBufUtil.writeUtf8(out, escape(help));
+        out.writeByte('\n');
+
+        ByteBufUtil.writeAscii(out, "# TYPE ");
+        ByteBufUtil.writeAscii(out, family);
+        out.writeByte(' ');
+        ByteBufUtil.writeAscii(out, type);
+        out.writeByte('\n');
+    }
+
+    /**
+     * name{labels[0]="labels[1]",...,labelName="labelValue"} value
+     *
+     * @param labels 标签的名字和值交替排列, 可以为 null
+     */
+    private static void writeSample(ByteBuf out, String name, String[] labels, String labelName, String labelValue, double value) {
+        ByteBufUtil.writeAscii(out, name);
+        boolean hasLabels = null != labels && labels.length > 0;
+        if (hasLabels || null != labelName) {
+            out.writeByte('{');
+            if (hasLabels) {
+                for (int i = 0; i < labels.length; i += 2) {
+                    if (i > 0) {
+                        out.writeByte(',');
+                    }
+                    writeLabel(out, labels[i], labels[i + 1]);
+                }
+            }
+            if (null != labelName) {
+                if (hasLabels) {
+                    out.writeByte(',');
+                }
+                writeLabel(out, labelName, labelValue);
+            }
+            out.writeByte('}');
+        }
+        out.writeByte(' ');
+        writeValue(out, value);
+        out.writeByte('\n');
+    }
+
+    private static void writeLabel(ByteBuf out, String name, String value) {
+        ByteBufUtil.writeAscii(out, name);
+        out.writeByte('=');
+        out.writeByte('"');
+        ByteBufUtil.writeUtf8(out, escape(value));
+        out.writeByte('"');
+    }
+
+    /**
+     * 转义 \\, " 和换行; 大多数名字都不需要转义, 直接返回
+     */
+    private static String escape(String value) {
+        int i = 0;
+        for (; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '\\' || ch == '"' || ch == '\n') {
+                break;
+            }
+        }
+        if (i == value.length()) {
+            return value;
+        }
+
+        StringBuilder buf = new StringBuilder(value.length() + 8);
+        for (i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '\\' || ch == '"') {
+                buf.append('\\').append(ch);
+            } else if (ch == '\n') {
+                buf.append("\\n");
+            } else {
+                buf.append(ch);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static void writeValue(ByteBuf out, double value) {
+        if (Double.isNaN(value)) {
+            ByteBufUtil.writeAscii(out, "NaN");
+        } else if (Double.isInfinite(value)) {
+            ByteBufUtil.writeAscii(out, value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            ByteBufUtil.writeAscii(out, Long.toString((long) value));
+        } else {
+            ByteBufUtil.writeAscii(out, Double.toString(value));
+        }
+    }
+
+    /**
+     * @return gauge 的值, 不是数字时返回 NaN
+     */
+    private static double gaugeValue(Gauge<?> gauge) {
+        Object value = gauge.getValue();
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return 符合 Prometheus 规范的名字
+     */
+    static String sanitize(String name) {
+        StringBuilder buf = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            boolean valid = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_' || ch == ':'
+                    || (i > 0 && ch >= '0' && ch <= '9');
+            buf.append(valid ? ch : '_');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * 名字里带标识的一类数据
+     *
+     * 名字形如 {prefix}.{label1}.{label2}.{name}, 标签依次取一段;
+     * greedy 时最后一个标签取到最后一个 '.' 为止, 用于可能带 '.' 的租户名和线程组名
+     */
+    private static class Labeled {
+        final String prefix;
+        final String family;
+        final boolean greedy;
+        final String[] labels;
+
+        Labeled(String prefix, String family, boolean greedy, String... labels) {
+            this.prefix = prefix + ".";
+            this.family = null != family ? family : PREFIX + sanitize(shortName(prefix)) + "_";
+            this.greedy = greedy;
+            this.labels = labels;
+        }
+
+        /**
+         * @return 标签的名字和值交替排列, 名字不匹配时返回 null; 最后一个元素是去掉标识以后的名字
+         */
+        String[] parse(String name) {
+            if (!name.startsWith(prefix)) {
+                return null;
+            }
+
+            String[] parsed = new String[labels.length * 2 + 1];
+            int start = prefix.length();
+            for (int i = 0; i < labels.length; i++) {
+                boolean last = i == labels.length - 1;
+                int dot = last && greedy ? name.lastIndexOf('.') : name.indexOf('.', start);
+                if (dot <= start) {
+                    return null;
+                }
+                parsed[i * 2] = labels[i];
+                parsed[i * 2 + 1] = name.substring(start, dot);
+                start = dot + 1;
+            }
+            parsed[parsed.length - 1] = name.substring(start);
+            return parsed;
+        }
+    }
+
+    private static String shortName(String name) {
+        return name.startsWith(BASE_PACKAGE) ? name.substring(BASE_PACKAGE.length()) : name;
+    }
+
+    /**
+     * MetricRegistry 里的一个数据项
+     *
+     * ServerEngine 的数据名字形如 ServerEngine.{engine}.{name}, 转换成 mediaserver_engine_{name}{engine="..."}
+     */
+    private static class Series implements Comparable<Series> {
+        final Metric metric;
+        final String family;
+        final String[] labels;
+        final String labelKey;
+        final String help;
+        /** gauge 的值, 排序前已经取好了 */
+        final double gaugeValue;
+
+        Series(String name, Metric metric, String suffix, double gaugeValue) {
+            this.metric = metric;
+            this.gaugeValue = gaugeValue;
+
+            String[] parsed = null;
+            Labeled labeled = null;
+            for (Labeled l : LABELED) {
+                parsed = l.parse(name);
+                if (null != parsed) {
+                    labeled = l;
+                    break;
+                }
+            }
+
+            if (null != labeled) {
+                String rest = parsed[parsed.length - 1];
+                this.labels = Arrays.copyOf(parsed, parsed.length - 1);
+                this.family = labeled.family + sanitize(rest) + suffix;
+                this.help = shortName(labeled.prefix) + rest;
+            } else {
+                this.labels = null;
+                this.family = PREFIX + sanitize(shortName(name)) + suffix;
+                this.help = name;
+            }
+            this.labelKey = null != labels ? Arrays.toString(labels) : "";
+        }
+
+        String type() {
+            if (metric instanceof Sampling) {
+                return "summary";
+            } else if (metric instanceof Meter && family.endsWith("_total")) {
+                return "counter";
+            }
+            return "gauge";
+        }
+
+        void write(ByteBuf out) {
+            if (metric instanceof Counter) {
+                writeSample(out, family, labels, null, null, ((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                writeSample(out, family, labels, null, null, gaugeValue);
+            } else if (metric instanceof Meter) {
+                Meter meter = (Meter) metric;
+                double value = family.endsWith("_total") ? meter.getCount() : meter.getOneMinuteRate();
+                writeSample(out, family, labels, null, null, value);
+            } else if (metric instanceof Sampling) {
+                // Timer 的单位是纳秒, 转成秒
+                double scale = metric instanceof Timer ? 1.0 / TimeUnit.SECONDS.toNanos(1) : 1.0;
+                Snapshot snapshot = ((Sampling) metric).getSnapshot();
+                for (double quantile : QUANTILES) {
+                    writeSample(out, family, labels, "quantile", Double.toString(quantile), snapshot.getValue(quantile) * scale);
+                }
+
+                // 没有累计的总和, 用采样的平均值估算
+                long count = metric instanceof Timer ? ((Timer) metric).getCount() : ((Histogram) metric).getCount();
+                writeSample(out, family + "_sum", labels, null, null, snapshot.getMean() * count * scale);
+                writeSample(out, family + "_count", labels, null, null, count);
+            }
+        }
+
+        @Override
+        public int compareTo(Series o) {
+            int cmp = family.compareTo(o.family);
+            if (cmp == 0) {
+                cmp = labelKey.compareTo(o.labelKey);
+            }
+            return cmp;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.sengled.cloud.http.metric;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+import com.alibaba.fastjson.JSONWriter;
+import com.sengled.cloud.http.HttpController;
+import com.sengled.cloud.http.HttpResponses;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencySnapshot;
+import com.sengled.cloud.mediaserver.rtsp.metrics.ListenerMetrics;
+import com.sengled.cloud.mediaserver.rtsp.metrics.ListenerMetrics.DropReason;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetrics;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetricsRegistry;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetricsRegistry.Order;
+
+/**
+ * 输出每一路流, 每一个观众的统计数据
+ *
+ * <ul>
+ * <li>{uri}top?engine=rtsp-server&by=bitrate&n=10 : 按码率、观众数、延时等排序的前 n 路流</li>
+ * <li>{uri}stream?engine=rtsp-server&name=xxx : 一路流和它所有观众的数据</li>
+ * </ul>
+ *
+ * @author 陈修恒
+ * @date 2016年6月1日
+ */
+public class StreamMetricsHandler implements HttpController {
+    private static final int DEFAULT_TOP_N = 20;
+    private static final int MAX_TOP_N = 1000;
+
+    final private String uri;
+    // 只在启动前添加
+    final private Map<String, ServerEngine> engines = new LinkedHashMap<String, ServerEngine>();
+
+    public StreamMetricsHandler(String uri) {
+        this.uri = uri;
+    }
+
+    public void addServerEngine(String name, ServerEngine engine) {
+        engines.put(name, engine);
+    }
+
+    @Override
+    public boolean handle(ChannelHandlerContext ctx,
+                          FullHttpRequest request,
+                          QueryStringDecoder uri) throws Exception {
+        if (!StringUtils.startsWith(uri.path(), this.uri)) {
+            return false;
+        }
+
+        String type = uri.path().substring(this.uri.length());
+        String engineName = HttpResponses.getParameter(uri, "engine");
+        ServerEngine engine = null != engineName ? engines.get(engineName) : null;
+        if (null == engine && engines.size() == 1) {
+            engine = engines.values().iterator().next();
+        }
+
+        if (null == engine) {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, "engine '" + engineName + "' NOT Found");
+            return true;
+        }
+
+        StreamMetricsRegistry registry = engine.streamMetrics();
+        if ("top".equals(type)) {
+            String by = HttpResponses.getParameter(uri, "by");
+            Order order;
+            try {
+                order = Order.valueOf(StringUtils.upperCase(StringUtils.defaultIfEmpty(by, "bitrate")));
+            } catch (IllegalArgumentException ex) {
+                HttpResponses.sendError(ctx, request, HttpResponseStatus.BAD_REQUEST, "illegal order '" + by + "'");
+                return true;
+            }
+            int n = Math.min(MAX_TOP_N, NumberUtils.toInt(HttpResponses.getParameter(uri, "n"), DEFAULT_TOP_N));
+
+            ByteBuf content = ctx.alloc().buffer();
+            JSONWriter writer = new JSONWriter(new OutputStreamWriter(new ByteBufOutputStream(content), "UTF-8"));
+            writer.startObject();
+            writer.writeKey("total");
+            writer.writeValue(registry.size());
+            writer.writeKey("untracked");
+            writer.writeValue(registry.getRejected());
+            writer.writeKey("latency");
+            writeLatency(writer, registry.getLatency().getSnapshot());
+            writer.writeKey("streams");
+            writer.startArray();
+            for (StreamMetrics metrics : registry.top(order, n)) {
+                writeStream(writer, metrics, false);
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.close();
+
+            HttpResponses.sendJson(ctx, request, content);
+        } else if ("stream".equals(type)) {
+            String name = HttpResponses.getParameter(uri, "name");
+            StreamMetrics metrics = null != name ? registry.get(name) : null;
+            if (null == metrics) {
+                HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, "stream '" + name + "' NOT Found");
+                return true;
+            }
+
+            ByteBuf content = ctx.alloc().buffer();
+            JSONWriter writer = new JSONWriter(new OutputStreamWriter(new ByteBufOutputStream(content), "UTF-8"));
+            writeStream(writer, metrics, true);
+            writer.close();
+
+            HttpResponses.sendJson(ctx, request, content);
+        } else {
+            HttpResponses.sendError(ctx, request, HttpResponseStatus.NOT_FOUND, null);
+        }
+        return true;
+    }
+
+    private void writeStream(JSONWriter writer, StreamMetrics metrics, boolean withListeners) {
+        writer.startObject();
+        writeEntry(writer, "name", metrics.getName());
+        writeEntry(writer, "created", metrics.getCreated());
+        writeEntry(writer, "bitrate", (long) metrics.getBitrate());
+        writeEntry(writer, "packetRate", (long) metrics.getPacketRate());
+        writeEntry(writer, "frameRate", (long) metrics.getFrameRate());
+        writeEntry(writer, "keyFrameInterval", metrics.getKeyFrameInterval());
+        writeEntry(writer, "keyFrames", metrics.getKeyFrames());
+        writeEntry(writer, "inboundBytes", metrics.getInboundBytes());
+        writeEntry(writer, "inboundPackets", metrics.getInboundPackets());
+        writeEntry(writer, "viewers", metrics.getViewers());
+        writer.writeKey("latency");
+        writeLatency(writer, metrics.getLatency().getSnapshot());
+
+        if (withListeners) {
+            writer.writeKey("listeners");
+            writer.startArray();
+            List<ListenerMetrics> listeners = metrics.getListeners();
+            for (ListenerMetrics listener : listeners) {
+                writeListener(writer, listener);
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    private void writeListener(JSONWriter writer, ListenerMetrics listener) {
+        writer.startObject();
+        writeEntry(writer, "remoteAddress", String.valueOf(listener.getRemoteAddress()));
+        writeEntry(writer, "created", listener.getCreated());
+        writeEntry(writer, "bytesSent", listener.getBytesSent());
+        writeEntry(writer, "packetsSent", listener.getPacketsSent());
+        writeEntry(writer, "waitingMillis", listener.getWaitingMillis());
+        writeEntry(writer, "outboundQueueBytes", listener.getOutboundQueueBytes());
+
+        writer.writeKey("drops");
+        writer.startObject();
+        for (DropReason reason : DropReason.values()) {
+            writeEntry(writer, reason.name().toLowerCase(), listener.getDrops(reason));
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    /**
+     * 延时, 单位微秒
+     */
+    private void writeLatency(JSONWriter writer, LatencySnapshot latency) {
+        writer.startObject();
+        writeEntry(writer, "count", latency.getCount());
+        writeEntry(writer, "p50", latency.getP50());
+        writeEntry(writer, "p90", latency.getP90());
+        writeEntry(writer, "p99", latency.getP99());
+        writeEntry(writer, "p999", latency.getP999());
+        writeEntry(writer, "max", latency.getMax());
+        writer.endObject();
+    }
+
+    private void writeEntry(JSONWriter writer, String key, Object value) {
+        writer.writeKey(key);
+        writer.writeValue(value);
+    }
+}
@@ -3,18 +3,26 @@ package com.sengled.cloud.http.metric;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedDeque;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.time.DateFormatUtils;
+import org.apache.commons.lang.time.FastDateFormat;
 
 import com.alibaba.fastjson.JSONWriter;
+import com.sengled.cloud.http.metric.TimeSeries.Resolution;
 
 class Table {
-    final private String name; 
+    private static final FastDateFormat DATE_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd HH:mm:ss");
+
+    /** 默认显示最近 30 分钟的数据 */
+    private static final long DEFAULT_RANGE = 1000 * 60 * 30;
+
+    final private String name;
     final private String[] colNames;
-    final ConcurrentLinkedDeque<Row> rows = new ConcurrentLinkedDeque<Row>();
+    final private TimeSeries series;
+
+    // 非数字的列(如 rate_unit), 只保留最新的值
+    final private Object[] lastValues;
+    final private double[] rowValues;
 
     public Table(String name, String colTemplate) {
         this.name = name;
@@ -22,23 +30,46 @@ class Table {
         for (int i = 0; i < colNames.length; i++) {
             colNames[i] = StringUtils.trim(colNames[i]);
         }
-       
+
+        this.series = new TimeSeries(colNames.length);
+        this.lastValues = new Object[colNames.length];
+        this.rowValues = new double[colNames.length];
     }
 
-    public void addRow(Object... row) {
-        rows.add(new Row(row));
-        
-        // 过期数据都删掉, 10s 一条记录的话， 一小时就是  360 条记录
-        while (rows.size() > 1024) {
-            rows.remove(0);
+    public synchronized void addRow(Object... row) {
+        for (int i = 0; i < rowValues.length; i++) {
+            Object value = i < row.length ? row[i] : null;
+            if (value instanceof Number) {
+                rowValues[i] = ((Number) value).doubleValue();
+                lastValues[i] = null;
+            } else {
+                rowValues[i] = Double.NaN;
+                lastValues[i] = value;
+            }
         }
+
+        series.add(System.currentTimeMillis(), rowValues);
     }
-    
+
     public String getName() {
         return name;
     }
-    
+
     public boolean ouput(OutputStream out, String col) throws IOException {
+        long now = System.currentTimeMillis();
+        return ouput(out, col, now - DEFAULT_RANGE, now, null);
+    }
+
+    /**
+     * 输出一段时间内的数据
+     *
+     * @param col 列名
+     * @param from 开始时间
+     * @param to 结束时间
+     * @param resolution 精度, 为 null 时选择能覆盖这段时间的最细的精度
+     * @return false 如果列不存在
+     */
+    public boolean ouput(OutputStream out, String col, long from, long to, Resolution resolution) throws IOException {
         int colIndex = -1;
         for (int i = 0; i < colNames.length; i++) {
             if (StringUtils.equals(col, colNames[i])) {
@@ -50,49 +81,46 @@ class Table {
             return false;
         }
 
-        
-        JSONWriter writer = new JSONWriter(new OutputStreamWriter(out, "UTF-8"));
+        if (null == resolution) {
+            resolution = Resolution.forRange(from, System.currentTimeMillis());
+        }
+
+        final JSONWriter writer = new JSONWriter(new OutputStreamWriter(out, "UTF-8"));
+        final Object constant = lastValues[colIndex];
         writer.startArray();
-        
-        
-        // 只显示最近 30 分钟的数据
-        long mixCreated = System.currentTimeMillis() - (1000 * 60 * 30);
-        ArrayList<Row> arrayList = new ArrayList<Row>(rows);
-        for (Row row : arrayList) {
-            if (row.getCreated() < mixCreated) {
-                continue;
-            }
+        series.visit(resolution, colIndex, from, to, new TimeSeries.Visitor() {
+            @Override
+            public void visit(long time, double value) {
+                writer.startObject();
 
-            writer.startObject();
-            
-            // value
-            Object[] colValues = row.getColValues();
-            writer.writeKey("value");
-            if (colValues[colIndex] instanceof Number) {
-                writer.writeValue(((Number)colValues[colIndex]).intValue());
-            } else {
-                writer.writeValue(String.valueOf(colValues[colIndex]));
+                // value
+                writer.writeKey("value");
+                if (!Double.isNaN(value)) {
+                    writer.writeValue((long) value);
+                } else {
+                    writer.writeValue(String.valueOf(constant));
+                }
+
+                // date
+                writer.writeKey("date");
+                writer.writeValue(DATE_FORMAT.format(time));
+                writer.endObject();
             }
-            
-            // date
-            writer.writeKey("date");
-            writer.writeValue(DateFormatUtils.format(row.getCreated(), "yyyy-MM-dd HH:mm:ss"));
-            writer.endObject();
-        }
-        
+        });
+
         writer.endArray();
         writer.close();
-        
+
         return true;
     }
-    
+
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
         buf.append("{").append(getClass().getSimpleName());
         buf.append(", ").append(name);
-        buf.append(", rows=").append(rows.size());
+        buf.append(", rows=").append(series.size(Resolution.SECONDS_10));
         buf.append("}");
         return buf.toString();
     }
-}
\ No newline at end of file
+}
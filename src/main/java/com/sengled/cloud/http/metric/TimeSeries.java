@@ -0,0 +1,188 @@
+package com.sengled.cloud.http.metric;
+
+/**
+ * 定长的时间序列, 多个数值列共用一个时间轴
+ *
+ * 按 10 秒, 1 分钟, 10 分钟三种精度保存, 每种精度都是一个环形缓冲区,
+ * 写满以后覆盖最老的数据, 所以内存占用是固定的。
+ * 粗精度的点是细精度的点在这段时间内的平均值。
+ *
+ * 只允许一个线程写; 读不加锁, 也不拷贝数据。
+ * 读的太慢, 正在读的位置被覆盖时, 时间不是递增的点会被跳过。
+ *
+ * @author 陈修恒
+ * @date 2016年6月3日
+ */
+class TimeSeries {
+
+    /** 数据精度 */
+    enum Resolution {
+        /** 10 秒一个点, 保存 1 小时 */
+        SECONDS_10("10s", 10 * 1000L, 360),
+        /** 1 分钟一个点, 保存 12 小时 */
+        MINUTE_1("1m", 60 * 1000L, 720),
+        /** 10 分钟一个点, 保存 3 天 */
+        MINUTES_10("10m", 10 * 60 * 1000L, 432);
+
+        final String id;
+        final long period;
+        final int capacity;
+
+        private Resolution(String id, long period, int capacity) {
+            this.id = id;
+            this.period = period;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return 保存的时长(毫秒)
+         */
+        long retention() {
+            return period * capacity;
+        }
+
+        static Resolution parse(String id) {
+            for (Resolution resolution : values()) {
+                if (resolution.id.equalsIgnoreCase(id)) {
+                    return resolution;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return 能覆盖从 from 开始到现在的最细的精度
+         */
+        static Resolution forRange(long from, long now) {
+            Resolution[] values = values();
+            for (Resolution resolution : values) {
+                if (now - from <= resolution.retention()) {
+                    return resolution;
+                }
+            }
+            return values[values.length - 1];
+        }
+    }
+
+    /** 遍历数据点 */
+    interface Visitor {
+        void visit(long time, double value);
+    }
+
+    private final int numCols;
+    private final Ring[] rings;
+
+    // 正在聚合的粗精度数据点, 下标 0 不用
+    private final long[] pendingBuckets;
+    private final int[] pendingCounts;
+    private final double[][] pendingSums;
+
+    TimeSeries(int numCols) {
+        Resolution[] resolutions = Resolution.values();
+
+        this.numCols = numCols;
+        this.rings = new Ring[resolutions.length];
+        this.pendingBuckets = new long[resolutions.length];
+        this.pendingCounts = new int[resolutions.length];
+        this.pendingSums = new double[resolutions.length][numCols];
+        for (int i = 0; i < resolutions.length; i++) {
+            rings[i] = new Ring(resolutions[i].capacity, numCols);
+        }
+    }
+
+    /**
+     * 添加一个数据点, 只能在一个线程里调用
+     *
+     * @param time 时间
+     * @param values 每一列的值, 长度必须是列数
+     */
+    void add(long time, double[] values) {
+        rings[0].add(time, values, 1);
+
+        Resolution[] resolutions = Resolution.values();
+        for (int i = 1; i < resolutions.length; i++) {
+            long bucket = time / resolutions[i].period;
+            double[] sums = pendingSums[i];
+
+            if (pendingCounts[i] > 0 && bucket != pendingBuckets[i]) {
+                // 上一个时间段结束了, 输出平均值
+                rings[i].add(pendingBuckets[i] * resolutions[i].period, sums, pendingCounts[i]);
+                pendingCounts[i] = 0;
+                for (int col = 0; col < numCols; col++) {
+                    sums[col] = 0;
+                }
+            }
+
+            pendingBuckets[i] = bucket;
+            pendingCounts[i] ++;
+            for (int col = 0; col < numCols; col++) {
+                sums[col] += values[col];
+            }
+        }
+    }
+
+    /**
+     * 按时间顺序遍历 [from, to] 之间的数据点
+     */
+    void visit(Resolution resolution, int col, long from, long to, Visitor visitor) {
+        rings[resolution.ordinal()].visit(col, from, to, visitor);
+    }
+
+    int size(Resolution resolution) {
+        return rings[resolution.ordinal()].size();
+    }
+
+    /**
+     * 环形缓冲区, 数值按 [点][列] 平铺在一个 double 数组里
+     */
+    private static class Ring {
+        private final int capacity;
+        private final int numCols;
+        private final long[] times;
+        private final double[] values;
+
+        /** 一共写入了多少个点, 也用于把写入的数据发布给读线程 */
+        private volatile long count;
+
+        Ring(int capacity, int numCols) {
+            this.capacity = capacity;
+            this.numCols = numCols;
+            this.times = new long[capacity];
+            this.values = new double[capacity * numCols];
+        }
+
+        void add(long time, double[] sums, int n) {
+            final long count = this.count;
+            final int slot = (int) (count % capacity);
+
+            times[slot] = time;
+            for (int col = 0; col < numCols; col++) {
+                values[slot * numCols + col] = sums[col] / n;
+            }
+            this.count = count + 1;
+        }
+
+        void visit(int col, long from, long to, Visitor visitor) {
+            final long end = this.count;
+            final long start = Math.max(0, end - capacity);
+
+            long lastTime = Long.MIN_VALUE;
+            for (long i = start; i < end; i++) {
+                final int slot = (int) (i % capacity);
+                final long time = times[slot];
+                final double value = values[slot * numCols + col];
+
+                if (time < from || time > to || time < lastTime) {
+                    continue;
+                }
+
+                lastTime = time;
+                visitor.visit(time, value);
+            }
+        }
+
+        int size() {
+            return (int) Math.min(count, capacity);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.sengled.cloud.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.rtsp.RtspEncoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.ByteBufAllocators;
+import com.sengled.cloud.mediaserver.RtspClient;
+import com.sengled.cloud.mediaserver.RtspClients;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspObjectDecoder;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspResponseDecoder;
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencySnapshot;
+import com.sengled.cloud.mediaserver.url.URLObject;
+import com.sengled.cloud.monitor.ProcSampler;
+
+/**
+ * 压测工具: M 路推流, N 个观众, 测服务器能带多少路
+ *
+ * <pre>
+ * bin/jmedia-loadtest --host=127.0.0.1 --port=5454 --publishers=10 --players=1000 \
+ *                     --bitrate=1024 --fps=25 --gop=50 --duration=60 --server-pid=12345
+ * </pre>
+ *
+ * <ul>
+ * <li>推流用 {@link SyntheticPublisher}, 流名是 /loadtest/0 .. /loadtest/M-1</li>
+ * <li>观众用 {@link RtspClients}, 跟拉流走同一套代码, 第 j 个观众看第 j % M 路流</li>
+ * <li>每隔 interval 秒打印一行: 收发速率, 延时分布, 丢包率, 服务器和压测工具自己的 CPU</li>
+ * </ul>
+ *
+ * 推流和观众在同一个进程里, 延时直接用 {@link System#nanoTime()} 计算, 见 {@link PlayerProbe}。
+ * 指定了 server-pid 时从 /proc/[pid]/stat 读服务器的 CPU, 并折算成每 1000 个观众消耗的 CPU;
+ * 服务器应该和压测工具跑在同一台机器上, 或者分开部署, 各自看 CPU
+ *
+ * @author 陈修恒
+ * @date 2016年6月13日
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private final String host;
+    private final int port;
+    private final int numPublishers;
+    private final int numPlayers;
+    private final int bitrate;
+    private final int fps;
+    private final int gop;
+    private final int duration;
+    private final int interval;
+    /** 每秒最多新建多少个观众, 避免一下子把服务器的 accept 队列打满 */
+    private final int rampRate;
+    private final String serverPid;
+
+    private final LoadStats stats = new LoadStats();
+    private final EventLoopGroup publisherGroup = new NioEventLoopGroup(0, new DefaultThreadFactory("loadtest"));
+    private final List<Channel> publishers = new ArrayList<Channel>();
+    private final List<RtspClient> players = new ArrayList<RtspClient>();
+
+    public LoadGenerator(Map<String, String> options) {
+        this.host = get(options, "host", "127.0.0.1");
+        this.port = NumberUtils.toInt(options.get("port"), 5454);
+        this.numPublishers = Math.max(1, NumberUtils.toInt(options.get("publishers"), 10));
+        this.numPlayers = Math.max(0, NumberUtils.toInt(options.get("players"), 100));
+        this.bitrate = Math.max(8, NumberUtils.toInt(options.get("bitrate"), 1024)) * 1024;
+        this.fps = Math.max(1, NumberUtils.toInt(options.get("fps"), 25));
+        this.gop = Math.max(1, NumberUtils.toInt(options.get("gop"), 50));
+        this.duration = Math.max(1, NumberUtils.toInt(options.get("duration"), 60));
+        this.interval = Math.max(1, NumberUtils.toInt(options.get("interval"), 5));
+        this.rampRate = Math.max(1, NumberUtils.toInt(options.get("ramp"), 100));
+        this.serverPid = StringUtils.trimToNull(options.get("server-pid"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 每个会话建立、关闭都会打日志, 上千个观众会把报告淹没
+        org.apache.log4j.Logger.getLogger("com.sengled.cloud.mediaserver").setLevel(org.apache.log4j.Level.WARN);
+
+        LoadGenerator generator = new LoadGenerator(parseArgs(args));
+        try {
+            generator.run();
+        } finally {
+            generator.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * --name=value 形式的参数
+     */
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            String option = StringUtils.removeStart(arg, "--");
+            int index = option.indexOf('=');
+            if (index > 0) {
+                options.put(option.substring(0, index), option.substring(index + 1));
+            } else {
+                options.put(option, "true");
+            }
+        }
+        return options;
+    }
+
+    public void run() throws Exception {
+        logger.warn("{} publishers, {} players, {}kbps, {}fps, gop {}, {}s, rtsp://{}:{}",
+                    numPublishers, numPlayers, bitrate / 1024, fps, gop, duration, host, port);
+
+        // 推流
+        for (int i = 0; i < numPublishers; i++) {
+            publishers.add(publish(streamUrl(i)));
+        }
+
+        // 等推流都注册到服务器上
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (stats.getPublishers() < numPublishers && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        if (stats.getPublishers() < numPublishers) {
+            logger.warn("only {}/{} publishers started", stats.getPublishers(), numPublishers);
+        }
+
+        // 观众, 第一个周期的报告包含了建连的过程
+        ServerEngine playerEngine = new ServerEngine().withMetricRegistry("loadtest", new MetricRegistry());
+        Reporter reporter = new Reporter();
+        long startMillis = System.currentTimeMillis();
+        for (int j = 0; j < numPlayers; j++) {
+            try {
+                RtspClient client = RtspClients.open(playerEngine, new URLObject(streamUrl(j % numPublishers)), "/player/" + j, new PlayerProbe(stats));
+                synchronized (players) {
+                    players.add(client);
+                }
+                stats.playerStarted();
+            } catch (IOException ex) {
+                logger.warn("player#{} failed, {}", j, ex.getMessage());
+            }
+
+            if (j % rampRate == rampRate - 1) {
+                Thread.sleep(1000);
+            }
+            reporter.reportIfNecessary();
+        }
+
+        long endMillis = startMillis + duration * 1000L;
+        while (System.currentTimeMillis() < endMillis) {
+            Thread.sleep(Math.min(200, Math.max(1, endMillis - System.currentTimeMillis())));
+            reporter.reportIfNecessary();
+        }
+
+        reporter.summary();
+    }
+
+    public void close() {
+        synchronized (players) {
+            for (RtspClient client : players) {
+                IOUtils.closeQuietly(client);
+            }
+            players.clear();
+        }
+
+        for (Channel channel : publishers) {
+            channel.close();
+        }
+        publishers.clear();
+        publisherGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private String streamUrl(int index) {
+        return "rtsp://" + host + ":" + port + "/loadtest/" + index;
+    }
+
+    private Channel publish(final String url) throws InterruptedException {
+        Bootstrap b = new Bootstrap();
+        b.group(publisherGroup)
+         .channel(NioSocketChannel.class)
+         .option(ChannelOption.ALLOCATOR, ByteBufAllocators.ALLOCATOR)
+         .option(ChannelOption.TCP_NODELAY, true)
+         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5 * 1000)
+         .handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new RtspEncoder());
+                ch.pipeline().addLast(RtspObjectDecoder.NAME, new RtspResponseDecoder());
+                ch.pipeline().addLast(new SyntheticPublisher(url, bitrate, fps, gop, stats));
+            }
+        });
+
+        return b.connect(host, port).sync().channel();
+    }
+
+    private static String get(Map<String, String> options, String key, String defaultValue) {
+        return StringUtils.defaultIfEmpty(options.get(key), defaultValue);
+    }
+
+    /**
+     * 周期性地打印报告
+     */
+    private class Reporter {
+        private final ProcSampler self = ProcSampler.isAvailable() ? new ProcSampler() : null;
+        private final ProcSampler server = ProcSampler.isAvailable() && null != serverPid ? new ProcSampler(serverPid) : null;
+
+        private final long startNanos = System.nanoTime();
+        private long lastNanos = startNanos;
+        private long lastSentPackets;
+        private long lastSentBytes;
+        private long lastReceivedPackets;
+        private long lastReceivedBytes;
+        private long lastLostPackets;
+
+        Reporter() {
+            sample();
+        }
+
+        void reportIfNecessary() {
+            long now = System.nanoTime();
+            if (now - lastNanos < TimeUnit.SECONDS.toNanos(interval)) {
+                return;
+            }
+
+            double seconds = (now - lastNanos) / 1e9;
+            long sentPackets = stats.getSentPackets();
+            long sentBytes = stats.getSentBytes();
+            long receivedPackets = stats.getReceivedPackets();
+            long receivedBytes = stats.getReceivedBytes();
+            long lostPackets = stats.getLostPackets();
+            LatencySnapshot latency = stats.swapLatency();
+            sample();
+
+            long lost = lostPackets - lastLostPackets;
+            long received = receivedPackets - lastReceivedPackets;
+            double serverCpu = null != server ? server.getProcessPercent() : -1;
+            int numPlayers = stats.getPlayers();
+
+            StringBuilder buf = new StringBuilder(256);
+            buf.append(String.format("[%4ds] pub %d, play %d", (now - startNanos) / 1000000000L, stats.getPublishers(), numPlayers));
+            buf.append(String.format(", sent %.1fMbps %.0fpkt/s", (sentBytes - lastSentBytes) * 8 / seconds / 1e6, (sentPackets - lastSentPackets) / seconds));
+            buf.append(String.format(", recv %.1fMbps %.0fpkt/s", (receivedBytes - lastReceivedBytes) * 8 / seconds / 1e6, received / seconds));
+            buf.append(String.format(", latency(us) p50 %d p99 %d max %d", latency.getP50(), latency.getP99(), latency.getMax()));
+            buf.append(String.format(", lost %.2f%%", lost + received > 0 ? 100.0 * lost / (lost + received) : 0));
+            if (null != server && serverCpu >= 0) {
+                buf.append(String.format(", server cpu %.1f%%", serverCpu));
+                if (numPlayers > 0) {
+                    buf.append(String.format(" (%.1f%% per 1k players)", serverCpu * 1000 / numPlayers));
+                }
+            }
+            if (null != self && self.getProcessPercent() >= 0) {
+                buf.append(String.format(", loadtest cpu %.1f%%", self.getProcessPercent()));
+            }
+            System.out.println(buf);
+
+            lastNanos = now;
+            lastSentPackets = sentPackets;
+            lastSentBytes = sentBytes;
+            lastReceivedPackets = receivedPackets;
+            lastReceivedBytes = receivedBytes;
+            lastLostPackets = lostPackets;
+        }
+
+        void summary() {
+            long received = stats.getReceivedPackets();
+            long lost = stats.getLostPackets();
+            LatencySnapshot latency = stats.getTotalLatency();
+
+            StringBuilder buf = new StringBuilder(256);
+            buf.append(String.format("summary: %d publishers, %d players", stats.getPublishers(), stats.getPlayers()));
+            buf.append(String.format(", sent %d packets, skipped %d frames", stats.getSentPackets(), stats.getSkippedFrames()));
+            buf.append(String.format(", received %d packets, lost %.2f%%", received, lost + received > 0 ? 100.0 * lost / (lost + received) : 0));
+            buf.append(String.format(", latency(us) p50 %d p90 %d p99 %d p999 %d max %d",
+                                     latency.getP50(), latency.getP90(), latency.getP99(), latency.getP999(), latency.getMax()));
+            System.out.println(buf);
+        }
+
+        private void sample() {
+            try {
+                if (null != self) {
+                    self.sample();
+                }
+                if (null != server) {
+                    server.sample();
+                }
+            } catch (IOException ex) {
+                logger.warn("{}", ex.getMessage());
+            }
+        }
+    }
+}
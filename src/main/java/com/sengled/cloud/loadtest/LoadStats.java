@@ -0,0 +1,118 @@
+package com.sengled.cloud.loadtest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencyHistogram;
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencyRecorder;
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencySnapshot;
+
+/**
+ * 压测过程中推流端和观众端的计数, 所有的推流、观众共用一个
+ *
+ * @author 陈修恒
+ * @date 2016年6月13日
+ */
+public class LoadStats {
+    private final AtomicInteger publishers = new AtomicInteger();
+    private final AtomicInteger players = new AtomicInteger();
+
+    private final AtomicLong sentPackets = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+
+    private final AtomicLong receivedPackets = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong lostPackets = new AtomicLong();
+
+    /** 每个报告周期的延时 */
+    private final LatencyRecorder latency = new LatencyRecorder();
+    /** 整个压测的延时 */
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    public void publisherStarted() {
+        publishers.incrementAndGet();
+    }
+
+    public void publisherClosed() {
+        publishers.decrementAndGet();
+    }
+
+    public void playerStarted() {
+        players.incrementAndGet();
+    }
+
+    public void playerClosed() {
+        players.decrementAndGet();
+    }
+
+    public void onPublisherSent(int bytes) {
+        sentPackets.incrementAndGet();
+        sentBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 发送缓冲区满了, 丢掉了一帧
+     */
+    public void onPublisherDrop() {
+        skippedFrames.incrementAndGet();
+    }
+
+    public void onPlayerReceived(int bytes, long latencyNanos) {
+        receivedPackets.incrementAndGet();
+        receivedBytes.addAndGet(bytes);
+
+        latency.recordNanos(latencyNanos);
+        total.record(latencyNanos / 1000);
+    }
+
+    public void onPlayerLost(int packets) {
+        lostPackets.addAndGet(packets);
+    }
+
+    public int getPublishers() {
+        return publishers.get();
+    }
+
+    public int getPlayers() {
+        return players.get();
+    }
+
+    public long getSentPackets() {
+        return sentPackets.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    public long getReceivedPackets() {
+        return receivedPackets.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    public long getLostPackets() {
+        return lostPackets.get();
+    }
+
+    /**
+     * @return 上次调用以来的延时分布, 微秒
+     */
+    public LatencySnapshot swapLatency() {
+        return latency.swap();
+    }
+
+    /**
+     * @return 整个压测的延时分布, 微秒
+     */
+    public LatencySnapshot getTotalLatency() {
+        return total.snapshot();
+    }
+}
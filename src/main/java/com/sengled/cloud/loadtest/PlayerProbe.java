@@ -0,0 +1,63 @@
+package com.sengled.cloud.loadtest;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
+
+/**
+ * 加在观众的 {@code RtspClient} 前面, 从 {@link SyntheticPublisher} 写在负载里的探针算出延时和丢包
+ *
+ * <p>
+ * 延时是推流端写包到观众解码出这个包的时间, 两端在同一个进程里, 直接比较 {@link System#nanoTime()}。
+ * 丢包按推流端的包序号计算, 服务器在发送缓冲区满时丢掉的包也会算进来。
+ * 序号变小说明推流端重连了, 重新开始计数
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月13日
+ */
+public class PlayerProbe extends ChannelInboundHandlerAdapter {
+    private static final int PROBE_END = SyntheticPublisher.PROBE_OFFSET + SyntheticPublisher.PROBE_LENGTH;
+
+    private final LoadStats stats;
+    private long expectedSeq = -1;
+
+    public PlayerProbe(LoadStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stats.playerClosed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof RtpPkt) {
+            onRtpPkt((RtpPkt) msg);
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+
+    private void onRtpPkt(RtpPkt rtpPkt) {
+        ByteBuf content = rtpPkt.content();
+        if (rtpPkt.dataLength() < PROBE_END) {
+            return;
+        }
+
+        int offset = content.readerIndex() + rtpPkt.headerLength() + SyntheticPublisher.PROBE_OFFSET;
+        long sentNanos = content.getLong(offset);
+        long seq = content.getUnsignedInt(offset + 8);
+
+        if (expectedSeq >= 0 && seq > expectedSeq) {
+            stats.onPlayerLost((int) Math.min(Integer.MAX_VALUE, seq - expectedSeq));
+        }
+        expectedSeq = seq + 1;
+
+        stats.onPlayerReceived(rtpPkt.contentLength(), System.nanoTime() - sentNanos);
+    }
+}
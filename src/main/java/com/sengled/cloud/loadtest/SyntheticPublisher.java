@@ -0,0 +1,238 @@
+package com.sengled.cloud.loadtest;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.rtsp.RtspHeaders;
+import io.netty.handler.codec.rtsp.RtspMethods;
+import io.netty.handler.codec.rtsp.RtspVersions;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sengled.cloud.mediaserver.rtsp.Transport;
+
+/**
+ * 模拟一个摄像头推流: ANNOUNCE, SETUP, RECORD, 然后按帧率循环发送合成的 h264 数据
+ *
+ * <p>
+ * 每 gop 帧一个关键帧, 关键帧是普通帧的 {@link #KEY_FRAME_FACTOR} 倍, 整体码率等于 bitrate。
+ * 每一帧拆成多个 FU-A 分片, 每个分片的负载里带着发送时间和推流端的包序号,
+ * 观众收到以后就能算出转发延时和丢包, 见 {@link PlayerProbe}
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月13日
+ */
+public class SyntheticPublisher extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(SyntheticPublisher.class);
+
+    /** 关键帧是普通帧的几倍 */
+    static final int KEY_FRAME_FACTOR = 8;
+    /** 每个 rtp 包最多带多少字节负载 */
+    static final int MAX_PAYLOAD = 1400;
+    /** 负载里 FU-A 头后面依次是: 发送时间(System.nanoTime) 8 字节, 包序号 4 字节 */
+    static final int PROBE_OFFSET = 2;
+    static final int PROBE_LENGTH = 12;
+
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int CLOCK_RATE = 90000;
+    private static final int PAYLOAD_TYPE = 96;
+
+    private enum State {
+        ANNOUNCE, SETUP, RECORD, PUBLISHING
+    }
+
+    private final String url;
+    private final int fps;
+    private final int gop;
+    private final int frameBytes;
+    private final LoadStats stats;
+    private final int ssrc = (int) System.nanoTime();
+
+    private State state = State.ANNOUNCE;
+    private int cseq = 1;
+    private String sessionId;
+    private ScheduledFuture<?> timer;
+
+    private long numFrames;
+    private int rtpSeq;
+    private int probeSeq;
+
+    /**
+     * @param bitrate 码率, bit/s
+     */
+    public SyntheticPublisher(String url, int bitrate, int fps, int gop, LoadStats stats) {
+        this.url = url;
+        this.fps = fps;
+        this.gop = Math.max(1, gop);
+        this.stats = stats;
+
+        long bytesPerGop = (long) bitrate / 8 * this.gop / fps;
+        this.frameBytes = (int) Math.max(PROBE_OFFSET + PROBE_LENGTH, bytesPerGop / (this.gop - 1 + KEY_FRAME_FACTOR));
+    }
+
+    public static String sdp() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("v=0\r\n");
+        buf.append("o=- 0 0 IN IP4 127.0.0.1\r\n");
+        buf.append("s=loadtest\r\n");
+        buf.append("c=IN IP4 0.0.0.0\r\n");
+        buf.append("t=0 0\r\n");
+        buf.append("m=video 0 RTP/AVP ").append(PAYLOAD_TYPE).append("\r\n");
+        buf.append("a=rtpmap:").append(PAYLOAD_TYPE).append(" H264/").append(CLOCK_RATE).append("\r\n");
+        buf.append("a=fmtp:").append(PAYLOAD_TYPE).append(" packetization-mode=1\r\n");
+        buf.append("a=control:streamid=0\r\n");
+        return buf.toString();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        super.channelActive(ctx);
+
+        FullHttpRequest request = makeRequest(ctx, RtspMethods.ANNOUNCE, url);
+        byte[] sdp = sdp().getBytes(CharsetUtil.UTF_8);
+        request.content().writeBytes(sdp);
+        request.headers().set(RtspHeaders.Names.CONTENT_TYPE, "application/sdp");
+        request.headers().set(RtspHeaders.Names.CONTENT_LENGTH, sdp.length);
+        ctx.writeAndFlush(request);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        super.channelInactive(ctx);
+
+        if (null != timer) {
+            timer.cancel(false);
+        }
+        if (state == State.PUBLISHING) {
+            stats.publisherClosed();
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        try {
+            if (msg instanceof FullHttpResponse) {
+                onResponse(ctx, (FullHttpResponse) msg);
+            }
+            // 服务器发过来的 rtcp (比如关键帧请求) 直接丢弃
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.warn("{} closed, {}", url, cause.getMessage());
+        ctx.close();
+    }
+
+    private void onResponse(final ChannelHandlerContext ctx, FullHttpResponse response) throws IOException {
+        if (200 != response.getStatus().code()) {
+            throw new IOException(state + " " + url + " failed, " + response.getStatus());
+        }
+
+        switch (state) {
+            case ANNOUNCE:
+                FullHttpRequest setup = makeRequest(ctx, RtspMethods.SETUP, url + "/streamid=0");
+                setup.headers().set(RtspHeaders.Names.TRANSPORT, Transport.rtpOnTcp(0, 1) + ";mode=record");
+                ctx.writeAndFlush(setup);
+                state = State.SETUP;
+                break;
+            case SETUP:
+                sessionId = response.headers().get(RtspHeaders.Names.SESSION);
+                ctx.writeAndFlush(makeRequest(ctx, RtspMethods.RECORD, url));
+                state = State.RECORD;
+                break;
+            case RECORD:
+                state = State.PUBLISHING;
+                stats.publisherStarted();
+                timer = ctx.executor().scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendFrame(ctx.channel());
+                    }
+                }, 0, 1000000 / fps, TimeUnit.MICROSECONDS);
+                break;
+            default:
+                // GET_PARAMETER 之类的响应
+                break;
+        }
+    }
+
+    private FullHttpRequest makeRequest(ChannelHandlerContext ctx, HttpMethod method, String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(RtspVersions.RTSP_1_0, method, uri, ctx.alloc().buffer(0));
+        request.headers().set(RtspHeaders.Names.CSEQ, cseq++);
+        request.headers().set(RtspHeaders.Names.USER_AGENT, "Sengled Load Generator");
+        request.headers().set(RtspHeaders.Names.CONTENT_LENGTH, 0);
+        if (null != sessionId) {
+            request.headers().set(RtspHeaders.Names.SESSION, sessionId);
+        }
+        return request;
+    }
+
+    /**
+     * 发送一帧, 发送缓冲区满了就丢掉整帧
+     */
+    private void sendFrame(Channel channel) {
+        boolean keyFrame = numFrames % gop == 0;
+        long timestamp = numFrames * CLOCK_RATE / fps;
+        numFrames++;
+
+        if (!channel.isWritable()) {
+            stats.onPublisherDrop();
+            return;
+        }
+
+        int remains = keyFrame ? frameBytes * KEY_FRAME_FACTOR : frameBytes;
+        int nalType = keyFrame ? 5 : 1;
+        boolean start = true;
+        while (remains > 0) {
+            int payloadLength = Math.min(MAX_PAYLOAD, remains);
+            if (remains - payloadLength < PROBE_OFFSET + PROBE_LENGTH) {
+                // 最后一片不能太小, 放不下探针
+                payloadLength = remains;
+            }
+            remains -= payloadLength;
+            boolean end = 0 == remains;
+
+            int length = RTP_HEADER_LENGTH + Math.max(payloadLength, PROBE_OFFSET + PROBE_LENGTH);
+            ByteBuf buf = channel.alloc().buffer(4 + length);
+            buf.writeByte('$');
+            buf.writeByte(0);
+            buf.writeShort(length);
+
+            buf.writeByte(0x80);
+            buf.writeByte((end ? 0x80 : 0x00) | PAYLOAD_TYPE);
+            buf.writeShort(rtpSeq++);
+            buf.writeInt((int) timestamp);
+            buf.writeInt(ssrc);
+
+            // FU-A
+            buf.writeByte(0x60 | 28);
+            buf.writeByte((start ? 0x80 : 0x00) | (end ? 0x40 : 0x00) | nalType);
+
+            // 探针
+            buf.writeLong(System.nanoTime());
+            buf.writeInt(probeSeq++);
+            buf.writeZero(4 + length - buf.writerIndex());
+
+            stats.onPublisherSent(length);
+            channel.write(buf);
+            start = false;
+        }
+        channel.flush();
+    }
+}
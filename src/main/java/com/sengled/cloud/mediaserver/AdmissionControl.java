@@ -0,0 +1,210 @@
+package com.sengled.cloud.mediaserver;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.rtsp.RtspResponseStatuses;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.async.TimerExecutor;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.monitor.EventLoopWatchdog;
+import com.sengled.cloud.monitor.EventLoopWatchdog.WatchedLoop;
+import com.sengled.cloud.monitor.OSMonitor;
+
+/**
+ * 过载保护: 服务器过载时不再接受新的观众, 保证已经在看的观众不受影响
+ *
+ * <p>
+ * 每秒采样一次出口带宽、EventLoop 调度延时、池化 direct 内存和 CPU 使用率,
+ * 任何一项超过上限就进入过载状态; 所有项都降到上限的
+ * {@link SystemPropertyKeys#ADMISSION_RECOVER_PERCENT}% 以下才恢复, 避免在临界点来回切换。
+ * 上限为 0 的项不检查, 默认都是 0, 需要按机器配置打开。
+ * 过载时只拒绝 DESCRIBE 和 PLAY, 推流端的 ANNOUNCE/RECORD 不受影响
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月15日
+ */
+public class AdmissionControl {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private static final int CHECK_INTERVAL = 1000;
+
+    /** 过载的原因 */
+    public enum Signal {
+        /** 出口带宽, Mbps */
+        BANDWIDTH,
+        /** EventLoop 调度延时, 毫秒 */
+        LAG,
+        /** 池化 direct 内存, MB */
+        MEMORY,
+        /** CPU 使用率, 百分比 */
+        CPU
+    }
+
+    private final ServerEngine engine;
+    private final double[] limits = new double[Signal.values().length];
+    private final double recoverRatio;
+
+    private EventLoopWatchdog watchdog;
+    private OSMonitor osMonitor;
+
+    /** 过载的原因, null 表示没有过载 */
+    private volatile Signal overload;
+    private final double[] values = new double[Signal.values().length];
+    private long lastOutboundBytes;
+    private long lastCheckNanos;
+
+    private Meter rejectMeter;
+
+    public AdmissionControl(ServerEngine engine) {
+        this.engine = engine;
+        this.limits[Signal.BANDWIDTH.ordinal()] = Integer.getInteger(SystemPropertyKeys.ADMISSION_MAX_OUTBOUND, 0);
+        this.limits[Signal.LAG.ordinal()] = Integer.getInteger(SystemPropertyKeys.ADMISSION_MAX_LAG, 0);
+        this.limits[Signal.MEMORY.ordinal()] = Integer.getInteger(SystemPropertyKeys.ADMISSION_MAX_DIRECT_MEMORY, 0);
+        this.limits[Signal.CPU.ordinal()] = Integer.getInteger(SystemPropertyKeys.ADMISSION_MAX_CPU, 0);
+        this.recoverRatio = Integer.getInteger(SystemPropertyKeys.ADMISSION_RECOVER_PERCENT, 80) / 100.0;
+    }
+
+    public AdmissionControl withEventLoopWatchdog(EventLoopWatchdog watchdog) {
+        this.watchdog = watchdog;
+        return this;
+    }
+
+    public AdmissionControl withOSMonitor(OSMonitor osMonitor) {
+        this.osMonitor = osMonitor;
+        return this;
+    }
+
+    public AdmissionControl withMetricRegistry(String name, MetricRegistry registry) {
+        rejectMeter = registry.meter(MetricRegistry.name(AdmissionControl.class, name, "rejected"));
+        registry.register(MetricRegistry.name(AdmissionControl.class, name, "overloaded"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return isOverloaded() ? 1 : 0;
+            }
+        });
+        return this;
+    }
+
+    public AdmissionControl start() {
+        lastOutboundBytes = engine.getOutboundBytes();
+        lastCheckNanos = System.nanoTime();
+
+        TimerExecutor timer = new TimerExecutor("admission-control");
+        timer.setInterval(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    sample();
+                } catch (Exception ex) {
+                    logger.warn("fail sample server load, {}", ex.getMessage(), ex);
+                }
+                return null;
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL);
+        return this;
+    }
+
+    /**
+     * @return 过载时不能再接受新的观众
+     */
+    public boolean isOverloaded() {
+        return null != overload;
+    }
+
+    /**
+     * @return 拒绝观众时的响应: 带宽不够时为 453, 其他为 503
+     */
+    public HttpResponseStatus getRejectStatus() {
+        return Signal.BANDWIDTH == overload ? RtspResponseStatuses.NOT_ENOUGH_BANDWIDTH : RtspResponseStatuses.SERVICE_UNAVAILABLE;
+    }
+
+    public void markRejected() {
+        if (null != rejectMeter) {
+            rejectMeter.mark();
+        }
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        long outboundBytes = engine.getOutboundBytes();
+        double seconds = (now - lastCheckNanos) / 1e9;
+        double outboundMbps = seconds > 0 ? (outboundBytes - lastOutboundBytes) * 8 / seconds / 1e6 : 0;
+        lastOutboundBytes = outboundBytes;
+        lastCheckNanos = now;
+
+        long lagMillis = 0;
+        if (null != watchdog) {
+            for (WatchedLoop loop : watchdog.getLoops()) {
+                long p99 = TimeUnit.MICROSECONDS.toMillis(loop.getLag().getP99());
+                lagMillis = Math.max(lagMillis, Math.max(p99, loop.getWaitingMillis()));
+            }
+        }
+
+        double directMB = ByteBufAllocators.getUsedBytes(ByteBufAllocators.ALLOCATOR.directArenas()) / 1024.0 / 1024.0;
+
+        double cpuIdle = null != osMonitor ? osMonitor.getCpuIdRate() : -1;
+        double cpuPercent = cpuIdle >= 0 ? 100 - cpuIdle : 0;
+
+        update(outboundMbps, lagMillis, directMB, cpuPercent);
+    }
+
+    /**
+     * 根据最新的采样更新过载状态
+     */
+    void update(double outboundMbps, double lagMillis, double directMB, double cpuPercent) {
+        values[Signal.BANDWIDTH.ordinal()] = outboundMbps;
+        values[Signal.LAG.ordinal()] = lagMillis;
+        values[Signal.MEMORY.ordinal()] = directMB;
+        values[Signal.CPU.ordinal()] = cpuPercent;
+
+        // 超出上限最多的一项
+        Signal worst = null;
+        double worstRatio = 0;
+        for (Signal signal : Signal.values()) {
+            double limit = limits[signal.ordinal()];
+            if (limit <= 0) {
+                continue;
+            }
+
+            double ratio = values[signal.ordinal()] / limit;
+            if (null == worst || ratio > worstRatio) {
+                worst = signal;
+                worstRatio = ratio;
+            }
+        }
+
+        Signal old = overload;
+        if (null == old && worstRatio >= 1) {
+            overload = worst;
+            logger.warn("overloaded by {}, reject new players. {}", worst, this);
+        } else if (null != old && worstRatio <= recoverRatio) {
+            overload = null;
+            logger.warn("recovered from {}, accept new players. {}", old, this);
+        } else if (null != old && worstRatio >= 1 && worst != old) {
+            overload = worst;
+            logger.warn("overloaded by {}, was {}. {}", worst, old, this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("{");
+        for (Signal signal : Signal.values()) {
+            if (buf.length() > 1) {
+                buf.append(", ");
+            }
+            buf.append(signal).append(":").append(String.format("%.1f/%.0f", values[signal.ordinal()], limits[signal.ordinal()]));
+        }
+        return buf.append("}").toString();
+    }
+}
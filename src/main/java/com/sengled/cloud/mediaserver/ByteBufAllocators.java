@@ -0,0 +1,164 @@
+package com.sengled.cloud.mediaserver;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PoolSubpageMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetector.Level;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+
+/**
+ * 所有 channel 共用的 {@link PooledByteBufAllocator}
+ *
+ * <p>
+ * netty 4.0 默认用的是非池化的 allocator, 这里显式地创建池化的 allocator,
+ * arena 个数、page 大小、chunk 大小和线程缓存大小都可以通过系统参数配置, 没配置的用 netty 的默认值
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月9日
+ */
+public final class ByteBufAllocators {
+    private static final Logger logger = LoggerFactory.getLogger(ByteBufAllocators.class);
+
+    public static final PooledByteBufAllocator ALLOCATOR;
+    static {
+        int directArenas = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_DIRECT_ARENAS, PooledByteBufAllocator.defaultNumDirectArena());
+        int heapArenas = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_HEAP_ARENAS, PooledByteBufAllocator.defaultNumHeapArena());
+        int pageSize = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_PAGE_SIZE, PooledByteBufAllocator.defaultPageSize());
+        int maxOrder = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_MAX_ORDER, PooledByteBufAllocator.defaultMaxOrder());
+        int tinyCacheSize = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_TINY_CACHE_SIZE, PooledByteBufAllocator.defaultTinyCacheSize());
+        int smallCacheSize = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_SMALL_CACHE_SIZE, PooledByteBufAllocator.defaultSmallCacheSize());
+        int normalCacheSize = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_NORMAL_CACHE_SIZE, PooledByteBufAllocator.defaultNormalCacheSize());
+
+        ALLOCATOR = new PooledByteBufAllocator(true, heapArenas, directArenas, pageSize, maxOrder,
+                                               tinyCacheSize, smallCacheSize, normalCacheSize);
+        logger.info("allocator: directArenas = {}, heapArenas = {}, chunkSize = {}, caches = {}/{}/{}",
+                    directArenas, heapArenas, pageSize << maxOrder, tinyCacheSize, smallCacheSize, normalCacheSize);
+    }
+
+    private ByteBufAllocators() {
+    }
+
+    public static void withMetricRegistry(MetricRegistry registry) {
+        register(registry, "direct", ALLOCATOR.directArenas());
+        register(registry, "heap", ALLOCATOR.heapArenas());
+
+        registry.register(MetricRegistry.name(ByteBufAllocators.class, "threadLocalCaches"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ALLOCATOR.numThreadLocalCaches();
+            }
+        });
+    }
+
+    /**
+     * 运行时修改内存泄漏检测的级别。
+     *
+     * netty 4.0 的检测级别是整个进程共用的, SIMPLE 和 ADVANCED 每 128 个 ByteBuf 抽查一个, PARANOID 检查全部
+     */
+    public static Level setLeakDetectionLevel(Level level) {
+        Level old = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(level);
+        logger.warn("leak detection level changed from {} to {}", old, level);
+        return old;
+    }
+
+    /**
+     * @return arena 里 chunk 占用的内存总数, 不含 huge 分配
+     */
+    public static long getChunkBytes(List<PoolArenaMetric> arenas) {
+        long bytes = 0;
+        for (PoolArenaMetric arena : arenas) {
+            for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                for (PoolChunkMetric chunk : chunkList) {
+                    bytes += chunk.chunkSize();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return chunk 里已经分配出去的内存, 包括线程缓存里还没有还给 arena 的部分
+     */
+    public static long getUsedBytes(List<PoolArenaMetric> arenas) {
+        long bytes = 0;
+        for (PoolArenaMetric arena : arenas) {
+            for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                for (PoolChunkMetric chunk : chunkList) {
+                    bytes += chunk.chunkSize() - chunk.freeBytes();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 还没有释放的 ByteBuf 占用的内存。
+     *
+     * 和 {@link #getUsedBytes(List)} 不同, 不算 subpage 里空闲的部分:
+     * tiny/small 的 ByteBuf 全部释放以后, arena 会把 subpage 所在的 page 留在池里备用, 这部分不算泄漏
+     *
+     * @return 没有还给 arena 的内存, 包括线程缓存里的部分
+     */
+    public static long getOutstandingBytes(List<PoolArenaMetric> arenas) {
+        long bytes = getUsedBytes(arenas);
+        for (PoolArenaMetric arena : arenas) {
+            bytes -= getFreeBytes(arena.tinySubpages());
+            bytes -= getFreeBytes(arena.smallSubpages());
+        }
+        return bytes;
+    }
+
+    private static long getFreeBytes(List<PoolSubpageMetric> subpages) {
+        long bytes = 0;
+        for (PoolSubpageMetric subpage : subpages) {
+            int usedElements = subpage.maxNumElements() - subpage.numAvailable();
+            bytes += subpage.pageSize() - (long) usedElements * subpage.elementSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 还没有释放的 ByteBuf 个数
+     */
+    public static long getActiveAllocations(List<PoolArenaMetric> arenas) {
+        long num = 0;
+        for (PoolArenaMetric arena : arenas) {
+            num += arena.numActiveAllocations();
+        }
+        return num;
+    }
+
+    private static void register(MetricRegistry registry, String type, final List<PoolArenaMetric> arenas) {
+        registry.register(MetricRegistry.name(ByteBufAllocators.class, type, "chunkBytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getChunkBytes(arenas);
+            }
+        });
+        registry.register(MetricRegistry.name(ByteBufAllocators.class, type, "usedBytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getUsedBytes(arenas);
+            }
+        });
+        registry.register(MetricRegistry.name(ByteBufAllocators.class, type, "activeAllocations"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getActiveAllocations(arenas);
+            }
+        });
+    }
+}
@@ -0,0 +1,219 @@
+package com.sengled.cloud.mediaserver;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.mediaserver.rtsp.utils.TokenBucket;
+
+/**
+ * 限制新连接的速率, 装在 server channel 上, 在子连接注册到 worker 线程、建 RTSP pipeline 之前就处理掉
+ *
+ * <p>
+ * 网络抖动以后成千上万个摄像头会同时重连, 一下子全接进来会把 EventLoop 卡住, 大家超时以后又一起重连。
+ * 这里用令牌桶限制整个服务和每个网段的建连速率:
+ * <ul>
+ * <li>1、令牌够用的连接马上接受;</li>
+ * <li>2、令牌不够, 但是最多等 {@link SystemPropertyKeys#ACCEPT_MAX_DEFER} 毫秒就够的连接, 推迟到那时再接受;</li>
+ * <li>3、其他的连接直接关闭, 让客户端稍后再连。</li>
+ * </ul>
+ * 只在 boss 线程里访问, 不是线程安全的
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class ConnectionRateLimiter extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionRateLimiter.class);
+
+    private static final long CLEAN_INTERVAL = 60 * 1000;
+    private static final int IPV6_PREFIX = 64;
+
+    /** 整个服务的令牌桶, null 表示不限制 */
+    private final TokenBucket server;
+    private final double ratePerSubnet;
+    private final int subnetPrefix;
+    private final long maxDeferNanos;
+
+    /** 网段 -> 令牌桶, 攒满了的定时删掉 */
+    private final Map<ByteBuffer, TokenBucket> subnets = new HashMap<ByteBuffer, TokenBucket>();
+    private ScheduledFuture<?> cleanFuture;
+
+    private volatile int numDeferred;
+    private Meter acceptMeter;
+    private Meter deferMeter;
+    private Meter rejectMeter;
+
+    public ConnectionRateLimiter() {
+        this(Integer.getInteger(SystemPropertyKeys.ACCEPT_RATE, 1000),
+             Integer.getInteger(SystemPropertyKeys.ACCEPT_BURST, Integer.getInteger(SystemPropertyKeys.ACCEPT_RATE, 1000)),
+             Integer.getInteger(SystemPropertyKeys.ACCEPT_RATE_PER_SUBNET, 0),
+             Integer.getInteger(SystemPropertyKeys.ACCEPT_SUBNET_PREFIX, 32),
+             Integer.getInteger(SystemPropertyKeys.ACCEPT_MAX_DEFER, 2000));
+    }
+
+    /**
+     * @param rate 整个服务每秒最多接受多少个连接, 0 表示不限制
+     * @param burst 整个服务允许的突发连接数
+     * @param ratePerSubnet 每个网段每秒最多接受多少个连接, 0 表示不限制
+     * @param subnetPrefix IPv4 网段的前缀长度, 32 表示按 IP 限制
+     * @param maxDeferMillis 令牌不够时, 连接最多推迟多少毫秒, 超过就拒绝
+     */
+    ConnectionRateLimiter(int rate, int burst, int ratePerSubnet, int subnetPrefix, int maxDeferMillis) {
+        this.server = rate > 0 ? new TokenBucket(rate, Math.max(1, burst)) : null;
+        this.ratePerSubnet = ratePerSubnet;
+        this.subnetPrefix = Math.max(0, Math.min(32, subnetPrefix));
+        this.maxDeferNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDeferMillis));
+    }
+
+    public ConnectionRateLimiter withMetricRegistry(String name, MetricRegistry registry) {
+        acceptMeter = registry.meter(MetricRegistry.name(ConnectionRateLimiter.class, name, "accepted"));
+        deferMeter = registry.meter(MetricRegistry.name(ConnectionRateLimiter.class, name, "deferred"));
+        rejectMeter = registry.meter(MetricRegistry.name(ConnectionRateLimiter.class, name, "rejected"));
+        registry.register(MetricRegistry.name(ConnectionRateLimiter.class, name, "deferring"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return numDeferred;
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        cleanFuture = ctx.executor().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                cleanIdleSubnets(System.nanoTime());
+            }
+        }, CLEAN_INTERVAL, CLEAN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (null != cleanFuture) {
+            cleanFuture.cancel(false);
+        }
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof Channel)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        final Channel child = (Channel) msg;
+        long waitNanos = admit(child.remoteAddress(), System.nanoTime());
+        if (waitNanos < 0) {
+            // 还没有注册到 worker 线程, 直接关掉 socket
+            mark(rejectMeter);
+            logger.debug("reject {}, too many connections", child.remoteAddress());
+            child.unsafe().closeForcibly();
+        } else if (waitNanos == 0) {
+            mark(acceptMeter);
+            ctx.fireChannelRead(child);
+        } else {
+            mark(deferMeter);
+            numDeferred++;
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    numDeferred--;
+                    if (ctx.channel().isActive()) {
+                        mark(acceptMeter);
+                        ctx.fireChannelRead(child);
+                    } else {
+                        child.unsafe().closeForcibly();
+                    }
+                }
+            }, waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 给新连接申请令牌
+     *
+     * @return 0 表示马上接受, 大于 0 表示推迟多少纳秒以后接受, 小于 0 表示拒绝
+     */
+    long admit(SocketAddress remote, long nowNanos) {
+        long waitNanos = 0;
+
+        TokenBucket subnet = null;
+        if (ratePerSubnet > 0 && remote instanceof InetSocketAddress && null != ((InetSocketAddress) remote).getAddress()) {
+            ByteBuffer key = getSubnet(((InetSocketAddress) remote).getAddress());
+            subnet = subnets.get(key);
+            if (null == subnet) {
+                subnet = new TokenBucket(ratePerSubnet, Math.max(1, ratePerSubnet));
+                subnets.put(key, subnet);
+            }
+            waitNanos = subnet.reserve(nowNanos, 1);
+        }
+
+        if (null != server) {
+            waitNanos = Math.max(waitNanos, server.reserve(nowNanos, 1));
+        }
+
+        if (waitNanos > maxDeferNanos) {
+            // 拒绝的连接不占用令牌
+            if (null != subnet) {
+                subnet.refund(1);
+            }
+            if (null != server) {
+                server.refund(1);
+            }
+            return -1;
+        }
+
+        return waitNanos;
+    }
+
+    /**
+     * @return 有多少个网段的令牌桶
+     */
+    int numSubnets() {
+        return subnets.size();
+    }
+
+    void cleanIdleSubnets(long nowNanos) {
+        Iterator<TokenBucket> iter = subnets.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isFull(nowNanos)) {
+                iter.remove();
+            }
+        }
+    }
+
+    private ByteBuffer getSubnet(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int prefix = 4 == bytes.length ? subnetPrefix : IPV6_PREFIX;
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = Math.max(0, Math.min(8, prefix - i * 8));
+            bytes[i] &= (byte) (0xFF << (8 - bits));
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void mark(Meter meter) {
+        if (null != meter) {
+            meter.mark();
+        }
+    }
+}
@@ -89,8 +89,9 @@ public class RtspClient implements Closeable {
 
     @Override
     public void close() throws IOException {
-        isClosed = true; 
+        // 先发 TEARDOWN 再标记, 否则 writeAndFlush 什么都不发, channel 也不会关
         writeAndFlush(channel, makeRequest(RtspMethods.TEARDOWN));
+        isClosed = true; 
     }
 
 
@@ -197,6 +198,11 @@ public class RtspClient implements Closeable {
                 error.compareAndSet(null, new IOException("channel closed"));
             }
             connectOrFail.release();
+
+            // TEARDOWN 发出去马上就关了 channel, 收不到响应, 在这里把会话从 engine 里删掉
+            if (null != session) {
+                session.destroy("channel inactive");
+            }
         }
 
         @Override
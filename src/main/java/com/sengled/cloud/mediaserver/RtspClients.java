@@ -3,6 +3,7 @@ package com.sengled.cloud.mediaserver;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
@@ -11,12 +12,14 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.rtsp.RtspEncoder;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import java.io.IOException;
 
 import org.apache.commons.lang.StringUtils;
 
 import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.SocketBufferTuner;
 import com.sengled.cloud.mediaserver.rtsp.codec.RtspObjectDecoder;
 import com.sengled.cloud.mediaserver.rtsp.codec.RtspResponseDecoder;
 import com.sengled.cloud.mediaserver.url.URLObject;
@@ -27,17 +30,32 @@ public class RtspClients {
         clients = new RtspClients();
     }
     
-    private EventLoopGroup workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2 + 1);
+    private EventLoopGroup workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2 + 1, new DefaultThreadFactory("rtsp-client"));
     private RtspClients() {
         
     }
 
+    /**
+     * @return 所有 rtsp 客户端共用的 EventLoopGroup
+     */
+    public static EventLoopGroup eventLoopGroup() {
+        return clients.workerGroup;
+    }
+
     public static RtspClient open(ServerEngine engine, URLObject urlObj, String name) throws InterruptedException, IOException {
-        return clients.doOpen(engine, urlObj, name);
+        return clients.doOpen(engine, urlObj, name, null);
+    }
+
+    /**
+     * @param inspector 加在 {@link RtspClient} 前面, 先看到解码后的 rtp/rtcp 和响应, 比如压测工具用来统计延时;
+     *                  必须把消息继续往后传
+     */
+    public static RtspClient open(ServerEngine engine, URLObject urlObj, String name, ChannelHandler inspector) throws InterruptedException, IOException {
+        return clients.doOpen(engine, urlObj, name, inspector);
     }
 
     private RtspClient doOpen(ServerEngine engine, URLObject urlObj,
-    						  String name) throws InterruptedException, IOException {
+    						  String name, ChannelHandler inspector) throws InterruptedException, IOException {
         if (StringUtils.isEmpty(name)) {
         	throw new IllegalArgumentException("stream name is EMPTY");
         } else if(!StringUtils.startsWith(name, "/") ) {
@@ -49,9 +67,9 @@ public class RtspClients {
         Bootstrap b = new Bootstrap();
         b.group(workerGroup)
          .channel(NioSocketChannel.class)
+         .option(ChannelOption.ALLOCATOR, ByteBufAllocators.ALLOCATOR)
          .option(ChannelOption.SO_KEEPALIVE, true)
          .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5 * 1000)
-         .option(ChannelOption.SO_RCVBUF, 32 * 1024)
          .handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
@@ -74,7 +92,13 @@ public class RtspClients {
 
         boolean closeChannel = true;
         try {
+            // 握手以后再设置, 握手前设置的话窗口上限会被固定在这个值, SocketBufferTuner 就调不大了
+            channel.config().setOption(ChannelOption.SO_RCVBUF, SocketBufferTuner.initialBufferSize());
+
             RtspClient client = new RtspClient(engine, name, urlObj, channel);
+            if (null != inspector) {
+                channel.pipeline().addLast(inspector);
+            }
             channel.pipeline().addLast(client.getRtspResponseHandler());
             client.connect();
             
@@ -15,9 +15,12 @@ import io.netty.handler.timeout.IdleStateHandler;
 
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
 import com.sengled.cloud.mediaserver.rtsp.RtspSession;
 import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
 import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.SocketBufferTuner;
 import com.sengled.cloud.mediaserver.rtsp.codec.RtspObjectDecoder;
 import com.sengled.cloud.mediaserver.rtsp.codec.RtspRequestDecoder;
 
@@ -38,13 +41,16 @@ import com.sengled.cloud.mediaserver.rtsp.codec.RtspRequestDecoder;
 public class RtspServerBootstrap {
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(RtspServerBootstrap.class);
     
+    final private String name;
     final private ServerEngine engine;
     final private int port;
+    final private ConnectionRateLimiter rateLimiter = new ConnectionRateLimiter();
     
     final private ServerBootstrap bootstrap;
     final private ChannelGroup channels = new DefaultChannelGroup("rtsp-server", null);
     
     public RtspServerBootstrap(String name, ServerEngine engine, int port) {
+        this.name = name;
         this.port = port;
         this.engine = engine;
         this.bootstrap = makeServerBosststrap();
@@ -55,6 +61,11 @@ public class RtspServerBootstrap {
         return this;
     }
     
+    public RtspServerBootstrap withMetricRegistry(MetricRegistry registry) {
+        rateLimiter.withMetricRegistry(name, registry);
+        return this;
+    }
+    
     public RtspServerBootstrap channel(Class<? extends ServerChannel> channelClass) {
         bootstrap.channel(channelClass);
         return this;
@@ -97,12 +108,14 @@ public class RtspServerBootstrap {
         ServerBootstrap b = new ServerBootstrap();
         
         // server socket
-        b.option(ChannelOption.SO_BACKLOG, 0); // 服务端处理线程全忙后，允许多少个新请求进入等待。 
+        b.option(ChannelOption.SO_BACKLOG, Integer.getInteger(SystemPropertyKeys.ACCEPT_BACKLOG, 1024)); // 服务端处理线程全忙后，允许多少个新请求进入等待。 
+        b.handler(rateLimiter); // 重连风暴时限制建连速率
         
         // accept socket
-        b.childOption(ChannelOption.SO_KEEPALIVE, true)
-         .childOption(ChannelOption.SO_RCVBUF, 128 * 1500)
-         .childOption(ChannelOption.SO_SNDBUF, 256 * 1500)
+        b.childOption(ChannelOption.ALLOCATOR, ByteBufAllocators.ALLOCATOR)
+         .childOption(ChannelOption.SO_KEEPALIVE, true)
+         .childOption(ChannelOption.SO_RCVBUF, SocketBufferTuner.initialBufferSize()) // 知道码率以后由 SocketBufferTuner 调整
+         .childOption(ChannelOption.SO_SNDBUF, SocketBufferTuner.initialBufferSize())
          .childOption(ChannelOption.SO_LINGER, 0)      // SO_LINGER还有一个作用就是用来减少TIME_WAIT套接字的数量
          .childOption(ChannelOption.TCP_NODELAY, true) // 禁用nagle算法，减少时延迟
          .childHandler(new ChannelInitializer<SocketChannel>() {
@@ -11,14 +11,19 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.rtsp.RtspHeaders;
 import io.netty.handler.codec.rtsp.RtspMethods;
+import io.netty.handler.codec.rtsp.RtspResponseStatuses;
 import io.netty.handler.codec.rtsp.RtspVersions;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -27,6 +32,9 @@ import javax.sip.TransportNotSupportedException;
 
 import org.slf4j.LoggerFactory;
 
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.mediaserver.cluster.StreamRedirector;
+import com.sengled.cloud.mediaserver.edge.EdgeRelays;
 import com.sengled.cloud.mediaserver.rtsp.RtspSession;
 import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
 import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
@@ -35,6 +43,7 @@ import com.sengled.cloud.mediaserver.rtsp.interleaved.RtcpContent;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
 import com.sengled.cloud.mediaserver.rtsp.rtp.InterLeavedRTPSession;
 import com.sengled.cloud.mediaserver.rtsp.utils.FullHttpMessageUtils;
+import com.sengled.cloud.mediaserver.url.URLObject;
 
 /**
  * 处理客户端的 rtsp 请求。
@@ -48,6 +57,8 @@ import com.sengled.cloud.mediaserver.rtsp.utils.FullHttpMessageUtils;
  */
 public class RtspServerInboundHandler extends ChannelInboundHandlerAdapter {
     private static org.slf4j.Logger logger = LoggerFactory.getLogger(RtspServerInboundHandler.class);
+    private static final int EDGE_OPEN_TIMEOUT = Integer.getInteger(SystemPropertyKeys.EDGE_OPEN_TIMEOUT, 10 * 1000);
+    private static final boolean ADMISSION_REDIRECT = Boolean.getBoolean(SystemPropertyKeys.ADMISSION_REDIRECT);
 
 
     final private ServerEngine engine;
@@ -150,9 +161,9 @@ public class RtspServerInboundHandler extends ChannelInboundHandlerAdapter {
             
 
             HttpMethod method = request.getMethod();
-            if (RtspMethods.RECORD.equals(method)) {
+            if (RtspMethods.RECORD.equals(method) && HttpResponseStatus.OK.equals(response.getStatus())) {
                 session.record();
-            } else if (RtspMethods.PLAY.equals(method)) {
+            } else if (RtspMethods.PLAY.equals(method) && HttpResponseStatus.OK.equals(response.getStatus())) {
                 session.play();
             }
         }
@@ -177,17 +188,25 @@ public class RtspServerInboundHandler extends ChannelInboundHandlerAdapter {
                      .withUserAgent(request.headers());
             
             response = makeResponse(request, null);
-            String sdp = session.getSDP();
-            if (null == sdp) {
-                response.setStatus(HttpResponseStatus.NOT_FOUND);
-                ctx.writeAndFlush(response);
+            boolean relay = null == session.getSDP() && null != engine.edgeRelays();
+            String redirectUrl = null == session.getSDP() && !relay ? getRedirectUrl(request.getUri()) : null;
+            if (null != redirectUrl) {
+                // 流在集群里的其他服务器上, 过载时也照常重定向
+                logger.info("redirect {} to {}", session.getName(), redirectUrl);
+                engine.markRedirect();
+                response.setStatus(RtspResponseStatuses.MOVED_TEMPORARILY);
+                response.headers().set(HttpHeaders.Names.LOCATION, redirectUrl);
+            } else if ((relay || null != session.getSDP()) && isOverloaded()) {
+                // 过载时不再接受本机要转发的新观众, 推流端不受影响
+                session = null;
+                rejectPlayer(response, request.getUri());
+            } else if (relay) {
+                // 本机没有这路流, 从源站拉过来以后再响应
+                describeAfterRelay(ctx, request, response, engine.edgeRelays().open(session.getName()));
+                response = null;
             } else {
-                logger.debug("output:\r\n{}", sdp);
-                response.content().writeBytes(sdp.getBytes("UTF-8"));
-                response.headers().add(RtspHeaders.Names.CACHE_CONTROL, RtspHeaders.Values.NO_CACHE);
-                response.headers().add(RtspHeaders.Names.EXPIRES, response.headers().get(RtspHeaders.Names.DATE));
-                response.headers().set(RtspHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
-                response.headers().set(RtspHeaders.Names.CONTENT_TYPE, "application/sdp");
+                // 由 handleRequest 发送, 这里再发一次会重复释放
+                writeSdp(response, session.getSDP());
             }
         } 
         else if (RtspMethods.ANNOUNCE.equals(method)) {
@@ -220,6 +239,16 @@ public class RtspServerInboundHandler extends ChannelInboundHandlerAdapter {
                 response.setStatus(HttpResponseStatus.NOT_IMPLEMENTED);
             }
         }
+        else if (null != session && RtspMethods.PLAY.equals(method) && SessionMode.PLAY == session.getMode() && isOverloaded()) {
+            // DESCRIBE 以后才过载的
+            response = makeResponse(request, session);
+            rejectPlayer(response, null);
+        }
+        else if (null != session && (RtspMethods.RECORD.equals(method) || RtspMethods.PLAY.equals(method)) && !session.acquireQuota()) {
+            // 租户的观众或者推流端超过配额
+            response = makeResponse(request, session);
+            response.setStatus(RtspResponseStatuses.SERVICE_UNAVAILABLE);
+        }
         else if (null != session && RtspMethods.RECORD.equals(method) || RtspMethods.PLAY.equals(method)) {
             // response = makeResponse(request, null);
             response = makeResponse(request, session);
@@ -257,6 +286,114 @@ public class RtspServerInboundHandler extends ChannelInboundHandlerAdapter {
         return response;
     }
 
+    /**
+     * 等 {@link EdgeRelays} 拉流完成, 再重新创建 PLAY 会话, 响应 DESCRIBE
+     */
+    private void describeAfterRelay(final ChannelHandlerContext ctx,
+                                    FullHttpRequest request,
+                                    final FullHttpResponse response,
+                                    Future<Boolean> relay) {
+        final String uri = request.getUri();
+        final HttpHeaders headers = request.headers();
+
+        // 在 ctx 的 EventLoop 里完成, session 只在这个线程里访问
+        final Promise<Boolean> ready = ctx.executor().newPromise();
+        relay.addListener(new FutureListener<Boolean>() {
+            @Override
+            public void operationComplete(Future<Boolean> future) throws Exception {
+                ready.trySuccess(future.isSuccess() && Boolean.TRUE.equals(future.getNow()));
+            }
+        });
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                ready.tryFailure(new TimeoutException("relay " + uri + " timeout"));
+            }
+        }, EDGE_OPEN_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        ready.addListener(new FutureListener<Boolean>() {
+            @Override
+            public void operationComplete(Future<Boolean> future) throws Exception {
+                if (!ctx.channel().isActive()) {
+                    response.release();
+                    return;
+                }
+
+                if (!future.isSuccess()) {
+                    logger.warn("{}", future.cause().getMessage());
+                    response.setStatus(HttpResponseStatus.GATEWAY_TIMEOUT);
+                } else {
+                    session = new RtspSession(engine, ctx, uri)
+                            .withMode(SessionMode.PLAY)
+                            .withUserAgent(headers);
+                    writeSdp(response, session.getSDP());
+                }
+
+                FullHttpMessageUtils.log(response).debug();
+                ctx.writeAndFlush(response);
+            }
+        });
+    }
+
+    private boolean isOverloaded() {
+        AdmissionControl admission = engine.admissionControl();
+        return null != admission && admission.isOverloaded();
+    }
+
+    /**
+     * 过载时拒绝新的观众, 能重定向时重定向到集群里负载最低的服务器
+     * 
+     * @param url DESCRIBE 的地址, 为 null 时不重定向
+     */
+    private void rejectPlayer(FullHttpResponse response, String url) {
+        AdmissionControl admission = engine.admissionControl();
+        admission.markRejected();
+
+        StreamRedirector redirector = engine.streamRedirector();
+        String location = ADMISSION_REDIRECT && null != url && null != redirector ? redirector.getLeastLoadedLocation() : null;
+        if (null != location) {
+            String redirectUrl = makeRedirectUrl(location, url);
+            logger.info("overloaded, redirect {} to {}", url, redirectUrl);
+            response.setStatus(RtspResponseStatuses.MOVED_TEMPORARILY);
+            response.headers().set(HttpHeaders.Names.LOCATION, redirectUrl);
+        } else {
+            logger.info("overloaded, reject {}", null != url ? url : session);
+            response.setStatus(admission.getRejectStatus());
+        }
+    }
+
+    /**
+     * @return 流所在服务器上的地址, 不知道时返回 null
+     */
+    private String getRedirectUrl(String url) {
+        StreamRedirector redirector = engine.streamRedirector();
+        String location = null != redirector ? redirector.getLocation(session.getName()) : null;
+        return null != location ? makeRedirectUrl(location, url) : null;
+    }
+
+    /**
+     * @param location 其他服务器的地址, 如 1.2.3.4:554
+     * @param url 请求的地址, 保留 uri 和参数
+     */
+    private static String makeRedirectUrl(String location, String url) {
+        int queryIndex = url.indexOf('?');
+        String query = queryIndex >= 0 ? url.substring(queryIndex) : "";
+        return "rtsp://" + location + URLObject.getUri(url) + query;
+    }
+
+    private void writeSdp(FullHttpResponse response, String sdp) throws UnsupportedEncodingException {
+        if (null == sdp) {
+            response.setStatus(HttpResponseStatus.NOT_FOUND);
+        } else {
+            logger.debug("output:\r\n{}", sdp);
+            response.content().writeBytes(sdp.getBytes("UTF-8"));
+            response.headers().add(RtspHeaders.Names.CACHE_CONTROL, RtspHeaders.Values.NO_CACHE);
+            response.headers().add(RtspHeaders.Names.EXPIRES, response.headers().get(RtspHeaders.Names.DATE));
+            response.headers().set(RtspHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
+            response.headers().set(RtspHeaders.Names.CONTENT_TYPE, "application/sdp");
+        }
+    }
+
     private String getRtpInfo(HttpRequest request) {
         StringBuilder rtpInfo = new StringBuilder();
         int i = 0;
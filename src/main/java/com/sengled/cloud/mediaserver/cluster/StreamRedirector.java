@@ -0,0 +1,25 @@
+package com.sengled.cloud.mediaserver.cluster;
+
+/**
+ * 找到本机没有的流在集群里的哪台服务器上, 让播放器直接去那台服务器拉流
+ *
+ * <p>
+ * 在 EventLoop 里调用, 不能访问网络, 只能查本地缓存
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月15日
+ */
+public interface StreamRedirector {
+
+    /**
+     * @param name 流的名字, 如 /xxx.sdp
+     * @return 流所在服务器的对外地址, 如 1.2.3.4:554; 不知道时返回 null
+     */
+    String getLocation(String name);
+
+    /**
+     * @return 集群里负载最低的其他服务器的对外地址; 没有时返回 null
+     */
+    String getLeastLoadedLocation();
+}
@@ -0,0 +1,218 @@
+package com.sengled.cloud.mediaserver.edge;
+
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.async.TimerExecutor;
+import com.sengled.cloud.mediaserver.RtspClient;
+import com.sengled.cloud.mediaserver.RtspClients;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.url.URLObject;
+
+/**
+ * 边缘节点: 本机没有的流, 从源站拉一路过来给本机的观众共享
+ *
+ * <p>
+ * DESCRIBE 的流本机没有时, 通过 {@link OriginLocator} 找到源站, 用 {@link RtspClients} 拉流,
+ * 拉到的流跟推流端推上来的一样放在 {@link ServerEngine} 里。
+ * 同一路流同时只有一个拉流连接, 拉流过程中到达的 DESCRIBE 都等同一个 future。
+ * 没有观众超过 {@link SystemPropertyKeys#EDGE_IDLE_GRACE} 毫秒以后断开拉流。
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月15日
+ */
+public class EdgeRelays {
+    private static final Logger logger = LoggerFactory.getLogger(EdgeRelays.class);
+
+    private static final int IDLE_GRACE = Integer.getInteger(SystemPropertyKeys.EDGE_IDLE_GRACE, 30 * 1000);
+    private static final int CHECK_INTERVAL = 1000;
+
+    private final ServerEngine engine;
+    private final OriginLocator locator;
+    private final ConcurrentHashMap<String, Relay> relays = new ConcurrentHashMap<String, Relay>();
+    // RtspClients.open 会阻塞到握手完成, 不能在 EventLoop 里调用
+    private final ExecutorService opener = Executors.newCachedThreadPool(new DefaultThreadFactory("edge-relay"));
+
+    private Meter openMeter;
+    private Meter failureMeter;
+
+    public EdgeRelays(ServerEngine engine, OriginLocator locator) {
+        this.engine = engine;
+        this.locator = locator;
+
+        TimerExecutor timer = new TimerExecutor("edge-relay-timer");
+        timer.setInterval(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    closeIdleRelays();
+                } catch (Exception ex) {
+                    logger.warn("fail close idle relays", ex);
+                }
+                return null;
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL);
+    }
+
+    public EdgeRelays withMetricRegistry(String name, MetricRegistry registry) {
+        openMeter = registry.meter(MetricRegistry.name(EdgeRelays.class, name, "opens"));
+        failureMeter = registry.meter(MetricRegistry.name(EdgeRelays.class, name, "failures"));
+        registry.register(MetricRegistry.name(EdgeRelays.class, name, "relays"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return numRelays();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * 从源站拉流, 已经在拉的直接共用
+     *
+     * @param name 流的名字
+     * @return 拉流成功以后为 true, 找不到源站或者拉流失败为 false
+     */
+    public Future<Boolean> open(String name) {
+        Relay relay;
+        while (true) {
+            relay = relays.get(name);
+            if (null != relay && relay.isBroken()) {
+                // 源站已经断了, 还没来得及清理
+                if (relays.remove(name, relay)) {
+                    relay.close("origin closed");
+                }
+                continue;
+            }
+
+            if (null == relay) {
+                Relay newRelay = new Relay(name);
+                relay = relays.putIfAbsent(name, newRelay);
+                if (null == relay) {
+                    relay = newRelay;
+                    opener.execute(newRelay);
+                }
+            }
+            break;
+        }
+
+        // 有人来看, 重新计算空闲时间, 避免 DESCRIBE 和 PLAY 之间被断开
+        relay.idleSince = 0;
+        return relay.ready;
+    }
+
+    /**
+     * @return name 是从源站拉过来的流
+     */
+    public boolean isRelay(String name) {
+        return relays.containsKey(name);
+    }
+
+    public int numRelays() {
+        return relays.size();
+    }
+
+    private void closeIdleRelays() {
+        long now = System.currentTimeMillis();
+        for (Relay relay : relays.values()) {
+            if (!relay.isOpened()) {
+                continue;
+            }
+
+            int numListeners = engine.numListeners(relay.name);
+            if (numListeners > 0) {
+                relay.idleSince = 0;
+                continue;
+            }
+
+            if (numListeners == 0) {
+                if (0 == relay.idleSince) {
+                    relay.idleSince = now;
+                    continue;
+                }
+                if (now - relay.idleSince < IDLE_GRACE) {
+                    continue;
+                }
+            }
+
+            if (relays.remove(relay.name, relay)) {
+                relay.close(numListeners < 0 ? "origin closed" : "idle for " + (now - relay.idleSince) + "ms");
+            }
+        }
+    }
+
+    private class Relay implements Runnable {
+        private final String name;
+        private final Promise<Boolean> ready = new DefaultPromise<Boolean>(GlobalEventExecutor.INSTANCE);
+        private volatile RtspClient client;
+        private volatile long idleSince;
+
+        private Relay(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            try {
+                URLObject url = locator.locate(name);
+                if (null == url) {
+                    logger.info("origin of {} NOT found", name);
+                    fail();
+                    return;
+                }
+
+                logger.info("relay {} from {}", name, url.getUrl());
+                client = RtspClients.open(engine, url, name);
+                if (null != openMeter) {
+                    openMeter.mark();
+                }
+                ready.setSuccess(true);
+            } catch (Exception ex) {
+                logger.warn("fail relay {}, {}", name, ex.getMessage());
+                logger.debug("{}", ex.getMessage(), ex);
+                fail();
+            }
+        }
+
+        private void fail() {
+            relays.remove(name, this);
+            if (null != failureMeter) {
+                failureMeter.mark();
+            }
+            ready.setSuccess(false);
+        }
+
+        private boolean isOpened() {
+            return ready.isDone() && Boolean.TRUE.equals(ready.getNow());
+        }
+
+        private boolean isBroken() {
+            return isOpened() && engine.numListeners(name) < 0;
+        }
+
+        private void close(String reason) {
+            logger.info("close relay {}, {}", name, reason);
+            try {
+                client.close();
+            } catch (IOException ex) {
+                logger.warn("fail close relay {}, {}", name, ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.sengled.cloud.mediaserver.edge;
+
+import com.sengled.cloud.mediaserver.url.URLObject;
+
+/**
+ * 查找一路流在哪台源站上
+ *
+ * @author 陈修恒
+ * @date 2016年6月15日
+ */
+public interface OriginLocator {
+
+    /**
+     * @param name 流的名字, 如 /xxx.sdp
+     * @return 源站上这路流的地址, 找不到返回 null
+     */
+    URLObject locate(String name) throws Exception;
+}
@@ -0,0 +1,51 @@
+package com.sengled.cloud.mediaserver.edge;
+
+import java.net.MalformedURLException;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.sengled.cloud.mediaserver.url.URLObject;
+
+/**
+ * 按配置文件里的前缀找源站
+ *
+ * <pre>
+ * &lt;edge&gt;
+ *     &lt;locator&gt;static&lt;/locator&gt;
+ *     &lt;origin prefix="/live/"&gt;rtsp://10.0.0.1:554&lt;/origin&gt;
+ *     &lt;origin prefix="/"&gt;rtsp://10.0.0.2:554&lt;/origin&gt;
+ * &lt;/edge&gt;
+ * </pre>
+ *
+ * 最长的前缀优先, 流的地址是源站地址加上流的名字
+ *
+ * @author 陈修恒
+ * @date 2016年6月15日
+ */
+public class StaticOriginLocator implements OriginLocator {
+    private final Map<String, String> origins;
+
+    /**
+     * @param origins 前缀 -&gt; 源站地址
+     */
+    public StaticOriginLocator(Map<String, String> origins) {
+        this.origins = origins;
+    }
+
+    @Override
+    public URLObject locate(String name) throws MalformedURLException {
+        String prefix = null;
+        for (String item : origins.keySet()) {
+            if (name.startsWith(item) && (null == prefix || item.length() > prefix.length())) {
+                prefix = item;
+            }
+        }
+
+        if (null == prefix) {
+            return null;
+        }
+
+        return new URLObject(StringUtils.removeEnd(origins.get(prefix), "/") + name);
+    }
+}
@@ -0,0 +1,181 @@
+package com.sengled.cloud.mediaserver.quota;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Meter;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.utils.AtomicTokenBucket;
+import com.sengled.cloud.mediaserver.xml.QuotaDef;
+
+/**
+ * 一个租户的配额和用量
+ *
+ * <p>
+ * 配额可以在运行时修改, 用量保留。
+ * 会被多个 EventLoop 同时访问, 计数和限速都不加锁
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class Tenant {
+    /** 发送限速的突发窗口, 毫秒 */
+    private static final int OUTBOUND_WINDOW = 100;
+
+    private volatile String name;
+    private final String prefix;
+
+    private volatile int maxListeners;
+    private volatile int maxPublishers;
+    private volatile int maxOutbound;
+    /** 发给观众的总速率, null 表示不限制 */
+    private volatile AtomicTokenBucket outbound;
+
+    private final AtomicInteger listeners = new AtomicInteger();
+    private final AtomicInteger publishers = new AtomicInteger();
+
+    private final Meter outboundMeter = new Meter();
+    private final Meter rejectMeter = new Meter();
+
+    Tenant(QuotaDef def) {
+        this.prefix = def.getPrefix();
+        update(def);
+    }
+
+    /**
+     * 修改名字和配额
+     */
+    void update(QuotaDef def) {
+        this.name = def.getName();
+        this.maxListeners = def.getMaxListeners();
+        this.maxPublishers = def.getMaxPublishers();
+
+        int maxOutbound = def.getMaxOutbound();
+        if (maxOutbound <= 0) {
+            this.outbound = null;
+        } else {
+            double bytesPerSecond = maxOutbound * 1e6 / 8;
+            double burst = bytesPerSecond * OUTBOUND_WINDOW / 1000;
+            AtomicTokenBucket bucket = this.outbound;
+            if (null == bucket) {
+                this.outbound = new AtomicTokenBucket(bytesPerSecond, burst);
+            } else if (maxOutbound != this.maxOutbound) {
+                bucket.setRate(bytesPerSecond, burst);
+            }
+        }
+        this.maxOutbound = maxOutbound;
+    }
+
+    /**
+     * 占用一个观众或者推流端的名额
+     *
+     * @return false 表示超过配额
+     */
+    public boolean tryAcquire(SessionMode mode) {
+        boolean acquired;
+        switch (mode) {
+            case PLAY:
+                acquired = tryAcquire(listeners, maxListeners);
+                break;
+            case PUBLISH:
+                acquired = tryAcquire(publishers, maxPublishers);
+                break;
+            default:
+                acquired = true;
+                break;
+        }
+
+        if (!acquired) {
+            rejectMeter.mark();
+        }
+        return acquired;
+    }
+
+    public void release(SessionMode mode) {
+        switch (mode) {
+            case PLAY:
+                listeners.decrementAndGet();
+                break;
+            case PUBLISH:
+                publishers.decrementAndGet();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 预订发给观众的流量
+     *
+     * @return 需要等多少纳秒才能发送, 不限速时为 0
+     */
+    public long reserveOutbound(long nowNanos, int bytes) {
+        outboundMeter.mark(bytes);
+
+        AtomicTokenBucket bucket = outbound;
+        return null != bucket ? bucket.reserve(nowNanos, bytes) : 0;
+    }
+
+    private static boolean tryAcquire(AtomicInteger counter, int limit) {
+        for (;;) {
+            int current = counter.get();
+            if (limit > 0 && current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public int getMaxListeners() {
+        return maxListeners;
+    }
+
+    public int getMaxPublishers() {
+        return maxPublishers;
+    }
+
+    public int getMaxOutbound() {
+        return maxOutbound;
+    }
+
+    public int getListeners() {
+        return listeners.get();
+    }
+
+    public int getPublishers() {
+        return publishers.get();
+    }
+
+    /** @return 发给观众的流量, 字节 */
+    public Meter getOutbound() {
+        return outboundMeter;
+    }
+
+    /** @return 超过配额被拒绝的观众和推流端 */
+    public Meter getRejected() {
+        return rejectMeter;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{Tenant");
+        buf.append(", name = ").append(name);
+        buf.append(", prefix = ").append(prefix);
+        buf.append(", listeners = ").append(listeners.get()).append("/").append(maxListeners);
+        buf.append(", publishers = ").append(publishers.get()).append("/").append(maxPublishers);
+        buf.append(", maxOutbound = ").append(maxOutbound);
+        buf.append("}");
+        return buf.toString();
+    }
+}
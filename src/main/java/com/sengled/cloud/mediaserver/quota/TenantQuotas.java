@@ -0,0 +1,219 @@
+package com.sengled.cloud.mediaserver.quota;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.async.TimerExecutor;
+import com.sengled.cloud.mediaserver.xml.MediaServerConfigs;
+import com.sengled.cloud.mediaserver.xml.QuotaDef;
+
+/**
+ * 多个客户共用服务器时, 按流名字的前缀给每个租户限制观众数、推流端数和出口带宽,
+ * 以免一个客户的热门流把其他客户挤掉
+ *
+ * <p>
+ * <ul>
+ * <li>1、观众数和推流端数在 PLAY/RECORD 时检查, 超过配额返回 503;</li>
+ * <li>2、出口带宽在观众的发送路径上用令牌桶限速, 超出的包排队, 观众跟不上时丢帧;</li>
+ * <li>3、一个流匹配最长的前缀, 没有匹配的流不受限制。</li>
+ * </ul>
+ * 配额可以用 {@link #update(List)} 整体替换, 或者用 {@link #watch(File)} 在配置文件修改以后自动重新加载;
+ * 已经在线的观众和推流端保留, 新的配额只影响之后的请求
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class TenantQuotas {
+    private static final Logger logger = LoggerFactory.getLogger(TenantQuotas.class);
+
+    private static final int RELOAD_INTERVAL = Integer.getInteger(SystemPropertyKeys.QUOTA_RELOAD_INTERVAL, 10 * 1000);
+
+    /** 按前缀从长到短排序, 修改时整体替换 */
+    private volatile Tenant[] tenants = new Tenant[0];
+
+    private String name;
+    private MetricRegistry registry;
+    /** 每个租户注册了的统计项的名字, 删除时按名字删, 不会删掉其他租户的 */
+    private final Map<Tenant, List<String>> registered = new HashMap<Tenant, List<String>>();
+
+    public TenantQuotas withMetricRegistry(String name, MetricRegistry registry) {
+        this.name = name;
+        this.registry = registry;
+        return this;
+    }
+
+    /**
+     * 替换全部配额, 前缀相同的租户保留用量
+     */
+    public synchronized TenantQuotas update(List<QuotaDef> defs) {
+        Map<String, QuotaDef> byPrefix = new LinkedHashMap<String, QuotaDef>();
+        for (QuotaDef def : defs) {
+            byPrefix.put(def.getPrefix(), def);
+        }
+
+        Map<String, Tenant> olds = new HashMap<String, Tenant>();
+        for (Tenant tenant : tenants) {
+            olds.put(tenant.getPrefix(), tenant);
+        }
+
+        List<Tenant> news = new ArrayList<Tenant>(byPrefix.size());
+        for (QuotaDef def : byPrefix.values()) {
+            Tenant tenant = olds.remove(def.getPrefix());
+            if (null == tenant) {
+                tenant = new Tenant(def);
+            } else if (!tenant.getName().equals(def.getName())) {
+                // 改了名字, 统计项换成新的名字
+                unregister(tenant);
+                tenant.update(def);
+            } else {
+                tenant.update(def);
+            }
+            news.add(tenant);
+        }
+
+        // 先删后加, 改了前缀的租户可以沿用名字; 之前因为重名没有注册的, 这次再试一次
+        for (Tenant removed : olds.values()) {
+            unregister(removed);
+        }
+        for (Tenant tenant : news) {
+            if (!registered.containsKey(tenant)) {
+                register(tenant);
+            }
+        }
+
+        Collections.sort(news, new Comparator<Tenant>() {
+            @Override
+            public int compare(Tenant o1, Tenant o2) {
+                return o2.getPrefix().length() - o1.getPrefix().length();
+            }
+        });
+        tenants = news.toArray(new Tenant[news.size()]);
+        logger.info("{} tenant quota(s): {}", tenants.length, news);
+        return this;
+    }
+
+    /**
+     * 配置文件修改以后, 重新加载配额
+     */
+    public TenantQuotas watch(final File configFile) {
+        TimerExecutor timer = new TimerExecutor("tenant-quotas");
+        timer.setInterval(new Callable<Boolean>() {
+            private long lastModified = configFile.lastModified();
+
+            @Override
+            public Boolean call() throws Exception {
+                long modified = configFile.lastModified();
+                if (modified != lastModified) {
+                    lastModified = modified;
+                    try {
+                        update(MediaServerConfigs.load(configFile.getAbsolutePath()).getQuotas());
+                    } catch (Exception ex) {
+                        logger.warn("fail reload quotas from {}, {}", configFile, ex.getMessage());
+                    }
+                }
+                return null;
+            }
+        }, RELOAD_INTERVAL, RELOAD_INTERVAL);
+        return this;
+    }
+
+    /**
+     * @param streamName 流的名字, 如 /tenant/xxx.sdp
+     * @return 前缀最长的租户, 没有时返回 null
+     */
+    public Tenant find(String streamName) {
+        if (null == streamName) {
+            return null;
+        }
+
+        for (Tenant tenant : tenants) {
+            if (streamName.startsWith(tenant.getPrefix())) {
+                return tenant;
+            }
+        }
+        return null;
+    }
+
+    public List<Tenant> getTenants() {
+        return Arrays.asList(tenants);
+    }
+
+    /**
+     * 注册租户的统计项, 名字被占用时(比如两个租户同名)一个也不注册
+     */
+    private void register(final Tenant tenant) {
+        if (null == registry) {
+            return;
+        }
+
+        Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+        metrics.put(metricName(tenant, "listeners"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return tenant.getListeners();
+            }
+        });
+        metrics.put(metricName(tenant, "publishers"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return tenant.getPublishers();
+            }
+        });
+        metrics.put(metricName(tenant, "outbound"), tenant.getOutbound());
+        metrics.put(metricName(tenant, "rejected"), tenant.getRejected());
+
+        for (String metricName : metrics.keySet()) {
+            if (registry.getNames().contains(metricName)) {
+                logger.warn("tenant '{}' metrics NOT registered, {} already exists", tenant.getName(), metricName);
+                return;
+            }
+        }
+
+        List<String> names = new ArrayList<String>(metrics.size());
+        try {
+            for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+                registry.register(entry.getKey(), entry.getValue());
+                names.add(entry.getKey());
+            }
+        } catch (IllegalArgumentException ex) {
+            // 检查以后又被别人注册了, 已经注册的撤回
+            logger.warn("tenant '{}' metrics NOT registered, {}", tenant.getName(), ex.getMessage());
+            for (String metricName : names) {
+                registry.remove(metricName);
+            }
+            return;
+        }
+        registered.put(tenant, names);
+    }
+
+    private void unregister(Tenant tenant) {
+        List<String> names = registered.remove(tenant);
+        if (null == names) {
+            return;
+        }
+
+        for (String metricName : names) {
+            registry.remove(metricName);
+        }
+    }
+
+    private String metricName(Tenant tenant, String metric) {
+        return MetricRegistry.name(TenantQuotas.class, name, tenant.getName(), metric);
+    }
+}
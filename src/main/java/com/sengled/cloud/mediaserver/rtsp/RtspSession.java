@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sdp.MediaDescription;
 import javax.sdp.SdpException;
@@ -27,10 +28,14 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sengled.cloud.mediaserver.quota.Tenant;
+import com.sengled.cloud.mediaserver.quota.TenantQuotas;
 import com.sengled.cloud.mediaserver.rtsp.ServerEngine.Dispatcher;
+import com.sengled.cloud.mediaserver.rtsp.capture.PacketCapture;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtcpContent;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
 import com.sengled.cloud.mediaserver.rtsp.rtp.InterLeavedRTPSession;
+import com.sengled.cloud.mediaserver.rtsp.rtp.RtpPacer;
 import com.sengled.cloud.mediaserver.url.URLObject;
 
 /**
@@ -74,6 +79,13 @@ public class RtspSession  {
     private RtspSessionListener listener;
     private RtspSessionDispatcher dispatcher;
     
+    // 抓包, 没有开启时为 null
+    private volatile PacketCapture capture;
+    private SocketBufferTuner bufferTuner;
+    private volatile RtpPacer pacer;
+    // 占用了名额的租户
+    private final AtomicReference<Tenant> tenant = new AtomicReference<Tenant>();
+    
     public RtspSession(ServerEngine engine, ChannelHandlerContext ctx, String url) {
         this(engine, ctx, URLObject.getUri(url), RandomStringUtils.random(16, false, true));
     }
@@ -168,6 +180,21 @@ public class RtspSession  {
         return rtpSessions;
     }
     
+    /**
+     * 请求推流端发送关键帧, 仅对推流的 session 有效
+     */
+    public void requestKeyFrame() {
+        if (mode != SessionMode.PUBLISH || null == rtpSessions) {
+            return;
+        }
+        
+        for (InterLeavedRTPSession rtpSession : rtpSessions) {
+            if (null != rtpSession) {
+                rtpSession.requestKeyFrame();
+            }
+        }
+    }
+    
     public int getStreamIndex(String url) {
         String uri = URLObject.getUri(url);
         int mediaIndex = 0;
@@ -270,15 +297,56 @@ public class RtspSession  {
                 logger.info("{} will publish media", userAgent);
                 break;
             case PLAY: 
+                if (null == pacer && (RtpPacer.isEnabled() || null != tenant.get())) {
+                    this.pacer = new RtpPacer(this);
+                }
                 this.listener = new RtspSessionListener(this, 2 * 1024); // 3M (2 * 1024 * 1500K) 缓冲区每人 
                 int numListeners = engine.register(name, listener);
                 logger.info("{} is {}th listener of '{}'", userAgent, numListeners, name);
+                
+                // 新的观众需要从关键帧开始播放
+                engine.requestKeyFrame(name);
                 break;
             default:
-                break;
+                return;
+        }
+
+        // 按码率调整 socket 缓冲区
+        if (null == bufferTuner) {
+            bufferTuner = new SocketBufferTuner(this).start();
         }
     }
 
+    /**
+     * PLAY/RECORD 之前占用租户的名额, 会话销毁时释放
+     * 
+     * @return false 表示租户的观众或者推流端超过了配额
+     */
+    public boolean acquireQuota() {
+        TenantQuotas quotas = engine.tenantQuotas();
+        if (null == quotas || null != tenant.get()) {
+            return true;
+        }
+
+        Tenant found = quotas.find(name);
+        if (null == found) {
+            return true;
+        } else if (!found.tryAcquire(mode)) {
+            logger.warn("{} rejected, {}", name, found);
+            return false;
+        }
+
+        tenant.set(found);
+        return true;
+    }
+
+    /**
+     * @return 占用了名额的租户, 没有时为 null
+     */
+    public Tenant tenant() {
+        return tenant.get();
+    }
+
     public RtspSession withMode(SessionMode newMode) {
         switch (newMode) {
             case PLAY:
@@ -317,6 +385,15 @@ public class RtspSession  {
     		}
 		}
 
+		if (null != bufferTuner) {
+		    bufferTuner.stop();
+		}
+
+		Tenant acquired = tenant.getAndSet(null);
+		if (null != acquired) {
+		    acquired.release(mode);
+		}
+
 		state(PlayState.END);
     }
     
@@ -375,10 +452,13 @@ public class RtspSession  {
 
     public void onRtcpEvent(RtcpContent event) {
         try {
+            // RECORD/PLAY 之前 dispatcher 和 listener 都还没有创建, 比如 SETUP 以后马上发了 BYE
             if (SessionMode.PUBLISH == mode) {
-                dispatcher().receiveRtcpEvent(event.retain());
-            } else { 
-                listener().receiveRtcpEvent(event.retain());
+                if (null != dispatcher) {
+                    dispatcher.receiveRtcpEvent(event.retain());
+                }
+            } else if (null != listener) {
+                listener.receiveRtcpEvent(event.retain());
             }
         } finally {
             // 保证在  dispatcher(), listener() 发生异常时，
@@ -395,6 +475,24 @@ public class RtspSession  {
     public RtspSessionListener listener() {
     	return listener;
     }
+    
+    /**
+     * @return 推流端收到的包, 或者发给观众的包的抓包; 没有开启时为 null
+     */
+    public PacketCapture capture() {
+        return capture;
+    }
+    
+    /**
+     * @return 观众的发送限速, 没有开启时为 null
+     */
+    public RtpPacer pacer() {
+        return pacer;
+    }
+
+    public void capture(PacketCapture capture) {
+        this.capture = capture;
+    }
   
     
     @Override
@@ -434,6 +532,10 @@ public class RtspSession  {
         
         if (oldState != newState) {
             logger.info("Playing {}, {}", newState, this);
+            
+            if (null != listener) {
+                listener.metrics().onState(newState);
+            }
         }
 
         if (newState == PlayState.WAITING) {
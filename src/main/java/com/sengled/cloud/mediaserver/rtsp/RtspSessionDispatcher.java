@@ -23,8 +23,10 @@ import com.sengled.cloud.mediaserver.rtsp.ServerEngine.Dispatcher;
 import com.sengled.cloud.mediaserver.rtsp.event.NtpTimeEvent;
 import com.sengled.cloud.mediaserver.rtsp.event.RtpPktEvent;
 import com.sengled.cloud.mediaserver.rtsp.event.TearDownEvent;
+import com.sengled.cloud.mediaserver.rtsp.capture.PacketCapture;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtcpContent;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetrics;
 import com.sengled.cloud.mediaserver.rtsp.rtp.InterLeavedParticipant;
 import com.sengled.cloud.mediaserver.rtsp.rtp.InterLeavedRTPSession;
 import com.sengled.cloud.mediaserver.rtsp.rtp.RTCPCodec;
@@ -37,7 +39,7 @@ import com.sengled.cloud.mediaserver.rtsp.rtp.RTCPCodec;
  */
 public class RtspSessionDispatcher {
     private static Logger logger = LoggerFactory.getLogger(RtspSessionDispatcher.class);
-    final private static TimerExecutor tasker = new TimerExecutor();
+    final private static TimerExecutor tasker = new TimerExecutor("rtcp-report");
     
     private RtspSession session;
     private Dispatcher proxy;
@@ -91,8 +93,22 @@ public class RtspSessionDispatcher {
                 return;
             }
 
+            PacketCapture capture = session.capture();
+            if (null != capture) {
+                capture.add(rtpObj.channel(), rtpObj.content());
+            }
+
             InterLeavedRTPSession rtpSess = session.getRTPSessions()[streamIndex];
-            rtpSess.receiveRtpPkt(rtpObj);
+            boolean keyFrame = rtpSess.receiveRtpPkt(rtpObj);
+            
+            StreamMetrics metrics = proxy.metrics();
+            if (null != metrics) {
+                boolean isVideo = rtpSess.getMediaStream().getMediaType().isVideo();
+                metrics.onRtpPkt(rtpObj.contentLength(), isVideo && rtpObj.isFrameStart());
+                if (keyFrame) {
+                    metrics.onKeyFrame(rtpSess.getLastKeyFrameMillis());
+                }
+            }
             
             logger.debug("dispatch: {}", rtpObj);
             dispatch(new RtpPktEvent(streamIndex, rtpObj.retain()));
@@ -130,6 +146,11 @@ public class RtspSessionDispatcher {
                 logger.debug("stream of channel#{} NOT Found", rtcp.channel());
                 return;
             }
+
+            PacketCapture capture = session.capture();
+            if (null != capture) {
+                capture.add(rtcp.channel(), rtcp.content());
+            }
     
             InterLeavedRTPSession rtpSess = session.getRTPSessions()[streamIndex];
             onRtcpEvent(streamIndex, rtpSess, rtcp.readBytes());
@@ -226,10 +247,11 @@ public class RtspSessionDispatcher {
                         rtpSession.rtcpAppIntf().BYEPktReceived(partArray, new String(byePkt.reason()));
                     }
 
+                    // dispatch 以后 event 就销毁了, 不能再读 getSource()
                     TearDownEvent event = new TearDownEvent(byePkt.reason());
-                    dispatch(event);
-                    
                     logger.info("stream#{} dispatch {}", streamIndex, event.getSource());
+
+                    dispatch(event);
                     
                     /**        Application specific Packets       **/
                 } else if(aPkt instanceof RtcpPktAPP) {
@@ -9,26 +9,49 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sengled.cloud.SystemPropertyKeys;
 import com.sengled.cloud.mediaserver.rtsp.event.NtpTimeEvent;
 import com.sengled.cloud.mediaserver.rtsp.event.RtpPktEvent;
 import com.sengled.cloud.mediaserver.rtsp.event.TearDownEvent;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtcpContent;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
+import com.sengled.cloud.mediaserver.rtsp.metrics.ListenerMetrics;
+import com.sengled.cloud.mediaserver.rtsp.metrics.ListenerMetrics.DropReason;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetricsRegistry;
 import com.sengled.cloud.mediaserver.rtsp.rtp.InterLeavedRTPSession;
 
 public class RtspSessionListener implements GenericFutureListener<Future<? super Void>> {
     private static final Logger logger = LoggerFactory.getLogger(RtspSessionListener.class);
     
+    /** 转发延时的采样掩码, 每 (mask + 1) 个包采样一次, -1 表示不采样 **/
+    private static final int LATENCY_SAMPLE_MASK;
+    static {
+        int rate = Integer.getInteger(SystemPropertyKeys.LATENCY_SAMPLE_RATE, 64);
+        LATENCY_SAMPLE_MASK = rate > 0 ? Integer.highestOneBit(rate) - 1 : -1;
+    }
+    
     final private RtspSession session;
     final private AtomicLong sendBufferSize = new AtomicLong();
     final private int maxRtpBufferSize;
     final private int minRtpBufferSize;
+    final private ListenerMetrics metrics;
+    // 只在推流端的 EventLoop 里访问
+    private int numSent = 0;
 
     public RtspSessionListener(RtspSession mySession, int maxRtpBufferSize) {
         super();
         this.session = mySession;
         this.maxRtpBufferSize = maxRtpBufferSize;
         this.minRtpBufferSize = 1 + maxRtpBufferSize / 2;
+        this.metrics = new ListenerMetrics(mySession.channelHandlerContext().channel());
+    }
+    
+    public ListenerMetrics metrics() {
+        return metrics;
+    }
+    
+    RtspSession session() {
+        return session;
     }
     
     /**
@@ -116,27 +139,27 @@ public class RtspSessionListener implements GenericFutureListener<Future<? super
         switch (session.state()) {
             case PLAYING:
                 if (sendBufferSize.get() < maxRtpBufferSize || !rtpObj.isFrameStart()) {
-                    boolean sent = rtpSession.sendRtpPkt(rtpObj, this);
-                    if (sent) {
-                        sendBufferSize.incrementAndGet();
-                    }
+                    sendRtpPkt(rtpSession, rtpObj);
                 } else {
                     session.state(PlayState.WAITING);
+                    metrics.onDrop(DropReason.BUFFER_FULL);
                 }
                 break;
             case WAITING:
                 if (sendBufferSize.get() > minRtpBufferSize) {
+                    metrics.onDrop(DropReason.BUFFERING);
                     return;
                 } else {
                     session.state(PlayState.PLAYING);
                     
+                    // 缓冲区清空后要等关键帧才能继续播放
+                    session.engine().requestKeyFrame(session.getName());
+                    
                     if (!rtpObj.isFrameStart()) {
+                        metrics.onDrop(DropReason.WAITING_KEY_FRAME);
                         return;
                     } else {
-                        boolean sent = rtpSession.sendRtpPkt(rtpObj, this);
-                        if (sent) {
-                            sendBufferSize.incrementAndGet();
-                        }
+                        sendRtpPkt(rtpSession, rtpObj);
                     }
                 }
                 break;
@@ -149,6 +172,26 @@ public class RtspSessionListener implements GenericFutureListener<Future<? super
     }
 
 
+    private void sendRtpPkt(InterLeavedRTPSession rtpSession, RtpPkt rtpObj) {
+        int length = rtpObj.contentLength() + 4; // $ + channel + length
+        
+        GenericFutureListener<Future<? super Void>> onComplete = this;
+        if (LATENCY_SAMPLE_MASK >= 0 
+                && rtpObj.ingestNanos() != 0
+                && (numSent++ & LATENCY_SAMPLE_MASK) == 0) {
+            onComplete = new LatencySampler(rtpObj.ingestNanos());
+        }
+        
+        boolean sent = rtpSession.sendRtpPkt(rtpObj, onComplete);
+        if (sent) {
+            sendBufferSize.incrementAndGet();
+            metrics.onSent(length);
+        } else {
+            // 音频要等视频开始播放
+            metrics.onDrop(DropReason.WAITING_KEY_FRAME);
+        }
+    }
+
     /**
      * 监听消息是否成功发送出去了
      */
@@ -159,6 +202,27 @@ public class RtspSessionListener implements GenericFutureListener<Future<? super
 
     
     
+    /**
+     * 数据发送出去以后, 统计从收到数据到发送完成的延时
+     */
+    private class LatencySampler implements GenericFutureListener<Future<? super Void>> {
+        private final long ingestNanos;
+
+        public LatencySampler(long ingestNanos) {
+            this.ingestNanos = ingestNanos;
+        }
+        
+        @Override
+        public void operationComplete(Future<? super Void> future) throws Exception {
+            RtspSessionListener.this.operationComplete(future);
+            
+            if (future.isSuccess()) {
+                StreamMetricsRegistry registry = session.engine().streamMetrics();
+                registry.recordLatency(registry.get(session.getName()), System.nanoTime() - ingestNanos);
+            }
+        }
+    }
+    
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
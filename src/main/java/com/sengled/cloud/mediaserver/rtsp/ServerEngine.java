@@ -1,30 +1,48 @@
 package com.sengled.cloud.mediaserver.rtsp;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundBuffer;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 
+import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sdp.SessionDescription;
 
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.EventBus;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.mediaserver.AdmissionControl;
+import com.sengled.cloud.mediaserver.rtsp.capture.PacketCapture;
+import com.sengled.cloud.mediaserver.cluster.StreamRedirector;
+import com.sengled.cloud.mediaserver.edge.EdgeRelays;
+import com.sengled.cloud.mediaserver.quota.TenantQuotas;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspObjectDecoder;
 import com.sengled.cloud.mediaserver.rtsp.event.RtspSessionRemovedEvent;
 import com.sengled.cloud.mediaserver.rtsp.event.RtspSessionUpdatedEvent;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetrics;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetricsRegistry;
+import com.sengled.cloud.mediaserver.rtsp.utils.AtomicTokenBucket;
 
 /**
  * 一个 server 实例
@@ -35,10 +53,32 @@ import com.sengled.cloud.mediaserver.rtsp.event.RtspSessionUpdatedEvent;
 final public class ServerEngine {
 
     private static final Logger logger = LoggerFactory.getLogger(ServerEngine.class);
+    private static final long CAPTURE_MAX_BYTES = Long.getLong(SystemPropertyKeys.CAPTURE_MAX_BYTES, 32 * 1024 * 1024);
+    private static final int MAX_CAPTURES = Integer.getInteger(SystemPropertyKeys.MAX_CAPTURES, 16);
+    private static final int PACING_MAX_OUTBOUND = Integer.getInteger(SystemPropertyKeys.PACING_MAX_OUTBOUND, 0);
+    private static final int PACING_MIN_WINDOW = 10;
 
     private final EventBus eventBus = new AsyncEventBus(Executors.newSingleThreadExecutor());
     private ConcurrentHashMap<String, Dispatcher> dispatchers =
             new ConcurrentHashMap<String, Dispatcher>();
+    // 每一路流的统计数据
+    private final StreamMetricsRegistry streamMetrics = new StreamMetricsRegistry();
+    // 所有的连接, 用于统计排队待发送的字节数
+    private final ChannelGroup channels = new DefaultChannelGroup("server-engine", null);
+    // 所有连接的解码累积缓冲区里, 还没有解码的字节数
+    private final AtomicLong inboundCumulationBytes = new AtomicLong();
+    // 抓包, 停止以后也保留, 直到被清除
+    private final ConcurrentHashMap<String, PacketCapture> captures = new ConcurrentHashMap<String, PacketCapture>();
+    // 边缘节点模式下, 本机没有的流从源站拉
+    private EdgeRelays edgeRelays;
+    // 本机没有的流, 重定向到集群里的其他服务器
+    private StreamRedirector streamRedirector;
+    // 过载保护
+    private AdmissionControl admissionControl;
+    // 租户配额
+    private TenantQuotas tenantQuotas;
+    // 发给观众的总速率, null 表示不限制; 所有观众的 EventLoop 共用, 不加锁
+    private final AtomicTokenBucket outboundLimit = newOutboundLimit();
 
     private boolean usedMetricRegistry = false;
     // 连接数统计
@@ -49,6 +89,14 @@ final public class ServerEngine {
     private Meter outboundIoMeter;
     // dispatcher 连接数统计
     private Counter inboundSessionCounter;
+    // 向推流端发出的关键帧请求 (PLI/FIR)
+    private Meter keyFrameRequestMeter;
+    // 推流端收到的关键帧
+    private Meter keyFrameMeter;
+    // 重定向到其他服务器的 DESCRIBE
+    private Meter redirectMeter;
+    // 因为限速推迟发送的次数
+    private Meter pacedMeter;
     
     public ServerEngine() {
 
@@ -62,6 +110,44 @@ final public class ServerEngine {
                 registry.counter(MetricRegistry.name(ServerEngine.class, name, "inboundSession"));
         inboundIoMeter = registry.meter(MetricRegistry.name(ServerEngine.class, name, "inbound"));
         outboundIoMeter = registry.meter(MetricRegistry.name(ServerEngine.class, name, "outbound"));
+        keyFrameRequestMeter = registry.meter(MetricRegistry.name(ServerEngine.class, name, "keyFrameRequests"));
+        keyFrameMeter = registry.meter(MetricRegistry.name(ServerEngine.class, name, "keyFrames"));
+        redirectMeter = registry.meter(MetricRegistry.name(ServerEngine.class, name, "redirects"));
+        pacedMeter = registry.meter(MetricRegistry.name(ServerEngine.class, name, "paced"));
+        
+        // 转发延时, 微秒
+        registry.register(MetricRegistry.name(ServerEngine.class, name, "latency", "p50"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return streamMetrics.getLatency().getSnapshot().getP50();
+            }
+        });
+        registry.register(MetricRegistry.name(ServerEngine.class, name, "latency", "p99"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return streamMetrics.getLatency().getSnapshot().getP99();
+            }
+        });
+        registry.register(MetricRegistry.name(ServerEngine.class, name, "latency", "max"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return streamMetrics.getLatency().getSnapshot().getMax();
+            }
+        });
+        
+        // 占用的 ByteBuf 内存
+        registry.register(MetricRegistry.name(ServerEngine.class, name, "buffer", "inboundCumulation"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getInboundCumulationBytes();
+            }
+        });
+        registry.register(MetricRegistry.name(ServerEngine.class, name, "buffer", "outboundQueued"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getOutboundQueuedBytes();
+            }
+        });
         
         return this;
     }
@@ -70,6 +156,58 @@ final public class ServerEngine {
         return eventBus;
     }
 
+    public ServerEngine withEdgeRelays(EdgeRelays edgeRelays) {
+        this.edgeRelays = edgeRelays;
+        return this;
+    }
+
+    /**
+     * @return 没有开启边缘节点模式时为 null
+     */
+    public EdgeRelays edgeRelays() {
+        return edgeRelays;
+    }
+
+    public ServerEngine withStreamRedirector(StreamRedirector streamRedirector) {
+        this.streamRedirector = streamRedirector;
+        return this;
+    }
+
+    /**
+     * @return 没有开启集群重定向时为 null
+     */
+    public StreamRedirector streamRedirector() {
+        return streamRedirector;
+    }
+
+    public ServerEngine withAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+        return this;
+    }
+
+    /**
+     * @return 没有开启过载保护时为 null
+     */
+    public AdmissionControl admissionControl() {
+        return admissionControl;
+    }
+
+    public ServerEngine withTenantQuotas(TenantQuotas tenantQuotas) {
+        this.tenantQuotas = tenantQuotas;
+        return this;
+    }
+
+    /**
+     * @return 租户配额, 没有配置时为 null
+     */
+    public TenantQuotas tenantQuotas() {
+        return tenantQuotas;
+    }
+
+    public StreamMetricsRegistry streamMetrics() {
+        return streamMetrics;
+    }
+
     public RtspSession removeSession(final String name,
                                      final RtspSession session) {
         final Dispatcher removed = dispatchers.remove(name);
@@ -84,6 +222,7 @@ final public class ServerEngine {
         } else {
             inboundSessionCounter.dec();
             eventBus.post(new RtspSessionRemovedEvent(numSessions(), session));
+            streamMetrics.close(name, removed.metrics);
             removed.closeAll();
         }
 
@@ -92,10 +231,20 @@ final public class ServerEngine {
 
     public Dispatcher putSession(final String name,
                               final RtspSession session) {
-        final Dispatcher removed = dispatchers.put(name, new Dispatcher(session));
+        // open 会替换掉同名的旧统计数据
+        final StreamMetrics metrics = streamMetrics.open(name);
+        final Dispatcher removed = dispatchers.put(name, new Dispatcher(session, metrics));
+
+        // 推流端重连以后, 接着抓新连接的包
+        PacketCapture capture = captures.get(PacketCapture.key(name, null));
+        if (null != capture) {
+            session.capture(capture);
+        }
+
         if (null != removed) {
             inboundSessionCounter.dec();
             eventBus.post(new RtspSessionRemovedEvent(numSessions(), removed.session));
+            streamMetrics.close(name, removed.metrics);
             removed.closeAll();
         }
 
@@ -133,6 +282,116 @@ final public class ServerEngine {
     }
 
 
+    /**
+     * @return 累计发出的字节数, 没有使用 MetricRegistry 时为 0
+     */
+    public long getOutboundBytes() {
+        return null != outboundIoMeter ? outboundIoMeter.getCount() : 0;
+    }
+
+    /**
+     * @return 所有连接的解码累积缓冲区里, 还没有解码的字节数
+     */
+    public long getInboundCumulationBytes() {
+        return inboundCumulationBytes.get();
+    }
+
+    /**
+     * @return 所有连接排队待发送的字节数
+     */
+    public long getOutboundQueuedBytes() {
+        long bytes = 0;
+        for (Channel channel : channels) {
+            ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+            if (null != buffer) {
+                bytes += buffer.totalPendingWriteBytes();
+            }
+        }
+        return bytes;
+    }
+
+    public int numChannels() {
+        return channels.size();
+    }
+
+    /**
+     * 开始抓包, 同名的旧抓包会被清除
+     * 
+     * @param name 流的名字
+     * @param listener 观众的地址, 如 1.2.3.4:5678; 为 null 时抓推流端收到的包
+     * @param seconds 保留最近多少秒的包
+     * @return 找不到流或者观众时返回 null
+     */
+    public PacketCapture startCapture(String name, String listener, int seconds) {
+        Dispatcher dispatcher = dispatchers.get(name);
+        if (null == dispatcher) {
+            return null;
+        }
+
+        RtspSession target = null;
+        if (null == listener) {
+            target = dispatcher.session;
+        } else {
+            for (RtspSessionListener rtspListener : dispatcher.listeners) {
+                SocketAddress remote = rtspListener.session().channelHandlerContext().channel().remoteAddress();
+                if (null != remote && listener.equals(StringUtils.removeStart(remote.toString(), "/"))) {
+                    target = rtspListener.session();
+                    break;
+                }
+            }
+        }
+        if (null == target) {
+            return null;
+        }
+
+        String key = PacketCapture.key(name, listener);
+        if (!captures.containsKey(key) && captures.size() >= MAX_CAPTURES) {
+            throw new IllegalStateException("too many captures, max is " + MAX_CAPTURES);
+        }
+
+        Channel channel = target.channelHandlerContext().channel();
+        PacketCapture capture = new PacketCapture(name, listener, channel.remoteAddress(), channel.localAddress(),
+                                                  null == listener, seconds, CAPTURE_MAX_BYTES);
+        PacketCapture old = captures.put(key, capture);
+        if (null != old) {
+            old.clear();
+        }
+        target.capture(capture);
+        logger.warn("start capture {} for {}s", key, seconds);
+
+        return capture;
+    }
+
+    /**
+     * 停止抓包, 已经抓到的包保留
+     */
+    public PacketCapture stopCapture(String name, String listener) {
+        PacketCapture capture = captures.get(PacketCapture.key(name, listener));
+        if (null != capture) {
+            capture.stop();
+        }
+        return capture;
+    }
+
+    /**
+     * 停止抓包, 并释放抓到的包
+     */
+    public PacketCapture clearCapture(String name, String listener) {
+        PacketCapture capture = captures.remove(PacketCapture.key(name, listener));
+        if (null != capture) {
+            capture.clear();
+        }
+        return capture;
+    }
+
+    public PacketCapture getCapture(String name, String listener) {
+        return captures.get(PacketCapture.key(name, listener));
+    }
+
+    public Collection<PacketCapture> captures() {
+        return captures.values();
+    }
+
     public Collection<String> sessionNames() {
         return dispatchers.keySet();
     }
@@ -141,22 +400,106 @@ final public class ServerEngine {
         return dispatchers.size();
     }
 
+    /**
+     * @return 这路流的观众数, 没有这路流时返回 -1
+     */
+    public int numListeners(String name) {
+        Dispatcher dispatcher = dispatchers.get(name);
+
+        return null != dispatcher ? dispatcher.numListeners() : -1;
+    }
+
     public SessionDescription getSessionDescription(String name) {
         Dispatcher dispatcher = dispatchers.get(name);
 
         return null != dispatcher ? dispatcher.getSessionDescription() : null;
     }
 
+    /**
+     * 请求推流端尽快发送关键帧
+     * 
+     * @param name 流的名字
+     */
+    public void requestKeyFrame(String name) {
+        Dispatcher dispatcher = dispatchers.get(name);
+        if (null != dispatcher && null != dispatcher.session) {
+            dispatcher.session.requestKeyFrame();
+        }
+    }
+
+    public void markKeyFrameRequest() {
+        if (null != keyFrameRequestMeter) {
+            keyFrameRequestMeter.mark();
+        }
+    }
+
+    public void markKeyFrame() {
+        if (null != keyFrameMeter) {
+            keyFrameMeter.mark();
+        }
+    }
+
+    public void markRedirect() {
+        if (null != redirectMeter) {
+            redirectMeter.mark();
+        }
+    }
+
+    public void markPaced() {
+        if (null != pacedMeter) {
+            pacedMeter.mark();
+        }
+    }
+
+    /**
+     * @return 是否限制了发给观众的总速率
+     */
+    public static boolean isOutboundLimited() {
+        return PACING_MAX_OUTBOUND > 0;
+    }
+
+    /**
+     * 预订发给观众的流量
+     *
+     * @return 需要等多少纳秒才能发送, 不限速时为 0
+     */
+    public long reserveOutbound(long nowNanos, int bytes) {
+        return null != outboundLimit ? outboundLimit.reserve(nowNanos, bytes) : 0;
+    }
+
+    private static AtomicTokenBucket newOutboundLimit() {
+        if (!isOutboundLimited()) {
+            return null;
+        }
+
+        double bytesPerSecond = PACING_MAX_OUTBOUND * 1e6 / 8;
+        int window = Math.max(PACING_MIN_WINDOW, Integer.getInteger(SystemPropertyKeys.PACING_WINDOW, 0));
+        return new AtomicTokenBucket(bytesPerSecond, bytesPerSecond * window / 1000);
+    }
+
 
     public static class Dispatcher {
         final private RtspSession session;
+        final private StreamMetrics metrics;
         final private List<RtspSessionListener> listeners =
                 new CopyOnWriteArrayList<RtspSessionListener>();
 
 
         public Dispatcher(RtspSession session) {
+            this(session, null);
+        }
+
+        public Dispatcher(RtspSession session, StreamMetrics metrics) {
             super();
             this.session = session;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return 这路流的统计数据, 超过统计上限时为 null
+         */
+        public StreamMetrics metrics() {
+            return metrics;
         }
 
 
@@ -167,10 +510,18 @@ final public class ServerEngine {
         void addRtspSessionListener(RtspSessionListener listener) {
             listeners.remove(listener);
             listeners.add(listener);
+            
+            if (null != metrics) {
+                metrics.addListener(listener.metrics());
+            }
         }
 
         void removeRtspSessionListener(RtspSessionListener listener) {
             listeners.remove(listener);
+            
+            if (null != metrics) {
+                metrics.removeListener(listener.metrics());
+            }
         }
 
 
@@ -215,12 +566,16 @@ final public class ServerEngine {
         }
 
         return new ChannelInboundHandlerAdapter() {
+            // 上次统计时, 解码器里累积的字节数
+            private int cumulationBytes;
+
             @Override
             public void channelActive(ChannelHandlerContext ctx) throws Exception {
                 ctx.fireChannelActive();
 
                 // 新来一个连接
                 channelsCounter.inc();
+                channels.add(ctx.channel());
             }
 
             @Override
@@ -229,6 +584,8 @@ final public class ServerEngine {
 
                 // 断开了一个连接
                 channelsCounter.dec();
+                inboundCumulationBytes.addAndGet(-cumulationBytes);
+                cumulationBytes = 0;
             }
 
             @Override
@@ -241,6 +598,14 @@ final public class ServerEngine {
 
                 // 统计输入流量
                 inboundIoMeter.mark(buf.readerIndex() - readerIndex);
+
+                // 统计解码器里累积的字节数
+                ChannelHandler decoder = ctx.pipeline().get(RtspObjectDecoder.NAME);
+                int bytes = decoder instanceof RtspObjectDecoder ? ((RtspObjectDecoder) decoder).cumulationBytes() : 0;
+                if (bytes != cumulationBytes) {
+                    inboundCumulationBytes.addAndGet(bytes - cumulationBytes);
+                    cumulationBytes = bytes;
+                }
             }
         };
     }
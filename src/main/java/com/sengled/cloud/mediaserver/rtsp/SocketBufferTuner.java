@@ -0,0 +1,170 @@
+package com.sengled.cloud.mediaserver.rtsp;
+
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.socket.SocketChannelConfig;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetrics;
+
+/**
+ * 按流的码率调整 socket 缓冲区
+ *
+ * <p>
+ * 4K 摄像头和只有 64kbps 音频的设备用同样大小的内核缓冲区, 小流浪费内存, 大流又不够用。
+ * 会话开始 PLAY/RECORD 以后, 每隔一个统计周期按推流码率重新计算:
+ * <ul>
+ * <li>1、推流端: SO_RCVBUF 放得下 {@link SystemPropertyKeys#SOCKET_BUFFER_MILLIS} 毫秒的流, 每次 read 的上限也跟着码率走;</li>
+ * <li>2、观众: SO_SNDBUF 放得下同样时长的流, 观众只发 RTCP, SO_RCVBUF 和 read 都用最小值。</li>
+ * </ul>
+ * 缓冲区限制在 [{@link SystemPropertyKeys#SOCKET_BUFFER_MIN}, {@link SystemPropertyKeys#SOCKET_BUFFER_MAX}] 之间,
+ * 变化不到 1/4 时不调整。只在会话的 EventLoop 里访问
+ * </p>
+ *
+ * <p>
+ * 还不知道码率的连接用 {@link #initialBufferSize()}, 服务端在 accept 以后、客户端在 connect 以后设置。
+ * 注意 TCP 的窗口扩大因子在握手时就协商好了, 之后调大 SO_RCVBUF 也不能超过它能表示的窗口;
+ * 所以握手之前不设置 SO_RCVBUF(设置了内核会把窗口上限固定在这个值), 让内核按
+ * net.core.rmem_max / net.ipv4.tcp_rmem 协商, {@link SystemPropertyKeys#SOCKET_BUFFER_MAX} 不要超过这两个值
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class SocketBufferTuner {
+    private static final Logger logger = LoggerFactory.getLogger(SocketBufferTuner.class);
+
+    private static final int MIN_BUFFER = Integer.getInteger(SystemPropertyKeys.SOCKET_BUFFER_MIN, 16 * 1024);
+    private static final int MAX_BUFFER = Math.max(MIN_BUFFER, Integer.getInteger(SystemPropertyKeys.SOCKET_BUFFER_MAX, 1024 * 1024));
+    private static final int BUFFER_MILLIS = Integer.getInteger(SystemPropertyKeys.SOCKET_BUFFER_MILLIS, 1000);
+    private static final int INITIAL_BUFFER = Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, Integer.getInteger(SystemPropertyKeys.SOCKET_BUFFER_INITIAL, 64 * 1024)));
+
+    /** 和 StreamMetricsRegistry 计算码率的周期一样 */
+    private static final long TUNE_INTERVAL = 5 * 1000;
+    private static final int PAGE = 4 * 1024;
+
+    private static final int MIN_READ = 64;
+    private static final int INITIAL_READ = 1024;
+    private static final int MIN_MAX_READ = 4 * 1024;
+    private static final int MAX_MAX_READ = 64 * 1024;
+
+    private final RtspSession session;
+    private ScheduledFuture<?> future;
+
+    // 最近一次设置的值, 内核返回的值可能是设置的 2 倍, 所以不从 socket 读
+    private int receiveBuffer = -1;
+    private int sendBuffer = -1;
+    private int maxRead = -1;
+
+    public SocketBufferTuner(RtspSession session) {
+        this.session = session;
+    }
+
+    /**
+     * @return 还不知道码率时的 SO_RCVBUF 和 SO_SNDBUF
+     */
+    public static int initialBufferSize() {
+        return INITIAL_BUFFER;
+    }
+
+    /**
+     * 马上按已知的码率调整一次(观众加入时推流端的码率一般已经知道了), 之后定时调整
+     */
+    public SocketBufferTuner start() {
+        Channel channel = session.channelHandlerContext().channel();
+        if (channel.config() instanceof SocketChannelConfig) {
+            future = channel.eventLoop().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    StreamMetrics metrics = session.engine().streamMetrics().get(session.getName());
+                    if (null != metrics && metrics.getBitrate() > 0) {
+                        tune(metrics.getBitrate());
+                    }
+                }
+            }, 0, TUNE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    public void stop() {
+        if (null != future) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * 按码率调整缓冲区
+     *
+     * @param bitrate 推流码率, bit/s
+     * @return 是否有调整
+     */
+    boolean tune(double bitrate) {
+        SocketChannelConfig config = (SocketChannelConfig) session.channelHandlerContext().channel().config();
+        int size = bufferSize(bitrate);
+
+        int newReceiveBuffer, newSendBuffer, newMaxRead;
+        if (SessionMode.PUBLISH == session.getMode()) {
+            newReceiveBuffer = size;
+            newSendBuffer = MIN_BUFFER;
+            newMaxRead = Math.max(MIN_MAX_READ, Math.min(MAX_MAX_READ, Integer.highestOneBit(size / 4)));
+        } else {
+            newReceiveBuffer = MIN_BUFFER;
+            newSendBuffer = size;
+            newMaxRead = MIN_MAX_READ;
+        }
+
+        boolean changed = false;
+        if (isChanged(receiveBuffer, newReceiveBuffer)) {
+            config.setReceiveBufferSize(newReceiveBuffer);
+            receiveBuffer = newReceiveBuffer;
+            changed = true;
+        }
+        if (isChanged(sendBuffer, newSendBuffer)) {
+            config.setSendBufferSize(newSendBuffer);
+            sendBuffer = newSendBuffer;
+            changed = true;
+        }
+        if (maxRead != newMaxRead) {
+            config.setRecvByteBufAllocator(new AdaptiveRecvByteBufAllocator(MIN_READ, Math.min(INITIAL_READ, newMaxRead), newMaxRead));
+            maxRead = newMaxRead;
+            changed = true;
+        }
+
+        if (changed) {
+            logger.debug("{} bitrate = {}, rcvbuf = {}, sndbuf = {}, maxRead = {}", session.getName(), (long) bitrate, receiveBuffer, sendBuffer, maxRead);
+        }
+        return changed;
+    }
+
+    int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    int getMaxRead() {
+        return maxRead;
+    }
+
+    /**
+     * @return 放得下 {@link #BUFFER_MILLIS} 毫秒流的缓冲区大小, 按 4K 对齐
+     */
+    static int bufferSize(double bitrate) {
+        double bytes = bitrate / 8 * BUFFER_MILLIS / 1000;
+        long size = ((long) Math.ceil(bytes / PAGE)) * PAGE;
+        return (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, size));
+    }
+
+    private static boolean isChanged(int current, int target) {
+        return current <= 0 || Math.abs(current - target) * 4 > current;
+    }
+}
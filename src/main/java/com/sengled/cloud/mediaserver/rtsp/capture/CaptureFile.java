@@ -0,0 +1,331 @@
+package com.sengled.cloud.mediaserver.rtsp.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 读 rtpdump 或者 pcap 抓包文件, 文件整个映射到内存里, 不拷贝数据
+ *
+ * <p>
+ * 打开时扫描一遍, 只记下每个 rtp/rtcp 包的位置、长度和时间,
+ * {@link #packet(int)} 返回的是映射内存的 slice。
+ * </p>
+ *
+ * <ul>
+ * <li>rtpdump: rtptools 的二进制格式, 也就是 {@link PacketCapture#writeRtpdump(ByteBuf)} 的输出</li>
+ * <li>pcap: 大小端、微秒和纳秒精度都支持; 链路层可以是 Ethernet(含 VLAN)、RAW、Linux SLL 和 loopback。
+ * 只取 IPv4 UDP 里的 rtp/rtcp, 分片和 tcp 里的 interleaved 数据会被跳过</li>
+ * </ul>
+ *
+ * @author 陈修恒
+ * @date 2016年6月14日
+ */
+public class CaptureFile {
+    public enum Format {
+        RTPDUMP, PCAP
+    }
+
+    private static final String RTPDUMP_MAGIC = "#!rtpplay";
+
+    private static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    /** 有的系统上 DLT_RAW 是 12 或者 14 */
+    private static final int DLT_RAW_BSD = 12;
+    private static final int DLT_RAW_OPENBSD = 14;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int PROTOCOL_UDP = 17;
+
+    private final String name;
+    private final ByteBuf data;
+    private final Format format;
+
+    private int size;
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private long[] micros = new long[1024];
+
+    /**
+     * 把文件映射到内存, 文件不能超过 2G
+     */
+    public static CaptureFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large, " + channel.size() + " bytes");
+            }
+
+            // 映射建立以后, 关闭文件不影响映射的内存
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CaptureFile(file.getPath(), Unpooled.wrappedBuffer(mapped));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param data 整个文件的内容, 由 CaptureFile 负责释放
+     */
+    public CaptureFile(String name, ByteBuf data) throws IOException {
+        this.name = name;
+        this.data = data;
+
+        try {
+            if (isRtpdump(data)) {
+                format = Format.RTPDUMP;
+                parseRtpdump(data);
+            } else if (data.readableBytes() >= 24) {
+                format = Format.PCAP;
+                parsePcap(data);
+            } else {
+                throw new IOException(name + " is neither rtpdump nor pcap");
+            }
+        } catch (IOException ex) {
+            data.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            data.release();
+            throw ex;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return rtp 和 rtcp 包的个数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 第 index 个包相对于第一个包的时间, 微秒
+     */
+    public long micros(int index) {
+        return micros[index] - micros[0];
+    }
+
+    public long getDurationMicros() {
+        return size > 0 ? micros(size - 1) : 0;
+    }
+
+    /**
+     * @return 第 index 个 rtp 或者 rtcp 包, 是文件内容的 slice, 没有增加引用计数
+     */
+    public ByteBuf packet(int index) {
+        return data.slice(offsets[index], lengths[index]);
+    }
+
+    /**
+     * rtcp 的 packet type 是 200 ~ 204, 跟 rtp 的 marker + payload type 不会冲突
+     */
+    public boolean isRtcp(int index) {
+        return isRtcp(data, offsets[index]);
+    }
+
+    /**
+     * @return rtp 包的 payload type, rtcp 包返回 -1
+     */
+    public int payloadType(int index) {
+        return isRtcp(index) ? -1 : data.getUnsignedByte(offsets[index] + 1) & 0x7F;
+    }
+
+    /**
+     * @return rtp 包的 ssrc, 或者 rtcp 包发送者的 ssrc
+     */
+    public long ssrc(int index) {
+        int offset = offsets[index];
+        return data.getUnsignedInt(isRtcp(index) ? offset + 4 : offset + 8);
+    }
+
+    public void close() {
+        data.release();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{CaptureFile");
+        buf.append(", name=").append(name);
+        buf.append(", format=").append(format);
+        buf.append(", packets=").append(size);
+        buf.append(", duration=").append(getDurationMicros() / 1000).append("ms");
+        buf.append("}");
+        return buf.toString();
+    }
+
+    private static boolean isRtpdump(ByteBuf data) {
+        if (data.readableBytes() < RTPDUMP_MAGIC.length()) {
+            return false;
+        }
+        return RTPDUMP_MAGIC.equals(data.toString(data.readerIndex(), RTPDUMP_MAGIC.length(), CharsetUtil.US_ASCII));
+    }
+
+    private static boolean isRtcp(ByteBuf data, int offset) {
+        int packetType = data.getUnsignedByte(offset + 1);
+        return packetType >= 200 && packetType <= 204;
+    }
+
+    /**
+     * #!rtpplay1.0 address/port\n, 然后是 16 字节的 RD_hdr_t, 然后是一个个 RD_packet_t
+     */
+    private void parseRtpdump(ByteBuf data) throws IOException {
+        int lineEnd = data.indexOf(data.readerIndex(), data.writerIndex(), (byte) '\n');
+        if (lineEnd < 0 || data.writerIndex() - lineEnd - 1 < 16) {
+            throw new IOException(name + " has no rtpdump header");
+        }
+
+        int offset = lineEnd + 1;
+        long startMicros = data.getUnsignedInt(offset) * 1000000 + data.getUnsignedInt(offset + 4);
+        offset += 16;
+
+        while (offset + 8 <= data.writerIndex()) {
+            int length = data.getUnsignedShort(offset);
+            long offsetMillis = data.getUnsignedInt(offset + 4);
+            if (length < 8 || offset + length > data.writerIndex()) {
+                break; // 文件被截断了
+            }
+
+            if (isRtpOrRtcp(data, offset + 8, length - 8)) {
+                add(offset + 8, length - 8, startMicros + offsetMillis * 1000);
+            }
+            offset += length;
+        }
+    }
+
+    private void parsePcap(ByteBuf data) throws IOException {
+        int magic = data.getInt(data.readerIndex());
+        ByteBuf in = data;
+        if (magic == Integer.reverseBytes(PCAP_MAGIC_MICROS) || magic == Integer.reverseBytes(PCAP_MAGIC_NANOS)) {
+            in = data.order(ByteOrder.LITTLE_ENDIAN);
+            magic = Integer.reverseBytes(magic);
+        }
+        if (magic != PCAP_MAGIC_MICROS && magic != PCAP_MAGIC_NANOS) {
+            throw new IOException(name + " is neither rtpdump nor pcap, magic = " + Integer.toHexString(magic));
+        }
+        boolean nanos = magic == PCAP_MAGIC_NANOS;
+
+        int offset = data.readerIndex();
+        int linkType = in.getInt(offset + 20);
+        offset += 24;
+
+        while (offset + 16 <= data.writerIndex()) {
+            long seconds = in.getUnsignedInt(offset);
+            long fraction = in.getUnsignedInt(offset + 4);
+            int capturedLength = in.getInt(offset + 8);
+            offset += 16;
+            if (capturedLength < 0 || offset + capturedLength > data.writerIndex()) {
+                break; // 文件被截断了
+            }
+
+            long timestamp = seconds * 1000000 + (nanos ? fraction / 1000 : fraction);
+            parseFrame(linkType, offset, capturedLength, timestamp);
+            offset += capturedLength;
+        }
+    }
+
+    /**
+     * 从链路层一直拆到 udp 的负载, 不是 IPv4 UDP 的包直接跳过
+     */
+    private void parseFrame(int linkType, int offset, int length, long timestamp) {
+        int end = offset + length;
+
+        // 链路层
+        switch (linkType) {
+            case LINKTYPE_ETHERNET:
+                offset += 12;
+                while (offset + 2 <= end && data.getUnsignedShort(offset) == ETHERTYPE_VLAN) {
+                    offset += 4;
+                }
+                if (offset + 2 > end || data.getUnsignedShort(offset) != ETHERTYPE_IPV4) {
+                    return;
+                }
+                offset += 2;
+                break;
+            case LINKTYPE_LINUX_SLL:
+                if (offset + 16 > end || data.getUnsignedShort(offset + 14) != ETHERTYPE_IPV4) {
+                    return;
+                }
+                offset += 16;
+                break;
+            case LINKTYPE_NULL:
+                // 4 字节的协议族, 字节序跟抓包的机器一样, 这里只看 ip 头
+                offset += 4;
+                break;
+            case LINKTYPE_RAW:
+            case DLT_RAW_BSD:
+            case DLT_RAW_OPENBSD:
+                break;
+            default:
+                return;
+        }
+
+        // ipv4
+        if (offset + 20 > end || (data.getUnsignedByte(offset) >> 4) != 4) {
+            return;
+        }
+        int ipHeaderLength = (data.getUnsignedByte(offset) & 0x0F) * 4;
+        int flagsAndFragment = data.getUnsignedShort(offset + 6);
+        if (data.getUnsignedByte(offset + 9) != PROTOCOL_UDP
+                || (flagsAndFragment & 0x3FFF) != 0) { // MF 或者 fragment offset 不为 0
+            return;
+        }
+        offset += ipHeaderLength;
+
+        // udp
+        if (offset + 8 > end) {
+            return;
+        }
+        int payloadLength = Math.min(data.getUnsignedShort(offset + 4) - 8, end - offset - 8);
+        offset += 8;
+
+        if (isRtpOrRtcp(data, offset, payloadLength)) {
+            add(offset, payloadLength, timestamp);
+        }
+    }
+
+    /**
+     * rtp 头至少 12 字节, rtcp 至少 8 字节, 版本号必须是 2
+     */
+    private static boolean isRtpOrRtcp(ByteBuf data, int offset, int length) {
+        if (length < 8 || (data.getUnsignedByte(offset) & 0xC0) != 0x80) {
+            return false;
+        }
+        return length >= 12 || isRtcp(data, offset);
+    }
+
+    private void add(int offset, int length, long timestamp) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            micros = Arrays.copyOf(micros, size * 2);
+        }
+
+        offsets[size] = offset;
+        lengths[size] = length;
+        micros[size] = timestamp;
+        size++;
+    }
+}
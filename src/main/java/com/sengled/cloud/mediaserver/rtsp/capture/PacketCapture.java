@@ -0,0 +1,266 @@
+package com.sengled.cloud.mediaserver.rtsp.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一路流(或者一个观众)最近 N 秒的 rtp/rtcp 包
+ *
+ * <p>
+ * 每个包都拷贝一份到堆内存里保存。
+ * 收到的包是解码累积缓冲区的切片, 只增加引用计数的话会把整个累积缓冲区留在内存里, 字节数上限就不准了。
+ * 超过时长或者字节数上限的旧包会被释放。
+ * 没有开启抓包时, 调用方只需要判断一次 null, 没有额外开销
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月10日
+ */
+public class PacketCapture {
+    /** interleaved channel 映射成的 udp 端口: 5000 + channel, rtp 是偶数, rtcp 是奇数 */
+    static final int INTERLEAVED_BASE_PORT = 5000;
+
+    private final String name;
+    private final String listener;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private final boolean inbound;
+    private final long maxAgeMicros;
+    private final long maxBytes;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    private final ArrayDeque<Packet> packets = new ArrayDeque<Packet>();
+    private long bytes;
+    private long numPackets;
+    private long numEvicted;
+    private volatile boolean stopped;
+
+    /**
+     * @param name 流的名字
+     * @param listener 观众的地址, 抓推流端的包时为 null
+     * @param inbound true 表示抓的是收到的包, false 表示发出去的包
+     */
+    public PacketCapture(String name,
+                         String listener,
+                         SocketAddress remoteAddress,
+                         SocketAddress localAddress,
+                         boolean inbound,
+                         int seconds,
+                         long maxBytes) {
+        this.name = name;
+        this.listener = listener;
+        this.remoteAddress = remoteAddress instanceof InetSocketAddress ? (InetSocketAddress) remoteAddress : null;
+        this.localAddress = localAddress instanceof InetSocketAddress ? (InetSocketAddress) localAddress : null;
+        this.inbound = inbound;
+        this.maxAgeMicros = TimeUnit.SECONDS.toMicros(seconds);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return 抓包的名字, 流名或者 流名@观众地址
+     */
+    public static String key(String name, String listener) {
+        return null != listener ? name + "@" + listener : name;
+    }
+
+    /**
+     * 保存一个包
+     *
+     * @param channel interleaved channel
+     * @param data rtp 或 rtcp 包, 不含 interleaved 头; 只拷贝数据, 调用方仍然负责释放
+     */
+    public void add(int channel, ByteBuf data) {
+        if (stopped) {
+            return;
+        }
+
+        long now = currentMicros();
+        Packet packet = new Packet(now, channel, Unpooled.copiedBuffer(data));
+        synchronized (this) {
+            if (stopped) {
+                packet.data.release();
+                return;
+            }
+
+            packets.addLast(packet);
+            bytes += packet.length();
+            numPackets ++;
+
+            // 淘汰过期的包
+            Packet first;
+            while (null != (first = packets.peekFirst())
+                    && (now - first.micros > maxAgeMicros || bytes > maxBytes)) {
+                packets.removeFirst();
+                bytes -= first.length();
+                numEvicted ++;
+                first.data.release();
+            }
+        }
+    }
+
+    /**
+     * 保存一个发出去的包
+     *
+     * @param data $ + channel + length 开头的 interleaved 包; 只拷贝数据, 调用方仍然负责释放
+     */
+    public void addInterleaved(ByteBuf data) {
+        int readerIndex = data.readerIndex();
+        add(data.getUnsignedByte(readerIndex + 1), data.slice(readerIndex + 4, data.readableBytes() - 4));
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * 停止抓包, 并释放所有的包
+     */
+    public void clear() {
+        stop();
+
+        synchronized (this) {
+            for (Packet packet : packets) {
+                ReferenceCountUtil.release(packet.data);
+            }
+            packets.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * 写成 pcap 文件, 每个包封装成 IPv4 + UDP
+     */
+    public void writePcap(ByteBuf out) {
+        List<Packet> packets = retainPackets();
+        try {
+            PcapWriter writer = new PcapWriter(out, remoteAddress, localAddress, inbound);
+            for (Packet packet : packets) {
+                writer.write(packet.micros, INTERLEAVED_BASE_PORT + packet.channel, packet.data);
+            }
+        } finally {
+            release(packets);
+        }
+    }
+
+    /**
+     * 写成 rtptools 的 rtpdump 格式, 可以用 rtpplay 回放
+     */
+    public void writeRtpdump(ByteBuf out) {
+        List<Packet> packets = retainPackets();
+        try {
+            long startMicros = packets.isEmpty() ? currentMicros() : packets.get(0).micros;
+
+            // #!rtpplay1.0 address/port
+            InetSocketAddress source = inbound ? remoteAddress : localAddress;
+            String address = null != source && null != source.getAddress() ? source.getAddress().getHostAddress() : "0.0.0.0";
+            int port = null != source ? source.getPort() : 0;
+            out.writeBytes(("#!rtpplay1.0 " + address + "/" + port + "\n").getBytes());
+
+            // RD_hdr_t
+            out.writeInt((int) (startMicros / 1000000));
+            out.writeInt((int) (startMicros % 1000000));
+            out.writeInt(null != source && source.getAddress() instanceof Inet4Address ? ipv4(source) : 0);
+            out.writeShort(port);
+            out.writeShort(0);
+
+            // RD_packet_t, rtcp 包的 plen 为 0
+            for (Packet packet : packets) {
+                int length = packet.length();
+                out.writeShort(8 + length);
+                out.writeShort(packet.channel % 2 == 0 ? length : 0);
+                out.writeInt((int) ((packet.micros - startMicros) / 1000));
+                out.writeBytes(packet.data, packet.data.readerIndex(), length);
+            }
+        } finally {
+            release(packets);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getListener() {
+        return listener;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    public synchronized int size() {
+        return packets.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return 一共抓了多少个包, 包括已经淘汰的
+     */
+    public synchronized long getNumPackets() {
+        return numPackets;
+    }
+
+    public synchronized long getNumEvicted() {
+        return numEvicted;
+    }
+
+    static int ipv4(InetSocketAddress address) {
+        byte[] ip = null != address && null != address.getAddress() ? address.getAddress().getAddress() : null;
+        if (null == ip || ip.length != 4) {
+            return 0;
+        }
+        return ((ip[0] & 0xFF) << 24) | ((ip[1] & 0xFF) << 16) | ((ip[2] & 0xFF) << 8) | (ip[3] & 0xFF);
+    }
+
+    private long currentMicros() {
+        return startMillis * 1000 + (System.nanoTime() - startNanos) / 1000;
+    }
+
+    private synchronized List<Packet> retainPackets() {
+        List<Packet> copy = new ArrayList<Packet>(packets.size());
+        for (Packet packet : packets) {
+            copy.add(new Packet(packet.micros, packet.channel, packet.data.duplicate().retain()));
+        }
+        return copy;
+    }
+
+    private static void release(List<Packet> packets) {
+        for (Packet packet : packets) {
+            ReferenceCountUtil.release(packet.data);
+        }
+    }
+
+    static final class Packet {
+        final long micros;
+        final int channel;
+        final ByteBuf data;
+
+        Packet(long micros, int channel, ByteBuf data) {
+            this.micros = micros;
+            this.channel = channel;
+            this.data = data;
+        }
+
+        int length() {
+            return data.readableBytes();
+        }
+    }
+}
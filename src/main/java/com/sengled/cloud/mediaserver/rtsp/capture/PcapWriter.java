@@ -0,0 +1,93 @@
+package com.sengled.cloud.mediaserver.rtsp.capture;
+
+import io.netty.buffer.ByteBuf;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 写 pcap 文件 (LINKTYPE_RAW), 每个包封装成 IPv4 + UDP
+ *
+ * <p>
+ * rtsp 的 interleaved 数据是跑在 tcp 上的, 这里按 udp 写出来,
+ * wireshark 里用 "Decode As... RTP" 就能直接分析
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月10日
+ */
+class PcapWriter {
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+    private static final int SNAP_LEN = 65535;
+    private static final int LINKTYPE_RAW = 101;
+
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int PROTOCOL_UDP = 17;
+
+    private final ByteBuf out;
+    private final int srcIp;
+    private final int dstIp;
+    private int id;
+
+    /**
+     * @param inbound true 表示包是 remote 发给 local 的
+     */
+    PcapWriter(ByteBuf out, InetSocketAddress remote, InetSocketAddress local, boolean inbound) {
+        this.out = out;
+        this.srcIp = PacketCapture.ipv4(inbound ? remote : local);
+        this.dstIp = PacketCapture.ipv4(inbound ? local : remote);
+
+        // global header
+        out.writeInt(PCAP_MAGIC);
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(SNAP_LEN);
+        out.writeInt(LINKTYPE_RAW);
+    }
+
+    void write(long micros, int port, ByteBuf data) {
+        int dataLength = Math.min(data.readableBytes(), SNAP_LEN - IPV4_HEADER_LENGTH - UDP_HEADER_LENGTH);
+        int totalLength = IPV4_HEADER_LENGTH + UDP_HEADER_LENGTH + dataLength;
+
+        // record header
+        out.writeInt((int) (micros / 1000000));
+        out.writeInt((int) (micros % 1000000));
+        out.writeInt(totalLength);
+        out.writeInt(totalLength);
+
+        // ipv4 header
+        int ipStart = out.writerIndex();
+        out.writeByte(0x45);
+        out.writeByte(0);
+        out.writeShort(totalLength);
+        out.writeShort(id++);
+        out.writeShort(0x4000); // don't fragment
+        out.writeByte(64);
+        out.writeByte(PROTOCOL_UDP);
+        out.writeShort(0);
+        out.writeInt(srcIp);
+        out.writeInt(dstIp);
+        out.setShort(ipStart + 10, checksum(out, ipStart, IPV4_HEADER_LENGTH));
+
+        // udp header, 校验和为 0 表示不校验
+        out.writeShort(port);
+        out.writeShort(port);
+        out.writeShort(UDP_HEADER_LENGTH + dataLength);
+        out.writeShort(0);
+
+        out.writeBytes(data, data.readerIndex(), dataLength);
+    }
+
+    static int checksum(ByteBuf buf, int offset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            sum += buf.getUnsignedShort(offset + i);
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+}
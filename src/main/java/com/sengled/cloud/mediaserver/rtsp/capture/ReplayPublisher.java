@@ -0,0 +1,265 @@
+package com.sengled.cloud.mediaserver.rtsp.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import javax.sdp.Media;
+import javax.sdp.SdpException;
+import javax.sip.TransportNotSupportedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.Transport;
+import com.sengled.cloud.mediaserver.rtsp.interleaved.RtcpContent;
+import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
+import com.sengled.cloud.mediaserver.rtsp.rtp.InterLeavedRTPSession;
+
+/**
+ * 把抓包文件当成一个推流端, 重新发布到 {@link ServerEngine}
+ *
+ * <p>
+ * 跟真实的推流端一样, 会话经过 ANNOUNCE/SETUP/RECORD 建立, 每个包都交给
+ * {@link com.sengled.cloud.mediaserver.rtsp.RtspSessionDispatcher}。
+ * 抓包里没有 sdp, 需要调用方提供; rtp 包按 sdp 里的 payload type 找到对应的流,
+ * rtcp 包按发送者的 ssrc 找到对应的流, 找不到的包直接跳过。
+ * </p>
+ *
+ * <ul>
+ * <li>{@link #dispatchAll()}: 在当前线程里尽快发完, 用于测试和基准测试</li>
+ * <li>{@link #play(double)}: 在 ctx 的 EventLoop 里按抓包时的时间间隔发送, speed 是倍速</li>
+ * </ul>
+ *
+ * ctx 的 channel 就是推流端的 channel, 发给推流端的 rtcp(比如关键帧请求) 会写到这个 channel 里
+ *
+ * @author 陈修恒
+ * @date 2016年6月14日
+ */
+public class ReplayPublisher {
+    private static final Logger logger = LoggerFactory.getLogger(ReplayPublisher.class);
+
+    private final ServerEngine engine;
+    private final ChannelHandlerContext ctx;
+    private final String url;
+    private final String sdp;
+    private final CaptureFile file;
+
+    private RtspSession session;
+    /** 每个包对应的 interleaved channel, -1 表示跳过 */
+    private int[] channels;
+
+    private int index;
+    private long numPackets;
+    private long startNanos;
+    private volatile boolean stopped;
+
+    public ReplayPublisher(ServerEngine engine, ChannelHandlerContext ctx, String url, String sdp, CaptureFile file) {
+        this.engine = engine;
+        this.ctx = ctx;
+        this.url = url;
+        this.sdp = sdp;
+        this.file = file;
+    }
+
+    /**
+     * 相当于 ANNOUNCE, 每一路流 SETUP, 然后 RECORD
+     */
+    public RtspSession start() throws TransportNotSupportedException {
+        session = new RtspSession(engine, ctx, url)
+                .withSdp(sdp)
+                .withMode(SessionMode.PUBLISH);
+        for (int i = 0; i < session.numStreams(); i++) {
+            session.setupStream(session.getStreamUri(i), Transport.rtpOnTcp(2 * i, 2 * i + 1).toString());
+        }
+        channels = mapChannels();
+        session.record();
+
+        logger.info("replay {} as {}", file, url);
+        return session;
+    }
+
+    /**
+     * 在当前线程里把剩下的包全部发完
+     *
+     * @return 发送的包数
+     */
+    public int dispatchAll() {
+        int count = 0;
+        while (index < file.size() && !stopped) {
+            if (dispatch(index++)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 回到第一个包, 用于 {@link #dispatchAll()} 循环发送; 循环以后 rtp 的序号和时间戳会往回跳
+     */
+    public void rewind() {
+        index = 0;
+    }
+
+    /**
+     * 按抓包时的时间间隔发送, 发完以后 future 完成, 会话仍然保留, 需要调用 {@link #stop(String)}
+     *
+     * @param speed 倍速, 1 表示原速
+     */
+    public Future<Void> play(final double speed) {
+        final Promise<Void> promise = ctx.executor().newPromise();
+        if (0 == file.size()) {
+            return promise.setSuccess(null);
+        }
+
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                startNanos = System.nanoTime() - (long) (file.micros(Math.min(index, file.size() - 1)) * 1000 / speed);
+                next(speed, promise);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * 停止发送, 相当于推流端断开
+     */
+    public void stop(String reason) {
+        stopped = true;
+        if (null != session) {
+            session.destroy(reason);
+        }
+    }
+
+    public RtspSession session() {
+        return session;
+    }
+
+    /**
+     * @return 已经发送的包数
+     */
+    public long getNumPackets() {
+        return numPackets;
+    }
+
+    private void next(final double speed, final Promise<Void> promise) {
+        if (stopped) {
+            promise.trySuccess(null);
+            return;
+        }
+
+        long elapsedMicros = (long) ((System.nanoTime() - startNanos) / 1000 * speed);
+        while (index < file.size() && file.micros(index) <= elapsedMicros) {
+            dispatch(index++);
+        }
+
+        if (index >= file.size()) {
+            logger.info("replay {} finished, {} packet(s)", url, numPackets);
+            promise.trySuccess(null);
+            return;
+        }
+
+        long delayMicros = (long) ((file.micros(index) - elapsedMicros) / speed);
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                next(speed, promise);
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private boolean dispatch(int index) {
+        int channel = channels[index];
+        if (channel < 0 || session.isDestroyed()) {
+            return false;
+        }
+
+        ByteBuf content = file.packet(index).retain();
+        if (channel % 2 == 0) {
+            RtpPkt rtpPkt = new RtpPkt(channel, content);
+            rtpPkt.ingestNanos(System.nanoTime());
+            session.dispatcher().dispatch(rtpPkt);
+        } else {
+            session.onRtcpEvent(new RtcpContent(channel, content));
+        }
+
+        numPackets++;
+        return true;
+    }
+
+    /**
+     * rtp 包按 payload type 找流; rtcp 包按 rtp 包里出现过的 ssrc 找流
+     */
+    private int[] mapChannels() {
+        int[] streamOfPayloadType = new int[128];
+        Arrays.fill(streamOfPayloadType, -1);
+
+        InterLeavedRTPSession[] rtpSessions = session.getRTPSessions();
+        for (int i = 0; i < rtpSessions.length; i++) {
+            for (int payloadType : payloadTypes(rtpSessions[i])) {
+                streamOfPayloadType[payloadType] = i;
+            }
+        }
+
+        // 第一个 rtp 包之前可能就有 SR, 所以先扫一遍 rtp 包
+        int[] channels = new int[file.size()];
+        Map<Long, Integer> streamOfSsrc = new HashMap<Long, Integer>();
+        for (int i = 0; i < channels.length; i++) {
+            if (!file.isRtcp(i)) {
+                int streamIndex = streamOfPayloadType[file.payloadType(i)];
+                channels[i] = streamIndex >= 0 ? 2 * streamIndex : -1;
+                if (streamIndex >= 0) {
+                    streamOfSsrc.put(file.ssrc(i), streamIndex);
+                }
+            }
+        }
+
+        int numSkipped = 0;
+        for (int i = 0; i < channels.length; i++) {
+            if (file.isRtcp(i)) {
+                Integer streamIndex = streamOfSsrc.get(file.ssrc(i));
+                channels[i] = null != streamIndex ? 2 * streamIndex + 1 : -1;
+            }
+
+            if (channels[i] < 0) {
+                numSkipped++;
+            }
+        }
+
+        if (numSkipped > 0) {
+            logger.warn("{} of {} packet(s) in {} NOT match any stream of sdp", numSkipped, channels.length, file.getName());
+        }
+        return channels;
+    }
+
+    private int[] payloadTypes(InterLeavedRTPSession rtpSession) {
+        try {
+            Media media = rtpSession.getMediaStream().getMediaDescription().getMedia();
+            @SuppressWarnings("rawtypes")
+            Vector formats = null != media ? media.getMediaFormats(false) : null;
+            if (null == formats) {
+                return new int[0];
+            }
+
+            int[] payloadTypes = new int[formats.size()];
+            for (int i = 0; i < payloadTypes.length; i++) {
+                payloadTypes[i] = Integer.parseInt(String.valueOf(formats.get(i)).trim()) & 0x7F;
+            }
+            return payloadTypes;
+        } catch (SdpException e) {
+            logger.warn("fail get payload types of {}, {}", rtpSession, e.getMessage());
+            return new int[0];
+        }
+    }
+}
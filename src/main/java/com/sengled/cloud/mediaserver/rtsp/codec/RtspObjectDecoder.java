@@ -89,6 +89,13 @@ public abstract class RtspObjectDecoder extends ByteToMessageDecoder {
         this.validateHeaders = validateHeaders;
     }
     
+    /**
+     * @return 累积缓冲区里还没有解码的字节数, 只能在 EventLoop 里调用
+     */
+    public int cumulationBytes() {
+        return actualReadableBytes();
+    }
+    
     @Override
     protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
         // 释放缓存
@@ -137,12 +144,15 @@ public abstract class RtspObjectDecoder extends ByteToMessageDecoder {
                 in.skipBytes(rtpLength);
 
                 if (rtpChannle % 2 ==0) {
-                    out.add(new RtpPkt(rtpChannle, rtpContent));
+                    RtpPkt rtpPkt = new RtpPkt(rtpChannle, rtpContent);
+                    // 用于统计转发延时
+                    rtpPkt.ingestNanos(System.nanoTime());
+                    out.add(rtpPkt);
                 } else {
                     out.add(new RtcpContent(rtpChannle, rtpContent));
                 }
 
-                state(STATE.READ_FIRST_BYTE, remains);
+                state(STATE.READ_FIRST_BYTE, 1);
                 break;
             case READ_INITIAL:
                 char ch1 = (char)in.readByte();
@@ -360,4 +370,4 @@ public abstract class RtspObjectDecoder extends ByteToMessageDecoder {
         return result;
     }
     
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -16,11 +16,14 @@ public class RtpPkt extends InterleavedFrame implements IRtpPkt {
     
     private final int headerLength;
     private boolean isFrameStart = false;
+    /** 收到这个包的时间, System.nanoTime(), 0 表示未知 **/
+    private long ingestNanos = 0;
     
-    private RtpPkt(int channel, ByteBuf payload, int headerLength, boolean isFrameStart) {
+    private RtpPkt(int channel, ByteBuf payload, int headerLength, boolean isFrameStart, long ingestNanos) {
         super(channel, payload);
         this.headerLength = headerLength;
         this.isFrameStart = isFrameStart;
+        this.ingestNanos = ingestNanos;
     }
     
     public RtpPkt(int channel, ByteBuf payload) {
@@ -63,12 +66,12 @@ public class RtpPkt extends InterleavedFrame implements IRtpPkt {
         
         // 组建成新的  rtp 包
         ByteBuf newPayload = Unpooled.wrappedBuffer(header, dataAfterSimpleHead);
-        return new RtpPkt(channel(), newPayload, headerLength(), isFrameStart());
+        return new RtpPkt(channel(), newPayload, headerLength(), isFrameStart(), ingestNanos());
     }
     
     @Override
     public RtpPkt duplicate() {
-        return new RtpPkt(channel(), content().duplicate(), headerLength(), isFrameStart());
+        return new RtpPkt(channel(), content().duplicate(), headerLength(), isFrameStart(), ingestNanos());
     }
     
     
@@ -153,6 +156,17 @@ public class RtpPkt extends InterleavedFrame implements IRtpPkt {
     public void setFrameStart(boolean isFrameStart) {
         this.isFrameStart = isFrameStart;
     }
+
+    /**
+     * @return 解码出这个包的时间, 用 System.nanoTime() 计时; 0 表示未知
+     */
+    public long ingestNanos() {
+        return ingestNanos;
+    }
+
+    public void ingestNanos(long ingestNanos) {
+        this.ingestNanos = ingestNanos;
+    }
     
     @Override
     public String toString() {
@@ -0,0 +1,106 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 延时直方图, 单位微秒
+ *
+ * <p>
+ * 参照 HdrHistogram 的分桶方式: 小于 {@link #SUB_BUCKETS}*2 的值每个值一个桶,
+ * 更大的值按 2 的幂分段, 每段再均分成 {@link #SUB_BUCKETS} 个桶, 相对误差不超过 1/16.
+ * 超过 {@link #MAX_VALUE} 的值都记到最后一个桶里.
+ * </p>
+ *
+ * <p>
+ * 一个直方图只有 336 个 int 计数, 可以给每一路流都分配一个
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月2日
+ */
+public class LatencyHistogram {
+    /** 每段 2 的幂分成的桶数 */
+    static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+
+    /** 能够精确统计的最大值, 约 16 秒 */
+    public static final long MAX_VALUE = (1L << 24) - 1;
+    static final int NUM_BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(NUM_BUCKETS);
+
+    /**
+     * 记录一个延时, 可以多线程同时调用
+     *
+     * @param micros 延时, 微秒
+     */
+    public void record(long micros) {
+        counts.incrementAndGet(bucketIndex(Math.max(0, Math.min(micros, MAX_VALUE))));
+    }
+
+    /**
+     * 清空计数
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.lazySet(i, 0);
+        }
+    }
+
+    /**
+     * @return 当前计数的快照
+     */
+    public LatencySnapshot snapshot() {
+        int[] copy = new int[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+
+        return new LatencySnapshot(total,
+                valueAt(copy, total, 0.50),
+                valueAt(copy, total, 0.90),
+                valueAt(copy, total, 0.99),
+                valueAt(copy, total, 0.999),
+                valueAt(copy, total, 1.0));
+    }
+
+    private static long valueAt(int[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return 落在这个桶里的最大值
+     */
+    static long highestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
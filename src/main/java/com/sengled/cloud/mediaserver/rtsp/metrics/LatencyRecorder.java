@@ -0,0 +1,48 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+/**
+ * 按周期统计延时
+ *
+ * <p>
+ * 类似 HdrHistogram 的 Recorder: 两个直方图轮流使用, 写入的一直是 active,
+ * {@link #swap()} 时交换, 并把换下来的直方图做成快照.
+ * 交换的瞬间正在写入的个别样本可能会算到下一个周期, 对统计没有影响
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月2日
+ */
+public class LatencyRecorder {
+    private volatile LatencyHistogram active = new LatencyHistogram();
+    private LatencyHistogram inactive = new LatencyHistogram();
+    private volatile LatencySnapshot snapshot = LatencySnapshot.EMPTY;
+
+    /**
+     * @param nanos 延时, 纳秒
+     */
+    public void recordNanos(long nanos) {
+        active.record(nanos / 1000);
+    }
+
+    /**
+     * 结束当前统计周期
+     *
+     * @return 刚结束的周期的延时分布
+     */
+    public synchronized LatencySnapshot swap() {
+        LatencyHistogram finished = active;
+        inactive.reset();
+        active = inactive;
+        inactive = finished;
+
+        snapshot = finished.snapshot();
+        return snapshot;
+    }
+
+    /**
+     * @return 上一个统计周期的延时分布
+     */
+    public LatencySnapshot getSnapshot() {
+        return snapshot;
+    }
+}
@@ -0,0 +1,64 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+/**
+ * 一个统计周期内的延时分布, 单位微秒
+ *
+ * @author 陈修恒
+ * @date 2016年6月2日
+ */
+public class LatencySnapshot {
+    public static final LatencySnapshot EMPTY = new LatencySnapshot(0, 0, 0, 0, 0, 0);
+
+    private final long count;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    public LatencySnapshot(long count, long p50, long p90, long p99, long p999, long max) {
+        this.count = count;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /** @return 采样的个数 */
+    public long getCount() {
+        return count;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{LatencySnapshot");
+        buf.append(", count = ").append(count);
+        buf.append(", p50 = ").append(p50).append("us");
+        buf.append(", p99 = ").append(p99).append("us");
+        buf.append(", max = ").append(max).append("us");
+        buf.append("}");
+        return buf.toString();
+    }
+}
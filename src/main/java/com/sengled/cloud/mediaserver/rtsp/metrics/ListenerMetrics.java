@@ -0,0 +1,131 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sengled.cloud.mediaserver.rtsp.PlayState;
+
+/**
+ * 一个观众的统计数据
+ *
+ * <p>
+ * 计数器只由推流端所在的 EventLoop 更新(数据是在这个线程里分发的), 用 lazySet 写入;
+ * 输出队列的字节数在查询时直接从 channel 读取, 不额外统计
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月1日
+ */
+public class ListenerMetrics {
+
+    /** 丢包原因 */
+    public enum DropReason {
+        /** 发送缓冲区满了, 转入 WAITING */
+        BUFFER_FULL,
+        /** WAITING 状态下, 等缓冲区降下来 */
+        BUFFERING,
+        /** 等一帧的开始或者关键帧 */
+        WAITING_KEY_FRAME;
+    }
+
+    private final Channel channel;
+    private final long created = System.currentTimeMillis();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLongArray drops = new AtomicLongArray(DropReason.values().length);
+
+    private final AtomicLong waitingMillis = new AtomicLong();
+    private volatile long waitingSince = -1;
+
+    public ListenerMetrics(Channel channel) {
+        this.channel = channel;
+    }
+
+    public void onSent(int bytes) {
+        bytesSent.lazySet(bytesSent.get() + bytes);
+        packetsSent.lazySet(packetsSent.get() + 1);
+    }
+
+    public void onDrop(DropReason reason) {
+        int index = reason.ordinal();
+        drops.lazySet(index, drops.get(index) + 1);
+    }
+
+    /**
+     * 播放状态变了, 统计处于 WAITING 的时间
+     */
+    public void onState(PlayState newState) {
+        long now = System.currentTimeMillis();
+        long since = waitingSince;
+
+        if (newState == PlayState.WAITING) {
+            if (since < 0) {
+                waitingSince = now;
+            }
+        } else if (since >= 0) {
+            waitingSince = -1;
+            waitingMillis.addAndGet(now - since);
+        }
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return channel.remoteAddress();
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public long getDrops(DropReason reason) {
+        return drops.get(reason.ordinal());
+    }
+
+    public long getDrops() {
+        long sum = 0;
+        for (int i = 0; i < drops.length(); i++) {
+            sum += drops.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return 处于 WAITING 的总时间(毫秒), 包括当前这一次
+     */
+    public long getWaitingMillis() {
+        long since = waitingSince;
+        long current = since < 0 ? 0 : System.currentTimeMillis() - since;
+        return waitingMillis.get() + current;
+    }
+
+    /**
+     * @return 还在 netty 输出队列里, 没有写到 socket 的字节数
+     */
+    public long getOutboundQueueBytes() {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return null == buffer ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{ListenerMetrics");
+        buf.append(", ").append(getRemoteAddress());
+        buf.append(", sent = ").append(getBytesSent());
+        buf.append(", drops = ").append(getDrops());
+        buf.append("}");
+        return buf.toString();
+    }
+}
@@ -0,0 +1,174 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一路流的统计数据
+ *
+ * <p>
+ * 计数器只由推流端所在的 EventLoop 更新, 用 lazySet 写入, 不加锁;
+ * 速率由 {@link StreamMetricsRegistry} 定时计算
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月1日
+ */
+public class StreamMetrics {
+    private final String name;
+    private final long created = System.currentTimeMillis();
+
+    private final AtomicLong inboundBytes = new AtomicLong();
+    private final AtomicLong inboundPackets = new AtomicLong();
+    private final AtomicLong inboundFrames = new AtomicLong();
+    private final AtomicLong keyFrames = new AtomicLong();
+    private volatile long lastKeyFrameMillis = -1;
+    private volatile long keyFrameInterval = -1;
+
+    // 从收到 rtp 包到发给观众的延时
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    private final Set<ListenerMetrics> listeners =
+            Collections.newSetFromMap(new ConcurrentHashMap<ListenerMetrics, Boolean>());
+
+    // 最近一个统计周期的速率
+    private volatile double bitrate;
+    private volatile double packetRate;
+    private volatile double frameRate;
+
+    // 上一个统计周期的计数, 只在 registry 的定时器里访问
+    private long lastUpdated = created;
+    private long lastBytes;
+    private long lastPackets;
+    private long lastFrames;
+
+    StreamMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 收到推流端的一个 rtp 包
+     *
+     * @param bytes rtp 包的长度
+     * @param videoFrameStart 是否是一个视频帧的开始
+     */
+    public void onRtpPkt(int bytes, boolean videoFrameStart) {
+        inboundBytes.lazySet(inboundBytes.get() + bytes);
+        inboundPackets.lazySet(inboundPackets.get() + 1);
+        if (videoFrameStart) {
+            inboundFrames.lazySet(inboundFrames.get() + 1);
+        }
+    }
+
+    /**
+     * 收到推流端的一个关键帧
+     */
+    public void onKeyFrame(long nowMillis) {
+        keyFrames.lazySet(keyFrames.get() + 1);
+        if (lastKeyFrameMillis > 0) {
+            keyFrameInterval = nowMillis - lastKeyFrameMillis;
+        }
+        lastKeyFrameMillis = nowMillis;
+    }
+
+    public void addListener(ListenerMetrics listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ListenerMetrics listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 计算速率
+     */
+    void update(long nowMillis) {
+        latency.swap();
+
+        long duration = nowMillis - lastUpdated;
+        if (duration <= 0) {
+            return;
+        }
+
+        long bytes = inboundBytes.get();
+        long packets = inboundPackets.get();
+        long frames = inboundFrames.get();
+
+        bitrate = (bytes - lastBytes) * 8 * 1000.0 / duration;
+        packetRate = (packets - lastPackets) * 1000.0 / duration;
+        frameRate = (frames - lastFrames) * 1000.0 / duration;
+
+        lastBytes = bytes;
+        lastPackets = packets;
+        lastFrames = frames;
+        lastUpdated = nowMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /** @return 推流码率, bit/s */
+    public double getBitrate() {
+        return bitrate;
+    }
+
+    /** @return 每秒收到的 rtp 包 */
+    public double getPacketRate() {
+        return packetRate;
+    }
+
+    /** @return 每秒收到的视频帧 */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    /** @return 最近两个关键帧的间隔(毫秒), 还没收到两个关键帧时为 -1 */
+    public long getKeyFrameInterval() {
+        return keyFrameInterval;
+    }
+
+    public long getInboundBytes() {
+        return inboundBytes.get();
+    }
+
+    public long getInboundPackets() {
+        return inboundPackets.get();
+    }
+
+    public long getKeyFrames() {
+        return keyFrames.get();
+    }
+
+    /** @return 转发延时 */
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    public int getViewers() {
+        return listeners.size();
+    }
+
+    public List<ListenerMetrics> getListeners() {
+        return new ArrayList<ListenerMetrics>(listeners);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{StreamMetrics");
+        buf.append(", name = ").append(name);
+        buf.append(", bitrate = ").append((long) bitrate);
+        buf.append(", viewers = ").append(getViewers());
+        buf.append("}");
+        return buf.toString();
+    }
+}
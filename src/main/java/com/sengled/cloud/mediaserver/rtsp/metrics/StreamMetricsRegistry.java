@@ -0,0 +1,235 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.async.TimerExecutor;
+
+/**
+ * 一个 ServerEngine 上所有流的统计数据
+ *
+ * <p>
+ * 流的统计数据跟着推流会话创建和销毁, 最多统计 {@link #MAX_STREAMS} 路流,
+ * 超过的流不统计, 以免内存无限增长
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月1日
+ */
+public class StreamMetricsRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(StreamMetricsRegistry.class);
+
+    public static final int MAX_STREAMS = Integer.getInteger(SystemPropertyKeys.MAX_STREAM_METRICS, 10000);
+
+    /** 计算速率的周期 */
+    private static final long UPDATE_PERIOD = 5 * 1000;
+    private static final TimerExecutor timer = new TimerExecutor("stream-metrics");
+
+    /** 所有 engine 共用一个定时任务, engine 被回收以后自动移除 */
+    private static final Set<StreamMetricsRegistry> registries =
+            Collections.newSetFromMap(new WeakHashMap<StreamMetricsRegistry, Boolean>());
+
+    static {
+        timer.setInterval(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                List<StreamMetricsRegistry> copy;
+                synchronized (registries) {
+                    copy = new ArrayList<StreamMetricsRegistry>(registries);
+                }
+
+                long now = System.currentTimeMillis();
+                for (StreamMetricsRegistry registry : copy) {
+                    try {
+                        registry.update(now);
+                    } catch (RuntimeException ex) {
+                        // 一个 engine 出错不能取消整个定时任务
+                        logger.warn("fail update stream metrics, {}", ex.getMessage(), ex);
+                    }
+                }
+                return false;
+            }
+        }, UPDATE_PERIOD, UPDATE_PERIOD);
+    }
+
+    /** 排序方式 */
+    public enum Order {
+        BITRATE {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getBitrate();
+            }
+        },
+        PACKET_RATE {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getPacketRate();
+            }
+        },
+        FRAME_RATE {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getFrameRate();
+            }
+        },
+        VIEWERS {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getViewers();
+            }
+        },
+        KEY_FRAME_INTERVAL {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getKeyFrameInterval();
+            }
+        },
+        LATENCY {
+            @Override
+            double valueOf(StreamMetrics m) {
+                return m.getLatency().getSnapshot().getP99();
+            }
+        };
+
+        abstract double valueOf(StreamMetrics m);
+    }
+
+    private final int maxStreams;
+    private final ConcurrentMap<String, StreamMetrics> streams = new ConcurrentHashMap<String, StreamMetrics>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    // 整个 engine 的转发延时
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    public StreamMetricsRegistry() {
+        this(MAX_STREAMS);
+    }
+
+    StreamMetricsRegistry(int maxStreams) {
+        this.maxStreams = maxStreams;
+        synchronized (registries) {
+            registries.add(this);
+        }
+    }
+
+    private void update(long now) {
+        latency.swap();
+
+        for (StreamMetrics metrics : streams.values()) {
+            metrics.update(now);
+        }
+    }
+
+    /**
+     * 开始统计一路流
+     *
+     * 同名的流直接替换, 不受上限限制
+     *
+     * @return 统计数据, 超过上限时返回 null
+     */
+    public StreamMetrics open(String name) {
+        StreamMetrics metrics = new StreamMetrics(name);
+        for (;;) {
+            StreamMetrics old = streams.get(name);
+            if (null != old) {
+                if (streams.replace(name, old, metrics)) {
+                    return metrics;
+                }
+                continue;
+            }
+
+            if (size.incrementAndGet() > maxStreams) {
+                size.decrementAndGet();
+                rejected.incrementAndGet();
+                logger.debug("too many streams, {} is not tracked", name);
+                return null;
+            }
+
+            if (null == streams.putIfAbsent(name, metrics)) {
+                return metrics;
+            }
+
+            // 同时有另一个推流端加进来了, 重新替换
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * 结束统计一路流
+     *
+     * 如果这路流已经被新的推流会话替换了, 则什么也不做
+     */
+    public void close(String name, StreamMetrics metrics) {
+        if (null != metrics && streams.remove(name, metrics)) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return 整个 engine 的转发延时, 包括没有统计的流
+     */
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    /**
+     * 记录一个 rtp 包从收到到发给观众的延时
+     *
+     * @param stream 流的统计数据, 可以为 null
+     * @param nanos 延时, 纳秒
+     */
+    public void recordLatency(StreamMetrics stream, long nanos) {
+        latency.recordNanos(nanos);
+        if (null != stream) {
+            stream.getLatency().recordNanos(nanos);
+        }
+    }
+
+    public StreamMetrics get(String name) {
+        return streams.get(name);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return 因为超过上限而没有统计的流的个数
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public Collection<StreamMetrics> values() {
+        return Collections.unmodifiableCollection(streams.values());
+    }
+
+    /**
+     * @return 按 order 从大到小排序的前 n 路流
+     */
+    public List<StreamMetrics> top(final Order order, int n) {
+        List<StreamMetrics> list = new ArrayList<StreamMetrics>(streams.values());
+        Collections.sort(list, new Comparator<StreamMetrics>() {
+            @Override
+            public int compare(StreamMetrics o1, StreamMetrics o2) {
+                return Double.compare(order.valueOf(o2), order.valueOf(o1));
+            }
+        });
+
+        return list.size() > n ? list.subList(0, n) : list;
+    }
+}
@@ -1,16 +1,42 @@
 package com.sengled.cloud.mediaserver.rtsp.rtp;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import jlibrtp.RTCPSession;
+import jlibrtp.RtcpPkt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sengled.cloud.SystemPropertyKeys;
 
 /**
  * RTCP sessions
+ *
+ * <p>
+ * 没有独立的发送线程, 反馈包 (PLI/FIR) 通过 {@link #wakeSenderThread(long)}
+ * 在 channel 所在的 EventLoop 上延时合并发送
+ * </p>
  * @author 陈修恒
  * @date 2016年4月28日
  */
 public class InterLeavedRTCPSession extends RTCPSession{
+    private static final Logger logger = LoggerFactory.getLogger(InterLeavedRTCPSession.class);
+
+    /** 聚合窗口, 窗口内的反馈包合并成一个 rtcp 包 */
+    static final long FB_WINDOW_MILLIS = Long.getLong(SystemPropertyKeys.KEY_FRAME_REQUEST_WINDOW, 200);
+    /** 同一路流两次反馈的最小间隔 */
+    static final long FB_INTERVAL_MILLIS = Long.getLong(SystemPropertyKeys.KEY_FRAME_REQUEST_INTERVAL, 2000);
+
     private int rtcpChannel;
-    
-    public InterLeavedRTCPSession(int rtcpChannel) {
+
+    private final AtomicBoolean fbScheduled = new AtomicBoolean();
+    private volatile long fbRequestedMillis = -1;
+    private volatile long fbSentMillis = -1;
+
+    public InterLeavedRTCPSession(InterLeavedRTPSession parent, int rtcpChannel) {
+        this.rtpSession = parent;
         this.rtcpChannel = rtcpChannel;
     }
 
@@ -20,16 +46,76 @@ public class InterLeavedRTCPSession extends RTCPSession{
 
     @Override
     public void sendByes() {
-        
+
     }
 
     @Override
     public void start() {
-        
+
     }
-    
+
+    /**
+     * 有反馈包等待发送.
+     *
+     * 每次请求都更新请求时间; 没有安排发送时，按聚合窗口和最小间隔安排一次发送，
+     * 发送期间到达的请求留在 feedback queue 里, 发完以后再安排一次
+     */
     @Override
-    public void wakeSenderThread(long ssrc) {
-        
+    public void wakeSenderThread(final long ssrc) {
+        fbRequestedMillis = System.currentTimeMillis();
+        scheduleFeedback(ssrc);
+    }
+
+    private void scheduleFeedback(final long ssrc) {
+        if (!fbScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        long delay = FB_WINDOW_MILLIS;
+        if (fbSentMillis > 0) {
+            delay = Math.max(delay, fbSentMillis + FB_INTERVAL_MILLIS - now);
+        }
+
+        rtpSession().executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendFeedback(ssrc);
+                } finally {
+                    fbScheduled.set(false);
+                }
+
+                // 发送期间又来了新的请求
+                if (null != getFromFbQueue(ssrc)) {
+                    scheduleFeedback(ssrc);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendFeedback(long ssrc) {
+        RtcpPkt[] pkts = getFromFbQueue(ssrc);
+        if (null == pkts || pkts.length == 0) {
+            return;
+        }
+
+        // 只删除这次取出来的, 之后加进来的等下一次发送
+        removeFromFbQueue(ssrc, pkts);
+
+        InterLeavedRTPSession rtpSession = rtpSession();
+        if (rtpSession.getLastKeyFrameMillis() >= fbRequestedMillis) {
+            // 等待期间已经收到了关键帧, 不用再请求了
+            logger.debug("key frame received, skip {} feedback(s) of {}", pkts.length, rtpSession);
+            return;
+        }
+
+        if (rtpSession.sendRtcpFeedback(pkts)) {
+            fbSentMillis = System.currentTimeMillis();
+        }
+    }
+
+    private InterLeavedRTPSession rtpSession() {
+        return (InterLeavedRTPSession) rtpSession;
     }
 }
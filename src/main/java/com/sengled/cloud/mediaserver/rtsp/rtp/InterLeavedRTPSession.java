@@ -4,6 +4,7 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
@@ -15,6 +16,7 @@ import jlibrtp.Participant;
 import jlibrtp.RTPSession;
 import jlibrtp.RtcpPkt;
 import jlibrtp.RtcpPktBYE;
+import jlibrtp.RtcpPktRR;
 import jlibrtp.RtcpPktSR;
 
 import org.slf4j.Logger;
@@ -26,6 +28,7 @@ import com.sengled.cloud.mediaserver.rtsp.NtpTime;
 import com.sengled.cloud.mediaserver.rtsp.PlayState;
 import com.sengled.cloud.mediaserver.rtsp.Rational;
 import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.capture.PacketCapture;
 import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
 
 /**
@@ -42,6 +45,9 @@ public class InterLeavedRTPSession extends RTPSession {
         String playAudioUtilVideoStart = System.getProperty(SystemPropertyKeys.PLAY_AUDIO_UNTIL_VIDEO_START, "true");
         PLAY_AUDIO_UNTIL_VIDEO_START = "true".equalsIgnoreCase(playAudioUtilVideoStart);
     }
+    
+    /** 请求关键帧的方式: pli, fir, both, none */
+    private static final String KEY_FRAME_REQUEST = System.getProperty(SystemPropertyKeys.KEY_FRAME_REQUEST, "pli").toLowerCase();
 
     private RtspSession rtspSession; 
     private MediaStream mediaStream;
@@ -51,6 +57,11 @@ public class InterLeavedRTPSession extends RTPSession {
     private long playingTimestamp = -1;
     Participant outPart;
 
+    /** 推流端的 ssrc, 关键帧请求的目标 */
+    private long sourceSsrc = -1;
+    private volatile long lastKeyFrameMillis = -1;
+    private int firSeqNr = 0;
+
     private PlayState state = PlayState.WAITING; 
     
     public InterLeavedRTPSession(MediaStream mediaStream, RtspSession rtspSession,
@@ -65,7 +76,8 @@ public class InterLeavedRTPSession extends RTPSession {
 
         this.outPart = new Participant(ssrc()); // rtp session use as output
                                                 // part
-        this.rtcpSession = new InterLeavedRTCPSession(rtcpChannel);
+        this.rtcpSession = new InterLeavedRTCPSession(this, rtcpChannel);
+        this.fbMaxDelay = (int) (InterLeavedRTCPSession.FB_WINDOW_MILLIS + InterLeavedRTCPSession.FB_INTERVAL_MILLIS);
     }
 
     public long getPlayingTimestamp() {
@@ -122,13 +134,101 @@ public class InterLeavedRTPSession extends RTPSession {
      * 收到 rtp 包的时候调用
      * 
      * @param rtpObj
+     * @return true 如果是一个视频关键帧的开始
      */
-    public void receiveRtpPkt(RtpPkt rtpObj) {
+    public boolean receiveRtpPkt(RtpPkt rtpObj) {
         if (rtpObj.getTimestamp() != playingTimestamp) {
             rtpObj.setFrameStart(true);
         }
         
         this.playingTimestamp = rtpObj.getTimestamp();
+        this.sourceSsrc = rtpObj.ssrc();
+        
+        // 统计关键帧, 用于取消还没发出去的关键帧请求
+        if (rtpObj.isFrameStart() 
+                && mediaStream.getMediaType().isVideo()
+                && isH264KeyFrameStart(rtpObj.data())) {
+            lastKeyFrameMillis = System.currentTimeMillis();
+            rtspSession.engine().markKeyFrame();
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * 向推流端请求关键帧
+     * 
+     * <p>
+     * 请求先进入 feedback queue, 由 {@link InterLeavedRTCPSession} 合并、限频后发送
+     * </p>
+     */
+    public void requestKeyFrame() {
+        if (!mediaStream.getMediaType().isVideo() || sourceSsrc < 0) {
+            return;
+        }
+
+        boolean queued = false;
+        if ("pli".equals(KEY_FRAME_REQUEST) || "both".equals(KEY_FRAME_REQUEST)) {
+            queued |= 0 == fbPictureLossIndication(sourceSsrc);
+        }
+        
+        if ("fir".equals(KEY_FRAME_REQUEST) || "both".equals(KEY_FRAME_REQUEST)) {
+            synchronized (this) {
+                firSeqNr = 0xFF & (firSeqNr + 1);
+            }
+            queued |= 0 == fbFullIntraRequest(sourceSsrc, firSeqNr);
+        }
+
+        if (!queued && !"none".equals(KEY_FRAME_REQUEST)) {
+            // 和排队中的请求重复了, 也要更新请求时间, 否则可能被之前的关键帧取消
+            rtcpSession().wakeSenderThread(sourceSsrc);
+        }
+    }
+    
+    /**
+     * 把反馈包合并成一个 compound rtcp 包发送给推流端
+     * 
+     * @param pkts
+     * @return
+     */
+    boolean sendRtcpFeedback(RtcpPkt[] pkts) {
+        // compound rtcp 必须以 RR 开头
+        RtcpPktRR rr = new RtcpPktRR(null, ssrc());
+        rr.encode();
+        
+        int payloadLength = rr.rawPkt.length;
+        for (int i = 0; i < pkts.length; i++) {
+            pkts[i].encode();
+            payloadLength += pkts[i].rawPkt.length;
+        }
+
+        ByteBufAllocator alloc = rtspSession.channelHandlerContext().alloc();
+        ByteBuf payload = alloc.buffer(4 + payloadLength);
+        payload.writeByte('$');
+        payload.writeByte(rtcpChannel());
+        payload.writeShort(payloadLength);
+        payload.writeBytes(rr.rawPkt);
+        for (int i = 0; i < pkts.length; i++) {
+            payload.writeBytes(pkts[i].rawPkt);
+        }
+
+        if (writeAndFlush(payload, null)) {
+            rtspSession.engine().markKeyFrameRequest();
+            logger.info("stream#{} ch{}_sent {} feedback(s), {} byte(s)", mediaStream.getStreamIndex(),
+                    rtcpChannel(), pkts.length, payloadLength);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    public long getLastKeyFrameMillis() {
+        return lastKeyFrameMillis;
+    }
+    
+    EventExecutor executor() {
+        return rtspSession.channelHandlerContext().executor();
     }
     
     public boolean sendRtpPkt(RtpPkt rtpObj,
@@ -210,6 +310,10 @@ public class InterLeavedRTPSession extends RTPSession {
 
     private boolean isH264KeyFrameStart(ByteBuf buf) {
         boolean isKeyFrame = false;
+        if (!buf.isReadable()) {
+            return false;
+        }
+        
         int firstByte =  buf.readByte();
         
         int nal_type = firstByte & 0x1F;
@@ -363,7 +467,17 @@ public class InterLeavedRTPSession extends RTPSession {
             promise.addListener(onComplete);
         }
 
-        ctx.writeAndFlush(data, promise);
+        RtpPacer pacer = rtspSession.pacer();
+        if (null != pacer) {
+            // 限速时等真正发送的时候再抓包
+            pacer.write(data, promise);
+        } else {
+            PacketCapture capture = rtspSession.capture();
+            if (null != capture) {
+                capture.addInterleaved(data);
+            }
+            ctx.writeAndFlush(data, promise);
+        }
 
         return true;
     }
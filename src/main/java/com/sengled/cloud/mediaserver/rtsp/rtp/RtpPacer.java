@@ -0,0 +1,221 @@
+package com.sengled.cloud.mediaserver.rtsp.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.mediaserver.quota.Tenant;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.capture.PacketCapture;
+import com.sengled.cloud.mediaserver.rtsp.metrics.StreamMetrics;
+import com.sengled.cloud.mediaserver.rtsp.utils.TokenBucket;
+
+/**
+ * 观众的发送限速
+ *
+ * <p>
+ * 关键帧是 100 多个包一起到的, 马上转发给所有观众的话, 网卡出口队列一下子涨到 关键帧大小 x 观众数, 交换机会丢包。
+ * 这里给每个观众一个令牌桶:
+ * <ul>
+ * <li>1、速率是推流码率的 {@link SystemPropertyKeys#PACING_HEADROOM}%, 保证平均速率跟得上;</li>
+ * <li>2、桶的大小是 {@link SystemPropertyKeys#PACING_WINDOW} 毫秒的流量, 超出的部分排队, 用 EventLoop 的定时器分摊发送;</li>
+ * <li>3、同时受 engine 的总出口速率 {@link SystemPropertyKeys#PACING_MAX_OUTBOUND} 和租户的出口带宽配额限制。</li>
+ * </ul>
+ * 还不知道推流码率时不限速。
+ * 排队的包算在观众的发送缓冲里, 跟不上时由 {@link com.sengled.cloud.mediaserver.rtsp.RtspSessionListener} 丢帧。
+ * 只在观众连接的 EventLoop 里访问
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class RtpPacer {
+    private static final int WINDOW = Integer.getInteger(SystemPropertyKeys.PACING_WINDOW, 0);
+    private static final int HEADROOM = Math.max(100, Integer.getInteger(SystemPropertyKeys.PACING_HEADROOM, 150));
+
+    /** 和 StreamMetricsRegistry 计算码率的周期一样 */
+    private static final long RATE_UPDATE_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    /** 桶至少放得下一个包 */
+    private static final int MIN_BURST = 1500;
+
+    private final RtspSession session;
+    private final int window;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+    /** 队首的包是否已经预订了令牌 */
+    private boolean headReserved;
+
+    private TokenBucket bucket;
+    private long rateUpdated;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public RtpPacer(RtspSession session) {
+        this(session, WINDOW);
+    }
+
+    RtpPacer(RtspSession session, int window) {
+        this.session = session;
+        this.window = window;
+        this.rateUpdated = System.nanoTime() - RATE_UPDATE_INTERVAL;
+    }
+
+    /**
+     * @return 是否开启了观众限速或者 engine 总出口限速
+     */
+    public static boolean isEnabled() {
+        return WINDOW > 0 || ServerEngine.isOutboundLimited();
+    }
+
+    /**
+     * 发送一个 rtp/rtcp 包, 令牌不够时排队
+     */
+    public void write(final ByteBuf data, final ChannelPromise promise) {
+        final ChannelHandlerContext ctx = session.channelHandlerContext();
+        if (!ctx.executor().inEventLoop()) {
+            // 观众的包在推流端的 EventLoop 里转发, 切到观众自己的 EventLoop
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(data, promise);
+                }
+            });
+            return;
+        }
+
+        if (!queue.isEmpty()) {
+            queue.add(new Pending(data, promise));
+            return;
+        }
+
+        long waitNanos = reserve(data.readableBytes());
+        if (0 == waitNanos || !ctx.channel().isActive()) {
+            capture(data);
+            ctx.writeAndFlush(data, promise);
+        } else {
+            queue.add(new Pending(data, promise));
+            headReserved = true;
+            schedule(waitNanos);
+        }
+    }
+
+    /**
+     * @return 排队等待发送的包
+     */
+    public int numPending() {
+        return queue.size();
+    }
+
+    private void drain() {
+        ChannelHandlerContext ctx = session.channelHandlerContext();
+        boolean active = ctx.channel().isActive();
+
+        boolean written = false;
+        while (!queue.isEmpty()) {
+            Pending head = queue.peek();
+            if (!headReserved && active) {
+                headReserved = true;
+                long waitNanos = reserve(head.data.readableBytes());
+                if (waitNanos > 0) {
+                    schedule(waitNanos);
+                    break;
+                }
+            }
+
+            // 连接已经断开的话, 全部写出去, 由 netty 释放
+            queue.poll();
+            headReserved = false;
+            capture(head.data);
+            ctx.write(head.data, head.promise);
+            written = true;
+        }
+
+        if (written) {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * 抓包的时间是真正发送的时间, 不是排队的时间
+     */
+    private void capture(ByteBuf data) {
+        PacketCapture capture = session.capture();
+        if (null != capture) {
+            capture.addInterleaved(data);
+        }
+    }
+
+    private void schedule(long waitNanos) {
+        session.engine().markPaced();
+        session.channelHandlerContext().executor().schedule(drainTask, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return 需要等待的纳秒数
+     */
+    private long reserve(int bytes) {
+        long now = System.nanoTime();
+        if (window > 0) {
+            updateRate(now);
+        }
+
+        long waitNanos = null != bucket ? bucket.reserve(now, bytes) : 0;
+        waitNanos = Math.max(waitNanos, session.engine().reserveOutbound(now, bytes));
+
+        Tenant tenant = session.tenant();
+        if (null != tenant) {
+            waitNanos = Math.max(waitNanos, tenant.reserveOutbound(now, bytes));
+        }
+        return waitNanos;
+    }
+
+    /**
+     * 按推流码率调整令牌桶
+     */
+    private void updateRate(long now) {
+        if (now - rateUpdated < RATE_UPDATE_INTERVAL) {
+            return;
+        }
+
+        StreamMetrics metrics = session.engine().streamMetrics().get(session.getName());
+        setBitrate(now, null != metrics ? metrics.getBitrate() : 0);
+    }
+
+    /**
+     * @param bitrate 推流码率, bit/s
+     */
+    void setBitrate(long now, double bitrate) {
+        rateUpdated = now;
+        if (bitrate <= 0) {
+            bucket = null;
+            return;
+        }
+
+        double bytesPerSecond = bitrate / 8 * HEADROOM / 100;
+        double burst = Math.max(MIN_BURST, bytesPerSecond * window / 1000);
+        if (null == bucket) {
+            bucket = new TokenBucket(bytesPerSecond, burst);
+        } else {
+            bucket.setRate(now, bytesPerSecond, burst);
+        }
+    }
+
+    private static class Pending {
+        private final ByteBuf data;
+        private final ChannelPromise promise;
+
+        private Pending(ByteBuf data, ChannelPromise promise) {
+            this.data = data;
+            this.promise = promise;
+        }
+    }
+}
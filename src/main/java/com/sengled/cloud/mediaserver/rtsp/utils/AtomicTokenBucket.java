@@ -0,0 +1,71 @@
+package com.sengled.cloud.mediaserver.rtsp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 线程安全、不加锁的令牌桶
+ *
+ * <p>
+ * 和 {@link TokenBucket} 的语义一样, 但是可以被多个 EventLoop 同时使用。
+ * 用 GCRA 实现: 只记录一个理论到达时间(TAT), 每次预订把它往后推 n 个令牌的时间, 用 CAS 更新;
+ * TAT 比当前时间超前多少, 就表示桶里欠了多少令牌
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class AtomicTokenBucket {
+    private final AtomicLong tat;
+
+    private volatile double nanosPerToken;
+    private volatile long burstNanos;
+
+    /**
+     * @param ratePerSecond 每秒生成多少个令牌
+     * @param capacity 最多攒多少个令牌, 即允许的突发量
+     */
+    public AtomicTokenBucket(double ratePerSecond, double capacity) {
+        setRate(ratePerSecond, capacity);
+        this.tat = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    /**
+     * 修改速率, 对之后的预订生效
+     */
+    public void setRate(double ratePerSecond, double capacity) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("rate and capacity must be positive, rate = " + ratePerSecond + ", capacity = " + capacity);
+        }
+
+        this.nanosPerToken = 1e9 / ratePerSecond;
+        this.burstNanos = (long) (capacity * nanosPerToken);
+    }
+
+    /**
+     * 预订 n 个令牌, 不够时透支
+     *
+     * @param nowNanos {@link System#nanoTime()}
+     * @return 需要等多少纳秒才能用这些令牌, 0 表示马上可以用
+     */
+    public long reserve(long nowNanos, double n) {
+        long increment = (long) (n * nanosPerToken);
+        long burst = burstNanos;
+        for (;;) {
+            long current = tat.get();
+            // 桶满了以后不再攒令牌
+            long start = current - nowNanos < -burst ? nowNanos - burst : current;
+            long next = start + increment;
+            if (tat.compareAndSet(current, next)) {
+                long waitNanos = next - nowNanos;
+                return waitNanos > 0 ? waitNanos : 0;
+            }
+        }
+    }
+
+    /**
+     * 退回预订了但是没有用的令牌
+     */
+    public void refund(double n) {
+        tat.addAndGet(-(long) (n * nanosPerToken));
+    }
+}
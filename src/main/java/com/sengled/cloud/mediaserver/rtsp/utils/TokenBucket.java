@@ -0,0 +1,84 @@
+package com.sengled.cloud.mediaserver.rtsp.utils;
+
+/**
+ * 令牌桶
+ *
+ * <p>
+ * 令牌以固定的速率生成, 最多攒 capacity 个。
+ * {@link #reserve(long, double)} 允许透支, 返回透支部分需要等待的时间, 调用者可以据此推迟或者拒绝。
+ * 不是线程安全的, 只在一个线程(一般是 EventLoop)里用
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class TokenBucket {
+    private double tokensPerNano;
+    private double capacity;
+
+    private double tokens;
+    private long lastNanos;
+
+    /**
+     * @param ratePerSecond 每秒生成多少个令牌
+     * @param capacity 最多攒多少个令牌, 即允许的突发量
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("rate and capacity must be positive, rate = " + ratePerSecond + ", capacity = " + capacity);
+        }
+
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * 修改速率, 已经攒下的令牌保留
+     */
+    public void setRate(long nowNanos, double ratePerSecond, double capacity) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("rate and capacity must be positive, rate = " + ratePerSecond + ", capacity = " + capacity);
+        }
+
+        refill(nowNanos);
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * 预订 n 个令牌, 不够时透支
+     *
+     * @param nowNanos {@link System#nanoTime()}
+     * @return 需要等多少纳秒才能用这些令牌, 0 表示马上可以用
+     */
+    public long reserve(long nowNanos, double n) {
+        refill(nowNanos);
+        tokens -= n;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     * 退回预订了但是没有用的令牌
+     */
+    public void refund(double n) {
+        tokens = Math.min(capacity, tokens + n);
+    }
+
+    /**
+     * @return 令牌已经攒满, 表示很久没有用过了
+     */
+    public boolean isFull(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= capacity;
+    }
+
+    private void refill(long nowNanos) {
+        if (nowNanos > lastNanos) {
+            tokens = Math.min(capacity, tokens + (nowNanos - lastNanos) * tokensPerNano);
+            lastNanos = nowNanos;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -23,6 +24,10 @@ public class MediaServerConfigs {
 	private String mode;
 	private Map<String, Integer> ports = Collections.emptyMap();
 	private List<StreamSourceDef> streamSources = Collections.emptyList();
+	private String edgeLocator;
+	private Map<String, String> origins = Collections.emptyMap();
+	private boolean redirect;
+	private List<QuotaDef> quotas = Collections.emptyList();
 	
 	
 	
@@ -98,13 +103,64 @@ public class MediaServerConfigs {
         //<mode>
         String mode = doc.getRootElement().elementTextTrim("mode");
 
+        // <redirect>
+        boolean redirect = Boolean.parseBoolean(doc.getRootElement().elementTextTrim("redirect"));
+
+        // <edge><locator>, <edge><origin prefix="">
+        String edgeLocator = null;
+        Map<String, String> origins = new LinkedHashMap<String, String>();
+        Element edgeEl = doc.getRootElement().element("edge");
+        if (null != edgeEl) {
+            edgeLocator = edgeEl.elementTextTrim("locator");
+
+            @SuppressWarnings("unchecked")
+            List<Element> originEls = edgeEl.elements("origin");
+            for (Element originEl : originEls) {
+                String prefix = originEl.attributeValue("prefix", "/");
+                origins.put(prefix, originEl.getTextTrim());
+            }
+        }
+
+        // <quotas><quota name="" prefix="" max-listeners="" max-publishers="" max-outbound="">
+        List<QuotaDef> quotas = new ArrayList<QuotaDef>();
+        Element quotasEl = doc.getRootElement().element("quotas");
+        if (null != quotasEl) {
+            @SuppressWarnings("unchecked")
+            List<Element> quotaEls = quotasEl.elements("quota");
+            for (Element quotaEl : quotaEls) {
+                String prefix = quotaEl.attributeValue("prefix");
+                if (null == prefix || !prefix.startsWith("/")) {
+                    throw new IOException("illegal quota prefix [" + prefix + "]");
+                }
+
+                quotas.add(new QuotaDef(quotaEl.attributeValue("name", prefix),
+                                        prefix,
+                                        parseInt(quotaEl, "max-listeners"),
+                                        parseInt(quotaEl, "max-publishers"),
+                                        parseInt(quotaEl, "max-outbound")));
+            }
+        }
+
 		MediaServerConfigs configs = new MediaServerConfigs();
 		configs.streamSources = streams;
 		configs.ports = ports;
 		configs.mode = mode;
+		configs.edgeLocator = edgeLocator;
+		configs.origins = origins;
+		configs.redirect = redirect;
+		configs.quotas = quotas;
 		return configs;
 	}
 	
+	private static int parseInt(Element el, String attribute) throws IOException {
+	    String value = el.attributeValue(attribute);
+	    try {
+	        return null != value ? Integer.parseInt(value.trim()) : 0;
+	    } catch (NumberFormatException ex) {
+	        throw new IOException("illegal " + attribute + " [" + value + "]");
+	    }
+	}
+	
 	public Map<String, Integer> getPorts() {
 		return ports;
 	}
@@ -116,4 +172,32 @@ public class MediaServerConfigs {
 	public String getMode() {
         return mode;
     }
+	
+	/**
+	 * @return 边缘节点找源站的方式, redis 或 static; 为 null 时不开启边缘节点
+	 */
+	public String getEdgeLocator() {
+	    return edgeLocator;
+	}
+	
+	/**
+	 * @return static 方式的源站, 前缀 -&gt; 源站地址
+	 */
+	public Map<String, String> getOrigins() {
+	    return origins;
+	}
+	
+	/**
+	 * @return 本机没有的流, 是否重定向到集群里的其他服务器
+	 */
+	public boolean isRedirect() {
+	    return redirect;
+	}
+	
+	/**
+	 * @return 租户的配额
+	 */
+	public List<QuotaDef> getQuotas() {
+	    return quotas;
+	}
 }
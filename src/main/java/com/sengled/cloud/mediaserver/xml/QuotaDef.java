@@ -0,0 +1,58 @@
+package com.sengled.cloud.mediaserver.xml;
+
+import java.io.Serializable;
+
+/**
+ * 一个租户的配额, 按流名字的前缀匹配
+ *
+ * @author 陈修恒
+ * @date 2016年6月16日
+ */
+public class QuotaDef implements Serializable {
+	/** */
+	private static final long serialVersionUID = -3170216542437381467L;
+	private String name;
+	private String prefix;
+	private int maxListeners;
+	private int maxPublishers;
+	private int maxOutbound;
+
+	protected QuotaDef() {
+	}
+
+	/**
+	 * @param name 租户的名字, 用于统计
+	 * @param prefix 流名字的前缀, 如 /tenant/
+	 * @param maxListeners 最多多少个观众, 0 表示不限制
+	 * @param maxPublishers 最多多少个推流端, 0 表示不限制
+	 * @param maxOutbound 发给观众的总速率, Mbps, 0 表示不限制
+	 */
+	public QuotaDef(String name, String prefix, int maxListeners, int maxPublishers, int maxOutbound) {
+		super();
+		this.name = name;
+		this.prefix = prefix;
+		this.maxListeners = maxListeners;
+		this.maxPublishers = maxPublishers;
+		this.maxOutbound = maxOutbound;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public int getMaxListeners() {
+		return maxListeners;
+	}
+
+	public int getMaxPublishers() {
+		return maxPublishers;
+	}
+
+	public int getMaxOutbound() {
+		return maxOutbound;
+	}
+}
@@ -0,0 +1,341 @@
+package com.sengled.cloud.monitor;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.async.TimerExecutor;
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencyRecorder;
+import com.sengled.cloud.mediaserver.rtsp.metrics.LatencySnapshot;
+
+/**
+ * 检测 EventLoop 是否卡住了
+ *
+ * <p>
+ * 每 100ms 往每个 EventLoop 里提交一个心跳任务, 从提交到执行的时间就是调度延时。
+ * 心跳超过阈值还没有执行, 说明这个线程卡住了, 这时抓一次它的线程栈, 记录为一次卡顿。
+ * 上一个心跳没有执行完之前不会提交新的心跳, 卡住的 EventLoop 不会堆积心跳任务
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月8日
+ */
+public class EventLoopWatchdog {
+    private static final Logger logger = LoggerFactory.getLogger(EventLoopWatchdog.class);
+
+    /** 检测间隔, 毫秒 */
+    private static final long CHECK_INTERVAL = 100;
+
+    /** 延时统计周期, 毫秒 */
+    private static final long SWAP_INTERVAL = 10 * 1000;
+
+    /** 最多保留多少次卡顿记录 */
+    private static final int MAX_STALLS = 100;
+
+    private final long stallThresholdNanos;
+    private final List<WatchedLoop> loops = new CopyOnWriteArrayList<WatchedLoop>();
+    private final Deque<StallEvent> stalls = new ArrayDeque<StallEvent>(MAX_STALLS);
+    private final AtomicLong numStalls = new AtomicLong();
+    private final TimerExecutor timer = new TimerExecutor("event-loop-watchdog");
+    private volatile MetricRegistry registry;
+    private long lastSwapTime = System.nanoTime();
+
+    public EventLoopWatchdog() {
+        this(Long.getLong(SystemPropertyKeys.EVENT_LOOP_STALL_THRESHOLD, 500), TimeUnit.MILLISECONDS);
+    }
+
+    public EventLoopWatchdog(long stallThreshold, TimeUnit unit) {
+        this.stallThresholdNanos = unit.toNanos(stallThreshold);
+    }
+
+    /**
+     * 检测 group 里所有的 EventLoop
+     *
+     * @param name group 的名字, 如 rtsp-worker
+     */
+    public EventLoopWatchdog watch(final String name, EventLoopGroup group) {
+        final List<WatchedLoop> watched = new ArrayList<WatchedLoop>();
+        for (EventExecutor executor : group) {
+            watched.add(new WatchedLoop(name + "-" + watched.size(), executor));
+        }
+        loops.addAll(watched);
+
+        MetricRegistry registry = this.registry;
+        if (null != registry) {
+            register(registry, name, watched);
+        }
+        return this;
+    }
+
+    public EventLoopWatchdog withMetricRegistry(MetricRegistry registry) {
+        registry.register(MetricRegistry.name(EventLoopWatchdog.class, "stalls"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return numStalls.get();
+            }
+        });
+
+        this.registry = registry;
+        return this;
+    }
+
+    public void start() {
+        timer.setInterval(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                check(System.nanoTime());
+                return null;
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL);
+    }
+
+    /**
+     * @return 卡顿的阈值, 毫秒
+     */
+    public long getStallThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallThresholdNanos);
+    }
+
+    /**
+     * @return 从启动到现在一共卡顿了多少次
+     */
+    public long getNumStalls() {
+        return numStalls.get();
+    }
+
+    public List<WatchedLoop> getLoops() {
+        return Collections.unmodifiableList(loops);
+    }
+
+    /**
+     * @return 最近的卡顿, 新的在前
+     */
+    public List<StallEvent> getStalls() {
+        synchronized (stalls) {
+            return new ArrayList<StallEvent>(stalls);
+        }
+    }
+
+    /**
+     * 只在 timer 线程里执行
+     */
+    void check(long now) {
+        boolean swap = now - lastSwapTime >= TimeUnit.MILLISECONDS.toNanos(SWAP_INTERVAL);
+        if (swap) {
+            lastSwapTime = now;
+        }
+
+        for (WatchedLoop loop : loops) {
+            if (swap) {
+                loop.lag.swap();
+            }
+
+            if (!loop.pending) {
+                loop.heartbeat(now);
+            } else if (null == loop.stall && now - loop.submitted > stallThresholdNanos) {
+                onStall(loop, now);
+            }
+        }
+    }
+
+    private void onStall(WatchedLoop loop, long now) {
+        Thread thread = loop.thread;
+        StackTraceElement[] stack = null != thread ? thread.getStackTrace() : new StackTraceElement[0];
+        StallEvent stall = new StallEvent(loop, TimeUnit.NANOSECONDS.toMillis(now - loop.submitted), stack);
+        loop.stall = stall;
+        numStalls.incrementAndGet();
+
+        synchronized (stalls) {
+            if (stalls.size() >= MAX_STALLS) {
+                stalls.removeLast();
+            }
+            stalls.addFirst(stall);
+        }
+
+        StringBuilder buf = new StringBuilder();
+        for (StackTraceElement element : stack) {
+            buf.append("\n\tat ").append(element);
+        }
+        logger.warn("{} stalled {}ms, pendingTasks = {}, thread = '{}'{}",
+                    loop.name, stall.getLagMillis(), stall.getPendingTasks(), stall.getThreadName(), buf);
+    }
+
+    private void register(MetricRegistry registry, String name, final List<WatchedLoop> watched) {
+        // 整个 group 中最大的调度延时, 微秒
+        registry.register(MetricRegistry.name(EventLoopWatchdog.class, name, "lag.max"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                long max = 0;
+                for (WatchedLoop loop : watched) {
+                    max = Math.max(max, loop.getLag().getMax());
+                }
+                return max;
+            }
+        });
+
+        // 整个 group 中排队的任务数
+        registry.register(MetricRegistry.name(EventLoopWatchdog.class, name, "pendingTasks"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int sum = 0;
+                for (WatchedLoop loop : watched) {
+                    sum += Math.max(0, loop.getPendingTasks());
+                }
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * 被检测的一个 EventLoop
+     */
+    public static class WatchedLoop implements Runnable {
+        private final String name;
+        private final EventExecutor executor;
+        private final LatencyRecorder lag = new LatencyRecorder();
+
+        /** 第一次心跳时记下 EventLoop 的线程 */
+        private volatile Thread thread;
+        private volatile boolean pending;
+        private volatile long submitted;
+        private volatile StallEvent stall;
+
+        WatchedLoop(String name, EventExecutor executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        private void heartbeat(long now) {
+            if (executor.isShuttingDown()) {
+                return;
+            }
+
+            submitted = now;
+            stall = null;
+            pending = true;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                pending = false;
+            }
+        }
+
+        /**
+         * 心跳, 在 EventLoop 里执行
+         */
+        @Override
+        public void run() {
+            long lagNanos = System.nanoTime() - submitted;
+            thread = Thread.currentThread();
+            lag.recordNanos(lagNanos);
+
+            StallEvent stall = this.stall;
+            if (null != stall) {
+                stall.durationMillis = TimeUnit.NANOSECONDS.toMillis(lagNanos);
+            }
+            pending = false;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getThreadName() {
+            Thread thread = this.thread;
+            return null != thread ? thread.getName() : null;
+        }
+
+        /**
+         * @return 排队的任务数, 不支持时返回 -1
+         */
+        public int getPendingTasks() {
+            if (executor instanceof SingleThreadEventExecutor) {
+                return ((SingleThreadEventExecutor) executor).pendingTasks();
+            }
+            return -1;
+        }
+
+        /**
+         * @return 上一个统计周期的调度延时, 微秒
+         */
+        public LatencySnapshot getLag() {
+            return lag.getSnapshot();
+        }
+
+        /**
+         * @return 当前心跳已经等了多久, 毫秒
+         */
+        public long getWaitingMillis() {
+            return pending ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted) : 0;
+        }
+    }
+
+    /**
+     * 一次卡顿
+     */
+    public static class StallEvent {
+        private final long time = System.currentTimeMillis();
+        private final String loopName;
+        private final String threadName;
+        private final long lagMillis;
+        private final int pendingTasks;
+        private final StackTraceElement[] stackTrace;
+
+        /** 卡了多久, -1 表示还没恢复 */
+        private volatile long durationMillis = -1;
+
+        StallEvent(WatchedLoop loop, long lagMillis, StackTraceElement[] stackTrace) {
+            this.loopName = loop.getName();
+            this.threadName = loop.getThreadName();
+            this.lagMillis = lagMillis;
+            this.pendingTasks = loop.getPendingTasks();
+            this.stackTrace = stackTrace;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getLoopName() {
+            return loopName;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /** 发现卡顿时已经等了多久 */
+        public long getLagMillis() {
+            return lagMillis;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public int getPendingTasks() {
+            return pendingTasks;
+        }
+
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace;
+        }
+    }
+}
@@ -9,10 +9,14 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,11 +24,17 @@ import org.slf4j.LoggerFactory;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.sengled.cloud.async.TimerExecutor;
-import com.sengled.cloud.monitor.VmstatCallable.VmstatInfo;
+import com.sengled.cloud.monitor.ProcSampler.CpuField;
+import com.sengled.cloud.monitor.ProcSampler.ThreadGroupCpu;
 
 /**
  * 检测系统运行状态
  * 
+ * <p>
+ * 直接读 /proc, 不再 fork vmstat; 除了整机的 CPU, 还统计每一组线程
+ * (rtsp-boss, rtsp-worker, rtsp-client, 各个 timer) 的 CPU, 用来判断哪个 EventLoop 跑满了
+ * </p>
+ * 
  * @author 陈修恒
  * @date 2016年5月3日
  */
@@ -34,28 +44,37 @@ public class OSMonitor {
     private static final String VMSTATA_SY = "sy";
     private static final String VMSTATA_ID = "id";
     private static final String VMSTATA_ST = "st";
+    private static final String VMSTATA_WA = "wa";
+    private static final String VMSTATA_SI = "si";
+
+    /** 采样间隔, 毫秒 */
+    private static final long SAMPLE_INTERVAL = 10 * 1000;
 
     public static final boolean isWindows;
     static {
         isWindows = isWindows0();
     }
     
-    private VmstatInfo vmstat = new VmstatInfo(new String[]{VMSTATA_US, VMSTATA_SY, VMSTATA_ID, VMSTATA_ST});
+    private final ProcSampler sampler = new ProcSampler();
     private final TimerExecutor monitorTaskExecutor = new TimerExecutor("server-monitor");
     private final Callable<Boolean> task; 
     
+    /** 已经注册过 gauge 的线程组 */
+    private final Set<String> threadGroups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile MetricRegistry registry;
     
     public OSMonitor() {
         task = new Callable<Boolean>() {
             @Override
             public Boolean call() throws Exception {
                 try {
-                    if(!isWindows) {
-                        vmstat = new VmstatCallable().call();
+                    if(!isWindows && ProcSampler.isAvailable()) {
+                        sampler.sample();
+                        registerThreadGroups();
                     }
                 } finally {
-                    // 3s 后重新检测
-                    monitorTaskExecutor.setTimeout(getTaskCallable(), 10 * 1000);
+                    // 10s 后重新检测
+                    monitorTaskExecutor.setTimeout(getTaskCallable(), SAMPLE_INTERVAL);
                 }
 
                 return null;
@@ -66,42 +85,53 @@ public class OSMonitor {
 
     public OSMonitor withMetricRegistry(MetricRegistry registry) {
         // id, CPU 空闲
-        registry.register(MetricRegistry.name(OSMonitor.class, VMSTATA_ID), new Gauge<Double>() {
-            @Override
-            public Double getValue() {
-                return vmstat.getAverageValue(VMSTATA_ID);
-            }
-        });
+        registerCpu(registry, VMSTATA_ID, CpuField.IDLE);
         
         // us, 用户 CPU 使用率
-        registry.register(MetricRegistry.name(OSMonitor.class, VMSTATA_US), new Gauge<Double>() {
+        registerCpu(registry, VMSTATA_US, CpuField.USER, CpuField.NICE);
+
+        // sy + st, 系统 CPU 使用率 + 虚拟机 CPU 使用率
+        registerCpu(registry, VMSTATA_SY + "," + VMSTATA_ST, CpuField.SYSTEM, CpuField.IRQ, CpuField.SOFTIRQ, CpuField.STEAL);
+        
+        // sy, 系统 CPU 使用率, 和 vmstat 一样包含中断
+        registerCpu(registry, VMSTATA_SY, CpuField.SYSTEM, CpuField.IRQ, CpuField.SOFTIRQ);
+        
+        // st, 虚拟机 CPU 使用率
+        registerCpu(registry, VMSTATA_ST, CpuField.STEAL);
+        
+        // wa, 等待 IO
+        registerCpu(registry, VMSTATA_WA, CpuField.IOWAIT);
+        
+        // si, 软中断
+        registerCpu(registry, VMSTATA_SI, CpuField.SOFTIRQ);
+        
+        // 软中断最高的那个 CPU, 网卡中断集中在一个核上时看这个
+        registry.register(MetricRegistry.name(OSMonitor.class, VMSTATA_SI, "max"), new Gauge<Double>() {
             @Override
             public Double getValue() {
-                return vmstat.getAverageValue(VMSTATA_US);
+                return sampler.getMaxSoftirqPercent();
             }
         });
-
-        // sy + st, 系统 CPU 使用率 + 虚拟机 CPU 使用率
-        registry.register(MetricRegistry.name(OSMonitor.class, VMSTATA_SY + "," + VMSTATA_ST), new Gauge<Double>() {
+        
+        // 本进程的 CPU, 100 表示一个核
+        registry.register(MetricRegistry.name(OSMonitor.class, "process"), new Gauge<Double>() {
             @Override
             public Double getValue() {
-                return vmstat.getAverageValue(VMSTATA_SY) + vmstat.getAverageValue(VMSTATA_ST);
+                return sampler.getProcessPercent();
             }
         });
         
-        // sy, 系统 CPU 使用率
-        registry.register(MetricRegistry.name(OSMonitor.class, VMSTATA_SY), new Gauge<Double>() {
+        // 网卡收发速率
+        registry.register(MetricRegistry.name(OSMonitor.class, "net", "rxBytes"), new Gauge<Double>() {
             @Override
             public Double getValue() {
-                return vmstat.getAverageValue(VMSTATA_SY);
+                return sampler.getRxBytesRate();
             }
         });
-        
-        // st, 虚拟机 CPU 使用率
-        registry.register(MetricRegistry.name(OSMonitor.class, VMSTATA_ST), new Gauge<Double>() {
+        registry.register(MetricRegistry.name(OSMonitor.class, "net", "txBytes"), new Gauge<Double>() {
             @Override
             public Double getValue() {
-                return vmstat.getAverageValue(VMSTATA_ST);
+                return sampler.getTxBytesRate();
             }
         });
         
@@ -122,6 +152,8 @@ public class OSMonitor {
             }
         });
         
+        this.registry = registry;
+        registerThreadGroups();
         return this;
     }
     
@@ -159,8 +191,87 @@ public class OSMonitor {
         return ipList;
     }
     
+    /**
+     * @return CPU 空闲百分比, 还没有数据时返回 -1
+     */
     public double getCpuIdRate() {
-        return vmstat.getAverageValue(VMSTATA_ID);
+        return sampler.getCpuPercent(CpuField.IDLE);
+    }
+
+    /**
+     * @return 按线程名分组的 CPU 使用率
+     */
+    public Map<String, ThreadGroupCpu> getThreadGroups() {
+        return sampler.getThreadGroups();
+    }
+    
+    private void registerCpu(MetricRegistry registry, String name, final CpuField... fields) {
+        registry.register(MetricRegistry.name(OSMonitor.class, name), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                double sum = 0;
+                for (CpuField field : fields) {
+                    double percent = sampler.getCpuPercent(field);
+                    if (percent < 0) {
+                        return percent;
+                    }
+                    sum += percent;
+                }
+                return sum;
+            }
+        });
+    }
+    
+    /**
+     * 线程是动态创建的, 每次采样后给新出现的线程组注册 gauge, 已经关闭的线程组删掉 gauge
+     */
+    private void registerThreadGroups() {
+        updateThreadGroups(sampler.getThreadGroups().keySet());
+    }
+
+    /**
+     * @param groups 本次采样到的线程组
+     */
+    void updateThreadGroups(Set<String> groups) {
+        MetricRegistry registry = this.registry;
+        if (null == registry) {
+            return;
+        }
+
+        // 线程组的线程都退出了, 比如 EventLoopGroup 已经 shutdown
+        for (String group : threadGroups) {
+            if (!groups.contains(group)) {
+                registry.remove(MetricRegistry.name(OSMonitor.class, "thread", group, "total"));
+                registry.remove(MetricRegistry.name(OSMonitor.class, "thread", group, "max"));
+                threadGroups.remove(group);
+                logger.info("thread group '{}' stopped", group);
+            }
+        }
+
+        for (final String group : groups) {
+            if (!threadGroups.add(group)) {
+                continue;
+            }
+
+            // 线程组内所有线程的 CPU 之和
+            registry.register(MetricRegistry.name(OSMonitor.class, "thread", group, "total"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    ThreadGroupCpu cpu = sampler.getThreadGroups().get(group);
+                    return null != cpu ? cpu.getTotal() : 0;
+                }
+            });
+            
+            // 最忙的一个线程, 接近 100 说明这个 EventLoop 已经跑满了
+            registry.register(MetricRegistry.name(OSMonitor.class, "thread", group, "max"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    ThreadGroupCpu cpu = sampler.getThreadGroups().get(group);
+                    return null != cpu ? cpu.getMax() : 0;
+                }
+            });
+            logger.info("monitor cpu of thread group '{}'", group);
+        }
     }
     
     private Callable<Boolean> getTaskCallable() {
@@ -0,0 +1,355 @@
+package com.sengled.cloud.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 直接读 /proc 下的文件统计 CPU、网络的使用情况, 不用 fork 子进程
+ *
+ * <ul>
+ * <li>/proc/stat, 整机的 CPU 使用率, 以及单个 CPU 上最高的软中断占比</li>
+ * <li>/proc/self/stat, 本进程的 CPU 使用率; 也可以指定其他进程的 pid</li>
+ * <li>/proc/self/task/*&#47;stat, 每个线程的 CPU 使用率, 按线程名分组</li>
+ * <li>/proc/net/dev, 除 lo 外所有网卡的收发速率</li>
+ * </ul>
+ *
+ * 每次 {@link #sample()} 和上一次的读数做差, 第一次调用只记录读数。
+ * 线程的 CPU 时间用 /proc/stat 的总 tick 数折算, 不依赖 USER_HZ。
+ *
+ * @author 陈修恒
+ * @date 2016年6月8日
+ */
+public class ProcSampler {
+    private static final Logger logger = LoggerFactory.getLogger(ProcSampler.class);
+
+    private static final String ENCODING = "US-ASCII";
+    private static final File PROC_STAT = new File("/proc/stat");
+    private static final File PROC_NET_DEV = new File("/proc/net/dev");
+
+    /** /proc/stat 中 cpu 行的各列 */
+    public static enum CpuField {
+        USER, NICE, SYSTEM, IDLE, IOWAIT, IRQ, SOFTIRQ, STEAL;
+    }
+    private static final int NUM_CPU_FIELDS = CpuField.values().length;
+
+    /** /proc/[pid]/stat 中, 右括号后面 utime、stime 的下标 */
+    private static final int UTIME_INDEX = 11;
+    private static final int STIME_INDEX = 12;
+
+    /** 线程名后面的 -1-2 这样的编号 */
+    private static final String THREAD_ID_CHARS = "-0123456789";
+
+    private final File processStat;
+    private final File processTask;
+
+    private long[] lastCpu;
+    private long[][] lastCpus;
+    private long lastProcessTicks = -1;
+    private Map<Integer, Long> lastThreadTicks = Collections.emptyMap();
+    private long[] lastNet;
+    private long lastNanoTime;
+
+    private volatile double[] cpuPercent;
+    private volatile double maxSoftirqPercent = -1;
+    private volatile double processPercent = -1;
+    private volatile Map<String, ThreadGroupCpu> threadGroups = Collections.emptyMap();
+    private volatile double rxBytesRate = -1;
+    private volatile double txBytesRate = -1;
+
+    public ProcSampler() {
+        this("self");
+    }
+
+    /**
+     * @param pid 要统计的进程, "self" 表示本进程
+     */
+    public ProcSampler(String pid) {
+        File process = new File("/proc", pid);
+        this.processStat = new File(process, "stat");
+        this.processTask = new File(process, "task");
+    }
+
+    public static boolean isAvailable() {
+        return PROC_STAT.canRead();
+    }
+
+    /**
+     * 读一次 /proc, 和上次的读数做差。只应该在同一个线程里调用
+     */
+    public void sample() throws IOException {
+        final long now = System.nanoTime();
+
+        // 整机 CPU
+        long[][] cpus = readCpus();
+        long[] cpu = cpus[0];
+        long cpuTicks = -1;
+        if (null != lastCpu) {
+            cpuTicks = sum(cpu) - sum(lastCpu);
+            cpuPercent = percents(cpu, lastCpu);
+
+            double maxSoftirq = 0;
+            for (int i = 1; i < cpus.length && i < lastCpus.length; i++) {
+                maxSoftirq = Math.max(maxSoftirq, percents(cpus[i], lastCpus[i])[CpuField.SOFTIRQ.ordinal()]);
+            }
+            maxSoftirqPercent = maxSoftirq;
+        }
+
+        // 单个 CPU 在这段时间内走过的 tick 数
+        int numCpus = Math.max(1, cpus.length - 1);
+        double ticksPerCpu = cpuTicks > 0 ? (double) cpuTicks / numCpus : 0;
+
+        // 进程
+        long processTicks = readTicks(processStat);
+        if (lastProcessTicks >= 0 && ticksPerCpu > 0) {
+            processPercent = 100.0 * (processTicks - lastProcessTicks) / ticksPerCpu;
+        }
+
+        // 线程
+        Map<Integer, Long> threadTicks = new HashMap<Integer, Long>();
+        Map<String, ThreadGroupCpu> groups = new TreeMap<String, ThreadGroupCpu>();
+        readThreads(threadTicks, groups, ticksPerCpu);
+        if (ticksPerCpu > 0) {
+            threadGroups = Collections.unmodifiableMap(groups);
+        }
+
+        // 网络
+        long[] net = readNetDev();
+        if (null != lastNet && now > lastNanoTime) {
+            double seconds = (now - lastNanoTime) / 1e9;
+            rxBytesRate = (net[0] - lastNet[0]) / seconds;
+            txBytesRate = (net[1] - lastNet[1]) / seconds;
+        }
+
+        lastCpu = cpu;
+        lastCpus = cpus;
+        lastProcessTicks = processTicks;
+        lastThreadTicks = threadTicks;
+        lastNet = net;
+        lastNanoTime = now;
+    }
+
+    /**
+     * @return 整机 CPU 各项的百分比, 还没有数据时返回 -1
+     */
+    public double getCpuPercent(CpuField field) {
+        double[] percent = cpuPercent;
+        return null != percent ? percent[field.ordinal()] : -1;
+    }
+
+    /**
+     * @return 软中断占比最高的那个 CPU 的软中断百分比, 网卡中断都压在一个核上时会很高
+     */
+    public double getMaxSoftirqPercent() {
+        return maxSoftirqPercent;
+    }
+
+    /**
+     * @return 进程的 CPU 使用率, 100 表示用满一个核
+     */
+    public double getProcessPercent() {
+        return processPercent;
+    }
+
+    /**
+     * @return 按线程名分组的 CPU 使用率, 如 rtsp-worker, rtsp-boss
+     */
+    public Map<String, ThreadGroupCpu> getThreadGroups() {
+        return threadGroups;
+    }
+
+    /**
+     * @return 除 lo 外所有网卡每秒收到的字节数
+     */
+    public double getRxBytesRate() {
+        return rxBytesRate;
+    }
+
+    /**
+     * @return 除 lo 外所有网卡每秒发送的字节数
+     */
+    public double getTxBytesRate() {
+        return txBytesRate;
+    }
+
+    /**
+     * 线程组的 CPU 使用率, 100 表示用满一个核
+     */
+    public static final class ThreadGroupCpu {
+        private int threads;
+        private double total;
+        private double max;
+
+        /** 线程数 **/
+        public int getThreads() {
+            return threads;
+        }
+
+        /** 所有线程的 CPU 使用率之和 **/
+        public double getTotal() {
+            return total;
+        }
+
+        /** 最忙的那个线程的 CPU 使用率, 接近 100 说明这个线程已经跑满了 **/
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "{threads=" + threads + ", total=" + total + ", max=" + max + "}";
+        }
+    }
+
+    /**
+     * @return 线程名去掉末尾的编号, 如 rtsp-worker-2-13 变成 rtsp-worker; 空格换成下划线
+     */
+    static String getGroupName(String threadName) {
+        String name = StringUtils.stripEnd(threadName, THREAD_ID_CHARS);
+        return StringUtils.replaceChars(StringUtils.isEmpty(name) ? threadName : name, ' ', '_');
+    }
+
+    /**
+     * @return 第 0 个是 cpu 汇总行, 后面依次是 cpu0, cpu1 ...
+     */
+    private static long[][] readCpus() throws IOException {
+        List<String> lines = FileUtils.readLines(PROC_STAT, ENCODING);
+
+        int numCpus = 0;
+        long[][] cpus = new long[lines.size()][];
+        for (String line : lines) {
+            if (!line.startsWith("cpu")) {
+                continue;
+            }
+
+            String[] cols = StringUtils.split(line);
+            long[] values = new long[NUM_CPU_FIELDS];
+            for (int i = 0; i < NUM_CPU_FIELDS && i + 1 < cols.length; i++) {
+                values[i] = Long.parseLong(cols[i + 1]);
+            }
+            cpus[numCpus++] = values;
+        }
+
+        long[][] result = new long[numCpus][];
+        System.arraycopy(cpus, 0, result, 0, numCpus);
+        return result;
+    }
+
+    private void readThreads(Map<Integer, Long> threadTicks,
+                             Map<String, ThreadGroupCpu> groups,
+                             double ticksPerCpu) {
+        String[] tids = processTask.list();
+        if (null == tids) {
+            return;
+        }
+
+        for (String tid : tids) {
+            String line;
+            try {
+                line = FileUtils.readFileToString(new File(new File(processTask, tid), "stat"), ENCODING);
+            } catch (IOException e) {
+                // 线程已经退出了
+                continue;
+            }
+
+            // 线程名里可能有空格和括号, 以最后一个右括号为准
+            int start = line.indexOf('(');
+            int end = line.lastIndexOf(')');
+            if (start < 0 || end < start) {
+                continue;
+            }
+
+            Integer id = Integer.valueOf(tid);
+            long ticks = getTicks(line, end);
+            threadTicks.put(id, ticks);
+
+            String group = getGroupName(line.substring(start + 1, end));
+            ThreadGroupCpu cpu = groups.get(group);
+            if (null == cpu) {
+                groups.put(group, cpu = new ThreadGroupCpu());
+            }
+            cpu.threads ++;
+
+            Long last = lastThreadTicks.get(id);
+            if (null != last && ticksPerCpu > 0) {
+                double percent = 100.0 * (ticks - last) / ticksPerCpu;
+                cpu.total += percent;
+                cpu.max = Math.max(cpu.max, percent);
+            }
+        }
+    }
+
+    /**
+     * @return utime + stime
+     */
+    private static long readTicks(File stat) throws IOException {
+        String line = FileUtils.readFileToString(stat, ENCODING);
+        return getTicks(line, line.lastIndexOf(')'));
+    }
+
+    private static long getTicks(String line, int end) {
+        String[] cols = StringUtils.split(line.substring(end + 1));
+        if (cols.length <= STIME_INDEX) {
+            logger.debug("illegal stat '{}'", line);
+            return 0;
+        }
+
+        return Long.parseLong(cols[UTIME_INDEX]) + Long.parseLong(cols[STIME_INDEX]);
+    }
+
+    /**
+     * @return {收到的字节数, 发送的字节数}
+     */
+    private static long[] readNetDev() throws IOException {
+        long[] bytes = new long[2];
+        if (!PROC_NET_DEV.canRead()) {
+            return bytes;
+        }
+
+        for (String line : FileUtils.readLines(PROC_NET_DEV, ENCODING)) {
+            int colon = line.indexOf(':');
+            if (colon < 0 || "lo".equals(line.substring(0, colon).trim())) {
+                continue;
+            }
+
+            // rx: bytes packets errs drop fifo frame compressed multicast, tx: bytes ...
+            String[] cols = StringUtils.split(line.substring(colon + 1));
+            if (cols.length > 8) {
+                bytes[0] += Long.parseLong(cols[0]);
+                bytes[1] += Long.parseLong(cols[8]);
+            }
+        }
+
+        return bytes;
+    }
+
+    private static double[] percents(long[] current, long[] last) {
+        double[] percents = new double[NUM_CPU_FIELDS];
+        long total = sum(current) - sum(last);
+        if (total <= 0) {
+            return percents;
+        }
+
+        for (int i = 0; i < NUM_CPU_FIELDS; i++) {
+            percents[i] = 100.0 * (current[i] - last[i]) / total;
+        }
+        return percents;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -7,10 +7,13 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
 import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.edge.OriginLocator;
 import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
 import com.sengled.cloud.monitor.OSMonitor;
 import com.sengled.cloud.spring.reports.local.RtspSessionLogger;
 import com.sengled.cloud.spring.reports.redis.MediaResource;
+import com.sengled.cloud.spring.reports.redis.RedisOriginLocator;
+import com.sengled.cloud.spring.reports.redis.RedisStreamRedirector;
 import com.sengled.cloud.spring.reports.redis.TalkbackResource;
 
 /**
@@ -57,9 +60,28 @@ public class SpringStarter {
         }
     }
 
+    /**
+     * @return 按 redis 里的设备信息找源站
+     */
+    public OriginLocator getOriginLocator() {
+        return springContext.getBean(RedisOriginLocator.class);
+    }
+
+    /**
+     * 开始从 redis 刷新集群里的设备, 用于 DESCRIBE 重定向
+     */
+    public void setStreamRedirector(ServerEngine rtspServerCtx) {
+        RedisStreamRedirector redirector = springContext.getBean(RedisStreamRedirector.class);
+        rtspServerCtx.withStreamRedirector(redirector.register(rtspServerCtx));
+    }
+
     public void withMetricRegistry(MetricRegistry metrics) {
         OSMonitor osMonitor =  springContext.getBean(OSMonitor.class);
         osMonitor.withMetricRegistry(metrics);
     }
 
+    public OSMonitor getOSMonitor() {
+        return springContext.getBean(OSMonitor.class);
+    }
+
 }
@@ -2,9 +2,15 @@ package com.sengled.cloud.spring.reports.redis;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,9 +19,8 @@ import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Collections2;
 import com.google.common.eventbus.Subscribe;
+import com.sengled.cloud.SystemPropertyKeys;
 import com.sengled.cloud.async.TimerExecutor;
 import com.sengled.cloud.mediaserver.rtsp.RtspSession;
 import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
@@ -25,7 +30,15 @@ import com.sengled.cloud.monitor.OSMonitor;
 
 /**
  * 每台服务器都是一个 Resource 实例
- * 
+ *
+ * <p>
+ * 设备上下线不再每次单独访问 redis: 事件只记到 pending 里, 同一个设备只保留最后一次变化,
+ * 每 {@link SystemPropertyKeys#REDIS_FLUSH_INTERVAL} 毫秒用 pipeline 批量写一次。
+ * 定时对账时先比较 SCARD 和本地记录的设备数, 不一致 (比如 redis 重启、key 过期)
+ * 或者每 {@link SystemPropertyKeys#REDIS_FULL_SYNC_ROUNDS} 轮才取一次 SMEMBERS, 只修复有差异的设备。
+ * 所有访问 redis 的操作都在同一个 timer 线程里执行
+ * </p>
+ *
  * @author 陈修恒
  * @date 2016年5月5日
  */
@@ -35,6 +48,9 @@ public abstract class AbstractRedisResource {
     public static final String MEDIA = "media";
     public static final String TALKBACK = "talkback";
 
+    private static final int FLUSH_INTERVAL = Integer.getInteger(SystemPropertyKeys.REDIS_FLUSH_INTERVAL, 200);
+    private static final int FULL_SYNC_ROUNDS = Math.max(1, Integer.getInteger(SystemPropertyKeys.REDIS_FULL_SYNC_ROUNDS, 20));
+
 
     final private String name;
     private String innerHost;
@@ -49,6 +65,12 @@ public abstract class AbstractRedisResource {
     protected int updateResourceInfoDelay = 15;
     protected int updateResourceDevicesDelay = 15;
 
+    /** 还没有写到 redis 的变化, token -> true 上线, false 下线 */
+    private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+    /** 已经写到 redis 的设备, 只在 timer 线程里访问 */
+    private final Set<String> reported = new HashSet<String>();
+    private long numReconciles;
+
     protected AbstractRedisResource(String name) {
         this.name = name;
     }
@@ -79,41 +101,25 @@ public abstract class AbstractRedisResource {
         timer.setInterval(updateResourceListCallable(), 0, updateResourceListDelay * 1000);
         timer.setInterval(updateResourceInfoCallable(), 0, updateResourceInfoDelay * 1000);
         timer.setInterval(updateResourceDevicesCallable(), 0, updateResourceDevicesDelay * 1000);
-        rtspServer.eventBus().register(this); // 如果灯上来了， 立即通知 redis
+        timer.setInterval(flushDevicesCallable(), FLUSH_INTERVAL, FLUSH_INTERVAL);
+        rtspServer.eventBus().register(this); // 如果灯上来了， 尽快通知 redis
     }
 
 
     @Subscribe
     public void onSessionCreated(RtspSessionUpdatedEvent event) {
         final RtspSession session = event.getSession();
-        final String token = getDeviceToken(session.getName());
-        
-        redisTemplate.execute(new RedisCallback<Void>() {
-            @Override
-            public Void doInRedis(RedisConnection connection) throws DataAccessException {
-                String deviceListKey = getDeviceListKey();
-                
-                addDevice(connection, deviceListKey, token);
-                return null;
-            }
-        });
+        if (isRelay(session.getName())) {
+            return;
+        }
+        pending.put(getDeviceToken(session.getName()), Boolean.TRUE);
     }
-    
-    
+
+
     @Subscribe
     public void onSessionRemoved(RtspSessionRemovedEvent event) {
         final RtspSession session = event.getSession();
-        final String token = getDeviceToken(session.getName());
-        
-        redisTemplate.execute(new RedisCallback<Void>() {
-            @Override
-            public Void doInRedis(RedisConnection connection) throws DataAccessException {
-                String deviceListKey = getDeviceListKey();
-                
-                removeDevice(connection, deviceListKey, token);
-                return null;
-            }
-        });
+        pending.put(getDeviceToken(session.getName()), Boolean.FALSE);
     }
 
     private Callable<Boolean> updateResourceListCallable() {
@@ -156,7 +162,23 @@ public abstract class AbstractRedisResource {
                     updateResourceDevices();
                 } catch (Exception ex) {
                     logger.warn("update {} failed", "resource:" + name + ":" + innerHost
-                            + ":devices");
+                            + ":devices", ex);
+                }
+                return null;
+            }
+
+        };
+    }
+
+    private Callable<Boolean> flushDevicesCallable() {
+        return new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    flushDevices();
+                } catch (Exception ex) {
+                    logger.warn("flush {} failed, {}", getDeviceListKey(), ex.getMessage());
                 }
                 return null;
             }
@@ -207,99 +229,243 @@ public abstract class AbstractRedisResource {
         });
     }
 
-    private void updateResourceDevices() {
-        final Collection<String> memMembers = getMembersFromMem();
-        final String devicesKey = getDeviceListKey();
+    /**
+     * 把 pending 里攒下的上下线批量写到 redis, 失败的放回 pending 等下次重试
+     */
+    private void flushDevices() {
+        if (pending.isEmpty()) {
+            return;
+        }
 
+        final List<String> added = new ArrayList<String>();
+        final List<String> removed = new ArrayList<String>();
+        for (String token : pending.keySet()) {
+            Boolean online = pending.get(token);
+            // 取出来的同时又有新的变化, 留到下一批
+            if (null == online || !pending.remove(token, online)) {
+                continue;
+            }
 
-        redisTemplate.execute(new RedisCallback<Void>() {
+            if (online) {
+                added.add(token);
+            } else {
+                removed.add(token);
+            }
+        }
+
+        try {
+            syncDevices(added, removed);
+        } catch (RuntimeException ex) {
+            for (String token : added) {
+                pending.putIfAbsent(token, Boolean.TRUE);
+            }
+            for (String token : removed) {
+                pending.putIfAbsent(token, Boolean.FALSE);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * 对账: 内存里的会话和 reported 的差异补到 pending 里, 再检查 redis 里的设备列表
+     */
+    private void updateResourceDevices() {
+        final Set<String> memMembers = getMembersFromMem();
+        for (String token : memMembers) {
+            if (!reported.contains(token)) {
+                pending.putIfAbsent(token, Boolean.TRUE);
+            }
+        }
+        for (String token : reported) {
+            if (!memMembers.contains(token)) {
+                pending.putIfAbsent(token, Boolean.FALSE);
+            }
+        }
+        flushDevices();
+
+        final boolean fullSync = 0 == numReconciles++ % FULL_SYNC_ROUNDS;
+        final byte[] devicesKey = getDeviceListKey().getBytes();
+        List<Object> results = executePipelined(redisTemplate, new RedisCallback<Void>() {
             @Override
             public Void doInRedis(RedisConnection connection) throws DataAccessException {
+                connection.sCard(devicesKey);
+                connection.expire(devicesKey, getExpireSeconds(updateResourceDevicesDelay));
+                return null;
+            }
+        });
+
+        long numRedisMembers = toLong(results.get(0));
+        if (!fullSync && numRedisMembers == reported.size()) {
+            return;
+        }
+
+        // redis 跟本地不一致, 或者到了全量对账的轮次
+        Set<String> redisMembers = redisTemplate.execute(new RedisCallback<Set<String>>() {
+            @Override
+            public Set<String> doInRedis(RedisConnection connection) throws DataAccessException {
+                return getMembersFromRedis(connection, devicesKey);
+            }
+        });
+
+        List<String> added = new ArrayList<String>();
+        List<String> removed = new ArrayList<String>();
+        for (String token : reported) {
+            if (fullSync || !redisMembers.contains(token)) {
+                added.add(token); // 全量对账时 device-info 也重新写一遍
+            }
+        }
+        for (String token : redisMembers) {
+            if (!reported.contains(token)) {
+                removed.add(token);
+            }
+        }
+
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            logger.info("{} has {} member(s), {} expected, {} to add, {} to remove",
+                    getDeviceListKey(), numRedisMembers, reported.size(), added.size(), removed.size());
+        }
+        syncDevices(added, removed);
+    }
+
+    private Set<String> getMembersFromMem() {
+        Set<String> memMembers = new HashSet<String>();
+        for (String name : engine.sessionNames()) {
+            if (!isRelay(name)) {
+                memMembers.add(getDeviceToken(name));
+            }
+        }
+        return memMembers;
+    }
+
+    /**
+     * 边缘节点从源站拉过来的流, 设备不属于本机, 不能上报
+     */
+    private boolean isRelay(String name) {
+        return null != engine.edgeRelays() && engine.edgeRelays().isRelay(name);
+    }
 
-                // get members from redis
-                Collection<String> redisMembers = getMembersFromRedis(connection, devicesKey);
+    /**
+     * 一次 pipeline 写上线的设备并读出下线设备的 device-info,
+     * 再一次 pipeline 删除下线的设备; device-info 只有还指向本机时才删除
+     */
+    private void syncDevices(final Collection<String> added,
+                             final Collection<String> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
 
-                // 内存中的 session， 都保存到 redis 中
-                for (String newMember : memMembers) {
-                    addDevice(connection, devicesKey, newMember);
+        final byte[] devicesKey = getDeviceListKey().getBytes();
+        final byte[] field = name.getBytes();
+        final byte[] host = innerHost.getBytes();
+
+        final List<Object> results = executePipelined(redisTemplate, new RedisCallback<Void>() {
+            @Override
+            public Void doInRedis(RedisConnection connection) throws DataAccessException {
+                for (String token : added) {
+                    connection.sAdd(devicesKey, token.getBytes());
+                    connection.hSet(getDeviceInfoKey(token).getBytes(), field, host);
                 }
-                for (String oldMember : redisMembers) {
-                    if (!memMembers.contains(oldMember)) {
-                        removeDevice(connection, devicesKey, oldMember);
-                    }
+                for (String token : removed) {
+                    connection.hGet(getDeviceInfoKey(token).getBytes(), field);
                 }
 
-                // 设置超时时间
-                connection.expire(devicesKey.getBytes(),
-                        getExpireSeconds(updateResourceDevicesDelay));
+                // SADD 可能新建了 key
+                connection.expire(devicesKey, getExpireSeconds(updateResourceDevicesDelay));
                 return null;
             }
+        });
+
+        int index = 0;
+        for (String token : added) {
+            if (toLong(results.get(index)) > 0) {
+                logger.info("add session: '{}'", token);
+            }
+            index += 2;
+        }
+        reported.addAll(added);
+
+        if (removed.isEmpty()) {
+            return;
+        }
 
+        final int ownerIndex = index;
+        executePipelined(redisTemplate, new RedisCallback<Void>() {
+            @Override
+            public Void doInRedis(RedisConnection connection) throws DataAccessException {
+                int index = ownerIndex;
+                for (String token : removed) {
+                    connection.sRem(devicesKey, token.getBytes());
+
+                    if (innerHost.equals(toText(results.get(index++)))) {
+                        connection.hDel(getDeviceInfoKey(token).getBytes(), field);
+                    }
+                }
+                return null;
+            }
         });
-    }
 
-    private Collection<String> getMembersFromMem() {
-        final Collection<String> memMembers;
-        memMembers =
-                Collections2.transform(engine.sessionNames(),
-                        new Function<String, String>() {
-                            @Override
-                            public String apply(String input) {
-                                return getDeviceToken(input);
-                            }
+        logger.info("removed {} session(s) from {}", removed.size(), innerHost);
+        logger.debug("removed sessions: {}", removed);
+        reported.removeAll(removed);
+    }
 
-                        });
-        return memMembers;
+    /**
+     * 在一个新的连接上执行 pipeline。
+     * spring-data-redis 1.0.2 的 closePipeline 不会退出 pipeline 模式, 同一个连接上后面的命令
+     * 都只会进 pipeline 返回 null, 所以每个 pipeline 都单独 execute 一次
+     *
+     * @return 每个命令的结果, 是 jedis 的原始类型
+     */
+    static List<Object> executePipelined(StringRedisTemplate redisTemplate, final RedisCallback<?> commands) {
+        return redisTemplate.execute(new RedisCallback<List<Object>>() {
+            @Override
+            public List<Object> doInRedis(RedisConnection connection) throws DataAccessException {
+                connection.openPipeline();
+                commands.doInRedis(connection);
+                return connection.closePipeline();
+            }
+        });
     }
 
-    private void addDevice(RedisConnection connection,
-                           String deviceListKey,
-                           final String newDevice) {
-        // 更新 list 列表
-        boolean success = connection.sAdd(deviceListKey.getBytes(), newDevice.getBytes());
-        if (success) {
-            logger.info("add session: '{}'", newDevice);
+    static Set<String> getMembersFromRedis(RedisConnection connection,
+                                                   byte[] key) {
+        Set<byte[]> members = connection.sMembers(key);
+        if (null == members) {
+            return Collections.emptySet();
         }
 
-        // 更新 device-info
-        byte[] key_token = getDeviceInfoKey(newDevice).getBytes();
-        connection.hSet(key_token, name.getBytes(), innerHost.getBytes());
-    }
-
-    private void removeDevice(RedisConnection connection,
-                              String deviceListKey,
-                              final String token) {
-        // 更新 list 列表
-        boolean success = connection.sRem(deviceListKey.getBytes(), token.getBytes());
-        if (success) {
-            logger.info("removed session '{}' from {}", token, innerHost);
+        Set<String> redisMembers = new HashSet<String>(members.size() * 2);
+        for (byte[] member : members) {
+            redisMembers.add(new String(member));
         }
+        return redisMembers;
+    }
 
-        // 更新 device-info
-        byte[] deviceInfoKey = getDeviceInfoKey(token).getBytes();
-        byte[] filed = name.getBytes();
-        byte[] values = connection.hGet(deviceInfoKey, filed);
-        if (null != values && new String(values).equals(innerHost)) {
-            connection.hDel(deviceInfoKey, filed);
+    /**
+     * pipeline 里 HGET 的结果, jedis 2.1 返回的是 String, 不是 byte[]
+     */
+    static String toText(Object result) {
+        if (result instanceof byte[]) {
+            return new String((byte[]) result);
         }
+        return null != result ? result.toString() : null;
     }
 
-    private Collection<String> getMembersFromRedis(RedisConnection connection,
-                                                   String key) {
-        Collection<String> redisMembers;
-        redisMembers =
-                Collections2.transform(connection.sMembers(key.getBytes()),
-                        new Function<byte[], String>() {
-                            @Override
-                            public String apply(byte[] input) {
-                                return new String(input);
-                            }
-                        });
-        return redisMembers;
+    /**
+     * pipeline 返回的是 jedis 的原始结果, 整数命令是 Long
+     */
+    static long toLong(Object result) {
+        if (result instanceof Number) {
+            return ((Number) result).longValue();
+        }
+        if (result instanceof Boolean) {
+            return (Boolean) result ? 1 : 0;
+        }
+        return 0;
     }
 
 
-    private String getDeviceToken(String name) {
+    static String getDeviceToken(String name) {
         if (null == name || !name.endsWith(".sdp")) {
             return name;
         }
@@ -318,18 +484,30 @@ public abstract class AbstractRedisResource {
     }
 
     private String getListKey() {
+        return getListKey(name);
+    }
+
+    static String getListKey(String name) {
         return "resource:" + name + ":list";
     }
 
     private String getInfoKey() {
-        return "resource:" + name + ":" + innerHost + ":info";
+        return getInfoKey(name, innerHost);
+    }
+
+    static String getInfoKey(String name, String host) {
+        return "resource:" + name + ":" + host + ":info";
     }
 
     protected String getDeviceListKey() {
-        return "resource:" + name + ":" + innerHost + ":devices";
+        return getDeviceListKey(name, innerHost);
     }
 
-    protected String getDeviceInfoKey(String token) {
+    static String getDeviceListKey(String name, String host) {
+        return "resource:" + name + ":" + host + ":devices";
+    }
+
+    static String getDeviceInfoKey(String token) {
         return "resource:device:" + token + ":info";
     }
 
@@ -345,7 +523,7 @@ public abstract class AbstractRedisResource {
     public void setOsMonitor(OSMonitor osMonitor) {
         this.osMonitor = osMonitor;
     }
-    
+
     public void setRedisTemplate(StringRedisTemplate redisTemplate) {
         this.redisTemplate = redisTemplate;
     }
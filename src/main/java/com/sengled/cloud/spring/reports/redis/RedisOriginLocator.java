@@ -0,0 +1,61 @@
+package com.sengled.cloud.spring.reports.redis;
+
+import java.net.MalformedURLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import com.sengled.cloud.mediaserver.edge.OriginLocator;
+import com.sengled.cloud.mediaserver.url.URLObject;
+import com.sengled.cloud.monitor.OSMonitor;
+
+/**
+ * 按 {@link MediaResource} 写到 redis 里的数据找源站
+ *
+ * <p>
+ * resource:device:&lt;token&gt;:info 里的 media 是设备所在的服务器,
+ * resource:media:&lt;host&gt;:info 里的 port 是这台服务器的 rtsp 端口。
+ * 设备在本机上的不算, 避免自己拉自己
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月15日
+ */
+public class RedisOriginLocator implements OriginLocator {
+    private static final Logger logger = LoggerFactory.getLogger(RedisOriginLocator.class);
+
+    private StringRedisTemplate redisTemplate;
+    private OSMonitor osMonitor;
+
+    @Override
+    public URLObject locate(String name) throws MalformedURLException {
+        String token = AbstractRedisResource.getDeviceToken(name);
+        Object host = redisTemplate.opsForHash().get(AbstractRedisResource.getDeviceInfoKey(token), AbstractRedisResource.MEDIA);
+        if (null == host) {
+            return null;
+        }
+
+        if (osMonitor.getLocalIPList().contains(host)) {
+            logger.info("{} is on local host '{}'", name, host);
+            return null;
+        }
+
+        Object port = redisTemplate.opsForHash().get(AbstractRedisResource.getInfoKey(AbstractRedisResource.MEDIA, (String) host), "port");
+        if (null == port) {
+            // 源站的 info 过期了, 说明源站已经不在线
+            logger.info("{} is on '{}', but it's offline", name, host);
+            return null;
+        }
+
+        return new URLObject("rtsp://" + host + ":" + port + name);
+    }
+
+    public void setRedisTemplate(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    public void setOsMonitor(OSMonitor osMonitor) {
+        this.osMonitor = osMonitor;
+    }
+}
@@ -0,0 +1,237 @@
+package com.sengled.cloud.spring.reports.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import com.google.common.eventbus.Subscribe;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.async.TimerExecutor;
+import com.sengled.cloud.mediaserver.cluster.StreamRedirector;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.event.RtspSessionUpdatedEvent;
+import com.sengled.cloud.monitor.OSMonitor;
+
+/**
+ * 在本地缓存其他服务器上报到 redis 的设备, DESCRIBE 时只查一次 map
+ *
+ * <p>
+ * 每 {@link SystemPropertyKeys#CLUSTER_REFRESH_INTERVAL} 毫秒用一次 pipeline 读出每台服务器的
+ * outer_ip, port 和设备数, 只有设备数或者地址变了的服务器才再取 SMEMBERS;
+ * 每 {@link SystemPropertyKeys#REDIS_FULL_SYNC_ROUNDS} 轮全部重新取一次。
+ * info 过期的服务器当作已经下线, 它的设备从缓存里删掉。
+ * 设备在本机上线以后马上从缓存里删掉
+ * </p>
+ *
+ * @author 陈修恒
+ * @date 2016年6月15日
+ */
+public class RedisStreamRedirector implements StreamRedirector {
+    private static final Logger logger = LoggerFactory.getLogger(RedisStreamRedirector.class);
+
+    private static final int REFRESH_INTERVAL = Integer.getInteger(SystemPropertyKeys.CLUSTER_REFRESH_INTERVAL, 5 * 1000);
+    private static final int FULL_SYNC_ROUNDS = Math.max(1, Integer.getInteger(SystemPropertyKeys.REDIS_FULL_SYNC_ROUNDS, 20));
+
+    private StringRedisTemplate redisTemplate;
+    private OSMonitor osMonitor;
+
+    /** token -> 对外地址, EventLoop 里只读这一个 map */
+    private final ConcurrentHashMap<String, String> locations = new ConcurrentHashMap<String, String>();
+    /** 其他服务器上的设备, 只在 timer 线程里访问 */
+    private final Map<String, HostDevices> hosts = new HashMap<String, HostDevices>();
+    /** resource:media:list 按 CPU 使用率排序, 第一台在线的就是负载最低的 */
+    private volatile String leastLoaded;
+    private long numRefreshes;
+
+    public RedisStreamRedirector register(ServerEngine engine) {
+        TimerExecutor timer = new TimerExecutor("cluster-redirect-timer");
+        timer.setInterval(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    refresh();
+                } catch (Exception ex) {
+                    logger.warn("refresh cluster devices failed, {}", ex.getMessage());
+                }
+                return null;
+            }
+        }, 0, REFRESH_INTERVAL);
+        engine.eventBus().register(this);
+        return this;
+    }
+
+    @Override
+    public String getLocation(String name) {
+        return locations.get(AbstractRedisResource.getDeviceToken(name));
+    }
+
+    @Override
+    public String getLeastLoadedLocation() {
+        return leastLoaded;
+    }
+
+    /**
+     * @return 缓存了多少个其他服务器上的设备
+     */
+    public int numLocations() {
+        return locations.size();
+    }
+
+    @Subscribe
+    public void onSessionCreated(RtspSessionUpdatedEvent event) {
+        // 设备换到本机上了
+        locations.remove(AbstractRedisResource.getDeviceToken(event.getSession().getName()));
+    }
+
+    void refresh() {
+        final boolean fullSync = 0 == numRefreshes++ % FULL_SYNC_ROUNDS;
+
+        final List<String> others = new ArrayList<String>();
+        List<String> localIPs = osMonitor.getLocalIPList();
+        Set<String> members = redisTemplate.opsForZSet().range(AbstractRedisResource.getListKey(AbstractRedisResource.MEDIA), 0, -1);
+        for (String host : null != members ? members : Collections.<String>emptySet()) {
+            if (!localIPs.contains(host)) {
+                others.add(host);
+            }
+        }
+
+        // 每台服务器的地址和设备数
+        List<Object> results = Collections.emptyList();
+        if (!others.isEmpty()) {
+            results = AbstractRedisResource.executePipelined(redisTemplate, new RedisCallback<Void>() {
+                @Override
+                public Void doInRedis(RedisConnection connection) throws DataAccessException {
+                    for (String host : others) {
+                        byte[] infoKey = AbstractRedisResource.getInfoKey(AbstractRedisResource.MEDIA, host).getBytes();
+                        connection.hGet(infoKey, "outer_ip".getBytes());
+                        connection.hGet(infoKey, "port".getBytes());
+                        connection.sCard(AbstractRedisResource.getDeviceListKey(AbstractRedisResource.MEDIA, host).getBytes());
+                    }
+                    return null;
+                }
+            });
+        }
+
+        Set<String> offline = new HashSet<String>(hosts.keySet());
+        final List<String> changed = new ArrayList<String>();
+        final List<String> changedLocations = new ArrayList<String>();
+        String leastLoaded = null;
+        for (int i = 0; i < others.size(); i++) {
+            String outerIp = AbstractRedisResource.toText(results.get(3 * i));
+            String port = AbstractRedisResource.toText(results.get(3 * i + 1));
+            if (null == outerIp || null == port) {
+                continue; // info 过期了, 服务器已经下线
+            }
+
+            String host = others.get(i);
+            String location = outerIp + ":" + port;
+            long numDevices = AbstractRedisResource.toLong(results.get(3 * i + 2));
+            offline.remove(host);
+            if (null == leastLoaded) {
+                leastLoaded = location;
+            }
+
+            HostDevices devices = hosts.get(host);
+            if (fullSync || null == devices || devices.tokens.size() != numDevices || !location.equals(devices.location)) {
+                changed.add(host);
+                changedLocations.add(location);
+            }
+        }
+
+        this.leastLoaded = leastLoaded;
+
+        for (String host : offline) {
+            HostDevices removed = hosts.remove(host);
+            logger.info("{} offline, {} device(s) removed", host, removed.tokens.size());
+            update(removed, Collections.<String>emptySet(), null);
+        }
+
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        // 设备有变化的服务器, 重新取设备列表
+        results = AbstractRedisResource.executePipelined(redisTemplate, new RedisCallback<Void>() {
+            @Override
+            public Void doInRedis(RedisConnection connection) throws DataAccessException {
+                for (String host : changed) {
+                    connection.sMembers(AbstractRedisResource.getDeviceListKey(AbstractRedisResource.MEDIA, host).getBytes());
+                }
+                return null;
+            }
+        });
+
+        for (int i = 0; i < changed.size(); i++) {
+            Set<String> tokens = toTextSet(results.get(i));
+            HostDevices devices = new HostDevices(changedLocations.get(i), tokens);
+            update(hosts.put(changed.get(i), devices), tokens, devices.location);
+        }
+        logger.debug("{} host(s) changed, {} device(s) in cluster", changed.size(), locations.size());
+    }
+
+    /**
+     * 把一台服务器的新设备列表写到 locations 里, 删掉已经不在这台服务器上的设备
+     */
+    private void update(HostDevices old, Set<String> tokens, String location) {
+        if (null != old) {
+            for (String token : old.tokens) {
+                if (!tokens.contains(token) || !old.location.equals(location)) {
+                    // 别的服务器可能已经写了新地址, 只删自己的
+                    locations.remove(token, old.location);
+                }
+            }
+        }
+
+        for (String token : tokens) {
+            locations.put(token, location);
+        }
+    }
+
+    /**
+     * pipeline 里 SMEMBERS 的结果, 元素可能是 String 也可能是 byte[]
+     */
+    private static Set<String> toTextSet(Object result) {
+        if (!(result instanceof Collection)) {
+            return Collections.emptySet();
+        }
+
+        Collection<?> members = (Collection<?>) result;
+        Set<String> tokens = new HashSet<String>(members.size() * 2);
+        for (Object member : members) {
+            tokens.add(AbstractRedisResource.toText(member));
+        }
+        return tokens;
+    }
+
+    public void setRedisTemplate(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    public void setOsMonitor(OSMonitor osMonitor) {
+        this.osMonitor = osMonitor;
+    }
+
+    private static class HostDevices {
+        private final String location;
+        private final Set<String> tokens;
+
+        private HostDevices(String location, Set<String> tokens) {
+            this.location = location;
+            this.tokens = tokens;
+        }
+    }
+}
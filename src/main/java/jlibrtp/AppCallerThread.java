@@ -78,22 +78,7 @@ public class AppCallerThread extends Thread {
 				Enumeration<Participant> enu = rtpSession.partDb.getParticipants();
 				
 				while(enu.hasMoreElements()) {
-					Participant p = enu.nextElement(); 
-					
-					boolean done = false;
-					//System.out.println(p.ssrc + " " + !done +" " + p.rtpAddress 
-					//		+ " " + rtpSession.naiveReception + " " + p.pktBuffer);
-					//System.out.println("done: " + done + "  p.unexpected: " + p.unexpected);
-					while(!done && (!p.unexpected || rtpSession.naiveReception) 
-							&& p.pktBuffer != null && p.pktBuffer.getLength() > 0) {
-
-						IRtpPkt aFrame = p.pktBuffer.popOldestFrame();
-						if(aFrame == null) {
-							done = true;
-						} else {
-							appl.receiveData(aFrame, p);
-						}
-					}
+					deliverFrames(rtpSession, enu.nextElement(), appl);
 				}
 		    
 		     } catch (Exception e) {
@@ -106,4 +91,27 @@ public class AppCallerThread extends Thread {
 		logger.debug("<- AppCallerThread.run() terminating");
 	}
 
+	/**
+	 * Push all frames that are ready in the packet buffer of the participant
+	 * to the application.
+	 * 
+	 * @param rtpSession the session the participant belongs to
+	 * @param p the participant to check
+	 * @param appl the applications interface
+	 */
+	public static void deliverFrames(RTPSession rtpSession, Participant p, RTPAppIntf appl) {
+		boolean done = false;
+		//System.out.println("done: " + done + "  p.unexpected: " + p.unexpected);
+		while(!done && (!p.unexpected || rtpSession.naiveReception) 
+				&& p.pktBuffer != null && p.pktBuffer.getLength() > 0) {
+
+			IRtpPkt aFrame = p.pktBuffer.popOldestFrame();
+			if(aFrame == null) {
+				done = true;
+			} else {
+				appl.receiveData(aFrame, p);
+			}
+		}
+	}
+
 }
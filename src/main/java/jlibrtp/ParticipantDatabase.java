@@ -2,8 +2,8 @@ package jlibrtp;
 
 import java.util.Enumeration;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 
@@ -26,16 +26,18 @@ public abstract class ParticipantDatabase {
     }
 
     /** 
-     * A linked list to hold participants explicitly added by the application
+     * An array backed list to hold participants explicitly added by the application
      * In unicast mode this is the list used for RTP and RTCP transmission, 
      * in multicast it should not be in use. 
+     * Receivers rarely change, iterating them must not allocate a node per element.
      */
-    protected LinkedList<Participant> receivers = new LinkedList<Participant>();
+    protected List<Participant> receivers = new CopyOnWriteArrayList<Participant>();
     /** 
      * The hashtable holds participants added through received RTP and RTCP packets,
      * as well as participants that have been linked to an SSRC by ip address (in unicast mode).
+     * Keyed by the primitive SSRC, lookups do not box.
      */
-    protected ConcurrentHashMap<Long, Participant> ssrcTable = new ConcurrentHashMap<Long,Participant>();
+    protected SsrcTable ssrcTable = new SsrcTable();
 
     public ParticipantDatabase() {
         super();
@@ -70,9 +72,7 @@ public abstract class ParticipantDatabase {
      * @return the participant, null if unknonw
      */
     public Participant getParticipant(long ssrc) {
-    	Participant p = null;
-    	p = ssrcTable.get(ssrc);
-    	return p; 
+    	return ssrcTable.get(ssrc);
     }
 
     /**
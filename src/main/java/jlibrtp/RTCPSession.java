@@ -222,6 +222,8 @@ public abstract class RTCPSession {
      */
     protected synchronized int addToFbQueue(long targetSsrc,
                                                 RtcpPkt aPkt) {
+                                                	aPkt.time = System.currentTimeMillis();
+                                                	
                                                 	if(this.fbQueue == null)
                                                 		this.fbQueue = new Hashtable<Long, LinkedList<RtcpPkt>>();
                                                 	
@@ -306,6 +308,36 @@ public abstract class RTCPSession {
     	return null;
     }
 
+    /**
+     * Removes the given packets from the feedback queue, packets
+     * added after they were fetched are kept
+     * 
+     * @param ssrc of the participant we are notifying
+     * @param pkts packets returned by getFromFbQueue
+     */
+    protected synchronized void removeFromFbQueue(long ssrc, RtcpPkt[] pkts) {
+    	if(this.fbQueue == null || pkts == null)
+    		return;
+    	
+    	LinkedList<RtcpPkt> ll = this.fbQueue.get(ssrc);
+    	if(ll == null)
+    		return;
+    	
+    	ListIterator<RtcpPkt> li = ll.listIterator();
+    	while(li.hasNext()) {
+    		RtcpPkt aPkt = li.next();
+    		for(int i = 0; i < pkts.length; i++) {
+    			if(aPkt == pkts[i]) {
+    				li.remove();
+    				break;
+    			}
+    		}
+    	}
+    	
+    	if(ll.isEmpty())
+    		this.fbQueue.remove(ssrc);
+    }
+
     /**
      * Cleans the feeback queue of any packets that have expired,
      * ie feedback packet that are no longer relevant.
@@ -424,7 +424,28 @@ public abstract class RTPSession {
     	ret = this.rtcpSession.addToFbQueue(ssrcMediaSource, pkt);
     	if(ret == 0)
     		this.rtcpSession.wakeSenderThread(ssrcMediaSource);
-    	return ret; 
+    	return ret;
+    }
+
+    /**
+     * Adds a Full Intra Request (RFC 5104) to the feedback queue
+     *
+     * @param ssrcMediaSource
+     * @param seqNr command sequence number, must change for every new request
+     * @return 0 if packet was queued, -1 if no feedback support, 1 if redundant
+     */
+    public int fbFullIntraRequest(long ssrcMediaSource, int seqNr) {
+    	int ret = 0;
+
+    	if(rtcpAVPFIntfIsNull())
+    		return -1;
+
+    	RtcpPktPSFB pkt = new RtcpPktPSFB(this.ssrc, ssrcMediaSource);
+    	pkt.makeFullIntraRequest(seqNr);
+    	ret = this.rtcpSession.addToFbQueue(ssrcMediaSource, pkt);
+    	if(ret == 0)
+    		this.rtcpSession.wakeSenderThread(ssrcMediaSource);
+    	return ret;
     }
 
     /**
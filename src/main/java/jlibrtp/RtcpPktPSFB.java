@@ -51,6 +51,9 @@ public class RtcpPktPSFB extends RtcpPkt {
 	/** Application Layer Feedback Message */
 	protected byte[] alfBitString;
 	
+	/** FIR command sequence number, RFC 5104 */
+	protected int firSeqNr = -1;
+	
 	/**
 	 * Generic constructor, then call make<something>
 	 * 
@@ -98,6 +101,16 @@ public class RtcpPktPSFB extends RtcpPkt {
 		this.rpsiBitString = bitString;
 	}
 	
+	/**
+	 * Make this packet a Full Intra Request (RFC 5104)
+	 * 
+	 * @param seqNr command sequence number, incremented for every new request
+	 */
+	protected void makeFullIntraRequest(int seqNr) {
+		super.itemCount = 4; //FMT
+		this.firSeqNr = seqNr & 0xFF;
+	}
+	
 	/** 
 	 * Make this packet an Application specific feedback message
 	 * 
@@ -304,6 +317,16 @@ public class RtcpPktPSFB extends RtcpPkt {
 	}
 	
 	
+	/**
+	 * Encode a Full Intra Request, the FCI holds the media source SSRC
+	 * followed by the sequence number and three reserved bytes
+	 */
+	private void encFullIntraRequest() {
+		byte[] someBytes = StaticProcs.uIntLongToByteWord(this.ssrcMediaSource);
+		System.arraycopy(someBytes, 0, super.rawPkt, 12, 4);
+		super.rawPkt[16] = (byte) this.firSeqNr;
+	}
+	
 	/**
 	 * Encode Application Layer Feedback
 	 *
@@ -329,8 +352,8 @@ public class RtcpPktPSFB extends RtcpPkt {
 	public void encode() {
 		switch(super.itemCount) {
 		case 1: // Picture Loss Indication 
-			//Nothing to do really
-			super.rawPkt = new byte[24];
+			//Nothing to do really, header and the two SSRCs
+			super.rawPkt = new byte[12];
 			break; 
 		case 2: // Slice Loss Indication
 			super.rawPkt = new byte[24 + 4*this.sliFirst.length];
@@ -340,6 +363,10 @@ public class RtcpPktPSFB extends RtcpPkt {
 			super.rawPkt = new byte[24 + 2 + this.rpsiBitString.length/4];
 			encRefPictureSelIndic();
 			break;
+		case 4: // Full Intra Request
+			super.rawPkt = new byte[20];
+			encFullIntraRequest();
+			break;
 		case 15: // Application Layer Feedback Messages
 			super.rawPkt = new byte[24 + this.alfBitString.length/4];
 			encAppLayerFB();
@@ -348,8 +375,11 @@ public class RtcpPktPSFB extends RtcpPkt {
 		
 		byte[] someBytes = StaticProcs.uIntLongToByteWord(super.ssrc);
 		System.arraycopy(someBytes, 0, super.rawPkt, 4, 4);
-		someBytes = StaticProcs.uIntLongToByteWord(this.ssrcMediaSource);
-		System.arraycopy(someBytes, 0, super.rawPkt, 8, 4);
+		if(super.itemCount != 4) {
+			// FIR carries the media source in the FCI, RFC 5104 4.3.1
+			someBytes = StaticProcs.uIntLongToByteWord(this.ssrcMediaSource);
+			System.arraycopy(someBytes, 0, super.rawPkt, 8, 4);
+		}
 		
 		writeHeaders();
 	}
@@ -373,6 +403,9 @@ public class RtcpPktPSFB extends RtcpPkt {
 			}
 			System.out.println("  FMT: Slice Loss Indication, " + str);
 			break;
+		case 4: // Full Intra Request
+			System.out.println("  FMT: Full Intra Request, seqNr: " + this.firSeqNr);
+			break;
 		case 3: // Reference Picture Selection Indication
 			if(rpsiBitString != null) {
 				str = "rpsiBitString[].length: " + rpsiBitString.length;
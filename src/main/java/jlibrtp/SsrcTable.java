@@ -0,0 +1,241 @@
+package jlibrtp;
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash table from SSRC to participant.
+ *
+ * SSRCs are kept in a primitive long array so lookups never box the key,
+ * and probing walks adjacent slots. Lookups are lock free, updates are
+ * serialized on the table itself.
+ *
+ * Removed slots are marked with a tombstone and are only reclaimed when
+ * the table is rebuilt, so the key stored in a slot never changes while a
+ * reader may be looking at it.
+ */
+public class SsrcTable {
+	private static final Object TOMBSTONE = new Object();
+	private static final int MIN_CAPACITY = 8;
+
+	private volatile Slots slots;
+	private volatile int size;
+	/** live entries plus tombstones */
+	private int used;
+
+	public SsrcTable() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of participants expected in the table
+	 */
+	public SsrcTable(int expectedSize) {
+		this.slots = new Slots(capacityFor(expectedSize));
+	}
+
+	/**
+	 * Find a participant based on the ssrc
+	 *
+	 * @param ssrc of the participant to be found
+	 * @return the participant, null if unknown
+	 */
+	public Participant get(long ssrc) {
+		final Slots s = this.slots;
+		final int mask = s.keys.length - 1;
+		int i = hash(ssrc) & mask;
+
+		Object v;
+		while((v = s.values.get(i)) != null) {
+			if(v != TOMBSTONE && s.keys[i] == ssrc)
+				return (Participant) v;
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(long ssrc) {
+		return get(ssrc) != null;
+	}
+
+	/**
+	 * Associate the participant with the ssrc
+	 *
+	 * @return the participant previously known under this ssrc, or null
+	 */
+	public synchronized Participant put(long ssrc, Participant p) {
+		if(p == null)
+			throw new NullPointerException("participant");
+
+		Slots s = this.slots;
+		int mask = s.keys.length - 1;
+		int i = hash(ssrc) & mask;
+
+		Object v;
+		while((v = s.values.get(i)) != null) {
+			if(v != TOMBSTONE && s.keys[i] == ssrc) {
+				s.values.set(i, p);
+				return (Participant) v;
+			}
+			i = (i + 1) & mask;
+		}
+
+		if((used + 1) * 4 > s.keys.length * 3) {
+			s = rebuild(size + 1);
+			mask = s.keys.length - 1;
+			i = hash(ssrc) & mask;
+			while(s.values.get(i) != null)
+				i = (i + 1) & mask;
+		}
+
+		// key first, the value write publishes it to readers
+		s.keys[i] = ssrc;
+		s.values.set(i, p);
+		used++;
+		size++;
+		return null;
+	}
+
+	/**
+	 * Remove the participant known under the ssrc
+	 *
+	 * @return the removed participant, or null
+	 */
+	public synchronized Participant remove(long ssrc) {
+		final Slots s = this.slots;
+		final int i = indexOf(s, ssrc);
+		if(i < 0)
+			return null;
+
+		Participant p = (Participant) s.values.get(i);
+		s.values.set(i, TOMBSTONE);
+		size--;
+		return p;
+	}
+
+	/**
+	 * Remove the entry only if the ssrc is currently mapped to this participant
+	 *
+	 * @return true if the entry was removed
+	 */
+	public synchronized boolean remove(long ssrc, Participant p) {
+		final Slots s = this.slots;
+		final int i = indexOf(s, ssrc);
+		if(i < 0 || s.values.get(i) != p)
+			return false;
+
+		s.values.set(i, TOMBSTONE);
+		size--;
+		return true;
+	}
+
+	public synchronized void clear() {
+		this.slots = new Slots(MIN_CAPACITY);
+		this.used = 0;
+		this.size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Weakly consistent enumeration of the participants,
+	 * never throws ConcurrentModificationException
+	 */
+	public Enumeration<Participant> elements() {
+		final Slots s = this.slots;
+		return new Enumeration<Participant>() {
+			private int index = -1;
+			private Participant next = advance();
+
+			private Participant advance() {
+				while(++index < s.keys.length) {
+					Object v = s.values.get(index);
+					if(v != null && v != TOMBSTONE)
+						return (Participant) v;
+				}
+				return null;
+			}
+
+			public boolean hasMoreElements() {
+				return next != null;
+			}
+
+			public Participant nextElement() {
+				if(next == null)
+					throw new NoSuchElementException();
+				Participant p = next;
+				next = advance();
+				return p;
+			}
+		};
+	}
+
+	private int indexOf(Slots s, long ssrc) {
+		final int mask = s.keys.length - 1;
+		int i = hash(ssrc) & mask;
+
+		Object v;
+		while((v = s.values.get(i)) != null) {
+			if(v != TOMBSTONE && s.keys[i] == ssrc)
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Copy the live entries into a fresh table, dropping tombstones.
+	 * Readers still holding the old slots keep seeing a consistent view.
+	 */
+	private Slots rebuild(int expectedSize) {
+		final Slots old = this.slots;
+		final Slots s = new Slots(capacityFor(expectedSize));
+		final int mask = s.keys.length - 1;
+
+		for(int j = 0; j < old.keys.length; j++) {
+			Object v = old.values.get(j);
+			if(v == null || v == TOMBSTONE)
+				continue;
+
+			int i = hash(old.keys[j]) & mask;
+			while(s.values.get(i) != null)
+				i = (i + 1) & mask;
+			s.keys[i] = old.keys[j];
+			s.values.set(i, v);
+		}
+
+		this.slots = s;
+		this.used = size;
+		return s;
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while(capacity * 3 < expectedSize * 4 + 4)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	private static int hash(long ssrc) {
+		// SSRCs are random 32 bit values, a multiplicative mix is enough
+		long h = ssrc * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static final class Slots {
+		final long[] keys;
+		final AtomicReferenceArray<Object> values;
+
+		Slots(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new AtomicReferenceArray<Object>(capacity);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package jlibrtp.udp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import jlibrtp.Participant;
+import jlibrtp.RTCPSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RTCP part of a NettyUDPRTPSession.
+ *
+ * Replaces RTCPSenderThread and RTCPReceiverThread: regular packets are
+ * sent by a timer on the event loop of the RTCP channel, which is
+ * rescheduled with the delay calculated after each packet. Feedback
+ * cancels the timer and reconsiders the timing right away.
+ * All state is only touched from that event loop.
+ */
+public class NettyUDPRTCPSession extends RTCPSession {
+	private static final Logger logger = LoggerFactory.getLogger(NettyUDPRTCPSession.class);
+
+	/** RTCP channel */
+	protected final DatagramChannel rtcpChannel;
+
+	private final RTCPReceiver receiver;
+	private final RTCPSender sender;
+
+	/** The next regular RTCP packet */
+	private ScheduledFuture<?> timer = null;
+
+	private final Runnable regularTask = new Runnable() {
+		@Override
+		public void run() {
+			if(rtpSession.endSession) {
+				return;
+			}
+
+			try {
+				sender.sendRegular();
+			} catch (Exception e) {
+				logger.error("RTCP of {} failed, {}", rtpSession, e.getMessage(), e);
+			}
+			schedule();
+		}
+	};
+
+	NettyUDPRTCPSession(NettyUDPRTPSession parent, DatagramChannel rtcpChannel) {
+		this.rtpSession = parent;
+		this.rtcpChannel = rtcpChannel;
+		this.receiver = new RTCPReceiver(parent);
+		this.sender = new ChannelRTCPSender(parent);
+	}
+
+	/**
+	 * Calculates delays and schedules the first regular packet
+	 */
+	@Override
+	public void start() {
+		rtcpChannel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				calculateDelay();
+				schedule();
+			}
+		});
+	}
+
+	/**
+	 * Send bye packets from the event loop
+	 */
+	@Override
+	public void sendByes() {
+		rtcpChannel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				sender.sendByes();
+			}
+		});
+	}
+
+	/**
+	 * Reconsider the timing of the next packet because of this ssrc
+	 *
+	 * @param ssrc that has feedback waiting.
+	 */
+	@Override
+	public void wakeSenderThread(final long ssrc) {
+		this.fbWaiting = ssrc;
+
+		rtcpChannel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				if(rtpSession.endSession || null == timer) {
+					return; // not started yet, or already stopped
+				}
+
+				timer.cancel(false);
+				sender.reconsiderTiming(ssrc);
+				fbWaiting = -1;
+				schedule();
+			}
+		});
+	}
+
+	/**
+	 * Stop the timers, say bye to everyone and close the channel
+	 */
+	void stop() {
+		rtcpChannel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				if(null != timer) {
+					timer.cancel(false);
+					timer = null;
+				}
+
+				// Be polite, say Bye to everone
+				if(rtcpChannel.isActive()) {
+					sender.sendByes();
+				}
+				rtcpChannel.close();
+			}
+		});
+	}
+
+	/**
+	 * Called on the event loop with every datagram received on the RTCP channel
+	 */
+	void receivePacket(DatagramPacket msg) {
+		InetSocketAddress from = msg.sender();
+		InetSocketAddress local = rtcpChannel.localAddress();
+
+		// Check whether this is one of our own
+		if(from.equals(local)) {
+			return;
+		}
+
+		ByteBuf content = msg.content();
+		byte[] rawPkt = new byte[content.readableBytes()];
+		content.getBytes(content.readerIndex(), rawPkt);
+
+		String intfStr = null != rtpSession.debugAppIntf() ? String.valueOf(local) : null;
+		receiver.parsePacket(rawPkt, rawPkt.length, from, intfStr);
+		logger.debug("Packet received from: {}", from);
+	}
+
+	private void schedule() {
+		timer = rtcpChannel.eventLoop().schedule(regularTask, Math.max(0, nextDelay()), TimeUnit.MILLISECONDS);
+		logger.debug("<-> next RTCP packet of {} in {} ms", rtpSession, nextDelay());
+	}
+
+	/**
+	 * Writes the compound packets to the RTCP channel
+	 */
+	private class ChannelRTCPSender extends RTCPSender {
+		ChannelRTCPSender(NettyUDPRTPSession rtpSession) {
+			super(NettyUDPRTCPSession.this, rtpSession);
+		}
+
+		@Override
+		protected int mcSendCompRtcpPkt(CompRtcpPkt pkt) {
+			logger.warn("{} does not support multicast", rtpSession);
+			return -1;
+		}
+
+		@Override
+		protected int sendCompRtcpPkt(CompRtcpPkt pkt, Participant part) {
+			InetSocketAddress receiver = ((UDPParticipant)part).rtcpAddress;
+			if(null == receiver || !rtcpChannel.isActive()) {
+				return -1;
+			}
+
+			byte[] pktBytes = pkt.encode();
+			rtcpChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(pktBytes), receiver));
+			//Debug
+			if(this.rtpSession.debugAppIntf() != null) {
+				this.rtpSession.debugAppIntf().packetSent(2, receiver,
+						new String("Sent unicast RTCP packet of size " + pktBytes.length +
+								" to " + receiver + " via " + rtcpChannel.localAddress()));
+			}
+			return pktBytes.length;
+		}
+	}
+}
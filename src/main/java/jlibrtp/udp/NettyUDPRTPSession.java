@@ -0,0 +1,256 @@
+package jlibrtp.udp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.Iterator;
+
+import jlibrtp.AppCallerThread;
+import jlibrtp.DebugAppIntf;
+import jlibrtp.Participant;
+import jlibrtp.RTCPAppIntf;
+import jlibrtp.RTPAppIntf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A unicast RTP session running on a netty event loop.
+ *
+ * Unlike UDPRTPSession, which starts four threads per session, the RTP and
+ * RTCP datagram channels of this session are registered on one event loop
+ * of a shared group. Received packets are parsed and handed to the RTPAppIntf
+ * on that loop, RTCP is sent from timers scheduled on it. The callbacks of
+ * RTPAppIntf and RTCPAppIntf are called the same way as before, but they run
+ * on the event loop and must not block.
+ *
+ * Multicast sessions still have to use UDPRTPSession.
+ */
+public class NettyUDPRTPSession extends UDPRTPSession {
+	private static final Logger logger = LoggerFactory.getLogger(NettyUDPRTPSession.class);
+
+	/** RTP channel */
+	protected final DatagramChannel rtpChannel;
+
+	/**
+	 * Returns an instance of a <b>unicast</b> RTP session, the channels are bound
+	 * before this returns. Following this you should adjust any settings and then
+	 * register your application.
+	 *
+	 * @param group shared event loops, one of them is picked for this session
+	 * @param rtpAddress local address to receive RTP on
+	 * @param rtcpAddress local address to receive RTCP on
+	 * @throws InterruptedException if interrupted while binding
+	 */
+	public NettyUDPRTPSession(EventLoopGroup group, InetSocketAddress rtpAddress, InetSocketAddress rtcpAddress) throws InterruptedException {
+		mcSession = false;
+
+		// RTP and RTCP of one session share a loop, so they never race each other
+		EventLoop loop = group.next();
+		Class<? extends DatagramChannel> channelClass =
+				group instanceof EpollEventLoopGroup ? EpollDatagramChannel.class : NioDatagramChannel.class;
+
+		DatagramChannel rtcpChannel = null;
+		this.rtpChannel = (DatagramChannel) new Bootstrap().group(loop)
+				.channel(channelClass)
+				.handler(new RtpHandler())
+				.bind(rtpAddress).sync().channel();
+		try {
+			rtcpChannel = (DatagramChannel) new Bootstrap().group(loop)
+					.channel(channelClass)
+					.handler(new RtcpHandler())
+					.bind(rtcpAddress).sync().channel();
+		} catch (InterruptedException e) {
+			rtpChannel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			rtpChannel.close();
+			throw e;
+		}
+
+		this.generateCNAME();
+		this.generateSsrc();
+		this.rtcpSession = new NettyUDPRTCPSession(this, rtcpChannel);
+	}
+
+	/**
+	 * Registers an application (RTPAppIntf) with the RTP session.
+	 * The session will call receiveData() on the supplied instance whenever data has been received.
+	 *
+	 * @param	rtpApp an object that implements the RTPAppIntf-interface
+	 * @param	rtcpApp an object that implements the RTCPAppIntf-interface (optional)
+	 * @return	-1 if this RTPSession-instance already has an application registered.
+	 */
+	@Override
+	public int RTPSessionRegister(RTPAppIntf rtpApp, RTCPAppIntf rtcpApp, DebugAppIntf debugApp) {
+		if(registered) {
+			logger.error("Can\'t register another application!");
+			return -1;
+		} else {
+			generateSeqNum();
+
+			this.appIntf = rtpApp;
+			this.rtcpAppIntf = rtcpApp;
+			this.debugAppIntf = debugApp;
+
+			// packets are dropped until now
+			registered = true;
+			rtcpSession.start();
+			return 0;
+		}
+	}
+
+	@Override
+	public int updateRTPSock(DatagramSocket newSock) {
+		logger.warn("Can't switch {} to a blocking socket.", this);
+		return -1;
+	}
+
+	@Override
+	public int updateRTCPSock(DatagramSocket newSock) {
+		logger.warn("Can't switch {} to a blocking socket.", this);
+		return -1;
+	}
+
+	@Override
+	public int updateRTPSock(MulticastSocket newSock) {
+		logger.warn("Can't switch {} to multicast.", this);
+		return -1;
+	}
+
+	@Override
+	public int updateRTCPSock(MulticastSocket newSock) {
+		logger.warn("Can't switch {} to multicast.", this);
+		return -1;
+	}
+
+	/**
+	 * Send the encoded packet to all unicast receivers.
+	 * May be called from any thread, the writes are queued on the event loop.
+	 */
+	@Override
+	protected int sendRtpPacket(byte[] pktBytes) {
+		if(!rtpChannel.isActive()) {
+			return -1;
+		}
+
+		Iterator<Participant> iter = partDb.getUnicastReceivers();
+		while(iter.hasNext()) {
+			InetSocketAddress receiver = ((UDPParticipant)iter.next()).rtpAddress;
+			logger.debug("   Sending to {}", receiver);
+
+			rtpChannel.write(new DatagramPacket(Unpooled.wrappedBuffer(pktBytes), receiver));
+			//Debug
+			if(this.debugAppIntf != null) {
+				this.debugAppIntf.packetSent(0, receiver,
+						new String("Sent unicast RTP packet of size " + pktBytes.length +
+								" to " + receiver + " via " + rtpChannel.localAddress()));
+			}
+		}
+		rtpChannel.flush();
+
+		return 0;
+	}
+
+	@Override
+	public void endSession(String reason) {
+		this.endSession = true;
+
+		// No more RTP packets, please
+		rtpChannel.close();
+
+		// Say bye, then close the RTCP channel
+		((NettyUDPRTCPSession) this.rtcpSession).stop();
+	}
+
+	@Override
+	protected void generateCNAME() {
+		String hostname = rtpChannel.localAddress().getAddress().getCanonicalHostName();
+
+		cname = System.getProperty("user.name") + "@" + hostname;
+	}
+
+	/**
+	 * @return the local address RTP is received on, with the bound port
+	 */
+	public InetSocketAddress localRtpAddress() {
+		return rtpChannel.localAddress();
+	}
+
+	/**
+	 * @return the local address RTCP is received on, with the bound port
+	 */
+	public InetSocketAddress localRtcpAddress() {
+		return ((NettyUDPRTCPSession) rtcpSession).rtcpChannel.localAddress();
+	}
+
+	/**
+	 * @return the event loop both channels of this session are registered on
+	 */
+	public EventLoop eventLoop() {
+		return rtpChannel.eventLoop();
+	}
+
+	@Override
+	public String toString() {
+		return "{NettyUDPRTPSession, ssrc = " + ssrc + ", local = " + rtpChannel.localAddress() + "}";
+	}
+
+	/**
+	 * Replaces RTPReceiverThread and AppCallerThread
+	 */
+	private class RtpHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
+			if(!registered || endSession) {
+				return;
+			}
+
+			ByteBuf content = msg.content();
+			byte[] rawPkt = new byte[content.readableBytes()];
+			content.getBytes(content.readerIndex(), rawPkt);
+
+			UDPParticipant part = RTPReceiverThread.receivePacket(NettyUDPRTPSession.this, rawPkt, rawPkt.length, msg.sender());
+			if(part != null) {
+				AppCallerThread.deliverFrames(NettyUDPRTPSession.this, part, appIntf);
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			logger.warn("RTP of {} failed, {}", NettyUDPRTPSession.this, cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Replaces RTCPReceiverThread
+	 */
+	private class RtcpHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
+			if(!registered || endSession) {
+				return;
+			}
+
+			((NettyUDPRTCPSession) rtcpSession).receivePacket(msg);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			logger.warn("RTCP of {} failed, {}", NettyUDPRTPSession.this, cause.getMessage(), cause);
+		}
+	}
+}
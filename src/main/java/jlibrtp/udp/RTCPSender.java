@@ -0,0 +1,358 @@
+/**
+ * Java RTP Library (jlibrtp)
+ * Copyright (C) 2006 Arne Kepp
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package jlibrtp.udp;
+
+import java.util.Enumeration;
+import java.util.Iterator;
+
+import jlibrtp.Participant;
+import jlibrtp.RTCPSession;
+import jlibrtp.RTPSession;
+import jlibrtp.RtcpPkt;
+import jlibrtp.RtcpPktSDES;
+import jlibrtp.RtcpPktAPP;
+import jlibrtp.RtcpPktBYE;
+import jlibrtp.RtcpPktRR;
+import jlibrtp.RtcpPktSR;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds and sends scheduled RTCP packets
+ * 
+ * Knows what to send and to whom, but not when: the RTCPSenderThread
+ * calls it from its sleep loop, the NettyUDPRTCPSession from timers
+ * scheduled on the event loop of the channel.
+ * 
+ * @author Arne Kepp
+ *
+ */
+abstract class RTCPSender {
+	private static final Logger logger = LoggerFactory.getLogger(RTCPSender.class);
+	
+	/** Parent RTP Session */
+	protected UDPRTPSession rtpSession = null;
+	/** Parent RTCP Session */
+	protected RTCPSession rtcpSession = null;
+	
+	/** Whether we have sent byes for the last conflict */
+	private boolean byesSent = false;
+	
+	/** Iterators over the member list, multicast and unicast */
+	private Enumeration<Participant> enu = null;
+	private Iterator<Participant> iter = null;
+	
+	/**
+	 * @param rtcpSession parent RTCP session
+	 * @param rtpSession parent RTP session
+	 */
+	protected RTCPSender(RTCPSession rtcpSession, UDPRTPSession rtpSession) {
+		this.rtpSession = rtpSession;
+		this.rtcpSession = rtcpSession;
+	}
+	
+	/**
+	 * Send BYE messages to all the relevant participants
+	 *
+	 */
+	protected void sendByes() {
+		// Create the packet
+		CompRtcpPkt compPkt = new CompRtcpPkt();
+		
+		//Need a SR for validation
+		RtcpPktSR srPkt = new RtcpPktSR(this.rtpSession.ssrc(), 
+				this.rtpSession.sentPktCount, this.rtpSession.sentOctetCount, null);
+		compPkt.addPacket(srPkt);
+		
+		byte[] reasonBytes;
+		
+		//Add the actualy BYE Pkt
+		long[] ssrcArray = {this.rtpSession.ssrc()};
+		if(rtpSession.conflict()) {
+			reasonBytes = "SSRC collision".getBytes();
+		} else {
+			reasonBytes = "jlibrtp says bye bye!".getBytes();
+		}
+		RtcpPktBYE byePkt = new RtcpPktBYE( ssrcArray, reasonBytes);
+		
+		compPkt.addPacket(byePkt);
+		
+		// Send it off
+		if(rtpSession.mcSession()) {
+			mcSendCompRtcpPkt(compPkt);
+		} else {
+			Iterator<Participant> iter = rtpSession.partDb().getUnicastReceivers();
+		
+			while(iter.hasNext()) {
+				UDPParticipant part = (UDPParticipant) iter.next();
+				if(part.rtcpAddress != null)
+					sendCompRtcpPkt(compPkt, part);
+			}
+			//System.out.println("SENT BYE PACKETS!!!!!");
+		}
+	}
+	
+	/**
+	 * Multicast version of sending a Compound RTCP packet
+	 * 
+	 * @param pkt the packet to best
+	 * @return 0 is successful, -1 otherwise
+	 */
+	protected abstract int mcSendCompRtcpPkt(CompRtcpPkt pkt);
+	
+	/**
+	 * Unicast version of sending a Compound RTCP packet
+	 * 
+	 * @param pkt the packet to best
+	 * @param part the socket address of the recipient
+	 * @return 0 is successful, -1 otherwise
+	 */
+	protected abstract int sendCompRtcpPkt(CompRtcpPkt pkt, Participant part);
+	
+	/**
+	 * Check whether we can send an immediate feedback packet to this person
+	 * @param ssrc SSRC of participant
+	 */
+	protected void reconsiderTiming(long ssrc) {
+		Participant part =  this.rtpSession.partDb().getParticipant(ssrc);
+		
+		if( part != null && this.rtcpSession.fbSendImmediately()) {
+			CompRtcpPkt compPkt = preparePacket(part, false);
+			/*********** Send the packet ***********/
+			// Keep track of sent packet length for average;
+			int datagramLength;
+			if(rtpSession.mcSession()) {
+				datagramLength = this.mcSendCompRtcpPkt(compPkt);
+			} else {
+				//part.debugPrint();
+				datagramLength = this.sendCompRtcpPkt(compPkt, part);
+			}
+			/*********** Administrative tasks ***********/			
+			//Update average packet size
+			if(datagramLength > 0) {
+				rtcpSession.updateAvgPacket(datagramLength);
+			}
+		} else if(part != null 
+				&& this.rtcpSession.fbAllowEarly() 
+				&& this.rtcpSession.fbSendEarly()) {
+			
+			// Make sure we dont do it too often
+			this.rtcpSession.fbAllowEarly(false);
+			
+			CompRtcpPkt compPkt = preparePacket(part, true);
+			/*********** Send the packet ***********/
+			// Keep track of sent packet length for average;
+			int datagramLength;
+			if(rtpSession.mcSession()) {
+				datagramLength = this.mcSendCompRtcpPkt(compPkt);
+			} else {
+				//part.debugPrint();
+				datagramLength = this.sendCompRtcpPkt(compPkt, part);
+			}
+			/*********** Administrative tasks ***********/			
+			//Update average packet size
+			if(datagramLength > 0) {
+				rtcpSession.updateAvgPacket(datagramLength);
+			}
+			rtcpSession.calculateDelay();
+		}
+		
+		//Out of luck, fb message will have to go with next regular packet
+		//Sleep for the remaining time.
+		this.rtcpSession.nextDelay((int)(rtcpSession.nextDelay() - ( System.currentTimeMillis() - this.rtcpSession.prevTime())));
+		if(this.rtcpSession.nextDelay() < 0)
+			this.rtcpSession.nextDelay(0);
+		
+	}
+	
+	/** 
+	 * Prepare a packet. The output depends on the participant and how the
+	 * packet is scheduled.
+	 * 
+	 * @param part the participant to report to
+	 * @param regular whether this is a regularly, or early scheduled RTCP packet
+	 * @return compound RTCP packet
+	 */
+	protected CompRtcpPkt preparePacket(Participant part, boolean regular) {
+		/*********** Figure out what we are going to send ***********/
+		// Check whether this person has sent RTP packets since the last RR.
+		boolean incRR = false;
+		if(part.secondLastRtcpRRPkt > part.lastRtcpRRPkt) {
+			incRR = true;
+			part.secondLastRtcpRRPkt = part.lastRtcpRRPkt;
+			part.lastRtcpRRPkt = System.currentTimeMillis();
+		}
+		
+		// Are we sending packets? -> add SR
+		boolean incSR = false;
+		if(rtpSession.sentPktCount > 0 && regular) {
+			incSR = true;
+		}
+		
+		
+		/*********** Actually create the packet ***********/
+		// Create compound packet
+		CompRtcpPkt compPkt = new CompRtcpPkt();
+		
+		//If we're sending packets we'll use a SR for header
+		if(incSR) {
+			RtcpPktSR srPkt = new RtcpPktSR(this.rtpSession.ssrc(), 
+					this.rtpSession.sentPktCount, this.rtpSession.sentOctetCount, null);
+			compPkt.addPacket(srPkt);
+			
+			
+			if(part.ssrc() > 0) {
+				RtcpPkt[] ar = this.rtcpSession.getFromFbQueue(part.ssrc());
+				if(ar != null) {
+					for(int i=0; i<ar.length; i++) {
+						compPkt.addPacket(ar[i]);
+					}
+				}
+			}
+			
+		}
+		
+		//If we got anything from this participant since we sent the 2nd to last RtcpPkt
+		if(incRR || !incSR) {
+			Participant[] partArray = {part};
+			
+			if(part.receivedPkts < 1)
+				partArray = null;
+			
+			RtcpPktRR rrPkt = new RtcpPktRR(partArray, rtpSession.ssrc());
+			compPkt.addPacket(rrPkt);
+			
+			if( !incSR && part.ssrc() > 0) {
+				RtcpPkt[] ar = this.rtcpSession.getFromFbQueue(part.ssrc());
+				if(ar != null) {
+					for(int i=0; i<ar.length; i++) {
+						compPkt.addPacket(ar[i]);
+					}
+				}
+			}
+		}
+		
+		// APP packets
+		if(regular && part.ssrc() > 0) {
+			RtcpPktAPP[] ar = this.rtcpSession.getFromAppQueue(part.ssrc());
+			if(ar != null) {
+				for(int i=0; i<ar.length; i++) {
+					compPkt.addPacket(ar[i]);
+				}
+			} else {
+				//Nope
+			}
+		}
+		
+		
+		// For now we'll stick the SDES on every time, and only for us
+		//if(regular) {
+			RtcpPktSDES sdesPkt = new UDPRtcpPktSDES(true, this.rtpSession, null);
+			compPkt.addPacket(sdesPkt);
+		//}
+		
+		return compPkt;
+	}
+	
+	/**
+	 * Send the next regularly scheduled RTCP packet.
+	 * 
+	 * 1) Determine the next RTCP recipient
+	 * 2) Construct a compound packet with all the relevant information
+	 * 3) Send the packet
+	 * 4) Calculate next delay
+	 */
+	protected void sendRegular() {
+		// TODO Change to rtcpReceivers
+		if(enu == null && iter == null) {
+			if(rtpSession.mcSession()) {
+				enu = rtpSession.partDb().getParticipants();
+			} else {
+				iter = rtpSession.partDb().getUnicastReceivers();
+			}
+		}
+		
+		this.rtcpSession.fbAllowEarly(true);
+		
+		logger.debug("<-> RTCPSender sending regular packet");
+		
+		// Regenerate nextDelay, before anything happens.
+		rtcpSession.calculateDelay();
+		
+		// We'll wait here until a conflict (if any) has been resolved,
+		// so that the bye packets for our current SSRC can be sent.
+		if(rtpSession.conflict()) {
+			if(! this.byesSent) {
+				sendByes();
+				this.byesSent = true;
+			}
+			return;
+		}
+		this.byesSent = false;
+					
+		//Grab the next person
+		UDPParticipant part = null;
+
+		//Multicast
+		if(this.rtpSession.mcSession()) {
+			if(! enu.hasMoreElements())
+				enu = rtpSession.partDb().getParticipants();
+			
+			if( enu.hasMoreElements() ) {
+				part = (UDPParticipant) enu.nextElement();
+			} else {
+				return;
+			}
+			
+		//Unicast
+		} else {
+			if(! iter.hasNext()) {
+				iter = rtpSession.partDb().getUnicastReceivers();
+			}
+			
+			if(iter.hasNext() ) {
+				while( iter.hasNext() && (part == null || part.rtcpAddress == null)) {
+					part = (UDPParticipant) iter.next();
+				}
+			}
+			
+			if(part == null || part.rtcpAddress == null)
+				return;
+		}
+		
+		CompRtcpPkt compPkt = preparePacket(part, true);
+		
+		/*********** Send the packet ***********/
+		// Keep track of sent packet length for average;
+		int datagramLength;
+		if(rtpSession.mcSession()) {
+			datagramLength = this.mcSendCompRtcpPkt(compPkt);
+		} else {
+			//part.debugPrint();
+			datagramLength = this.sendCompRtcpPkt(compPkt, part);
+		}
+		
+		/*********** Administrative tasks ***********/			
+		//Update average packet size
+		if(datagramLength > 0) {
+			rtcpSession.updateAvgPacket(datagramLength);
+		}
+	}
+}
@@ -90,65 +90,8 @@ public class RTPReceiverThread extends Thread {
 				}
 			}
 
-			// Parse the received RTP (?) packet
-			ByteArrayRtpPkt pkt = new ByteArrayRtpPkt(rawPkt, packet.getLength());
-
-			// Check whether it was valid.
-			if(pkt == null) {
-				System.out.println("Received invalid RTP packet. Ignoring");
-				continue;
-			}
-			
-			long pktSsrc = pkt.ssrc();
-			
-			// Check for loops and SSRC collisions
-			if( rtpSession.ssrc() == pktSsrc )
-				rtpSession.resolveSsrcConflict();
-			
-			long[] csrcArray = pkt.getCsrcArray();
-			if( csrcArray != null) {
-				for(int i=0; i< csrcArray.length; i++) {
-					if(csrcArray[i] == rtpSession.ssrc());
-						rtpSession.resolveSsrcConflict();
-				}
-			}
-			
-			if (logger.isTraceEnabled()) {
-				logger.trace("-> RTPReceiverThread.run() rcvd packet, seqNum {}, payload = {}", pktSsrc, new String(pkt.getPayload()));
-			}
-			
-			//Find the participant in the database based on SSRC
-			UDPParticipant part = (UDPParticipant) rtpSession.partDb().getParticipant(pktSsrc);
-
-			if(part == null) {
-				InetSocketAddress nullSocket = null;
-				part = new UDPParticipant((InetSocketAddress) packet.getSocketAddress(), nullSocket, pkt.ssrc());
-				part.unexpected(true);
-				rtpSession.partDb().addParticipant(1,part);
-			}
-
-			// Do checks on whether the datagram came from the expected source for that SSRC.
-			if(part.rtpAddress == null || packet.getAddress().equals(part.rtpAddress.getAddress())) {
-				PktBuffer pktBuffer = part.pktBuffer();
-
-				if(pktBuffer != null) {
-					//A buffer already exists, append to it
-					pktBuffer.addPkt(pkt);
-				} else {
-					// Create a new packet/frame buffer
-					pktBuffer = new PktBuffer(this.rtpSession, part,pkt);
-					part.pktBuffer(pktBuffer);
-				}
-			} else {
-				logger.info("Got an unexpected packet from {}, the sending ip-address was {}, we expected from ",
-								new Object[] { pkt.ssrc(),
-										packet.getAddress(), part.rtpAddress });
-			}
-
-			// Statistics for receiver report.
-			part.updateRRStats(packet.getLength(), pkt);
-			// Upate liveness
-			part.lastRtpPkt = System.currentTimeMillis();
+			// Parse and buffer the received RTP (?) packet
+			receivePacket(rtpSession, rawPkt, packet.getLength(), (InetSocketAddress) packet.getSocketAddress());
 
 			logger.debug("<-> RTPReceiverThread signalling pktBufDataReady");
 			
@@ -161,4 +104,80 @@ public class RTPReceiverThread extends Thread {
 		}
 	}
 
+
+	/**
+	 * Parse a received RTP packet and append it to the packet buffer of the participant.
+	 * 
+	 * Shared by the receiver thread and the event loop based session.
+	 * 
+	 * @param rtpSession the session the packet was received on
+	 * @param rawPkt the datagram payload
+	 * @param length number of valid bytes in rawPkt
+	 * @param from the sender of the datagram
+	 * @return the participant the packet was buffered for, null if the packet was dropped
+	 */
+	static UDPParticipant receivePacket(UDPRTPSession rtpSession, byte[] rawPkt, int length, InetSocketAddress from) {
+		// Parse the received RTP (?) packet
+		ByteArrayRtpPkt pkt = new ByteArrayRtpPkt(rawPkt, length);
+
+		// Check whether it was valid.
+		if(pkt == null) {
+			System.out.println("Received invalid RTP packet. Ignoring");
+			return null;
+		}
+		
+		long pktSsrc = pkt.ssrc();
+		
+		// Check for loops and SSRC collisions
+		if( rtpSession.ssrc() == pktSsrc )
+			rtpSession.resolveSsrcConflict();
+		
+		long[] csrcArray = pkt.getCsrcArray();
+		if( csrcArray != null) {
+			for(int i=0; i< csrcArray.length; i++) {
+				if(csrcArray[i] == rtpSession.ssrc());
+					rtpSession.resolveSsrcConflict();
+			}
+		}
+		
+		if (logger.isTraceEnabled()) {
+			logger.trace("-> RTPReceiverThread.run() rcvd packet, seqNum {}, payload = {}", pktSsrc, new String(pkt.getPayload()));
+		}
+		
+		//Find the participant in the database based on SSRC
+		UDPParticipant part = (UDPParticipant) rtpSession.partDb().getParticipant(pktSsrc);
+
+		if(part == null) {
+			InetSocketAddress nullSocket = null;
+			part = new UDPParticipant(from, nullSocket, pkt.ssrc());
+			part.unexpected(true);
+			rtpSession.partDb().addParticipant(1,part);
+		}
+
+		// Do checks on whether the datagram came from the expected source for that SSRC.
+		if(part.rtpAddress == null || from.getAddress().equals(part.rtpAddress.getAddress())) {
+			PktBuffer pktBuffer = part.pktBuffer();
+
+			if(pktBuffer != null) {
+				//A buffer already exists, append to it
+				pktBuffer.addPkt(pkt);
+			} else {
+				// Create a new packet/frame buffer
+				pktBuffer = new PktBuffer(rtpSession, part,pkt);
+				part.pktBuffer(pktBuffer);
+			}
+		} else {
+			logger.info("Got an unexpected packet from {}, the sending ip-address was {}, we expected from ",
+							new Object[] { pkt.ssrc(),
+									from.getAddress(), part.rtpAddress });
+		}
+
+		// Statistics for receiver report.
+		part.updateRRStats(length, pkt);
+		// Upate liveness
+		part.lastRtpPkt = System.currentTimeMillis();
+
+		return part;
+	}
+
 }
@@ -86,7 +86,7 @@ public class UDPParticipantDatabase extends ParticipantDatabase {
 			return -1;
 		} else {
 			// Check this one is not redundant
-			if(this.ssrcTable.contains(p.ssrc())) {
+			if(this.ssrcTable.containsKey(p.ssrc())) {
 				System.out.println("ParticipantDatabase.addParticipant() SSRC "
 						+"already known " + Long.toString(p.ssrc()));
 				return -2;
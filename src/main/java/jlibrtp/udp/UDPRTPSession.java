@@ -117,6 +117,15 @@ public class UDPRTPSession extends RTPSession {
 		 // The sockets are not always imediately available?
 		 try { Thread.sleep(1); } catch (InterruptedException e) { System.out.println("RTPSession sleep failed"); }
 	 }
+	 
+	 /**
+	  * For subclasses that do not use the blocking sockets,
+	  * they have to generate CNAME, SSRC and the RTCP session themselves.
+	  */
+	 protected UDPRTPSession() {
+	     super(UDPParticipantDatabase.FACTORY);
+	 }
+	 
 	 public boolean mcSession() {
         return mcSession;
     }
@@ -412,67 +421,8 @@ public class UDPRTPSession extends RTPSession {
                                      }
                             
                             
-                                     if(this.mcSession) {
-                                         DatagramPacket packet = null;
-                            
-                            
-                                         try {
-                                             packet = new DatagramPacket(pktBytes,pktBytes.length,this.mcGroup,this.rtpMCSock.getPort());
-                                         } catch (Exception e) {
-                                             System.out.println("RTPSession.sendData() packet creation failed.");
-                                             e.printStackTrace();
-                                             return null;
-                                         }
-                            
-                                         try {
-                                             rtpMCSock.send(packet);
-                                             //Debug
-                                             if(this.debugAppIntf != null) {
-                                                 this.debugAppIntf.packetSent(1, (InetSocketAddress) packet.getSocketAddress(), 
-                                                         new String("Sent multicast RTP packet of size " + packet.getLength() + 
-                                                                 " to " + packet.getSocketAddress().toString() + " via " 
-                                                                 + rtpMCSock.getLocalSocketAddress().toString()));
-                                             }
-                                         } catch (Exception e) {
-                                             System.out.println("RTPSession.sendData() multicast failed.");
-                                             e.printStackTrace();
-                                             return null;
-                                         }      
-                            
-                                     } else {
-                                         // Loop over recipients
-                                         Iterator<Participant> iter = partDb.getUnicastReceivers();
-                                         while(iter.hasNext()) {            
-                                             InetSocketAddress receiver = ((UDPParticipant)iter.next()).rtpAddress;
-                                             DatagramPacket packet = null;
-                            
-                                             logger.debug("   Sending to {}", receiver);
-                                             
-                            
-                                             try {
-                                                 packet = new DatagramPacket(pktBytes,pktBytes.length,receiver);
-                                             } catch (Exception e) {
-                                                 System.out.println("RTPSession.sendData() packet creation failed.");
-                                                 e.printStackTrace();
-                                                 return null;
-                                             }
-                            
-                                             //Actually send the packet
-                                             try {
-                                                 rtpSock.send(packet);
-                                                 //Debug
-                                                 if(this.debugAppIntf != null) {
-                                                     this.debugAppIntf.packetSent(0, (InetSocketAddress) packet.getSocketAddress(), 
-                                                             new String("Sent unicast RTP packet of size " + packet.getLength() + 
-                                                                     " to " + packet.getSocketAddress().toString() + " via " 
-                                                                     + rtpSock.getLocalSocketAddress().toString()));
-                                                 }
-                                             } catch (Exception e) {
-                                                 System.out.println("RTPSession.sendData() unicast failed.");
-                                                 e.printStackTrace();
-                                                 return null;
-                                             }
-                                         }
+                                     if(sendRtpPacket(pktBytes) < 0) {
+                                         return null;
                                      }
                             
                                      //Update our stats
@@ -486,6 +436,78 @@ public class UDPRTPSession extends RTPSession {
                              }
     
     
+    /**
+     * Send an encoded RTP packet to the multicast group, or to all unicast receivers
+     * 
+     * @param pktBytes the encoded packet
+     * @return 0 if sent, -1 if there was a problem
+     */
+    protected int sendRtpPacket(byte[] pktBytes) {
+        if(this.mcSession) {
+            DatagramPacket packet = null;
+
+            try {
+                packet = new DatagramPacket(pktBytes,pktBytes.length,this.mcGroup,this.rtpMCSock.getPort());
+            } catch (Exception e) {
+                System.out.println("RTPSession.sendData() packet creation failed.");
+                e.printStackTrace();
+                return -1;
+            }
+
+            try {
+                rtpMCSock.send(packet);
+                //Debug
+                if(this.debugAppIntf != null) {
+                    this.debugAppIntf.packetSent(1, (InetSocketAddress) packet.getSocketAddress(), 
+                            new String("Sent multicast RTP packet of size " + packet.getLength() + 
+                                    " to " + packet.getSocketAddress().toString() + " via " 
+                                    + rtpMCSock.getLocalSocketAddress().toString()));
+                }
+            } catch (Exception e) {
+                System.out.println("RTPSession.sendData() multicast failed.");
+                e.printStackTrace();
+                return -1;
+            }
+
+        } else {
+            // Loop over recipients
+            Iterator<Participant> iter = partDb.getUnicastReceivers();
+            while(iter.hasNext()) {            
+                InetSocketAddress receiver = ((UDPParticipant)iter.next()).rtpAddress;
+                DatagramPacket packet = null;
+
+                logger.debug("   Sending to {}", receiver);
+
+                try {
+                    packet = new DatagramPacket(pktBytes,pktBytes.length,receiver);
+                } catch (Exception e) {
+                    System.out.println("RTPSession.sendData() packet creation failed.");
+                    e.printStackTrace();
+                    return -1;
+                }
+
+                //Actually send the packet
+                try {
+                    rtpSock.send(packet);
+                    //Debug
+                    if(this.debugAppIntf != null) {
+                        this.debugAppIntf.packetSent(0, (InetSocketAddress) packet.getSocketAddress(), 
+                                new String("Sent unicast RTP packet of size " + packet.getLength() + 
+                                        " to " + packet.getSocketAddress().toString() + " via " 
+                                        + rtpSock.getLocalSocketAddress().toString()));
+                    }
+                } catch (Exception e) {
+                    System.out.println("RTPSession.sendData() unicast failed.");
+                    e.printStackTrace();
+                    return -1;
+                }
+            }
+        }
+        
+        return 0;
+    }
+    
+
 	/********************************************* Feedback message stuff ***************************************/
     protected boolean rtcpAVPFIntfIsNull(){return null == this.rtcpAVPFIntf;}
 
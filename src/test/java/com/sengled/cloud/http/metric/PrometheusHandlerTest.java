@@ -0,0 +1,136 @@
+package com.sengled.cloud.http.metric;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.quota.TenantQuotas;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.xml.QuotaDef;
+import com.sengled.cloud.monitor.OSMonitor;
+
+public class PrometheusHandlerTest extends TestCase {
+    private static final Pattern SAMPLE = Pattern.compile("([a-zA-Z_:][a-zA-Z0-9_:]*)(\\{(.*)\\})? (\\S+)");
+
+    public static void testExposition() {
+        MetricRegistry registry = new MetricRegistry();
+        ServerEngine engine = new ServerEngine().withMetricRegistry("rtsp-server", registry);
+        new TenantQuotas().withMetricRegistry("rtsp-server", registry)
+                .update(Arrays.asList(new QuotaDef("a", "/tenant-a/", 10, 0, 0),
+                                      new QuotaDef("b.vip", "/tenant-b/", 10, 0, 0)));
+        registry.register(MetricRegistry.name(OSMonitor.class, "thread", "rtsp-worker", "max"), gauge(12.5));
+        registry.register(MetricRegistry.name(OSMonitor.class, "thread", "rtsp-boss", "max"), gauge(1));
+        registry.register("text", gauge("not a number"));
+        registry.histogram("sizes").update(10);
+        registry.histogram("sizes").update(30);
+
+        PrometheusHandler handler = new PrometheusHandler("/metrics");
+        handler.setMetricRegistry(registry);
+        handler.addServerEngine("rtsp-server", engine);
+        Map<String, Family> families = parse(handler);
+
+        // 标识转成了标签, 同一类数据只有一个名字
+        Family listeners = families.get("mediaserver_mediaserver_quota_TenantQuotas_listeners");
+        assertEquals("gauge", listeners.type);
+        assertTrue(listeners.samples.contains("{engine=\"rtsp-server\",tenant=\"a\"} 0"));
+        assertTrue(listeners.samples.contains("{engine=\"rtsp-server\",tenant=\"b.vip\"} 0"));
+
+        Family threads = families.get("mediaserver_monitor_OSMonitor_thread_max");
+        assertTrue(threads.samples.contains("{group=\"rtsp-worker\"} 12.5"));
+        assertTrue(threads.samples.contains("{group=\"rtsp-boss\"} 1"));
+
+        assertTrue(families.get("mediaserver_engine_channels").samples.contains("{engine=\"rtsp-server\"} 0"));
+        for (String name : families.keySet()) {
+            assertFalse(name, name.contains("rtsp_server") || name.contains("tenant_a") || name.contains("rtsp_worker"));
+        }
+
+        // summary 有 _sum 和 _count
+        Family sizes = families.get("mediaserver_sizes");
+        assertEquals("summary", sizes.type);
+        assertTrue(sizes.samples.contains("_sum 40"));
+        assertTrue(sizes.samples.contains("_count 2"));
+
+        // 不是数字的 gauge 不输出
+        assertNull(families.get("mediaserver_text"));
+    }
+
+    /**
+     * 按 Prometheus 文本格式解析, 同时检查格式
+     */
+    private static Map<String, Family> parse(PrometheusHandler handler) {
+        ByteBuf out = Unpooled.buffer();
+        handler.write(out);
+        String text = out.toString(Charset.forName("UTF-8"));
+        out.release();
+
+        Map<String, Family> families = new LinkedHashMap<String, Family>();
+        Set<String> helps = new HashSet<String>();
+        Family current = null;
+        for (String line : text.split("\n")) {
+            if (line.startsWith("# HELP ")) {
+                assertTrue(line, helps.add(line.split(" ")[2]));
+            } else if (line.startsWith("# TYPE ")) {
+                String[] parts = line.split(" ");
+                assertEquals(line, 4, parts.length);
+                assertTrue(line, helps.contains(parts[2]));
+                assertNull(line, families.get(parts[2]));
+                if (null != current) {
+                    assertFalse(current.name, current.samples.isEmpty());
+                }
+                current = new Family(parts[2], parts[3]);
+                families.put(current.name, current);
+            } else {
+                Matcher matcher = SAMPLE.matcher(line);
+                assertTrue(line, matcher.matches());
+                assertNotNull(line, current);
+
+                String name = matcher.group(1);
+                String suffix = name.substring(Math.min(name.length(), current.name.length()));
+                if ("summary".equals(current.type)) {
+                    assertTrue(line, Arrays.asList("", "_sum", "_count").contains(suffix));
+                } else {
+                    assertEquals(line, "", suffix);
+                }
+                assertTrue(line, name.startsWith(current.name));
+                Double.parseDouble(matcher.group(4).replace("Inf", "Infinity"));
+                current.samples.add(suffix + (null != matcher.group(2) ? matcher.group(2) : "") + " " + matcher.group(4));
+            }
+        }
+        assertFalse(current.samples.isEmpty());
+        return families;
+    }
+
+    private static <T> Gauge<T> gauge(final T value) {
+        return new Gauge<T>() {
+            @Override
+            public T getValue() {
+                return value;
+            }
+        };
+    }
+
+    private static class Family {
+        final String name;
+        final String type;
+        final List<String> samples = new ArrayList<String>();
+
+        Family(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.sengled.cloud.http.metric;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.sengled.cloud.http.metric.TimeSeries.Resolution;
+
+public class TimeSeriesTest extends TestCase {
+    public static void testRingIsBounded() {
+        TimeSeries series = new TimeSeries(1);
+        for (int i = 0; i < 10000; i++) {
+            series.add(i * 10000L, new double[]{i});
+        }
+
+        List<Double> values = values(series, Resolution.SECONDS_10, 0, Long.MAX_VALUE);
+        assertEquals(Resolution.SECONDS_10.capacity, values.size());
+        assertEquals(10000.0 - Resolution.SECONDS_10.capacity, values.get(0));
+        assertEquals(9999.0, values.get(values.size() - 1));
+    }
+
+    public static void testDownsampling() {
+        TimeSeries series = new TimeSeries(2);
+        // 2 分钟, 每 10 秒一个点
+        for (int i = 0; i < 13; i++) {
+            series.add(i * 10000L, new double[]{i, 1});
+        }
+
+        // 第 1 分钟的平均值是 (0 + ... + 5) / 6, 第 2 分钟还没有结束
+        List<Double> values = values(series, Resolution.MINUTE_1, 0, Long.MAX_VALUE);
+        assertEquals(2, values.size());
+        assertEquals(2.5, values.get(0));
+        assertEquals(8.5, values.get(1));
+        assertEquals(0, series.size(Resolution.MINUTES_10));
+    }
+
+    public static void testRange() {
+        TimeSeries series = new TimeSeries(1);
+        for (int i = 0; i < 100; i++) {
+            series.add(i * 10000L, new double[]{i});
+        }
+
+        List<Double> values = values(series, Resolution.SECONDS_10, 100000, 200000);
+        assertEquals(11, values.size());
+        assertEquals(10.0, values.get(0));
+
+        assertEquals(Resolution.SECONDS_10, Resolution.forRange(0, 30 * 60 * 1000));
+        assertEquals(Resolution.MINUTE_1, Resolution.forRange(0, 2 * 60 * 60 * 1000));
+        assertEquals(Resolution.MINUTES_10, Resolution.parse("10M"));
+    }
+
+    private static List<Double> values(TimeSeries series, Resolution resolution, long from, long to) {
+        final List<Double> values = new ArrayList<Double>();
+        series.visit(resolution, 0, from, to, new TimeSeries.Visitor() {
+            @Override
+            public void visit(long time, double value) {
+                values.add(value);
+            }
+        });
+        return values;
+    }
+}
@@ -0,0 +1,157 @@
+package com.sengled.cloud.mediaserver;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.rtsp.RtspHeaders;
+import io.netty.handler.codec.rtsp.RtspMethods;
+import io.netty.handler.codec.rtsp.RtspResponseStatuses;
+import io.netty.handler.codec.rtsp.RtspVersions;
+
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.mediaserver.cluster.StreamRedirector;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+
+public class AdmissionControlTest extends TestCase {
+    private static final String URL = "rtsp://127.0.0.1:554/live/admission.sdp";
+    private static final String SDP = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=admission\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=control:streamid=0\r\n";
+
+    public static void testHysteresis() {
+        System.setProperty(SystemPropertyKeys.ADMISSION_MAX_OUTBOUND, "100");
+        System.setProperty(SystemPropertyKeys.ADMISSION_MAX_LAG, "500");
+        try {
+            AdmissionControl admission = new AdmissionControl(new ServerEngine());
+            admission.update(50, 100, 0, 50);
+            assertFalse(admission.isOverloaded());
+
+            // 超过 500ms 的调度延时
+            admission.update(50, 600, 0, 50);
+            assertTrue(admission.isOverloaded());
+            assertEquals(RtspResponseStatuses.SERVICE_UNAVAILABLE, admission.getRejectStatus());
+
+            // 降到上限以下, 但是还没到 80%
+            admission.update(50, 450, 0, 50);
+            assertTrue(admission.isOverloaded());
+
+            // 带宽超出更多
+            admission.update(150, 450, 0, 50);
+            assertEquals(RtspResponseStatuses.NOT_ENOUGH_BANDWIDTH, admission.getRejectStatus());
+
+            admission.update(70, 350, 0, 50);
+            assertFalse(admission.isOverloaded());
+        } finally {
+            System.clearProperty(SystemPropertyKeys.ADMISSION_MAX_OUTBOUND);
+            System.clearProperty(SystemPropertyKeys.ADMISSION_MAX_LAG);
+        }
+    }
+
+    public static void testDisabledByDefault() {
+        AdmissionControl admission = new AdmissionControl(new ServerEngine());
+        admission.update(1000, 10000, 1000, 100);
+        assertFalse(admission.isOverloaded());
+    }
+
+    public static void testRejectPlayersOnly() {
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        AdmissionControl admission = newAdmissionControl(engine);
+        engine.withAdmissionControl(admission);
+
+        // 推流端
+        EmbeddedChannel publisher = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(HttpResponseStatus.OK, request(publisher, RtspMethods.ANNOUNCE, URL, SDP).getStatus());
+        assertEquals(HttpResponseStatus.OK, request(publisher, RtspMethods.SETUP, URL + "/streamid=0", null).getStatus());
+        assertEquals(HttpResponseStatus.OK, request(publisher, RtspMethods.RECORD, URL, null).getStatus());
+        assertEquals(1, engine.numSessions());
+
+        // DESCRIBE 以后过载
+        EmbeddedChannel player = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(HttpResponseStatus.OK, request(player, RtspMethods.DESCRIBE, URL, null).getStatus());
+        assertEquals(HttpResponseStatus.OK, request(player, RtspMethods.SETUP, URL + "/streamid=0", null).getStatus());
+        admission.update(0, 1000, 0, 0);
+        assertEquals(RtspResponseStatuses.SERVICE_UNAVAILABLE, request(player, RtspMethods.PLAY, URL, null).getStatus());
+        assertEquals(0, engine.numListeners("/live/admission.sdp"));
+
+        // 新的观众和推流端
+        EmbeddedChannel newPlayer = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(RtspResponseStatuses.SERVICE_UNAVAILABLE, request(newPlayer, RtspMethods.DESCRIBE, URL, null).getStatus());
+        EmbeddedChannel newPublisher = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(HttpResponseStatus.OK, request(newPublisher, RtspMethods.ANNOUNCE, URL + "2", SDP).getStatus());
+
+        // 恢复
+        admission.update(0, 0, 0, 0);
+        assertEquals(HttpResponseStatus.OK, request(player, RtspMethods.PLAY, URL, null).getStatus());
+        assertEquals(1, engine.numListeners("/live/admission.sdp"));
+
+        player.finish();
+        newPlayer.finish();
+        newPublisher.finish();
+        publisher.finish();
+    }
+
+    public static void testRedirectWhenOverloaded() {
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        AdmissionControl admission = newAdmissionControl(engine);
+        engine.withAdmissionControl(admission);
+        engine.withStreamRedirector(new StreamRedirector() {
+            @Override
+            public String getLocation(String name) {
+                return "/live/remote.sdp".equals(name) ? "1.2.3.4:554" : null;
+            }
+
+            @Override
+            public String getLeastLoadedLocation() {
+                return null;
+            }
+        });
+        admission.update(0, 1000, 0, 0);
+
+        // 流在其他服务器上, 过载时也只是重定向
+        EmbeddedChannel player = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        FullHttpResponse response = request(player, RtspMethods.DESCRIBE, "rtsp://127.0.0.1:554/live/remote.sdp", null);
+        assertEquals(RtspResponseStatuses.MOVED_TEMPORARILY, response.getStatus());
+        assertEquals("rtsp://1.2.3.4:554/live/remote.sdp", response.headers().get(HttpHeaders.Names.LOCATION));
+
+        // 哪里都没有的流还是 404
+        assertEquals(HttpResponseStatus.NOT_FOUND, request(player, RtspMethods.DESCRIBE, URL, null).getStatus());
+        player.finish();
+    }
+
+    private static AdmissionControl newAdmissionControl(ServerEngine engine) {
+        System.setProperty(SystemPropertyKeys.ADMISSION_MAX_LAG, "500");
+        try {
+            return new AdmissionControl(engine);
+        } finally {
+            System.clearProperty(SystemPropertyKeys.ADMISSION_MAX_LAG);
+        }
+    }
+
+    private static FullHttpResponse request(EmbeddedChannel channel, HttpMethod method, String url, String content) {
+        FullHttpRequest request = new DefaultFullHttpRequest(RtspVersions.RTSP_1_0, method, url,
+                null != content ? Unpooled.copiedBuffer(content, Charset.forName("UTF-8")) : Unpooled.buffer(0));
+        request.headers().set(RtspHeaders.Names.CSEQ, 1);
+        if (RtspMethods.SETUP.equals(method)) {
+            request.headers().set(RtspHeaders.Names.TRANSPORT, "RTP/AVP/TCP;unicast;interleaved=0-1");
+        }
+        channel.writeInbound(request);
+
+        FullHttpResponse response = (FullHttpResponse) channel.readOutbound();
+        response.release();
+        return response;
+    }
+}
@@ -0,0 +1,385 @@
+package com.sengled.cloud.mediaserver;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.rtsp.RtspEncoder;
+import io.netty.handler.codec.rtsp.RtspHeaders;
+import io.netty.handler.codec.rtsp.RtspMethods;
+import io.netty.handler.codec.rtsp.RtspVersions;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jlibrtp.RtcpPktBYE;
+import junit.framework.TestCase;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.loadtest.LoadStats;
+import com.sengled.cloud.loadtest.SyntheticPublisher;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.Transport;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspObjectDecoder;
+import com.sengled.cloud.mediaserver.rtsp.codec.RtspResponseDecoder;
+import com.sengled.cloud.mediaserver.rtsp.interleaved.InterleavedFrame;
+
+/**
+ * 推流、观众不停地上线下线, 检查 ByteBuf 有没有泄漏
+ *
+ * <p>
+ * 在回环地址上起一个真正的 rtsp 服务器, 推流用 {@link SyntheticPublisher}, 观众走 DESCRIBE/SETUP/PLAY。
+ * 每一轮随机让一部分客户端下线: 直接断开、PLAY/RECORD 过程中发 TEARDOWN、发 rtcp BYE 以后断开,
+ * 再补上新的客户端。泄漏检测用 PARANOID, 每个 ByteBuf 都跟踪。
+ * </p>
+ *
+ * <p>
+ * 结束时关掉所有 channel 和 EventLoop (线程退出时会把线程缓存还给 arena), 然后检查:
+ * <ul>
+ * <li>没有 LEAK 日志</li>
+ * <li>{@link ByteBufAllocators#ALLOCATOR} 里没释放的 ByteBuf 个数和占用的字节数回到开始时的值</li>
+ * </ul>
+ * </p>
+ *
+ * 默认跑 10 秒, 长时间浸泡用 -Dsoak.seconds=3600
+ *
+ * @author 陈修恒
+ * @date 2016年6月13日
+ */
+public class ChurnSoakTest extends TestCase {
+    private static final Logger logger = LoggerFactory.getLogger(ChurnSoakTest.class);
+
+    private static final int SECONDS = Integer.getInteger("soak.seconds", 10);
+    private static final int PUBLISHERS = Integer.getInteger("soak.publishers", 8);
+    private static final int PLAYERS = Integer.getInteger("soak.players", 64);
+    private static final int ROUND_MILLIS = 200;
+    private static final int SERVER_THREADS = 2;
+    private static final int CLIENT_THREADS = 2;
+    private static final int EVENT_LOOP_THREADS = 1 + SERVER_THREADS + CLIENT_THREADS;
+    /** 每一轮下线的概率, 推流平均活 2 秒, 观众平均活 1 秒 */
+    private static final double PUBLISHER_CHURN = 0.1;
+    private static final double PLAYER_CHURN = 0.2;
+
+    private static final int BITRATE = 512 * 1024;
+    private static final int FPS = 25;
+    private static final int GOP = 25;
+
+    private final Random random = new Random(20160613);
+    private final AtomicLong numTeardowns = new AtomicLong();
+    private final AtomicLong numByes = new AtomicLong();
+    private final AtomicLong numCloses = new AtomicLong();
+    /** PLAY 返回 200 的次数, 和观众收到的 rtp/rtcp 包数 */
+    private final AtomicLong numPlays = new AtomicLong();
+    private final AtomicLong numPlayerPackets = new AtomicLong();
+
+    private LeakAppender leaks;
+    private ResourceLeakDetector.Level oldLevel;
+
+    @Override
+    protected void setUp() throws Exception {
+        oldLevel = ByteBufAllocators.setLeakDetectionLevel(ResourceLeakDetector.Level.PARANOID);
+        leaks = new LeakAppender();
+        org.apache.log4j.Logger.getLogger(ResourceLeakDetector.class).addAppender(leaks);
+        org.apache.log4j.Logger.getLogger("com.sengled.cloud.mediaserver").setLevel(Level.WARN);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        org.apache.log4j.Logger.getLogger(ResourceLeakDetector.class).removeAppender(leaks);
+        ByteBufAllocators.setLeakDetectionLevel(oldLevel);
+    }
+
+    public void testChurn() throws Exception {
+        // 平台不支持时 ioBuffer 是 heap 的, 两种都要查
+        List<PoolArenaMetric> arenas = new ArrayList<PoolArenaMetric>(ByteBufAllocators.ALLOCATOR.directArenas());
+        arenas.addAll(ByteBufAllocators.ALLOCATOR.heapArenas());
+        long baseAllocations = ByteBufAllocators.getActiveAllocations(arenas);
+        long baseBytes = ByteBufAllocators.getOutstandingBytes(arenas);
+
+        int port = freePort();
+        String url = "rtsp://127.0.0.1:" + port + "/soak/";
+        ServerEngine engine = new ServerEngine().withMetricRegistry("soak", new MetricRegistry());
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("soak-boss"));
+        EventLoopGroup serverGroup = new NioEventLoopGroup(SERVER_THREADS, new DefaultThreadFactory("soak-server"));
+        RtspServerBootstrap server = new RtspServerBootstrap("rtsp-server", engine, port)
+                .group(bossGroup, serverGroup)
+                .channel(NioServerSocketChannel.class);
+        server.start();
+
+        EventLoopGroup clientGroup = new NioEventLoopGroup(CLIENT_THREADS, new DefaultThreadFactory("soak-client"));
+        LoadStats stats = new LoadStats();
+        List<Channel> publishers = new ArrayList<Channel>();
+        List<Channel> players = new ArrayList<Channel>();
+        long numRounds = 0;
+        try {
+            long deadline = System.currentTimeMillis() + SECONDS * 1000L;
+            while (System.currentTimeMillis() < deadline) {
+                numRounds++;
+                churn(publishers, PUBLISHER_CHURN);
+                churn(players, PLAYER_CHURN);
+
+                while (publishers.size() < PUBLISHERS) {
+                    String streamUrl = url + random.nextInt(PUBLISHERS * 2);
+                    publishers.add(connect(clientGroup, port, new SyntheticPublisher(streamUrl, BITRATE, FPS, GOP, stats)));
+                }
+                while (players.size() < PLAYERS) {
+                    String streamUrl = url + random.nextInt(PUBLISHERS * 2);
+                    players.add(connect(clientGroup, port, new Player(streamUrl, numPlays, numPlayerPackets)));
+                }
+
+                Thread.sleep(ROUND_MILLIS);
+            }
+        } finally {
+            for (Channel channel : publishers) {
+                channel.close().sync();
+            }
+            for (Channel channel : players) {
+                channel.close().sync();
+            }
+
+            // 服务器那边的会话在 channelInactive 里销毁, 等它处理完
+            long deadline = System.currentTimeMillis() + 5000;
+            while (engine.numSessions() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            server.shutdown();
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            for (EventLoopGroup group : new EventLoopGroup[] {bossGroup, serverGroup, clientGroup}) {
+                group.terminationFuture().await(30, TimeUnit.SECONDS);
+            }
+        }
+
+        logger.warn("soak: {} rounds, {} packets sent, {} plays, {} packets played, {} closes, {} teardowns, {} byes",
+                    numRounds, stats.getSentPackets(), numPlays.get(), numPlayerPackets.get(),
+                    numCloses.get(), numTeardowns.get(), numByes.get());
+        assertTrue("nothing published", stats.getSentPackets() > 0);
+        // 观众真的播放了, 发给观众的路径也在泄漏检查的范围内
+        assertTrue("nothing played", numPlays.get() > 0);
+        assertTrue("nothing sent to players", numPlayerPackets.get() > 0);
+        assertTrue("no teardown", numTeardowns.get() > 0);
+        assertTrue("no bye", numByes.get() > 0);
+        assertTrue("no close", numCloses.get() > 0);
+
+        // 泄漏的 ByteBuf 被 gc 以后, 下一次分配时才会报告
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            for (int j = 0; j < 100; j++) {
+                Unpooled.directBuffer(16).release();
+            }
+        }
+        assertEquals(leaks.messages.toString(), 0, leaks.messages.size());
+
+        // bye() 在测试线程里分配过内存, 它的线程缓存也要还回去
+        ByteBufAllocators.ALLOCATOR.freeThreadLocalCache();
+        assertEquals("active allocations", baseAllocations, ByteBufAllocators.getActiveAllocations(arenas));
+
+        // netty 4.0.36 的 ByteBuf 扩容以后, 旧内存经过线程缓存还给 arena 时会少还一个 page,
+        // 每个线程最多一个, 跟引用计数无关, 所以字节数允许差 EVENT_LOOP_THREADS 个 page
+        int pageSize = Integer.getInteger(SystemPropertyKeys.ALLOCATOR_PAGE_SIZE, PooledByteBufAllocator.defaultPageSize());
+        long outstanding = ByteBufAllocators.getOutstandingBytes(arenas) - baseBytes;
+        assertTrue("outstanding bytes " + outstanding, outstanding <= EVENT_LOOP_THREADS * pageSize);
+    }
+
+    /**
+     * 每个客户端以 probability 的概率下线
+     */
+    private void churn(List<Channel> channels, double probability) {
+        for (Iterator<Channel> iter = channels.iterator(); iter.hasNext();) {
+            Channel channel = iter.next();
+            if (random.nextDouble() >= probability) {
+                continue;
+            }
+
+            iter.remove();
+            switch (random.nextInt(3)) {
+                case 0:
+                    numTeardowns.incrementAndGet();
+                    channel.writeAndFlush(request(RtspMethods.TEARDOWN, "rtsp://127.0.0.1/", 99));
+                    channel.eventLoop().schedule(new CloseTask(channel), random.nextInt(100), TimeUnit.MILLISECONDS);
+                    break;
+                case 1:
+                    numByes.incrementAndGet();
+                    channel.writeAndFlush(bye(channel));
+                    channel.eventLoop().schedule(new CloseTask(channel), random.nextInt(100), TimeUnit.MILLISECONDS);
+                    break;
+                default:
+                    numCloses.incrementAndGet();
+                    channel.close();
+                    break;
+            }
+        }
+    }
+
+    private static Channel connect(EventLoopGroup group, int port, final ChannelHandler handler) throws InterruptedException {
+        Bootstrap b = new Bootstrap();
+        b.group(group)
+         .channel(NioSocketChannel.class)
+         .option(ChannelOption.ALLOCATOR, ByteBufAllocators.ALLOCATOR)
+         .option(ChannelOption.SO_LINGER, 0)
+         .handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new RtspEncoder());
+                ch.pipeline().addLast(RtspObjectDecoder.NAME, new RtspResponseDecoder());
+                ch.pipeline().addLast(handler);
+            }
+        });
+
+        return b.connect("127.0.0.1", port).sync().channel();
+    }
+
+    private static FullHttpRequest request(HttpMethod method, String uri, int cseq) {
+        FullHttpRequest request = new DefaultFullHttpRequest(RtspVersions.RTSP_1_0, method, uri, Unpooled.buffer(0));
+        request.headers().set(RtspHeaders.Names.CSEQ, cseq);
+        request.headers().set(RtspHeaders.Names.CONTENT_LENGTH, 0);
+        return request;
+    }
+
+    /**
+     * interleaved 的 rtcp BYE, 推流端和观众都走 1 号通道
+     */
+    private static ByteBuf bye(Channel channel) {
+        RtcpPktBYE bye = new RtcpPktBYE(new long[] {0x1234}, "soak".getBytes());
+        bye.encode();
+
+        ByteBuf buf = channel.alloc().buffer(4 + bye.rawPkt.length);
+        buf.writeByte('$');
+        buf.writeByte(1);
+        buf.writeShort(bye.rawPkt.length);
+        buf.writeBytes(bye.rawPkt);
+        return buf;
+    }
+
+    private static final class CloseTask implements Runnable {
+        private final Channel channel;
+
+        CloseTask(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            channel.close();
+        }
+    }
+
+    /**
+     * DESCRIBE, SETUP, PLAY, 然后丢掉收到的数据; 流不存在时 DESCRIBE 返回 404, 保持连接等着被关掉
+     */
+    private static final class Player extends ChannelInboundHandlerAdapter {
+        private final String url;
+        private final AtomicLong numPlays;
+        private final AtomicLong numPackets;
+        private int cseq = 1;
+
+        Player(String url, AtomicLong numPlays, AtomicLong numPackets) {
+            this.url = url;
+            this.numPlays = numPlays;
+            this.numPackets = numPackets;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            super.channelActive(ctx);
+            ctx.writeAndFlush(request(RtspMethods.DESCRIBE, url, cseq++));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            try {
+                if (msg instanceof FullHttpResponse && 200 == ((FullHttpResponse) msg).getStatus().code()) {
+                    FullHttpResponse response = (FullHttpResponse) msg;
+                    String session = response.headers().get(RtspHeaders.Names.SESSION);
+                    int respSeq = HttpHeaders.getIntHeader(response, RtspHeaders.Names.CSEQ, 0);
+                    if (1 == respSeq) {
+                        FullHttpRequest setup = request(RtspMethods.SETUP, url + "/streamid=0", this.cseq++);
+                        setup.headers().set(RtspHeaders.Names.TRANSPORT, Transport.rtpOnTcp(0, 1).toString());
+                        ctx.writeAndFlush(setup);
+                    } else if (2 == respSeq) {
+                        FullHttpRequest play = request(RtspMethods.PLAY, url, this.cseq++);
+                        play.headers().set(RtspHeaders.Names.SESSION, session);
+                        ctx.writeAndFlush(play);
+                    } else if (3 == respSeq) {
+                        numPlays.incrementAndGet();
+                    }
+                } else if (msg instanceof InterleavedFrame) {
+                    numPackets.incrementAndGet();
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+
+    /**
+     * 收集 ResourceLeakDetector 报告的泄漏
+     */
+    private static final class LeakAppender extends AppenderSkeleton {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected void append(LoggingEvent event) {
+            String message = String.valueOf(event.getMessage());
+            if (message.contains("LEAK")) {
+                messages.add(message);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
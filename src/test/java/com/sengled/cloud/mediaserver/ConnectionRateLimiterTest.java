@@ -0,0 +1,62 @@
+package com.sengled.cloud.mediaserver;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class ConnectionRateLimiterTest extends TestCase {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    public static void testServerRate() {
+        // 每秒 10 个, 最多推迟 500ms
+        ConnectionRateLimiter limiter = new ConnectionRateLimiter(10, 10, 0, 32, 500);
+        long now = System.nanoTime() + SECOND;
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.admit(remote("10.0.0." + i), now));
+        }
+
+        // 令牌用完以后, 每 100ms 能接受一个
+        long wait = limiter.admit(remote("10.0.1.1"), now);
+        assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.admit(remote("10.0.1.1"), now) > 0);
+        }
+
+        // 要等 600ms 的直接拒绝, 并且不占用令牌
+        assertTrue(limiter.admit(remote("10.0.1.1"), now) < 0);
+        assertTrue(limiter.admit(remote("10.0.1.1"), now) < 0);
+
+        // 过了一秒, 推迟的 5 个已经接受, 又攒了 5 个令牌
+        now += SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.admit(remote("10.0.2.1"), now));
+        }
+        assertTrue(limiter.admit(remote("10.0.2.1"), now) > 0);
+    }
+
+    public static void testSubnetRate() {
+        // 每个 /24 网段每秒 2 个, 不推迟
+        ConnectionRateLimiter limiter = new ConnectionRateLimiter(0, 0, 2, 24, 0);
+        long now = System.nanoTime() + SECOND;
+
+        assertEquals(0, limiter.admit(remote("192.168.1.10"), now));
+        assertEquals(0, limiter.admit(remote("192.168.1.11"), now));
+        assertTrue(limiter.admit(remote("192.168.1.12"), now) < 0);
+
+        // 别的网段不受影响
+        assertEquals(0, limiter.admit(remote("192.168.2.10"), now));
+        assertEquals(2, limiter.numSubnets());
+
+        // 没用满的网段保留, 攒满了的删掉
+        limiter.cleanIdleSubnets(now);
+        assertEquals(2, limiter.numSubnets());
+        limiter.cleanIdleSubnets(now + SECOND);
+        assertEquals(0, limiter.numSubnets());
+    }
+
+    private static InetSocketAddress remote(String ip) {
+        return new InetSocketAddress(ip, 50000);
+    }
+}
@@ -0,0 +1,120 @@
+package com.sengled.cloud.mediaserver.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.net.ServerSocket;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.SystemPropertyKeys;
+import com.sengled.cloud.mediaserver.RtspClient;
+import com.sengled.cloud.mediaserver.RtspClients;
+import com.sengled.cloud.mediaserver.RtspServerBootstrap;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.capture.CaptureFile;
+import com.sengled.cloud.mediaserver.rtsp.capture.ReplayPublisher;
+import com.sengled.cloud.mediaserver.url.URLObject;
+
+/**
+ * 源站 &lt;- 边缘节点 &lt;- 播放器, 都在本机
+ */
+public class EdgeRelaysTest extends TestCase {
+    private static final String NAME = "/live/edge.sdp";
+    private static final String SDP = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=edge\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=control:streamid=0\r\n";
+
+    static {
+        System.setProperty(SystemPropertyKeys.EDGE_IDLE_GRACE, "500");
+    }
+
+    public static void testRelay() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(2);
+        try {
+            int originPort = freePort();
+            int edgePort = freePort();
+
+            // 源站上有一路流
+            ServerEngine origin = new ServerEngine().withMetricRegistry("origin", new MetricRegistry());
+            new RtspServerBootstrap("origin", origin, originPort).group(group, group).channel(NioServerSocketChannel.class).start();
+            ReplayPublisher publisher = new ReplayPublisher(origin, newContext(), "rtsp://127.0.0.1" + NAME, SDP,
+                                                            new CaptureFile("empty.rtpdump", rtpdumpHeader()));
+            publisher.start();
+
+            // 边缘节点没有, 从源站拉
+            ServerEngine edge = new ServerEngine().withMetricRegistry("edge", new MetricRegistry());
+            EdgeRelays relays = new EdgeRelays(edge, new StaticOriginLocator(Collections.singletonMap("/live/", "rtsp://127.0.0.1:" + originPort + "/")));
+            edge.withEdgeRelays(relays.withMetricRegistry("edge", new MetricRegistry()));
+            new RtspServerBootstrap("edge", edge, edgePort).group(group, group).channel(NioServerSocketChannel.class).start();
+
+            // 找不到源站
+            assertFalse(relays.open("/other.sdp").get());
+            assertEquals(0, relays.numRelays());
+
+            // 两个播放器共用一个拉流连接
+            ServerEngine player = new ServerEngine().withMetricRegistry("player", new MetricRegistry());
+            RtspClient first = RtspClients.open(player, new URLObject("rtsp://127.0.0.1:" + edgePort + NAME), "/first");
+            RtspClient second = RtspClients.open(player, new URLObject("rtsp://127.0.0.1:" + edgePort + NAME), "/second");
+            assertEquals(1, relays.numRelays());
+            assertTrue(relays.isRelay(NAME));
+            assertEquals(1, origin.numListeners(NAME));
+            awaitListeners(edge, 2);
+
+            // 没有观众以后, 过了空闲时间才断开
+            first.close();
+            second.close();
+            awaitListeners(edge, 0);
+            assertEquals(1, relays.numRelays());
+            awaitListeners(edge, -1);
+            assertEquals(0, relays.numRelays());
+            awaitListeners(origin, 0);
+
+            publisher.stop("test finished");
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private static void awaitListeners(ServerEngine engine, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5 * 1000;
+        while (engine.numListeners(NAME) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, engine.numListeners(NAME));
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /** 没有包的 rtpdump 文件 */
+    private static ByteBuf rtpdumpHeader() {
+        return Unpooled.buffer()
+                .writeBytes("#!rtpplay1.0 127.0.0.1/5000\n".getBytes())
+                .writeZero(16);
+    }
+
+    private static ChannelHandlerContext newContext() {
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        return new EmbeddedChannel(handler).pipeline().context(handler);
+    }
+}
@@ -0,0 +1,178 @@
+package com.sengled.cloud.mediaserver.quota;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.rtsp.RtspHeaders;
+import io.netty.handler.codec.rtsp.RtspMethods;
+import io.netty.handler.codec.rtsp.RtspResponseStatuses;
+import io.netty.handler.codec.rtsp.RtspVersions;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.RtspServerInboundHandler;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.utils.AtomicTokenBucket;
+import com.sengled.cloud.mediaserver.xml.MediaServerConfigs;
+import com.sengled.cloud.mediaserver.xml.QuotaDef;
+
+public class TenantQuotasTest extends TestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String URL = "rtsp://127.0.0.1:554/tenant-a/quota.sdp";
+    private static final String SDP = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=quota\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=control:streamid=0\r\n";
+
+    public static void testLoadAndReload() throws Exception {
+        String xml = "<media-servers><quotas>"
+                + "<quota name=\"a\" prefix=\"/tenant-a/\" max-listeners=\"10\" max-outbound=\"100\"/>"
+                + "<quota prefix=\"/tenant-a/vip/\" max-publishers=\"2\"/>"
+                + "</quotas></media-servers>";
+        List<QuotaDef> defs = MediaServerConfigs.load(new ByteArrayInputStream(xml.getBytes(UTF_8))).getQuotas();
+        assertEquals(2, defs.size());
+        assertEquals("/tenant-a/vip/", defs.get(1).getName());
+
+        MetricRegistry registry = new MetricRegistry();
+        TenantQuotas quotas = new TenantQuotas().withMetricRegistry("test", registry).update(defs);
+
+        // 最长的前缀
+        assertEquals("/tenant-a/vip/", quotas.find("/tenant-a/vip/1.sdp").getPrefix());
+        assertEquals("a", quotas.find("/tenant-a/1.sdp").getName());
+        assertNull(quotas.find("/tenant-b/1.sdp"));
+        assertTrue(registry.getGauges().containsKey("com.sengled.cloud.mediaserver.quota.TenantQuotas.test.a.listeners"));
+
+        // 重新加载, 用量保留
+        Tenant a = quotas.find("/tenant-a/1.sdp");
+        assertTrue(a.tryAcquire(SessionMode.PLAY));
+        quotas.update(Collections.singletonList(new QuotaDef("a", "/tenant-a/", 1, 0, 0)));
+        assertSame(a, quotas.find("/tenant-a/vip/1.sdp"));
+        assertEquals(1, a.getListeners());
+        assertEquals(1, a.getMaxListeners());
+        assertEquals(0, a.reserveOutbound(System.nanoTime(), 1000 * 1000));
+        assertFalse(registry.getGauges().containsKey("com.sengled.cloud.mediaserver.quota.TenantQuotas.test./tenant-a/vip/.listeners"));
+    }
+
+    public static void testMetricNames() {
+        String prefix = "com.sengled.cloud.mediaserver.quota.TenantQuotas.test.";
+        MetricRegistry registry = new MetricRegistry();
+        TenantQuotas quotas = new TenantQuotas().withMetricRegistry("test", registry);
+
+        // 重名的租户一个统计项也不注册
+        quotas.update(Arrays.asList(new QuotaDef("a", "/tenant-a/", 1, 0, 0),
+                                    new QuotaDef("a.vip", "/tenant-a-vip/", 1, 0, 0),
+                                    new QuotaDef("a", "/tenant-c/", 1, 0, 0)));
+        assertEquals(8, registry.getNames().size());
+        assertTrue(registry.getNames().contains(prefix + "a.listeners"));
+        assertTrue(registry.getNames().contains(prefix + "a.vip.rejected"));
+
+        // 删掉 a 不影响 a.vip, 之前重名的租户补上统计项
+        Tenant c = quotas.find("/tenant-c/1.sdp");
+        assertTrue(c.tryAcquire(SessionMode.PLAY));
+        quotas.update(Arrays.asList(new QuotaDef("a.vip", "/tenant-a-vip/", 1, 0, 0),
+                                    new QuotaDef("a", "/tenant-c/", 1, 0, 0)));
+        assertEquals(8, registry.getNames().size());
+        assertEquals(1, registry.getGauges().get(prefix + "a.listeners").getValue());
+        assertTrue(registry.getNames().contains(prefix + "a.vip.listeners"));
+
+        // 改名字, 统计项也改名
+        quotas.update(Arrays.asList(new QuotaDef("b", "/tenant-a-vip/", 1, 0, 0),
+                                    new QuotaDef("a", "/tenant-c/", 1, 0, 0)));
+        assertEquals(8, registry.getNames().size());
+        assertFalse(registry.getNames().contains(prefix + "a.vip.listeners"));
+        assertTrue(registry.getNames().contains(prefix + "b.listeners"));
+        assertEquals("b", quotas.find("/tenant-a-vip/1.sdp").getName());
+
+        quotas.update(Collections.<QuotaDef> emptyList());
+        assertTrue(registry.getNames().isEmpty());
+    }
+
+    public static void testAtomicTokenBucket() {
+        // 每秒 1000 个, 最多攒 100 个
+        AtomicTokenBucket bucket = new AtomicTokenBucket(1000, 100);
+        long now = System.nanoTime() + 1000 * 1000 * 1000L;
+        assertEquals(0, bucket.reserve(now, 100));
+        assertEquals(10 * 1000 * 1000L, bucket.reserve(now, 10));
+
+        bucket.refund(10);
+        assertEquals(0, bucket.reserve(now + 10 * 1000 * 1000L, 10));
+    }
+
+    public static void testEnforceSessions() {
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        TenantQuotas quotas = new TenantQuotas().update(Arrays.asList(new QuotaDef("a", "/tenant-a/", 1, 1, 0)));
+        engine.withTenantQuotas(quotas);
+        Tenant tenant = quotas.find("/tenant-a/quota.sdp");
+
+        // 第二个推流端超过配额
+        EmbeddedChannel publisher = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(HttpResponseStatus.OK, publish(publisher, URL));
+        EmbeddedChannel other = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(RtspResponseStatuses.SERVICE_UNAVAILABLE, publish(other, URL + "2"));
+        assertEquals(1, tenant.getPublishers());
+        assertEquals(1, engine.numSessions());
+
+        // 第二个观众超过配额
+        EmbeddedChannel first = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(HttpResponseStatus.OK, play(first));
+        EmbeddedChannel second = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        assertEquals(RtspResponseStatuses.SERVICE_UNAVAILABLE, play(second));
+        assertEquals(1, engine.numListeners("/tenant-a/quota.sdp"));
+        assertEquals(2, tenant.getRejected().getCount());
+
+        // 第一个观众走了以后可以播放
+        assertEquals(HttpResponseStatus.OK, request(first, RtspMethods.TEARDOWN, URL, null).getStatus());
+        assertEquals(0, tenant.getListeners());
+        assertEquals(HttpResponseStatus.OK, request(second, RtspMethods.PLAY, URL, null).getStatus());
+        assertEquals(1, tenant.getListeners());
+        assertEquals(1, engine.numListeners("/tenant-a/quota.sdp"));
+
+        second.finish();
+        assertEquals(0, tenant.getListeners());
+        first.finish();
+        other.finish();
+        publisher.finish();
+        assertEquals(0, tenant.getPublishers());
+    }
+
+    private static HttpResponseStatus publish(EmbeddedChannel channel, String url) {
+        assertEquals(HttpResponseStatus.OK, request(channel, RtspMethods.ANNOUNCE, url, SDP).getStatus());
+        assertEquals(HttpResponseStatus.OK, request(channel, RtspMethods.SETUP, url + "/streamid=0", null).getStatus());
+        return request(channel, RtspMethods.RECORD, url, null).getStatus();
+    }
+
+    private static HttpResponseStatus play(EmbeddedChannel channel) {
+        assertEquals(HttpResponseStatus.OK, request(channel, RtspMethods.DESCRIBE, URL, null).getStatus());
+        assertEquals(HttpResponseStatus.OK, request(channel, RtspMethods.SETUP, URL + "/streamid=0", null).getStatus());
+        return request(channel, RtspMethods.PLAY, URL, null).getStatus();
+    }
+
+    private static FullHttpResponse request(EmbeddedChannel channel, HttpMethod method, String url, String content) {
+        FullHttpRequest request = new DefaultFullHttpRequest(RtspVersions.RTSP_1_0, method, url,
+                null != content ? Unpooled.copiedBuffer(content, UTF_8) : Unpooled.buffer(0));
+        request.headers().set(RtspHeaders.Names.CSEQ, 1);
+        if (RtspMethods.SETUP.equals(method)) {
+            request.headers().set(RtspHeaders.Names.TRANSPORT, "RTP/AVP/TCP;unicast;interleaved=0-1");
+        }
+        channel.writeInbound(request);
+
+        FullHttpResponse response = (FullHttpResponse) channel.readOutbound();
+        response.release();
+        return response;
+    }
+}
@@ -0,0 +1,49 @@
+package com.sengled.cloud.mediaserver.rtsp;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import junit.framework.TestCase;
+
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+
+public class SocketBufferTunerTest extends TestCase {
+
+    public static void testBufferSize() {
+        // 64kbps 的音频用下限
+        assertEquals(16 * 1024, SocketBufferTuner.bufferSize(64 * 1000));
+        // 2Mbps 放 1 秒, 按 4K 对齐
+        assertEquals(62 * 4096, SocketBufferTuner.bufferSize(2 * 1000 * 1000));
+        // 20Mbps 用上限
+        assertEquals(1024 * 1024, SocketBufferTuner.bufferSize(20 * 1000 * 1000));
+        // 还不知道码率时
+        assertEquals(64 * 1024, SocketBufferTuner.initialBufferSize());
+    }
+
+    public static void testTunePublisher() {
+        NioSocketChannel channel = new NioSocketChannel();
+        try {
+            ChannelHandler handler = new ChannelInboundHandlerAdapter();
+            channel.pipeline().addLast(handler);
+            RtspSession session = new RtspSession(new ServerEngine(), channel.pipeline().context(handler), "rtsp://127.0.0.1/tuner.sdp")
+                    .withMode(SessionMode.PUBLISH);
+            SocketBufferTuner tuner = new SocketBufferTuner(session);
+
+            // 小流
+            assertTrue(tuner.tune(64 * 1000));
+            assertEquals(16 * 1024, tuner.getReceiveBuffer());
+            assertEquals(4 * 1024, tuner.getMaxRead());
+
+            // 码率小幅波动, 不调整
+            assertFalse(tuner.tune(70 * 1000));
+
+            // 大流
+            assertTrue(tuner.tune(8 * 1000 * 1000));
+            assertEquals(SocketBufferTuner.bufferSize(8 * 1000 * 1000), tuner.getReceiveBuffer());
+            assertEquals(16 * 1024, tuner.getSendBuffer());
+            assertEquals(64 * 1024, tuner.getMaxRead());
+        } finally {
+            channel.unsafe().closeForcibly();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.sengled.cloud.mediaserver.rtsp.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+
+public class CaptureFileTest extends TestCase {
+    private static final String URL = "rtsp://127.0.0.1:554/live/replay";
+    private static final String SDP = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=replay\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=control:streamid=0\r\n";
+
+    /** 一个 IDR 帧 4 个 FU-A 分片, 一个 P 帧 2 个分片, 中间夹一个 SR 和一个不认识的 payload type */
+    private static final int NUM_RTP = 6;
+
+    public static void testRtpdump() throws Exception {
+        PacketCapture capture = newCapture();
+        ByteBuf out = Unpooled.buffer();
+        capture.writeRtpdump(out);
+        capture.clear();
+
+        CaptureFile file = new CaptureFile("test.rtpdump", out);
+        assertEquals(CaptureFile.Format.RTPDUMP, file.getFormat());
+        assertPackets(file);
+        file.close();
+        assertEquals(0, out.refCnt());
+    }
+
+    public static void testMappedPcap() throws Exception {
+        PacketCapture capture = newCapture();
+        ByteBuf out = Unpooled.buffer();
+        capture.writePcap(out);
+        capture.clear();
+
+        File tmp = File.createTempFile("replay", ".pcap");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out.readBytes(fos, out.readableBytes());
+            fos.close();
+            out.release();
+
+            CaptureFile file = CaptureFile.open(tmp);
+            assertEquals(CaptureFile.Format.PCAP, file.getFormat());
+            assertPackets(file);
+            file.close();
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public static void testLittleEndianEthernetPcap() throws Exception {
+        ByteBuf out = Unpooled.buffer();
+        out.writeInt(0xd4c3b2a1); // 小端
+        out.writeShort(0x0200);
+        out.writeShort(0x0400);
+        out.writeZero(8);
+        out.writeInt(Integer.reverseBytes(65535));
+        out.writeInt(Integer.reverseBytes(1)); // Ethernet
+
+        int length = 14 + 4 + 20 + 8 + 12;
+        out.writeInt(Integer.reverseBytes(1));
+        out.writeInt(Integer.reverseBytes(500000));
+        out.writeInt(Integer.reverseBytes(length));
+        out.writeInt(Integer.reverseBytes(length));
+
+        out.writeZero(12);
+        out.writeShort(0x8100).writeShort(1); // VLAN
+        out.writeShort(0x0800);
+        out.writeByte(0x45).writeByte(0).writeShort(20 + 8 + 12).writeInt(0);
+        out.writeByte(64).writeByte(17).writeShort(0).writeInt(0x0A000001).writeInt(0x0A000002);
+        out.writeShort(5000).writeShort(5000).writeShort(8 + 12).writeShort(0);
+        out.writeByte(0x80).writeByte(96).writeShort(1).writeInt(3000).writeInt(0x1234);
+
+        CaptureFile file = new CaptureFile("test.pcap", out);
+        assertEquals(1, file.size());
+        assertEquals(96, file.payloadType(0));
+        assertEquals(0x1234, file.ssrc(0));
+        assertEquals(12, file.packet(0).readableBytes());
+        file.close();
+    }
+
+    public static void testReplay() throws Exception {
+        PacketCapture capture = newCapture();
+        ByteBuf out = Unpooled.buffer();
+        capture.writeRtpdump(out);
+        capture.clear();
+
+        CaptureFile file = new CaptureFile("test.rtpdump", out);
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        Sink sink = new Sink();
+
+        ReplayPublisher publisher = new ReplayPublisher(engine, newContext(new Sink()), URL, SDP, file);
+        publisher.start();
+        assertEquals(1, engine.numSessions());
+
+        RtspSession listener = new RtspSession(engine, newContext(sink), URL).withMode(SessionMode.PLAY);
+        listener.setupStream(URL + "/streamid=0", "RTP/AVP/TCP;unicast;interleaved=0-1");
+        listener.play();
+
+        // 6 个 rtp 包 + 1 个 SR, 不认识的 payload type 被跳过
+        assertEquals(NUM_RTP + 1, publisher.dispatchAll());
+        assertEquals(NUM_RTP, sink.numRtp);
+
+        publisher.stop("replay finished");
+        assertEquals(0, engine.numSessions());
+        listener.destroy("test finished");
+        file.close();
+        assertEquals(0, out.refCnt());
+    }
+
+    private static void assertPackets(CaptureFile file) {
+        assertEquals(NUM_RTP + 2, file.size());
+
+        assertFalse(file.isRtcp(0));
+        assertEquals(96, file.payloadType(0));
+        assertEquals(0x1234, file.ssrc(0));
+        assertEquals(1000 + 12, file.packet(0).readableBytes());
+        assertEquals(0x7C, file.packet(0).getUnsignedByte(12));
+
+        assertTrue(file.isRtcp(2));
+        assertEquals(-1, file.payloadType(2));
+        assertEquals(0x1234, file.ssrc(2));
+        assertEquals(98, file.payloadType(3));
+    }
+
+    private static PacketCapture newCapture() {
+        PacketCapture capture = new PacketCapture("/live/replay", null,
+                                 new InetSocketAddress("10.0.0.1", 554),
+                                 new InetSocketAddress("10.0.0.2", 554),
+                                 true, 60, 1 << 20);
+        add(capture, rtp(0, 5, true, false, 0));
+        add(capture, rtp(1, 5, false, false, 0));
+        add(capture, sr());
+        add(capture, rtp(2, 98, false, false, 0)); // 不在 sdp 里
+        add(capture, rtp(2, 5, false, false, 0));
+        add(capture, rtp(3, 5, false, true, 0));
+        add(capture, rtp(4, 1, true, false, 3000));
+        add(capture, rtp(5, 1, false, true, 3000));
+        return capture;
+    }
+
+    private static void add(PacketCapture capture, ByteBuf packet) {
+        capture.add(packet.getUnsignedByte(1) >= 200 ? 1 : 0, packet);
+        packet.release();
+    }
+
+    /**
+     * @param nalType FU-A 分片的 nal 类型, 98 表示 payload type 为 98 的其他包
+     */
+    private static ByteBuf rtp(int seq, int nalType, boolean start, boolean end, long timestamp) {
+        ByteBuf buf = Unpooled.buffer(12 + 1000);
+        buf.writeByte(0x80);
+        buf.writeByte(nalType == 98 ? 98 : (end ? 0x80 : 0) | 96);
+        buf.writeShort(seq);
+        buf.writeInt((int) timestamp);
+        buf.writeInt(0x1234);
+        buf.writeByte(0x60 | 28);
+        buf.writeByte((start ? 0x80 : 0) | (end ? 0x40 : 0) | (nalType & 0x1F));
+        buf.writeZero(1000 - 2);
+        return buf;
+    }
+
+    private static ByteBuf sr() {
+        ByteBuf buf = Unpooled.buffer(28);
+        buf.writeByte(0x80);
+        buf.writeByte(200);
+        buf.writeShort(6);
+        buf.writeInt(0x1234);
+        buf.writeLong(0x83AA7E80L << 32);
+        buf.writeInt(0);
+        buf.writeInt(2);
+        buf.writeInt(2000);
+        return buf;
+    }
+
+    private static ChannelHandlerContext newContext(Sink sink) {
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(sink, handler);
+        return channel.pipeline().context(handler);
+    }
+
+    /**
+     * 统计并丢弃写出来的 rtp 包
+     */
+    static final class Sink extends ChannelOutboundHandlerAdapter {
+        int numRtp;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf && ((ByteBuf) msg).getUnsignedByte(1) % 2 == 0) {
+                numRtp++;
+            }
+            ReferenceCountUtil.release(msg);
+            promise.setSuccess();
+        }
+    }
+}
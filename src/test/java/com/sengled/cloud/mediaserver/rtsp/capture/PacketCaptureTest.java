@@ -0,0 +1,125 @@
+package com.sengled.cloud.mediaserver.rtsp.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+
+public class PacketCaptureTest extends TestCase {
+    public static void testEvictByBytes() {
+        PacketCapture capture = newCapture(1000);
+
+        // 收到的包是一个大的累积缓冲区的切片, 抓包只拷贝切片, 不占着整个缓冲区
+        ByteBuf cumulation = Unpooled.buffer(64 * 1024).writeZero(64 * 1024);
+        for (int i = 0; i < 10; i++) {
+            ByteBuf packet = cumulation.slice(i * 300, 300);
+            packet.setByte(0, i);
+            capture.add(0, packet);
+            assertEquals(1, cumulation.refCnt());
+        }
+        cumulation.release();
+
+        assertEquals(3, capture.size());
+        assertEquals(900, capture.getBytes());
+        assertEquals(10, capture.getNumPackets());
+        assertEquals(7, capture.getNumEvicted());
+
+        ByteBuf out = Unpooled.buffer();
+        capture.writeRtpdump(out);
+        assertEquals(7, out.getByte(out.readableBytes() - 300 * 3 - 8 * 2));
+        assertEquals(9, out.getByte(out.readableBytes() - 300));
+        out.release();
+        capture.clear();
+        assertEquals(0, capture.size());
+
+        // 停止以后不再保存
+        ByteBuf late = Unpooled.buffer(10).writeZero(10);
+        capture.add(0, late);
+        assertEquals(0, capture.size());
+        assertEquals(1, late.refCnt());
+    }
+
+    public static void testInterleaved() {
+        PacketCapture capture = newCapture(1 << 20);
+        ByteBuf data = Unpooled.buffer(24).writeByte('$').writeByte(3).writeShort(20).writeZero(20);
+        capture.addInterleaved(data);
+        assertEquals(1, data.refCnt());
+        assertEquals(0, data.readerIndex());
+        data.release();
+
+        assertEquals(1, capture.size());
+        assertEquals(20, capture.getBytes());
+        capture.clear();
+    }
+
+    public static void testPcap() {
+        PacketCapture capture = newCapture(1 << 20);
+        ByteBuf rtp = Unpooled.buffer(20).writeZero(20);
+        capture.add(2, rtp);
+        rtp.release();
+
+        ByteBuf out = Unpooled.buffer();
+        capture.writePcap(out);
+        assertEquals(0xa1b2c3d4, out.getInt(0));
+        assertEquals(24 + 16 + 20 + 8 + 20, out.readableBytes());
+
+        // ip 头的校验和算上自己以后为 0
+        assertEquals(0, PcapWriter.checksum(out, 24 + 16, 20));
+        assertEquals(0x0A000001, out.getInt(24 + 16 + 12));
+        assertEquals(PacketCapture.INTERLEAVED_BASE_PORT + 2, out.getUnsignedShort(24 + 16 + 20));
+        capture.clear();
+    }
+
+    public static void testRtpdump() {
+        PacketCapture capture = newCapture(1 << 20);
+        ByteBuf rtcp = Unpooled.buffer(8).writeZero(8);
+        capture.add(1, rtcp);
+        rtcp.release();
+
+        ByteBuf out = Unpooled.buffer();
+        capture.writeRtpdump(out);
+        String header = "#!rtpplay1.0 10.0.0.1/554\n";
+        assertEquals(header, out.toString(0, header.length(), io.netty.util.CharsetUtil.US_ASCII));
+
+        int packetStart = header.length() + 16;
+        assertEquals(8 + 8, out.getUnsignedShort(packetStart));
+        assertEquals(0, out.getUnsignedShort(packetStart + 2));
+        capture.clear();
+    }
+
+    public static void testReattachPublisher() {
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        RtspSession first = newPublisher(engine);
+        engine.putSession("/test.sdp", first);
+        PacketCapture capture = engine.startCapture("/test.sdp", null, 60);
+        assertSame(capture, first.capture());
+
+        // 推流端重连以后, 新的连接接着抓包
+        RtspSession second = newPublisher(engine);
+        engine.putSession("/test.sdp", second);
+        assertSame(capture, second.capture());
+        engine.clearCapture("/test.sdp", null);
+    }
+
+    private static RtspSession newPublisher(ServerEngine engine) {
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        return new RtspSession(engine, channel.pipeline().context(handler), "rtsp://127.0.0.1:554/test.sdp");
+    }
+
+    private static PacketCapture newCapture(long maxBytes) {
+        return new PacketCapture("/test", null,
+                                 new InetSocketAddress("10.0.0.1", 554),
+                                 new InetSocketAddress("10.0.0.2", 554),
+                                 true, 60, maxBytes);
+    }
+}
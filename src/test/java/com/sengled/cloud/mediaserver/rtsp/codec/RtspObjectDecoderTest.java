@@ -0,0 +1,128 @@
+package com.sengled.cloud.mediaserver.rtsp.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.rtsp.RtspHeaders;
+import io.netty.handler.codec.rtsp.RtspMethods;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.sengled.cloud.mediaserver.rtsp.interleaved.InterleavedFrame;
+import com.sengled.cloud.mediaserver.rtsp.interleaved.RtcpContent;
+import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
+
+public class RtspObjectDecoderTest extends TestCase {
+    private static final String KEEPALIVE = "GET_PARAMETER rtsp://127.0.0.1:554/live/decoder.sdp RTSP/1.0\r\n"
+            + "CSeq: 7\r\n"
+            + "\r\n";
+
+    public static void testBackToBack() {
+        // 一次读到多个包, 大的 rtp 包后面紧跟着一个比它短的请求
+        ByteBuf stream = newStream();
+        List<Object> out = decode(stream, stream.readableBytes());
+        assertFrames(out);
+    }
+
+    public static void testSplit() {
+        // 每次只读到一部分, 包括在 '$' 头中间断开
+        int[] chunks = {1, 2, 3, 97, 1448};
+        for (int chunk : chunks) {
+            List<Object> out = decode(newStream(), chunk);
+            assertFrames(out);
+        }
+    }
+
+    public static void testRequestAfterLargeFrame() {
+        // 请求和 rtp 包分开到达, 请求到的时候马上就能解出来
+        EmbeddedChannel channel = new EmbeddedChannel(new RtspRequestDecoder());
+        ByteBuf rtp = Unpooled.buffer();
+        writeInterleaved(rtp, 0, 1400);
+        channel.writeInbound(rtp);
+        RtpPkt pkt = (RtpPkt) channel.readInbound();
+        assertEquals(1400, pkt.content().readableBytes());
+        pkt.release();
+
+        channel.writeInbound(Unpooled.copiedBuffer(KEEPALIVE, CharsetUtil.US_ASCII));
+        FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+        assertNotNull(request);
+        assertEquals(RtspMethods.GET_PARAMETER, request.getMethod());
+        request.release();
+        assertFalse(channel.finish());
+    }
+
+    /**
+     * rtp(1400) + rtcp(28) + rtp(160) + GET_PARAMETER + rtp(12)
+     */
+    private static ByteBuf newStream() {
+        ByteBuf stream = Unpooled.buffer();
+        writeInterleaved(stream, 0, 1400);
+        writeInterleaved(stream, 1, 28);
+        writeInterleaved(stream, 2, 160);
+        stream.writeBytes(KEEPALIVE.getBytes(CharsetUtil.US_ASCII));
+        writeInterleaved(stream, 0, 12);
+        return stream;
+    }
+
+    private static void writeInterleaved(ByteBuf out, int channel, int length) {
+        out.writeByte('$');
+        out.writeByte(channel);
+        out.writeShort(length);
+        out.writeByte(0x80);
+        for (int i = 1; i < length; i++) {
+            out.writeByte(channel + i);
+        }
+    }
+
+    private static List<Object> decode(ByteBuf stream, int chunk) {
+        EmbeddedChannel channel = new EmbeddedChannel(new RtspRequestDecoder());
+        List<Object> out = new ArrayList<Object>();
+        while (stream.isReadable()) {
+            channel.writeInbound(stream.readSlice(Math.min(chunk, stream.readableBytes())).retain());
+
+            Object msg;
+            while (null != (msg = channel.readInbound())) {
+                out.add(msg);
+            }
+        }
+        stream.release();
+        assertFalse(channel.finish());
+        return out;
+    }
+
+    private static void assertFrames(List<Object> out) {
+        try {
+            assertEquals(5, out.size());
+            assertFrame(out.get(0), RtpPkt.class, 0, 1400);
+            assertFrame(out.get(1), RtcpContent.class, 1, 28);
+            assertFrame(out.get(2), RtpPkt.class, 2, 160);
+
+            FullHttpRequest request = (FullHttpRequest) out.get(3);
+            assertEquals(RtspMethods.GET_PARAMETER, request.getMethod());
+            assertEquals("7", request.headers().get(RtspHeaders.Names.CSEQ));
+
+            assertFrame(out.get(4), RtpPkt.class, 0, 12);
+        } finally {
+            for (Object msg : out) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    private static void assertFrame(Object msg, Class<? extends InterleavedFrame> type, int channel, int length) {
+        assertSame(type, msg.getClass());
+        InterleavedFrame frame = (InterleavedFrame) msg;
+        assertEquals(channel, frame.channel());
+
+        ByteBuf content = frame.content();
+        assertEquals(length, content.readableBytes());
+        assertEquals(0x80, content.getUnsignedByte(content.readerIndex()));
+        assertEquals((byte) (channel + length - 1), content.getByte(content.readerIndex() + length - 1));
+    }
+}
@@ -0,0 +1,42 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+    public static void testBuckets() {
+        int last = -1;
+        for (long v = 0; v <= LatencyHistogram.MAX_VALUE; v += 1 + v / 64) {
+            int index = LatencyHistogram.bucketIndex(v);
+            assertTrue(index >= last);
+            assertTrue(v <= LatencyHistogram.highestValueOf(index));
+            assertTrue(LatencyHistogram.highestValueOf(index) - v <= v / 16 + 1);
+            last = index;
+        }
+        assertEquals(LatencyHistogram.NUM_BUCKETS - 1, last);
+    }
+
+    public static void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(Long.MAX_VALUE);
+
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertTrue(Math.abs(snapshot.getP50() - 500) <= 500 / 16);
+        assertTrue(Math.abs(snapshot.getP99() - 990) <= 990 / 16);
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+    }
+
+    public static void testRecorderSwap() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.recordNanos(2000 * 1000);
+        assertEquals(1, recorder.swap().getCount());
+        assertEquals(1, recorder.getSnapshot().getCount());
+        assertEquals(0, recorder.swap().getCount());
+    }
+}
@@ -0,0 +1,28 @@
+package com.sengled.cloud.mediaserver.rtsp.metrics;
+
+import junit.framework.TestCase;
+
+public class StreamMetricsRegistryTest extends TestCase {
+    public static void testReopenWhenFull() {
+        StreamMetricsRegistry registry = new StreamMetricsRegistry(2);
+        StreamMetrics a = registry.open("/a.sdp");
+        assertNotNull(registry.open("/b.sdp"));
+        assertNull(registry.open("/c.sdp"));
+        assertEquals(1, registry.getRejected());
+
+        // 满了以后, 推流端重连还是替换旧的统计数据
+        StreamMetrics reopened = registry.open("/a.sdp");
+        assertNotNull(reopened);
+        assertNotSame(a, reopened);
+        assertSame(reopened, registry.get("/a.sdp"));
+        assertEquals(2, registry.size());
+
+        // 旧的推流会话关闭时不影响新的
+        registry.close("/a.sdp", a);
+        assertSame(reopened, registry.get("/a.sdp"));
+        registry.close("/a.sdp", reopened);
+        assertNull(registry.get("/a.sdp"));
+        assertEquals(1, registry.size());
+        assertNotNull(registry.open("/c.sdp"));
+    }
+}
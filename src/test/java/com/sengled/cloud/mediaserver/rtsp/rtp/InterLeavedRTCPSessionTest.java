@@ -0,0 +1,123 @@
+package com.sengled.cloud.mediaserver.rtsp.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import jlibrtp.RtcpPkt;
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.mediaserver.rtsp.interleaved.RtpPkt;
+
+public class InterLeavedRTCPSessionTest extends TestCase {
+    private static final String URL = "rtsp://127.0.0.1:554/feedback.sdp";
+    private static final String SDP = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=feedback\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=control:streamid=0\r\n";
+    private static final long SOURCE_SSRC = 0x12345678L;
+
+    public static void testRequestDuringSend() throws Exception {
+        // 第一个反馈包发送的时候, 又来了一个请求
+        final InterLeavedRTPSession[] rtp = new InterLeavedRTPSession[1];
+        ChannelHandler requestOnWrite = new ChannelOutboundHandlerAdapter() {
+            private boolean requested;
+
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                if (!requested) {
+                    requested = true;
+                    rtp[0].requestKeyFrame();
+                }
+                super.write(ctx, msg, promise);
+            }
+        };
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(requestOnWrite, handler);
+        rtp[0] = setup(channel, handler);
+
+        rtp[0].requestKeyFrame();
+        assertEquals(1, waitFeedbacks(channel, 1, InterLeavedRTCPSession.FB_WINDOW_MILLIS + 1000));
+
+        // 第二个请求没有丢, 限频以后也发出去了
+        long timeout = InterLeavedRTCPSession.FB_INTERVAL_MILLIS + 1000;
+        assertEquals(1, waitFeedbacks(channel, 1, timeout));
+        assertNull(rtp[0].rtcpSession().getFromFbQueue(SOURCE_SSRC));
+
+        // 之后的请求照常发送
+        rtp[0].requestKeyFrame();
+        assertEquals(1, waitFeedbacks(channel, 1, timeout));
+        channel.finish();
+    }
+
+    public static void testFullIntraRequest() {
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        InterLeavedRTPSession rtp = setup(channel, handler);
+
+        assertEquals(0, rtp.fbFullIntraRequest(SOURCE_SSRC, 7));
+        RtcpPkt[] pkts = rtp.rtcpSession().getFromFbQueue(SOURCE_SSRC);
+        assertEquals(1, pkts.length);
+        pkts[0].encode();
+
+        // media source 写在 FCI 里, 头部的 media source 必须是 0
+        ByteBuf raw = Unpooled.wrappedBuffer(pkts[0].rawPkt);
+        assertEquals(20, raw.readableBytes());
+        assertEquals(0, raw.getUnsignedInt(8));
+        assertEquals(SOURCE_SSRC, raw.getUnsignedInt(12));
+        assertEquals(7, raw.getUnsignedByte(16));
+        channel.finish();
+    }
+
+    private static InterLeavedRTPSession setup(EmbeddedChannel channel, ChannelHandler handler) {
+        ChannelHandlerContext ctx = channel.pipeline().context(handler);
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        RtspSession session = new RtspSession(engine, ctx, URL).withSdp(SDP);
+        try {
+            session.setupStream(URL + "/streamid=0", "RTP/AVP/TCP;unicast;interleaved=0-1");
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        InterLeavedRTPSession rtp = session.getRTPSessions()[0];
+
+        // 收到一个非关键帧, 记住推流端的 ssrc
+        ByteBuf payload = Unpooled.buffer();
+        payload.writeByte(0x80).writeByte(96).writeShort(1).writeInt(3600).writeInt((int) SOURCE_SSRC);
+        payload.writeByte(0x41).writeZero(100);
+        RtpPkt pkt = new RtpPkt(0, payload);
+        assertFalse(rtp.receiveRtpPkt(pkt));
+        pkt.release();
+        return rtp;
+    }
+
+    /**
+     * @return 在超时之前收到的 rtcp 包数
+     */
+    private static int waitFeedbacks(EmbeddedChannel channel, int expected, long timeoutMillis) throws InterruptedException {
+        int received = 0;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (received < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            channel.runPendingTasks();
+
+            ByteBuf buf;
+            while (null != (buf = (ByteBuf) channel.readOutbound())) {
+                assertEquals('$', buf.getByte(0));
+                assertEquals(1, buf.getUnsignedByte(1));
+                buf.release();
+                received++;
+            }
+        }
+        return received;
+    }
+}
@@ -0,0 +1,69 @@
+package com.sengled.cloud.mediaserver.rtsp.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import junit.framework.TestCase;
+
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+
+public class RtpPacerTest extends TestCase {
+
+    public static void testSpreadBurst() throws Exception {
+        ChannelHandler handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        ChannelHandlerContext ctx = channel.pipeline().context(handler);
+        RtspSession session = new RtspSession(new ServerEngine(), ctx, "rtsp://127.0.0.1/pacer.sdp");
+
+        // 80kbps x 150% = 15KB/s, 200ms 的窗口是 3000 字节
+        RtpPacer pacer = new RtpPacer(session, 200);
+        pacer.setBitrate(System.nanoTime(), 80 * 1000);
+
+        // 关键帧一下子来了 10 个包
+        ChannelPromise[] promises = new ChannelPromise[10];
+        for (int i = 0; i < promises.length; i++) {
+            promises[i] = ctx.newPromise();
+            pacer.write(Unpooled.buffer(1000).writeZero(1000), promises[i]);
+        }
+        assertEquals(3, numOutbound(channel));
+        assertEquals(7, pacer.numPending());
+
+        // 剩下的 7000 字节大约 470ms 发完
+        long deadline = System.currentTimeMillis() + 2000;
+        int sent = 3;
+        while (pacer.numPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            channel.runPendingTasks();
+            sent += numOutbound(channel);
+        }
+        assertEquals(10, sent);
+        for (ChannelPromise promise : promises) {
+            assertTrue(promise.isSuccess());
+        }
+
+        // 不知道码率时不限速
+        pacer.setBitrate(System.nanoTime(), 0);
+        for (int i = 0; i < 10; i++) {
+            pacer.write(Unpooled.buffer(1000).writeZero(1000), ctx.newPromise());
+        }
+        assertEquals(10, numOutbound(channel));
+        assertEquals(0, pacer.numPending());
+
+        channel.finish();
+    }
+
+    private static int numOutbound(EmbeddedChannel channel) {
+        int num = 0;
+        ByteBuf buf;
+        while (null != (buf = (ByteBuf) channel.readOutbound())) {
+            buf.release();
+            num++;
+        }
+        return num;
+    }
+}
@@ -0,0 +1,32 @@
+package com.sengled.cloud.monitor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class OSMonitorTest extends TestCase {
+
+    public static void testThreadGroupGauges() {
+        MetricRegistry registry = new MetricRegistry();
+        OSMonitor monitor = new OSMonitor().withMetricRegistry(registry);
+        String workerMax = MetricRegistry.name(OSMonitor.class, "thread", "rtsp-worker", "max");
+        String clientTotal = MetricRegistry.name(OSMonitor.class, "thread", "rtsp-client", "total");
+
+        monitor.updateThreadGroups(new HashSet<String>(Arrays.asList("rtsp-worker", "rtsp-client")));
+        assertTrue(registry.getNames().contains(workerMax));
+        assertTrue(registry.getNames().contains(clientTotal));
+
+        // rtsp-client 的线程都退出了
+        monitor.updateThreadGroups(Collections.singleton("rtsp-worker"));
+        assertTrue(registry.getNames().contains(workerMax));
+        assertFalse(registry.getNames().contains(clientTotal));
+
+        // 重新启动以后再注册
+        monitor.updateThreadGroups(new HashSet<String>(Arrays.asList("rtsp-worker", "rtsp-client")));
+        assertTrue(registry.getNames().contains(clientTotal));
+    }
+}
@@ -0,0 +1,191 @@
+package com.sengled.cloud.spring.reports.redis;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.rtsp.RtspHeaders;
+import io.netty.handler.codec.rtsp.RtspMethods;
+import io.netty.handler.codec.rtsp.RtspResponseStatuses;
+import io.netty.handler.codec.rtsp.RtspVersions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sengled.cloud.mediaserver.RtspServerInboundHandler;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession;
+import com.sengled.cloud.mediaserver.rtsp.RtspSession.SessionMode;
+import com.sengled.cloud.mediaserver.rtsp.ServerEngine;
+import com.sengled.cloud.monitor.OSMonitor;
+
+/**
+ * 连本机的 redis-server 测试批量上报, 对账和集群重定向, 连不上时跳过
+ *
+ * <pre>
+ * redis-server --port 6379 &amp;
+ * java -Dredis.port=6379 -Dredis.db=15 junit.textui.TestRunner com.sengled.cloud.spring.reports.redis.RedisResourceTest
+ * </pre>
+ *
+ * 会清空 redis.db 指定的库
+ */
+public class RedisResourceTest extends TestCase {
+    private static final String HOST = "127.0.0.1";
+    private static final String SDP = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=test\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=control:streamid=0\r\n";
+
+    private static final int NUM_DEVICES = 200;
+
+    public static void testBatchAndReconcile() throws Exception {
+        StringRedisTemplate redis = connect();
+        if (null == redis) {
+            return;
+        }
+
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        MediaResource resource = new MediaResource();
+        resource.setInnerHost(null);
+        resource.setOuterHost("test");
+        resource.setRedisTemplate(redis);
+        resource.setOsMonitor(new OSMonitor());
+        resource.updateResourceDevicesDelay = 1;
+        resource.register(554, engine);
+
+        final String devicesKey = resource.getDeviceListKey();
+        String host = devicesKey.split(":")[2];
+
+        List<RtspSession> sessions = new ArrayList<RtspSession>();
+        for (int i = 0; i < NUM_DEVICES; i++) {
+            ChannelHandler handler = new ChannelInboundHandlerAdapter();
+            ChannelHandlerContext ctx = new EmbeddedChannel(handler).pipeline().context(handler);
+            RtspSession session = new RtspSession(engine, ctx, "rtsp://127.0.0.1/device" + i + ".sdp")
+                    .withSdp(SDP)
+                    .withMode(SessionMode.PUBLISH);
+            session.record();
+            sessions.add(session);
+        }
+        awaitMembers(redis, devicesKey, NUM_DEVICES);
+        assertEquals(host, redis.opsForHash().get(AbstractRedisResource.getDeviceInfoKey("device0"), "media"));
+
+        // 一半下线, 其中一个被别的服务器接管了, 不能删掉它的 device-info
+        redis.opsForHash().put(AbstractRedisResource.getDeviceInfoKey("device1"), "media", "10.0.0.99");
+        for (int i = 0; i < NUM_DEVICES / 2; i++) {
+            sessions.get(i).destroy("test");
+        }
+        awaitMembers(redis, devicesKey, NUM_DEVICES / 2);
+        assertNull(redis.opsForHash().get(AbstractRedisResource.getDeviceInfoKey("device0"), "media"));
+        assertEquals("10.0.0.99", redis.opsForHash().get(AbstractRedisResource.getDeviceInfoKey("device1"), "media"));
+
+        // 相当于 redis 重启, 对账时补回来
+        redis.delete(devicesKey);
+        awaitMembers(redis, devicesKey, NUM_DEVICES / 2);
+
+        // 不属于本机的设备, 对账时删掉
+        redis.opsForSet().add(devicesKey, "stale");
+        awaitMembers(redis, devicesKey, NUM_DEVICES / 2);
+        assertFalse(redis.opsForSet().isMember(devicesKey, "stale"));
+
+        for (int i = NUM_DEVICES / 2; i < NUM_DEVICES; i++) {
+            sessions.get(i).destroy("test");
+        }
+        awaitMembers(redis, devicesKey, 0);
+    }
+
+    public static void testRedirect() throws Exception {
+        StringRedisTemplate redis = connect();
+        if (null == redis) {
+            return;
+        }
+
+        String other = "10.0.0.99";
+        String infoKey = AbstractRedisResource.getInfoKey(AbstractRedisResource.MEDIA, other);
+        String devicesKey = AbstractRedisResource.getDeviceListKey(AbstractRedisResource.MEDIA, other);
+        redis.opsForZSet().add(AbstractRedisResource.getListKey(AbstractRedisResource.MEDIA), other, 10);
+        redis.opsForHash().put(infoKey, "outer_ip", "1.2.3.4");
+        redis.opsForHash().put(infoKey, "port", "554");
+        redis.opsForSet().add(devicesKey, "device0");
+
+        ServerEngine engine = new ServerEngine().withMetricRegistry("test", new MetricRegistry());
+        RedisStreamRedirector redirector = new RedisStreamRedirector();
+        redirector.setRedisTemplate(redis);
+        redirector.setOsMonitor(new OSMonitor());
+        engine.withStreamRedirector(redirector);
+
+        redirector.refresh();
+        assertEquals("1.2.3.4:554", redirector.getLocation("/device0.sdp"));
+
+        // 增量刷新: 设备数变了才重新取设备列表
+        redis.opsForSet().add(devicesKey, "device1");
+        redis.opsForSet().remove(devicesKey, "device0");
+        redis.opsForSet().add(devicesKey, "device2");
+        redirector.refresh();
+        assertNull(redirector.getLocation("/device0.sdp"));
+        assertEquals("1.2.3.4:554", redirector.getLocation("/device2.sdp"));
+
+        // DESCRIBE 本机没有的流
+        EmbeddedChannel channel = new EmbeddedChannel(new RtspServerInboundHandler(engine));
+        DefaultFullHttpRequest request = new DefaultFullHttpRequest(RtspVersions.RTSP_1_0, RtspMethods.DESCRIBE,
+                                                                    "rtsp://127.0.0.1:554/device1.sdp?auth=x");
+        request.headers().set(RtspHeaders.Names.CSEQ, 1);
+        channel.writeInbound(request);
+        FullHttpResponse response = (FullHttpResponse) channel.readOutbound();
+        assertEquals(RtspResponseStatuses.MOVED_TEMPORARILY, response.getStatus());
+        assertEquals("rtsp://1.2.3.4:554/device1.sdp?auth=x", response.headers().get(HttpHeaders.Names.LOCATION));
+        response.release();
+        channel.finish();
+
+        // 服务器下线, info 过期
+        redis.delete(infoKey);
+        redirector.refresh();
+        assertEquals(0, redirector.numLocations());
+    }
+
+    private static StringRedisTemplate connect() {
+        JedisConnectionFactory factory = new JedisConnectionFactory();
+        factory.setHostName(System.getProperty("redis.host", HOST));
+        factory.setPort(Integer.getInteger("redis.port", 6379));
+        factory.setDatabase(Integer.getInteger("redis.db", 15));
+        factory.setUsePool(false);
+        factory.afterPropertiesSet();
+
+        StringRedisTemplate redis = new StringRedisTemplate(factory);
+        try {
+            redis.execute(new RedisCallback<Void>() {
+                @Override
+                public Void doInRedis(RedisConnection connection) throws DataAccessException {
+                    connection.flushDb();
+                    return null;
+                }
+            });
+        } catch (DataAccessException ex) {
+            System.out.println("redis-server NOT available, skip: " + ex.getMessage());
+            return null;
+        }
+        return redis;
+    }
+
+    private static void awaitMembers(StringRedisTemplate redis, String key, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        long size;
+        while ((size = redis.opsForSet().size(key)) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(expected, size);
+    }
+}
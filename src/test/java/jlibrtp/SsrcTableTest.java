@@ -0,0 +1,67 @@
+package jlibrtp;
+
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class SsrcTableTest extends TestCase {
+    public static void testPutGetRemove() {
+        SsrcTable table = new SsrcTable();
+        Participant a = new Participant(0xFFFFFFFFL);
+        Participant b = new Participant(1L);
+
+        assertNull(table.put(a.ssrc(), a));
+        assertNull(table.put(b.ssrc(), b));
+        assertEquals(2, table.size());
+        assertSame(a, table.get(0xFFFFFFFFL));
+        assertSame(b, table.get(1L));
+        assertNull(table.get(2L));
+
+        assertFalse(table.remove(1L, a));
+        assertTrue(table.remove(1L, b));
+        assertNull(table.get(1L));
+        assertEquals(1, table.size());
+
+        assertSame(a, table.put(a.ssrc(), b));
+        assertSame(b, table.remove(0xFFFFFFFFL));
+        assertTrue(table.isEmpty());
+    }
+
+    public static void testGrowAndReuseRemovedSlots() {
+        SsrcTable table = new SsrcTable();
+        for (long ssrc = 0; ssrc < 10000; ssrc++) {
+            table.put(ssrc, new Participant(ssrc));
+            if (ssrc % 2 == 0) {
+                table.remove(ssrc);
+            }
+        }
+        assertEquals(5000, table.size());
+
+        for (long ssrc = 0; ssrc < 10000; ssrc++) {
+            Participant p = table.get(ssrc);
+            if (ssrc % 2 == 0) {
+                assertNull(p);
+            } else {
+                assertEquals(ssrc, p.ssrc());
+            }
+        }
+    }
+
+    public static void testElements() {
+        SsrcTable table = new SsrcTable();
+        for (long ssrc = 100; ssrc < 200; ssrc++) {
+            table.put(ssrc, new Participant(ssrc));
+        }
+        table.remove(150L);
+
+        Set<Long> seen = new HashSet<Long>();
+        Enumeration<Participant> enu = table.elements();
+        while (enu.hasMoreElements()) {
+            seen.add(enu.nextElement().ssrc());
+        }
+        assertEquals(99, seen.size());
+        assertFalse(seen.contains(150L));
+    }
+}
@@ -0,0 +1,136 @@
+package jlibrtp.udp;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jlibrtp.ByteArrayRtpPkt;
+import jlibrtp.IRtpPkt;
+import jlibrtp.Participant;
+import jlibrtp.RTCPAppIntf;
+import jlibrtp.RTPAppIntf;
+import junit.framework.TestCase;
+
+public class NettyUDPRTPSessionTest extends TestCase {
+
+    public static void testLoopback() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(1);
+        int threads = Thread.activeCount();
+        try {
+            NettyUDPRTPSession sender = newSession(group);
+            NettyUDPRTPSession receiver = newSession(group);
+            sender.addParticipant(participantOf(receiver));
+            receiver.addParticipant(participantOf(sender));
+            // 还没收到 SDES 前 ssrc 是未知的, 也要交给应用
+            receiver.naivePktReception(true);
+
+            Receiver app = new Receiver(receiver);
+            assertEquals(0, sender.RTPSessionRegister(new Receiver(sender), null, null));
+            assertEquals(0, receiver.RTPSessionRegister(app, app, null));
+            assertEquals(-1, receiver.RTPSessionRegister(app, app, null));
+
+            // 两个会话共用一个 EventLoop, 不再每个会话启动 4 个线程
+            assertSame(sender.eventLoop(), receiver.eventLoop());
+            assertTrue(Thread.activeCount() - threads <= 1);
+
+            for (int i = 0; i < 3; i++) {
+                sender.sendData(new byte[] {(byte) i, 1, 2, 3});
+            }
+            for (int i = 0; i < 3; i++) {
+                IRtpPkt frame = app.frames.poll(5, TimeUnit.SECONDS);
+                assertNotNull(frame);
+                assertEquals(sender.ssrc(), frame.ssrc());
+                assertTrue(Arrays.equals(new byte[] {(byte) i, 1, 2, 3}, ((ByteArrayRtpPkt) frame).getPayload()));
+            }
+            assertFalse(app.wrongThread);
+
+            // 结束时通过 rtcp 通道发送 BYE
+            sender.endSession("done");
+            assertTrue(app.bye.await(5, TimeUnit.SECONDS));
+            assertFalse(app.wrongThread);
+            receiver.endSession("done");
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private static NettyUDPRTPSession newSession(NioEventLoopGroup group) throws InterruptedException {
+        return new NettyUDPRTPSession(group, new InetSocketAddress("127.0.0.1", 0), new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    private static UDPParticipant participantOf(NettyUDPRTPSession session) {
+        return new UDPParticipant("127.0.0.1", session.localRtpAddress().getPort(), session.localRtcpAddress().getPort());
+    }
+
+    /**
+     * 收到的包和回调所在的线程
+     */
+    private static class Receiver implements RTPAppIntf, RTCPAppIntf {
+        private final NettyUDPRTPSession session;
+        private final BlockingQueue<IRtpPkt> frames = new LinkedBlockingQueue<IRtpPkt>();
+        private final CountDownLatch bye = new CountDownLatch(1);
+        private volatile boolean wrongThread;
+
+        Receiver(NettyUDPRTPSession session) {
+            this.session = session;
+        }
+
+        private void checkThread() {
+            wrongThread |= !session.eventLoop().inEventLoop();
+        }
+
+        @Override
+        public void receiveData(IRtpPkt aFrame, Participant participant) {
+            checkThread();
+            frames.add(aFrame);
+        }
+
+        @Override
+        public void userEvent(int type, Participant[] participant) {
+        }
+
+        @Override
+        public int getBufferSize() {
+            return 1;
+        }
+
+        @Override
+        public int getFirstSeqNumber() {
+            return -1;
+        }
+
+        @Override
+        public void SRPktReceived(long ssrc, long ntpHighOrder, long ntpLowOrder, long rtpTimestamp, long packetCount,
+                                  long octetCount, long[] reporteeSsrc, int[] lossFraction, int[] cumulPacketsLost,
+                                  long[] extHighSeq, long[] interArrivalJitter, long[] lastSRTimeStamp, long[] delayLastSR) {
+            checkThread();
+        }
+
+        @Override
+        public void RRPktReceived(long reporterSsrc, long[] reporteeSsrc, int[] lossFraction, int[] cumulPacketsLost,
+                                  long[] extHighSeq, long[] interArrivalJitter, long[] lastSRTimeStamp, long[] delayLastSR) {
+            checkThread();
+        }
+
+        @Override
+        public void SDESPktReceived(Participant[] relevantParticipants) {
+            checkThread();
+        }
+
+        @Override
+        public void BYEPktReceived(Participant[] relevantParticipants, String reason) {
+            checkThread();
+            bye.countDown();
+        }
+
+        @Override
+        public void APPPktReceived(Participant part, int subtype, byte[] name, byte[] data) {
+            checkThread();
+        }
+    }
+}